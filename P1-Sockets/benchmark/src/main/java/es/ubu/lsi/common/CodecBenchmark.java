@@ -0,0 +1,105 @@
+package es.ubu.lsi.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.ubu.lsi.common.ChatMessage.MessageType;
+
+/**
+ * Benchmark de la codificación y decodificación de un {@link ChatMessage} con
+ * el códec binario frente a la serialización de Java.
+ *
+ * La serialización se mide con un stream nuevo por mensaje, que es lo que
+ * cuesta encapsular cada mensaje en una trama independiente.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class CodecBenchmark {
+
+	/**
+	 * Número de caracteres del texto del mensaje
+	 */
+	@Param({ "16", "256", "4096" })
+	public int length;
+
+	private ChatMessage message;
+	private byte[] binary;
+	private byte[] serialized;
+	private ChatMessageDecoder decoder;
+
+	@Setup
+	public void setup() throws IOException {
+		// Texto mayoritariamente ASCII con algún carácter de dos bytes
+		StringBuilder text = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			text.append(i % 32 == 31 ? 'ñ' : (char) ('a' + i % 26));
+		}
+		message = new ChatMessage(42, MessageType.MESSAGE, text.toString());
+		binary = ChatMessageEncoder.encodeToArray(message);
+		serialized = serialize(message);
+		decoder = new ChatMessageDecoder();
+	}
+
+	@Benchmark
+	public byte[] binaryEncode() throws IOException {
+		return ChatMessageEncoder.encodeToArray(message);
+	}
+
+	@Benchmark
+	public ChatMessage binaryDecode() throws IOException {
+		// Entregar la trama por partes, como lo haría la lectura de un canal
+		int offset = 0;
+		while (offset < binary.length) {
+			ByteBuffer buffer = decoder.buffer();
+			int n = Math.min(buffer.remaining(), binary.length - offset);
+			buffer.put(binary, offset, n);
+			offset += n;
+		}
+		return decoder.next();
+	}
+
+	@Benchmark
+	public byte[] serializationEncode() throws IOException {
+		return serialize(message);
+	}
+
+	@Benchmark
+	public Object serializationDecode() throws IOException, ClassNotFoundException {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+			return in.readObject();
+		}
+	}
+
+	private static byte[] serialize(ChatMessage message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(message);
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,56 @@
+package es.ubu.lsi.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+
+/**
+ * Benchmark de {@link ChatServerImpl#broadcast(ChatMessage)} con destinatarios
+ * en memoria. Mide el formateo y la codificación del mensaje y su entrega a la
+ * cola de salida de cada destinatario, sin red.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class BroadcastBenchmark {
+
+	/**
+	 * Número de destinatarios
+	 */
+	@Param({ "10", "1000", "10000" })
+	public int recipients;
+
+	private ChatServerImpl server;
+	private ChatMessage message;
+
+	@Setup
+	public void setup() {
+		server = SinkSession.serverWith(recipients);
+		message = new ChatMessage(1, MessageType.MESSAGE, "hola a todos, ¿qué tal va la práctica de sockets?");
+	}
+
+	@Benchmark
+	public void broadcast() {
+		server.broadcast(message);
+	}
+}
@@ -0,0 +1,78 @@
+package es.ubu.lsi.server;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+
+/**
+ * Benchmark del procesado de los mensajes recibidos de un cliente
+ * ({@link ClientSession#processMsg(ChatMessage)}): reconocimiento de comandos y
+ * difusión a diez destinatarios en memoria.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class CommandBenchmark {
+
+	/**
+	 * Texto recibido: un mensaje de varias palabras, uno de dos palabras que no es
+	 * un comando y un comando ban
+	 */
+	@Param({ "hola a todos los presentes en el chat", "hola mundo", "ban pepe" })
+	public String text;
+
+	private ClientSession sender;
+	private ChatMessage message;
+	private PrintStream stdout;
+
+	@Setup
+	public void setup() {
+		// Los comandos imprimen en el servidor: descartar la salida
+		stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+		ChatServerImpl server = SinkSession.serverWith(10);
+		sender = server.getSessions().get(1);
+		message = new ChatMessage(1, MessageType.MESSAGE, text);
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.setOut(stdout);
+	}
+
+	@Benchmark
+	public void processMsg() {
+		sender.processMsg(message);
+	}
+}
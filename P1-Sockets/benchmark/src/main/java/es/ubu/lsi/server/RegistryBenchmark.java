@@ -0,0 +1,102 @@
+package es.ubu.lsi.server;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark de las búsquedas y el recorrido del {@link SessionRegistry},
+ * comparado con un {@link ConcurrentHashMap} con claves Integer. Las claves se
+ * consultan en un orden aleatorio con semilla fija.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class RegistryBenchmark {
+
+	/**
+	 * Número de sesiones registradas
+	 */
+	@Param({ "10", "1000", "10000" })
+	public int sessions;
+
+	private SessionRegistry registry;
+	private ConcurrentHashMap<Integer, ClientSession> map;
+	private int[] ids;
+	private String[] nicknames;
+	private int next;
+
+	@Setup
+	public void setup() {
+		registry = SinkSession.serverWith(sessions).getSessions();
+		map = new ConcurrentHashMap<Integer, ClientSession>();
+		for (ClientSession session : registry) {
+			map.put(session.getClientId(), session);
+		}
+		// Orden de consulta aleatorio pero reproducible
+		Random random = new Random(42);
+		ids = new int[1024];
+		nicknames = new String[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = 1 + random.nextInt(sessions);
+			nicknames[i] = "user" + ids[i];
+		}
+	}
+
+	private int nextIndex() {
+		next = (next + 1) & (ids.length - 1);
+		return next;
+	}
+
+	@Benchmark
+	public ClientSession registryGetById() {
+		return registry.get(ids[nextIndex()]);
+	}
+
+	@Benchmark
+	public ClientSession mapGetById() {
+		return map.get(ids[nextIndex()]);
+	}
+
+	@Benchmark
+	public ClientSession registryGetByNickname() {
+		return registry.getByNickname(nicknames[nextIndex()]);
+	}
+
+	@Benchmark
+	public long registryIterate() {
+		long sum = 0;
+		for (ClientSession session : registry) {
+			sum += session.getClientId();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public long mapIterate() {
+		long sum = 0;
+		for (ClientSession session : map.values()) {
+			sum += session.getClientId();
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,62 @@
+package es.ubu.lsi.server;
+
+/**
+ * Sesión en memoria para los benchmarks. Vacía su cola de salida en cuanto se
+ * le encola una trama y sólo cuenta los bytes recibidos.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+class SinkSession extends ClientSession {
+
+	/**
+	 * Bytes recibidos por la sesión
+	 */
+	long bytes;
+
+	/**
+	 * Método constructor. Instancia una sesión ya identificada sin registrarla.
+	 *
+	 * @param server   Servidor al que pertenece la sesión
+	 * @param id       Identificador del cliente
+	 * @param nickname Nickname del cliente
+	 */
+	SinkSession(ChatServerImpl server, int id, String nickname) {
+		super(server);
+		setClientId(id);
+		setNickname(nickname);
+	}
+
+	@Override
+	protected void wakeWriter() {
+		SharedFrame frame;
+		while ((frame = queue.poll()) != null) {
+			bytes += frame.length();
+		}
+	}
+
+	@Override
+	public void closeClient() {
+		setAlive(false);
+	}
+
+	/**
+	 * Método que crea un servidor sin arrancar con el número de sesiones en
+	 * memoria indicado, con identificadores de 1 a n, todas en la sala por
+	 * defecto. La difusión se realiza en el hilo que publica el mensaje para
+	 * medir su coste completo.
+	 *
+	 * @param n Número de sesiones
+	 * @return server Servidor con las sesiones registradas
+	 */
+	static ChatServerImpl serverWith(int n) {
+		ChatServerImpl server = new ChatServerImpl(new ServerConfig().setQueueCapacity(16).setFanoutThreads(0));
+		for (int id = 1; id <= n; id++) {
+			SinkSession session = new SinkSession(server, id, "user" + id);
+			server.getSessions().register(session);
+			server.getRooms().join(session, ChatRooms.DEFAULT_ROOM);
+		}
+		return server;
+	}
+}
@@ -0,0 +1,420 @@
+package es.ubu.lsi.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.ChatMessageDecoder;
+import es.ubu.lsi.common.ChatMessageEncoder;
+
+/**
+ * Cliente de chat asíncrono para usarlo como biblioteca (bots, servicios de
+ * integración).
+ *
+ * Se conecta por un canal no bloqueante atendido por un bucle de eventos
+ * compartido ({@link ClientEventLoop}). Ningún método bloquea: la conexión y
+ * cada envío devuelven un {@link CompletableFuture} que se completa cuando se
+ * recibe la bienvenida o cuando la trama se ha escrito en el socket, y los
+ * mensajes recibidos se entregan a un {@link ChatMessageListener}. Los errores
+ * se notifican por los futuros y el listener; nunca se finaliza la máquina
+ * virtual ni se lee de la entrada estándar.
+ *
+ * Puede usarse desde cualquier hilo. Las tramas se escriben en el orden en que
+ * se envían.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class AsyncChatClient {
+
+	/**
+	 * Puerto predeterminado del servidor
+	 */
+	public static final int DEFAULT_PORT = 1500;
+
+	/**
+	 * Trama pendiente de escribir junto con el futuro que se completa al
+	 * escribirla
+	 *
+	 * @author Eduardo Manuel Cabeza Lopez
+	 */
+	private static final class PendingWrite {
+
+		/**
+		 * Bytes de la trama que quedan por escribir
+		 */
+		final ByteBuffer buffer;
+
+		/**
+		 * Futuro que se completa al escribir la trama entera
+		 */
+		final CompletableFuture<Void> future;
+
+		/**
+		 * Método constructor.
+		 *
+		 * @param buffer Bytes de la trama
+		 * @param future Futuro que se completa al escribirla
+		 */
+		PendingWrite(ByteBuffer buffer, CompletableFuture<Void> future) {
+			this.buffer = buffer;
+			this.future = future;
+		}
+	}
+
+	/**
+	 * Dirección del servidor
+	 */
+	private final InetSocketAddress address;
+
+	/**
+	 * Nickname del usuario
+	 */
+	private final String nickname;
+
+	/**
+	 * Bucle de eventos que atiende al cliente
+	 */
+	private final ClientEventLoop loop;
+
+	/**
+	 * Receptor de los mensajes y del cierre
+	 */
+	private final ChatMessageListener listener;
+
+	/**
+	 * Tramas pendientes de escribir, en orden
+	 */
+	private final ConcurrentLinkedQueue<PendingWrite> writes = new ConcurrentLinkedQueue<PendingWrite>();
+
+	/**
+	 * Indica si ya se ha pedido al bucle que escriba las tramas pendientes
+	 */
+	private final AtomicBoolean writeRequested = new AtomicBoolean();
+
+	/**
+	 * Indica si el cliente se ha cerrado
+	 */
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	/**
+	 * Futuro de la conexión, que se completa con el identificador asignado
+	 */
+	private final CompletableFuture<Integer> connected = new CompletableFuture<Integer>();
+
+	/**
+	 * Decodificador de las tramas recibidas. Sólo lo usa el bucle
+	 */
+	private final ChatMessageDecoder decoder = new ChatMessageDecoder();
+
+	/**
+	 * Canal del cliente
+	 */
+	private SocketChannel channel;
+
+	/**
+	 * Clave del canal en el selector. Sólo la usa el bucle
+	 */
+	private SelectionKey key;
+
+	/**
+	 * Identificador asignado por el servidor, o 0 antes de la bienvenida
+	 */
+	private volatile int id;
+
+	/**
+	 * Método constructor. Instancia un cliente sin conectar.
+	 *
+	 * @param host     Hostname del servidor
+	 * @param port     Puerto del servidor
+	 * @param nickname Nickname del usuario
+	 * @param loop     Bucle de eventos que atenderá al cliente
+	 * @param listener Receptor de los mensajes
+	 */
+	public AsyncChatClient(String host, int port, String nickname, ClientEventLoop loop,
+			ChatMessageListener listener) {
+		this.address = new InetSocketAddress(host, port);
+		this.nickname = nickname;
+		this.loop = loop;
+		this.listener = listener;
+	}
+
+	/**
+	 * Método que conecta con el servidor y envía la petición de registro con el
+	 * nickname.
+	 *
+	 * @return future Futuro que se completa con el identificador asignado al
+	 *         recibir la bienvenida, o con error si no es posible conectar
+	 */
+	public CompletableFuture<Integer> connect() {
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			final boolean immediate = channel.connect(address);
+			// La petición queda encolada hasta que se complete la conexión
+			enqueue(new ChatMessage(0, MessageType.MESSAGE, nickname));
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						key = loop.register(channel, immediate ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+								: SelectionKey.OP_CONNECT, AsyncChatClient.this);
+					} catch (ClosedChannelException e) { // Cerrado antes de registrarse
+						fail(e);
+					}
+				}
+			});
+		} catch (IOException e) { // Capturar excepciones IOException
+			fail(e);
+		}
+		return connected;
+	}
+
+	/**
+	 * Método que envía un mensaje al servidor sin esperar a que se escriba.
+	 *
+	 * @param message Mensaje a enviar
+	 * @return future Futuro que se completa cuando la trama se ha escrito en el
+	 *         socket, o con error si se cierra la conexión antes
+	 */
+	public CompletableFuture<Void> sendMessage(ChatMessage message) {
+		CompletableFuture<Void> future = enqueue(message);
+		if (writeRequested.compareAndSet(false, true)) {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					writeRequested.set(false);
+					flush();
+				}
+			});
+		}
+		return future;
+	}
+
+	/**
+	 * Método que envía un mensaje de texto con el identificador del cliente.
+	 *
+	 * @param text Texto del mensaje
+	 * @return future Futuro que se completa cuando la trama se ha escrito
+	 */
+	public CompletableFuture<Void> sendText(String text) {
+		return sendMessage(new ChatMessage(getId(), MessageType.MESSAGE, text));
+	}
+
+	/**
+	 * Método que envía un LOGOUT y cierra la conexión cuando se ha escrito.
+	 *
+	 * @return future Futuro que se completa al escribir el LOGOUT
+	 */
+	public CompletableFuture<Void> logout() {
+		CompletableFuture<Void> sent = sendMessage(new ChatMessage(getId(), MessageType.LOGOUT, ""));
+		sent.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void result, Throwable error) {
+				close();
+			}
+		});
+		return sent;
+	}
+
+	/**
+	 * Método que cierra la conexión desde el bucle de eventos. Los envíos
+	 * pendientes se completan con error y se avisa al listener.
+	 */
+	public void close() {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				terminate(null);
+			}
+		});
+	}
+
+	/**
+	 * Método que codifica un mensaje y lo añade a las tramas pendientes.
+	 *
+	 * @param message Mensaje a enviar
+	 * @return future Futuro de la escritura
+	 */
+	private CompletableFuture<Void> enqueue(ChatMessage message) {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		if (closed.get()) {
+			future.completeExceptionally(new ClosedChannelException());
+			return future;
+		}
+		try {
+			writes.add(new PendingWrite(ChatMessageEncoder.encode(message), future));
+		} catch (IOException e) { // Mensaje demasiado largo
+			future.completeExceptionally(e);
+		}
+		// Si se ha cerrado entretanto, fallar también esta trama
+		if (closed.get()) {
+			failWrites(new ClosedChannelException());
+		}
+		return future;
+	}
+
+	/**
+	 * Método que completa la conexión cuando el canal es conectable. Se invoca
+	 * desde el bucle.
+	 *
+	 * @throws IOException Si no es posible conectar
+	 */
+	void onConnectable() throws IOException {
+		if (channel.finishConnect()) {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Método que lee y entrega los mensajes recibidos. El primero es la
+	 * bienvenida, que completa la conexión. Se invoca desde el bucle.
+	 *
+	 * @throws IOException Si se pierde la conexión o la trama es incorrecta
+	 */
+	void onReadable() throws IOException {
+		if (channel.read(decoder.buffer()) < 0) {
+			if (!connected.isDone()) {
+				throw new IOException("El servidor ha rechazado la conexión de " + nickname);
+			}
+			terminate(null);
+			return;
+		}
+		ChatMessage message;
+		while (!closed.get() && (message = decoder.next()) != null) {
+			if (!connected.isDone()) {
+				id = message.getId();
+				connected.complete(id);
+			} else {
+				listener.onMessage(this, message);
+			}
+		}
+	}
+
+	/**
+	 * Método que escribe el socket las tramas pendientes. Se invoca desde el
+	 * bucle.
+	 *
+	 * @throws IOException Si se pierde la conexión
+	 */
+	void onWritable() throws IOException {
+		flush();
+	}
+
+	/**
+	 * Método que escribe las tramas pendientes mientras el socket las acepte y
+	 * completa el futuro de cada una. Si el socket se llena, espera al siguiente
+	 * evento de escritura. Se invoca desde el bucle.
+	 */
+	private void flush() {
+		if (key == null || !key.isValid() || !channel.isConnected()) {
+			return; // Se escribirán al conectar
+		}
+		try {
+			PendingWrite write;
+			while ((write = writes.peek()) != null) {
+				if (closed.get()) {
+					return;
+				}
+				channel.write(write.buffer);
+				if (write.buffer.hasRemaining()) { // El búfer del socket está lleno
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+				writes.poll();
+				write.future.complete(null);
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		} catch (IOException | CancelledKeyException e) { // Capturar errores de conexión
+			fail(e);
+		}
+	}
+
+	/**
+	 * Método que cierra el cliente por un error de conexión. Se invoca desde el
+	 * bucle.
+	 *
+	 * @param cause Causa del error
+	 */
+	void fail(Throwable cause) {
+		terminate(cause);
+	}
+
+	/**
+	 * Método que cierra el canal una sola vez, completa con error los futuros
+	 * pendientes y avisa al listener.
+	 *
+	 * @param cause Causa del cierre, o null si es ordenado
+	 */
+	private void terminate(Throwable cause) {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) { // Capturar excepciones IOException
+			// Imprimir error
+			System.err.println("Error: No se ha podido cerrar la conexión de " + nickname);
+		}
+		IOException closedError = new ClosedChannelException();
+		if (cause != null) {
+			closedError.initCause(cause);
+		}
+		connected.completeExceptionally(closedError);
+		failWrites(closedError);
+		listener.onClosed(this, cause);
+	}
+
+	/**
+	 * Método que completa con error todas las tramas pendientes.
+	 *
+	 * @param error Error con el que se completan
+	 */
+	private void failWrites(Throwable error) {
+		PendingWrite write;
+		while ((write = writes.poll()) != null) {
+			write.future.completeExceptionally(error);
+		}
+	}
+
+	/**
+	 * Método que devuelve el identificador asignado por el servidor.
+	 *
+	 * @return id Identificador, o 0 si aún no se ha recibido la bienvenida
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Método que devuelve el nickname del usuario.
+	 *
+	 * @return nickname Nickname del usuario
+	 */
+	public String getNickname() {
+		return nickname;
+	}
+
+	/**
+	 * Método que indica si el cliente se ha cerrado.
+	 *
+	 * @return {@code true} si la conexión está cerrada
+	 */
+	public boolean isClosed() {
+		return closed.get();
+	}
+}
@@ -1,12 +1,20 @@
 package es.ubu.lsi.client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
 import java.net.Socket;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
 
 import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessageDecoder;
+import es.ubu.lsi.common.ChatMessageEncoder;
+import es.ubu.lsi.common.LatencyHistogram;
 import es.ubu.lsi.common.ChatMessage.MessageType;
 
 /**
@@ -18,28 +26,83 @@ import es.ubu.lsi.common.ChatMessage.MessageType;
  * con nickname "admin" (se ignora el uso de mayúsculas) es el administrador del
  * servidor y podrá apagarlo de forma remota.
  * 
+ * Los mensajes no se escriben desde el hilo principal: se dejan en la cola de
+ * un {@link OutboundBatcher}, que los escribe en orden y agrupa en una sola
+ * escritura los que llegan en ráfaga. Se configura con las propiedades del
+ * sistema:
+ * <ul>
+ * <li>{@code chat.client.batch.size}: máximo de mensajes por escritura (64 por
+ * defecto).</li>
+ * <li>{@code chat.client.batch.lingerMicros}: tiempo que se espera a que
+ * lleguen más mensajes antes de escribir un lote (0 por defecto, sin
+ * espera).</li>
+ * <li>{@code chat.client.stats}: si vale {@code true}, al desconectarse se
+ * imprime la latencia de envío de los mensajes, incluida la espera en la
+ * cola.</li>
+ * <li>{@code chat.client.reconnect.attempts}: intentos de reconexión si se
+ * pierde la conexión o se apaga el servidor (10 por defecto, 0 para no
+ * reconectar).</li>
+ * <li>{@code chat.client.reconnect.maxMillis}: espera máxima entre dos
+ * intentos (10000 por defecto).</li>
+ * <li>{@code chat.client.render.frameMillis}: intervalo mínimo entre dos
+ * escrituras de los mensajes recibidos en el terminal (50 por defecto).</li>
+ * <li>{@code chat.client.render.catchUpAfter}: mensajes acumulados a partir de
+ * los cuales sólo se muestran los últimos (1000 por defecto, 0 para mostrarlos
+ * siempre todos).</li>
+ * <li>{@code chat.client.render.catchUpLines}: mensajes que se muestran al
+ * ponerse al día (100 por defecto).</li>
+ * <li>{@code chat.client.compress}: si vale {@code true}, se pide al servidor
+ * que comprima las tramas largas en ambos sentidos (desactivado por
+ * defecto).</li>
+ * <li>{@code chat.client.ack.every}: tramas recibidas sin confirmar a partir de
+ * las cuales se envía una confirmación acumulada ACK (64 por defecto, 0 para no
+ * confirmar).</li>
+ * <li>{@code chat.client.ack.millis}: intervalo máximo sin confirmar las tramas
+ * recibidas (200 por defecto).</li>
+ * </ul>
+ * 
+ * Si la reconexión está activada el cliente se registra con un mensaje RESUME
+ * y recibe una credencial para reanudar su sesión. Al perder la conexión lo
+ * intenta de nuevo tras una espera que se duplica en cada intento, con una
+ * parte aleatoria para que muchos clientes no reconecten a la vez. Si el
+ * servidor conserva su sesión la reanuda con el mismo identificador, recibe
+ * los mensajes que se perdieron y envía los que aún no había escrito; si no
+ * (por ejemplo, tras reiniciarse el servidor), se registra de nuevo.
+ * 
+ * Los mensajes recibidos tampoco se imprimen desde el hilo que lee del socket:
+ * se dejan en la cola de un {@link ConsoleRenderer}, que los muestra agrupados
+ * para que un terminal lento no frene la recepción.
+ * 
+ * El cliente confirma las tramas recibidas con un {@link DeliveryAcknowledger},
+ * en confirmaciones acumuladas y agrupadas, sin esperar respuesta del
+ * servidor.
+ * 
  * @author Eduardo Manuel Cabeza Lopez
  * @version 1.0.0-SNAPSHOT
  * 
  */
 public class ChatClientImpl implements ChatClient {
 
+	/**
+	 * Espera antes del primer intento de reconexión en milisegundos.
+	 */
+	private static final long RECONNECT_BASE_MILLIS = 500;
 	/**
 	 * Socket del cliente.
 	 */
-	private Socket clientSocket;
+	private volatile Socket clientSocket;
 	/**
 	 * Puerto predeterminado (y fijo) del servidor.
 	 */
 	private final int PORT = 1500;
 	/**
-	 * OutputStream para serializar objetos y escribirlos en la salida.
+	 * OutputStream en el que se escriben las tramas con los mensajes.
 	 */
-	ObjectOutputStream output;
+	volatile DataOutputStream output;
 	/**
-	 * InputStream para deserializar los objetos recibidos.
+	 * InputStream del que se leen las tramas recibidas.
 	 */
-	ObjectInputStream input;
+	volatile DataInputStream input;
 	/**
 	 * Hostname del servidor.
 	 */
@@ -51,15 +114,69 @@ public class ChatClientImpl implements ChatClient {
 	/**
 	 * Identificador único asignado poor el servidor.
 	 */
-	private int id;
+	private volatile int id;
 	/**
 	 * Booleano que indica si el cliente sigue activo.
 	 */
-	private boolean isAlive;
+	private volatile boolean isAlive;
 	/**
 	 * Scanner para introducir datos a través del terminal.
 	 */
 	private Scanner scanner;
+	/**
+	 * Envío en lotes de los mensajes, creado tras el registro en el servidor.
+	 */
+	private volatile OutboundBatcher batcher;
+	/**
+	 * Máximo de mensajes por escritura.
+	 */
+	private int batchSize;
+	/**
+	 * Espera de más mensajes antes de escribir un lote en microsegundos.
+	 */
+	private long lingerMicros;
+	/**
+	 * Intentos de reconexión, o 0 si no se reconecta.
+	 */
+	private int reconnectAttempts;
+	/**
+	 * Espera máxima entre dos intentos de reconexión en milisegundos.
+	 */
+	private long reconnectMaxMillis;
+	/**
+	 * Credencial para reanudar la sesión, o null si el servidor no la conserva.
+	 */
+	private volatile String resumeToken;
+	/**
+	 * Número de tramas recibidas en la sesión. Sólo lo usa el hilo del listener
+	 * (y el principal antes de lanzarlo).
+	 */
+	private long received;
+	/**
+	 * Booleano que indica si el listener está reconectando.
+	 */
+	private volatile boolean reconnecting;
+	/**
+	 * Impresión agrupada de los mensajes recibidos, creada tras el registro.
+	 */
+	private volatile ConsoleRenderer renderer;
+	/**
+	 * Booleano que indica si se pide al servidor la compresión de las tramas.
+	 */
+	private boolean compress;
+	/**
+	 * Longitud mínima de las tramas que se comprimen, negociada con el servidor,
+	 * o -1 si no se comprimen.
+	 */
+	private volatile int compressThreshold = -1;
+	/**
+	 * Confirmación de las tramas recibidas, o null si no se confirman.
+	 */
+	private volatile DeliveryAcknowledger acks;
+	/**
+	 * Monitor con el que se avisa del cambio de conexión.
+	 */
+	private final Object connection = new Object();
 
 	/**
 	 * Método constructor del cliente.
@@ -75,9 +192,9 @@ public class ChatClientImpl implements ChatClient {
 		this.nickname = nickname;
 		this.isAlive = true;
 		try {
-			// Iniciar el socket y el ObjectOutputStream
+			// Iniciar el socket y el stream de salida
 			this.clientSocket = new Socket(this.serverHost, this.PORT);
-			this.output = new ObjectOutputStream(clientSocket.getOutputStream());
+			this.output = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
 		} catch (IOException e) { // Capturar exceciones de clase IOException
 			// Imprimir error
 			System.err.println("Error: No se puede iniciar el cliente.");
@@ -125,29 +242,29 @@ public class ChatClientImpl implements ChatClient {
 	}
 
 	/**
-	 * Método que devuelve el ObjectOutputStream del cliente.
+	 * Método que devuelve el stream de salida del cliente.
 	 * 
-	 * @return output ObjectOutputStream del cliente
+	 * @return output Stream de salida del cliente
 	 */
-	private ObjectOutputStream getOutput() {
+	private DataOutputStream getOutput() {
 		return this.output;
 	}
 
 	/**
-	 * Método que asigna un ObjectInputStream al cliente.
+	 * Método que asigna un stream de entrada al cliente.
 	 * 
-	 * @param input ObjectInputStream para el cliente
+	 * @param input Stream de entrada para el cliente
 	 */
-	private void setInput(ObjectInputStream input) {
+	private void setInput(DataInputStream input) {
 		this.input = input;
 	}
 
 	/**
-	 * Método que devuelve el InputObjectStream del cliente.
+	 * Método que devuelve el stream de entrada del cliente.
 	 * 
-	 * @return input InputObjectStream del cliente
+	 * @return input Stream de entrada del cliente
 	 */
-	private ObjectInputStream getInput() {
+	private DataInputStream getInput() {
 		return this.input;
 	}
 
@@ -209,20 +326,22 @@ public class ChatClientImpl implements ChatClient {
 				msgText = getScanner().nextLine();
 				// Caso LOGOUT
 				if (msgText.equalsIgnoreCase("LOGOUT")) { // Si es un mensaje de LOGOUT
+					// Establecer isAlive a falso para detener el bucle y que el listener no
+					// reconecte cuando el servidor cierre la conexión
+					setIsAlive(false);
 					// Creamos y enviamos un mensaje vacío con tipo LOGOUT
 					ChatMessage msg = new ChatMessage(getId(), MessageType.LOGOUT, "");
 					sendMessage(msg);
-					// Establecer isAlive a falso para detener el bucle
-					setIsAlive(false);
 				} else if (msgText.equalsIgnoreCase("SHUTDOWN")) { // Si no, si es mensaje de SHUTDOWN
 					if (getNickname().equalsIgnoreCase("ADMIN")) { // Si el usuario es el administrador
+						// Establecer isAlive a falso para detener el bucle y que el listener no
+						// reconecte cuando el servidor se apague
+						setIsAlive(false);
 						// Crear y enviar mensaje vacío de tipo SHUTDOWN
 						ChatMessage msg = new ChatMessage(getId(), MessageType.SHUTDOWN, "");
 						sendMessage(msg);
 						// Imprimir aviso
 						System.out.println("Cerrando el cliente");
-						// Establecer isAlive a falso para detener el bucle
-						setIsAlive(false);
 					} else { // Si no es administrador
 						// Imprimir aviso e ignorar
 						System.out.println("Solo el admin puede enviar el comando shutdown.");
@@ -241,22 +360,56 @@ public class ChatClientImpl implements ChatClient {
 	}
 
 	/**
-	 * Método que envía un mensaje al servidor.
+	 * Método que envía un mensaje al servidor. Si se ha perdido la conexión y el
+	 * cliente está reconectando, espera a la nueva conexión y lo envía por ella.
 	 * 
 	 * @param msg ChatMessage a enviar al servidor
 	 */
 	@Override
 	public void sendMessage(ChatMessage msg) {
-		try {
-			// Serializar y enviar el objeto ChatMessage al servidor
-			getOutput().writeObject(msg);
-		} catch (IOException e) { // Recoger excepciones de clase IOException
-			// Imprimir error
-			System.err.println("Error: No se puede enviar el mensaje al servidor.");
-			// Imprimir mensaje de la excepción
-			System.err.println(e.getMessage());
-			// Desconectar el cliente.
-			disconnect();
+		while (true) {
+			OutboundBatcher current = batcher;
+			if (reconnecting && awaitReconnection(current)) {
+				// No dejar el mensaje en la conexión perdida
+				current = batcher;
+			}
+			try {
+				// Codificar el ChatMessage y dejarlo en la cola de envío
+				current.send(msg);
+				return;
+			} catch (IOException e) { // Recoger excepciones de clase IOException
+				if (reconnectAttempts > 0 && awaitReconnection(current)) {
+					continue; // Reintentar por la nueva conexión
+				}
+				// Imprimir error
+				System.err.println("Error: No se puede enviar el mensaje al servidor.");
+				// Imprimir mensaje de la excepción
+				System.err.println(e.getMessage());
+				// Desconectar el cliente.
+				disconnect();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Método que espera a que el listener sustituya una conexión perdida.
+	 * 
+	 * @param current Envío de la conexión perdida
+	 * @return {@code true} si hay una conexión nueva, {@code false} si el envío no
+	 *         ha fallado por la conexión o el cliente ya no está activo
+	 */
+	private boolean awaitReconnection(OutboundBatcher current) {
+		synchronized (connection) {
+			try {
+				while (getIsAlive() && batcher == current && (reconnecting || current.hasFailed())) {
+					connection.wait();
+				}
+			} catch (InterruptedException e) { // Capturar interrupciones
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return getIsAlive() && batcher != current;
 		}
 	}
 
@@ -266,14 +419,36 @@ public class ChatClientImpl implements ChatClient {
 	 */
 	@Override
 	public void disconnect() {
+		// Mostrar los mensajes recibidos que queden por imprimir
+		closeRenderer();
+		// Dejar de confirmar las tramas recibidas
+		if (acks != null) {
+			acks.close();
+		}
+		// Escribir los mensajes pendientes antes de cerrar la conexión
+		OutboundBatcher pending = batcher;
+		if (pending != null) {
+			pending.close();
+			if (Boolean.getBoolean("chat.client.stats")) {
+				printStats(pending);
+				if (renderer != null) {
+					System.out.printf("Mostrados: %d mensajes en %d escrituras, %d omitidos%n",
+							renderer.getPrinted(), renderer.getFrames(), renderer.getSkipped());
+				}
+				if (acks != null) {
+					System.out.printf("Confirmadas: %d tramas en %d confirmaciones%n", acks.getAcknowledged(),
+							acks.getAcks());
+				}
+			}
+		}
 		try {
 			// Desconectar scanner si es no nulo
 			if (getScanner() != null)
 				getScanner().close();
-			// Cerrar el ObjectOutputStream si es no nulo
+			// Cerrar el stream de salida si es no nulo
 			if (getOutput() != null)
 				getOutput().close();
-			// Cerrar el ObjectInputStream si es no nulo
+			// Cerrar el stream de entrada si es no nulo
 			if (getInput() != null)
 				getInput().close();
 			// Cerrar el socket si es no nulo
@@ -299,32 +474,379 @@ public class ChatClientImpl implements ChatClient {
 	 * 
 	 */
 	private void connect() {
-		// Crear mensaje/petición al servidor para unirse al chat. Enviar mensaje con id
-		// = 0 y con el contenido del mensaje el nickname para su registro en el
-		// servidor.
-		ChatMessage msg = new ChatMessage(0, MessageType.MESSAGE, getNickname());
 		try {
-			// Crear y asignar al cliente el ObjetcInputStream para recibir los objetos del
+			// Leer la configuración del envío y de la reconexión
+			batchSize = Integer.getInteger("chat.client.batch.size", 64);
+			lingerMicros = Long.getLong("chat.client.batch.lingerMicros", 0);
+			reconnectAttempts = Integer.getInteger("chat.client.reconnect.attempts", 10);
+			reconnectMaxMillis = Long.getLong("chat.client.reconnect.maxMillis", 10000);
+			long frameMillis = Long.getLong("chat.client.render.frameMillis", 50);
+			int catchUpAfter = Integer.getInteger("chat.client.render.catchUpAfter", 1000);
+			int catchUpLines = Integer.getInteger("chat.client.render.catchUpLines", 100);
+			compress = Boolean.getBoolean("chat.client.compress");
+			int ackEvery = Integer.getInteger("chat.client.ack.every", 64);
+			long ackMillis = Long.getLong("chat.client.ack.millis", 200);
+			if (reconnectAttempts < 0) {
+				throw new IllegalArgumentException("Los intentos de reconexión no pueden ser negativos: "
+						+ reconnectAttempts);
+			}
+			if (reconnectMaxMillis < RECONNECT_BASE_MILLIS) {
+				throw new IllegalArgumentException("La espera máxima de reconexión debe ser al menos "
+						+ RECONNECT_BASE_MILLIS + " ms: " + reconnectMaxMillis);
+			}
+			// Crear y asignar al cliente el stream de entrada para recibir las tramas del
 			// servidor
-			setInput(new ObjectInputStream(getClientSocket().getInputStream()));
-			// Enviar la petición al servidor
-			sendMessage(msg);
-			// Esperar la respuesta del servidor
-			msg = (ChatMessage) getInput().readObject();
+			setInput(new DataInputStream(new BufferedInputStream(getClientSocket().getInputStream())));
+			// Negociar la compresión, enviar la petición al servidor y esperar su respuesta
+			negotiateCompression(getOutput(), getInput());
+			ChatMessage msg = register(getOutput(), getInput());
 			// Imprimir la respuesta del servidor
 			System.out.println(msg.getMessage());
-			// Establecer la id del cliente obtenida del servidor
-			setId(msg.getId());
+			// Iniciar el envío en lotes de los mensajes y la impresión de los recibidos
+			batcher = newBatcher(getClientSocket(), getOutput());
+			renderer = new ConsoleRenderer(System.out, frameMillis, catchUpAfter, catchUpLines);
+			if (ackEvery != 0) {
+				acks = newAcknowledger(ackEvery, ackMillis);
+				acks.restart(received);
+			}
 			// Crear y lanzar el hilo que ejecuta el listener para la recepción de mensajes
 			new Thread(new ChatClientListener()).start();
-		} catch (IOException | ClassNotFoundException e) { // Capturar excepciones IOException y ClassNotFoundException
+		} catch (IOException e) { // Capturar excepciones IOException
 			// Imprimir error
 			System.err.println("Error: No se puede obtener el mensaje del servidor.");
 			// Desconectar cliente
 			disconnect();
+		} catch (IllegalArgumentException e) { // Capturar configuración no válida
+			// Imprimir error
+			System.err.println("Configuración no válida: " + e.getMessage());
+			// Desconectar cliente
+			disconnect();
 		}
 	}
 
+	/**
+	 * Método que registra al cliente en el servidor con su nickname y establece
+	 * el identificador asignado. Si la reconexión está activada pide una sesión
+	 * que pueda reanudarse y recibe la credencial tras la bienvenida.
+	 * 
+	 * @param out Stream de salida hacia el servidor
+	 * @param in  Stream de entrada desde el servidor
+	 * @return welcome Mensaje de bienvenida del servidor
+	 * @throws IOException Si se pierde la conexión, el servidor rechaza el
+	 *                     nickname o se recibe una trama incorrecta
+	 */
+	private ChatMessage register(DataOutputStream out, DataInputStream in) throws IOException {
+		ChatMessage welcome;
+		if (reconnectAttempts == 0) {
+			welcome = login(getNickname(), out, in);
+		} else {
+			ChatMessageEncoder.write(new ChatMessage(0, MessageType.RESUME, getNickname()), out);
+			out.flush();
+			welcome = ChatMessageDecoder.read(in);
+			ChatMessage token = ChatMessageDecoder.read(in);
+			if (token.getType() != MessageType.RESUME) {
+				throw new StreamCorruptedException("Se esperaba la credencial de la sesión");
+			}
+			// Credencial vacía: el servidor no conserva las sesiones
+			resumeToken = token.getMessage().isEmpty() ? null : token.getMessage();
+		}
+		// Establecer la id del cliente obtenida del servidor
+		setId(welcome.getId());
+		// La bienvenida es la primera trama de la sesión
+		received = 1;
+		return welcome;
+	}
+
+	/**
+	 * Método que pide al servidor que comprima las tramas de la conexión, si se ha
+	 * configurado, antes de registrarse. Establece la longitud mínima de las
+	 * tramas comprimidas que indica el servidor, o -1 si no la admite.
+	 * 
+	 * @param out Stream de salida hacia el servidor
+	 * @param in  Stream de entrada desde el servidor
+	 * @throws IOException Si se pierde la conexión o se recibe una trama incorrecta
+	 */
+	private void negotiateCompression(DataOutputStream out, DataInputStream in) throws IOException {
+		if (!compress) {
+			return;
+		}
+		ChatMessageEncoder.write(new ChatMessage(0, MessageType.COMPRESS, "deflate"), out);
+		out.flush();
+		ChatMessage reply = ChatMessageDecoder.read(in);
+		if (reply.getType() != MessageType.COMPRESS) {
+			throw new StreamCorruptedException("Se esperaba la respuesta a la petición de compresión");
+		}
+		// Respuesta "deflate <umbral>", o vacía si el servidor no comprime
+		String[] parts = reply.getMessage().split(" ");
+		if (parts.length == 2 && parts[0].equals("deflate")) {
+			try {
+				compressThreshold = Integer.parseInt(parts[1]);
+				return;
+			} catch (NumberFormatException e) { // Umbral no válido: no comprimir
+			}
+		}
+		compressThreshold = -1;
+		// Imprimir aviso
+		System.err.println("El servidor no admite la compresión de las tramas.");
+	}
+
+	/**
+	 * Método que crea el envío en lotes de una conexión. Si falla la escritura se
+	 * cierra la conexión para que el listener reconecte o, si la reconexión no
+	 * está activada, se desconecta el cliente.
+	 * 
+	 * @param socket Socket de la conexión
+	 * @param out    Stream de salida de la conexión
+	 * @return batcher Envío en lotes de la conexión
+	 */
+	private OutboundBatcher newBatcher(final Socket socket, DataOutputStream out) {
+		OutboundBatcher next = new OutboundBatcher(out, batchSize, lingerMicros, new Runnable() {
+			@Override
+			public void run() {
+				if (reconnectAttempts == 0) {
+					disconnect();
+				} else if (socket == getClientSocket()) {
+					// Cerrar el socket para que el listener detecte la pérdida
+					reconnecting = true;
+					closeQuietly(socket);
+				}
+			}
+		});
+		next.setCompressThreshold(compressThreshold);
+		return next;
+	}
+
+	/**
+	 * Método que crea la confirmación de las tramas recibidas. Las confirmaciones
+	 * se envían por el envío en lotes de la conexión actual.
+	 * 
+	 * @param every        Tramas sin confirmar a partir de las cuales se
+	 *                     confirman de inmediato
+	 * @param periodMillis Intervalo máximo sin confirmar en milisegundos
+	 * @return acks Confirmación de las tramas recibidas
+	 */
+	private DeliveryAcknowledger newAcknowledger(int every, long periodMillis) {
+		return new DeliveryAcknowledger(every, periodMillis) {
+			@Override
+			protected void acknowledge(long received) throws IOException {
+				batcher.send(new ChatMessage(getId(), MessageType.ACK, Long.toString(received)));
+			}
+		};
+	}
+
+	/**
+	 * Método que vuelve a conectar con el servidor tras perder la conexión. Lo
+	 * intenta hasta el máximo configurado, duplicando la espera en cada intento
+	 * hasta el máximo, con la mitad de la espera aleatoria. Se invoca desde el
+	 * hilo del listener.
+	 * 
+	 * @return {@code true} si se ha conectado de nuevo
+	 */
+	private boolean reconnect() {
+		reconnecting = true;
+		closeQuietly(getClientSocket());
+		// Imprimir aviso
+		System.err.println("Se ha perdido la conexión con el servidor. Reconectando...");
+		try {
+			long delay = RECONNECT_BASE_MILLIS;
+			for (int attempt = 1; attempt <= reconnectAttempts && getIsAlive(); attempt++) {
+				Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+				delay = Math.min(delay * 2, reconnectMaxMillis);
+				try {
+					if (tryReconnect()) {
+						return true;
+					}
+				} catch (IOException e) { // El servidor aún no responde: reintentar
+					// Imprimir aviso
+					System.err.println("Intento " + attempt + " de " + reconnectAttempts + " fallido: " + e.getMessage());
+				}
+			}
+			return false;
+		} catch (InterruptedException e) { // Capturar interrupciones
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			// Avisar a quien espera para enviar
+			synchronized (connection) {
+				reconnecting = false;
+				connection.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Método que realiza un intento de reconexión: reanuda la sesión si el
+	 * servidor la conserva y, si no, registra de nuevo al cliente.
+	 * 
+	 * @return {@code true} si se ha conectado, {@code false} si el cliente ya no
+	 *         está activo
+	 * @throws IOException Si no es posible conectar con el servidor
+	 */
+	private boolean tryReconnect() throws IOException {
+		Socket socket = new Socket(this.serverHost, this.PORT);
+		boolean installed = false;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			negotiateCompression(out, in);
+			if (resumeToken != null) {
+				// Pedir la sesión con la credencial y el número de tramas recibidas
+				ChatMessageEncoder.write(new ChatMessage(getId(), MessageType.RESUME, resumeToken + " " + received), out);
+				out.flush();
+				long base = readResumeReply(in);
+				if (base >= 0) {
+					if (base > received) {
+						// Imprimir aviso tras los mensajes recibidos antes de la desconexión
+						renderer.render("Se han perdido " + (base - received) + " mensajes durante la desconexión.");
+					}
+					received = base;
+					installed = install(socket, out, in, true);
+					if (installed) {
+						// Imprimir aviso
+						renderer.render("Sesión reanudada.");
+					}
+					return installed;
+				}
+				// El servidor ya no conserva la sesión: registrarse de nuevo
+				resumeToken = null;
+				closeQuietly(socket);
+				socket = new Socket(this.serverHost, this.PORT);
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				negotiateCompression(out, in);
+			}
+			ChatMessage welcome = register(out, in);
+			if (acks != null) {
+				// La sesión nueva empieza sin confirmaciones
+				acks.restart(received);
+			}
+			installed = install(socket, out, in, false);
+			if (installed) {
+				// Imprimir la respuesta del servidor
+				renderer.render(welcome.getMessage());
+			}
+			return installed;
+		} finally {
+			if (!installed) {
+				closeQuietly(socket);
+			}
+		}
+	}
+
+	/**
+	 * Método que lee la respuesta a una petición de reanudar la sesión.
+	 * 
+	 * @param in Stream de entrada de la nueva conexión
+	 * @return base Número de la siguiente trama que se recibirá, o -1 si el
+	 *         servidor ha rechazado la petición
+	 * @throws IOException Si se recibe una respuesta incorrecta
+	 */
+	private static long readResumeReply(DataInputStream in) throws IOException {
+		ChatMessage reply;
+		try {
+			reply = ChatMessageDecoder.read(in);
+		} catch (EOFException e) { // Conexión cerrada: sesión rechazada
+			return -1;
+		}
+		String[] fields = reply.getMessage().split(" ");
+		if (reply.getType() != MessageType.RESUME || fields.length != 2) {
+			throw new StreamCorruptedException("Respuesta de reanudación incorrecta");
+		}
+		try {
+			return Long.parseLong(fields[1]);
+		} catch (NumberFormatException e) { // Número de trama incorrecto
+			throw new StreamCorruptedException("Respuesta de reanudación incorrecta");
+		}
+	}
+
+	/**
+	 * Método que pasa a usar una nueva conexión. Los mensajes que no se llegaron a
+	 * escribir se envían por ella si se ha reanudado la sesión; si no, se
+	 * descartan, porque llevan el identificador anterior.
+	 * 
+	 * @param socket  Socket de la nueva conexión
+	 * @param out     Stream de salida de la nueva conexión
+	 * @param in      Stream de entrada de la nueva conexión
+	 * @param resumed Si se ha reanudado la sesión
+	 * @return {@code true} si se usa la nueva conexión, {@code false} si el
+	 *         cliente ya no está activo
+	 */
+	private boolean install(Socket socket, DataOutputStream out, DataInputStream in, boolean resumed) {
+		if (!getIsAlive()) {
+			return false;
+		}
+		OutboundBatcher next = newBatcher(socket, out);
+		synchronized (connection) {
+			OutboundBatcher previous = batcher;
+			this.clientSocket = socket;
+			this.output = out;
+			this.input = in;
+			int pending = previous.transferTo(resumed ? next : null);
+			if (!resumed && pending > 0) {
+				// Imprimir aviso
+				System.err.println("No se han podido enviar " + pending + " mensajes.");
+			}
+			batcher = next;
+			connection.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Método que cierra un socket ignorando los errores.
+	 * 
+	 * @param socket Socket a cerrar
+	 */
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) { // Ya está cerrado o no importa
+		}
+	}
+
+	/**
+	 * Método que imprime los mensajes recibidos que queden en la cola y deja de
+	 * agruparlos.
+	 */
+	private void closeRenderer() {
+		ConsoleRenderer pending = renderer;
+		if (pending != null) {
+			pending.close();
+		}
+	}
+
+	/**
+	 * Método que imprime el número de mensajes enviados y los percentiles de su
+	 * latencia de envío.
+	 * 
+	 * @param sender Envío en lotes del cliente
+	 */
+	private static void printStats(OutboundBatcher sender) {
+		LatencyHistogram latency = sender.getLatency();
+		System.out.printf("Enviados: %d mensajes en %d escrituras%n", latency.getCount(), sender.getBatches());
+		System.out.printf("Latencia de envío (µs): media %.1f, p50 %d, p99 %d, p999 %d, máx %d%n", latency.getMean(),
+				latency.getPercentile(50), latency.getPercentile(99), latency.getPercentile(99.9), latency.getMax());
+		System.out.printf("Compresión del envío: razón %.2f, CPU %d µs%n", sender.getCompressionRatio(),
+				sender.getCompressionCpuMicros());
+	}
+
+	/**
+	 * Método que realiza el registro en el servidor: envía una petición con id = 0
+	 * y el nickname como contenido y espera el mensaje de bienvenida, que contiene
+	 * el identificador asignado. Lo usan el cliente y el generador de carga.
+	 * 
+	 * @param nickname Nickname del usuario
+	 * @param out      Stream de salida hacia el servidor
+	 * @param in       Stream de entrada desde el servidor
+	 * @return welcome Mensaje de bienvenida del servidor
+	 * @throws IOException Si se pierde la conexión o se recibe una trama incorrecta
+	 */
+	static ChatMessage login(String nickname, DataOutputStream out, DataInputStream in) throws IOException {
+		ChatMessageEncoder.write(new ChatMessage(0, MessageType.MESSAGE, nickname), out);
+		out.flush();
+		return ChatMessageDecoder.read(in);
+	}
+
 	/**
 	 * Método principal. Recibe como argumentos el nickname del cliente o el
 	 * hostname del servidor y el nickname del cliente. Si no se le pasa un hostname
@@ -374,29 +896,52 @@ public class ChatClientImpl implements ChatClient {
 		 */
 		@Override
 		public void run() {
-
-			try {
-				while (getIsAlive()) { // Mientras el cliente sigue activo
-					// Obtener objeto recibido del servidor
-					ChatMessage msg = (ChatMessage) getInput().readObject();
-					// Imprimir mensaje recibido
-					System.out.println(msg.getMessage());
+			while (getIsAlive()) { // Mientras el cliente sigue activo
+				try {
+					// Obtener mensaje recibido del servidor
+					ChatMessage msg = ChatMessageDecoder.read(getInput());
+					if (msg.getType() == MessageType.RESUME) { // No se cuentan ni se muestran
+						continue;
+					}
+					received++;
+					if (acks != null) {
+						acks.received(received);
+					}
+					if (msg.getType() == MessageType.DROPPED) { // El servidor ha descartado tramas
+						// Informar de los mensajes perdidos por no leerlos a tiempo
+						renderer.render("Se han perdido " + msg.getMessage() + " mensajes por no recibirlos a tiempo.");
+						continue;
+					}
+					// Dejar el mensaje recibido en la cola de impresión
+					renderer.render(msg.getMessage());
 					if (msg.getType() == MessageType.LOGOUT) { // Si es un mensaje de LOGOUT
-						// Desconectar el cliente
-						disconnect();						
+						// El servidor se apaga: esperar a que vuelva o desconectar el cliente
+						if (!getIsAlive() || reconnectAttempts == 0 || !reconnect()) {
+							disconnect();
+						}
 					}
-
+				} catch (StreamCorruptedException e) { // Capturar tramas incorrectas
+					// Mostrar los mensajes recibidos hasta ahora
+					closeRenderer();
+					// Imprimir error
+					System.err.println("Error: No se puede recibir la respuesta del servidor.");
+					// Finalizar con estado != 0
+					System.exit(1);
+				} catch (IOException e) { // Capturar excepciones de clase IOException
+					if (getIsAlive() && reconnectAttempts > 0 && reconnect()) {
+						continue; // Seguir recibiendo por la nueva conexión
+					}
+					if (getIsAlive() && reconnectAttempts > 0) {
+						// Imprimir error
+						System.err.println("Error: No se ha podido reconectar con el servidor.");
+					}
+					// Desactivar el cliente
+					setIsAlive(false);
+					// Mostrar los mensajes recibidos hasta ahora
+					closeRenderer();
+					// Finalizar con estado != 0
+					System.exit(1);
 				}
-			} catch (IOException e) { // Capturar excepciones de clase IOException
-				// Desactivar el cliente
-				setIsAlive(false);
-				// Finalizar con estado != 0
-				System.exit(1);
-			} catch (ClassNotFoundException e) { // Capturar excepciones ClassNotFoundException
-				// Imprimir error
-				System.err.println("Error: No se puede recibir la respuesta del servidor.");
-				// Finalizar con estado != 0
-				System.exit(1);
 			}
 		}
 	}
@@ -0,0 +1,35 @@
+package es.ubu.lsi.client;
+
+import es.ubu.lsi.common.ChatMessage;
+
+/**
+ * Interfaz que reciben los eventos de un {@link AsyncChatClient}.
+ *
+ * Los métodos se invocan desde el hilo del bucle de eventos del cliente
+ * ({@link ClientEventLoop}), que atiende a la vez a muchos clientes, por lo
+ * que no deben bloquearse.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public interface ChatMessageListener {
+
+	/**
+	 * Método que recibe un mensaje del servidor, a partir del siguiente al de
+	 * bienvenida.
+	 *
+	 * @param client  Cliente que recibe el mensaje
+	 * @param message Mensaje recibido
+	 */
+	public void onMessage(AsyncChatClient client, ChatMessage message);
+
+	/**
+	 * Método que avisa de que la conexión se ha cerrado.
+	 *
+	 * @param client Cliente cerrado
+	 * @param cause  Causa del cierre, o null si lo ha cerrado el propio cliente o
+	 *               el servidor de forma ordenada
+	 */
+	public void onClosed(AsyncChatClient client, Throwable cause);
+}
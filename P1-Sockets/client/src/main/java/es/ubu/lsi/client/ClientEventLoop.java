@@ -0,0 +1,199 @@
+package es.ubu.lsi.client;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bucle de eventos compartido por muchos clientes asíncronos
+ * ({@link AsyncChatClient}).
+ *
+ * Un único hilo atiende con un {@link Selector} la conexión, la lectura y la
+ * escritura de todos los clientes registrados, de modo que una máquina virtual
+ * puede mantener miles de clientes con uno o dos bucles. Los demás hilos sólo
+ * entregan tareas por una cola sin cerrojos y despiertan al selector, una vez
+ * por vuelta como mucho.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class ClientEventLoop implements Runnable {
+
+	/**
+	 * Número de bucles creados, para el nombre de sus hilos
+	 */
+	private static final AtomicInteger COUNT = new AtomicInteger();
+
+	/**
+	 * Selector de los canales de los clientes
+	 */
+	private final Selector selector;
+
+	/**
+	 * Tareas entregadas por otros hilos
+	 */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Indica si ya se ha despertado al selector en esta vuelta
+	 */
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+	/**
+	 * Hilo del bucle
+	 */
+	private final Thread thread;
+
+	/**
+	 * Booleano que indica si el bucle está activo
+	 */
+	private volatile boolean running = true;
+
+	/**
+	 * Método constructor. Abre el selector y lanza el hilo del bucle, que no
+	 * impide que la máquina virtual termine.
+	 *
+	 * @throws IOException Si no es posible abrir el selector
+	 */
+	public ClientEventLoop() throws IOException {
+		this.selector = Selector.open();
+		this.thread = new Thread(this, "chat-client-loop-" + COUNT.incrementAndGet());
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Método que ejecuta el bucle de eventos hasta que se cierra.
+	 */
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+				wakeupPending.set(false);
+				runTasks();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					process(key);
+				}
+			} catch (IOException e) { // Capturar excepciones IOException
+				// Imprimir error
+				System.err.println("Error: Fallo en el bucle de eventos del cliente: " + e.getMessage());
+			}
+		}
+		// Cerrar los clientes que queden
+		for (SelectionKey key : selector.keys()) {
+			((AsyncChatClient) key.attachment()).close();
+		}
+		runTasks();
+		try {
+			selector.close();
+		} catch (IOException e) { // Capturar excepciones IOException
+			// Imprimir error
+			System.err.println("Error: No se puede cerrar el selector del cliente.");
+		}
+	}
+
+	/**
+	 * Método que atiende los eventos de un cliente.
+	 *
+	 * @param key Clave seleccionada del cliente
+	 */
+	private void process(SelectionKey key) {
+		AsyncChatClient client = (AsyncChatClient) key.attachment();
+		try {
+			if (key.isConnectable()) {
+				client.onConnectable();
+			}
+			if (key.isValid() && key.isReadable()) {
+				client.onReadable();
+			}
+			if (key.isValid() && key.isWritable()) {
+				client.onWritable();
+			}
+		} catch (IOException | RuntimeException e) { // Errores de conexión o del listener
+			client.fail(e);
+		}
+	}
+
+	/**
+	 * Método que ejecuta las tareas entregadas por otros hilos.
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) { // Un fallo de una tarea no detiene el bucle
+				// Imprimir error
+				System.err.println("Error: Fallo en una tarea del cliente: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Método que registra el canal de un cliente en el selector. Se invoca desde
+	 * el bucle.
+	 *
+	 * @param channel Canal en modo no bloqueante
+	 * @param ops     Eventos de interés
+	 * @param client  Cliente del canal
+	 * @return key Clave de registro
+	 * @throws ClosedChannelException Si el canal ya está cerrado
+	 */
+	SelectionKey register(SocketChannel channel, int ops, AsyncChatClient client) throws ClosedChannelException {
+		return channel.register(selector, ops, client);
+	}
+
+	/**
+	 * Método que ejecuta una tarea en el hilo del bucle: de inmediato si se invoca
+	 * desde él y, si no, en la siguiente vuelta.
+	 *
+	 * @param task Tarea a ejecutar
+	 */
+	public void execute(Runnable task) {
+		if (inEventLoop()) {
+			task.run();
+			return;
+		}
+		tasks.add(task);
+		if (wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Método que indica si el hilo actual es el del bucle.
+	 *
+	 * @return {@code true} si se invoca desde el bucle
+	 */
+	public boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Método que devuelve el número de clientes registrados en el bucle.
+	 *
+	 * @return clients Número de canales registrados
+	 */
+	public int getClientCount() {
+		return selector.keys().size();
+	}
+
+	/**
+	 * Método que detiene el bucle y cierra los clientes que queden.
+	 */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+}
@@ -0,0 +1,299 @@
+package es.ubu.lsi.client;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Impresión en segundo plano de los mensajes recibidos, agrupados por
+ * intervalos.
+ *
+ * El hilo que lee del socket sólo deja cada línea en una cola y sigue leyendo,
+ * de modo que un terminal lento no retrasa la recepción ni llena los búferes
+ * TCP hasta el servidor. Un hilo de impresión extrae todas las líneas
+ * disponibles y las escribe con una sola llamada y un solo vaciado del stream,
+ * como mucho una vez por intervalo.
+ *
+ * Si en un intervalo se acumulan más líneas del umbral de puesta al día, sólo
+ * se imprimen las últimas, precedidas del número de mensajes omitidos. La cola
+ * admite como mucho {@link #QUEUE_CAPACITY} líneas: si el terminal se bloquea,
+ * se descartan las más antiguas en lugar de detener la recepción, pero nunca
+ * la marca de fin que deja el cierre.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class ConsoleRenderer implements Runnable {
+
+	/**
+	 * Máximo de líneas esperando en la cola
+	 */
+	public static final int QUEUE_CAPACITY = 64 * 1024;
+
+	/**
+	 * Tiempo máximo de espera al cerrar para imprimir las líneas pendientes
+	 */
+	private static final long CLOSE_MILLIS = 5000;
+
+	/**
+	 * Marca de fin de la cola
+	 */
+	private static final String END = new String("");
+
+	/**
+	 * Stream en el que se imprimen las líneas
+	 */
+	private final PrintStream out;
+
+	/**
+	 * Intervalo mínimo entre dos escrituras en nanosegundos
+	 */
+	private final long frameNanos;
+
+	/**
+	 * Líneas acumuladas a partir de las cuales sólo se imprimen las últimas, o 0
+	 * para imprimirlas siempre todas
+	 */
+	private final int catchUpAfter;
+
+	/**
+	 * Líneas que se imprimen al ponerse al día
+	 */
+	private final int catchUpLines;
+
+	/**
+	 * Líneas pendientes de imprimir, en orden
+	 */
+	private final BlockingDeque<String> queue = new LinkedBlockingDeque<String>(QUEUE_CAPACITY);
+
+	/**
+	 * Líneas del intervalo en curso. Sólo lo usa el hilo de impresión
+	 */
+	private final List<String> frame = new ArrayList<String>();
+
+	/**
+	 * Texto del intervalo en curso. Sólo lo usa el hilo de impresión
+	 */
+	private final StringBuilder text = new StringBuilder();
+
+	/**
+	 * Hilo de impresión
+	 */
+	private final Thread renderer;
+
+	/**
+	 * Número de escrituras
+	 */
+	private volatile long frames;
+
+	/**
+	 * Número de líneas impresas
+	 */
+	private volatile long printed;
+
+	/**
+	 * Número de líneas omitidas al ponerse al día. Sólo lo modifica el hilo de
+	 * impresión
+	 */
+	private volatile long skipped;
+
+	/**
+	 * Número de líneas descartadas con la cola llena. Sólo lo modifica el hilo
+	 * que entrega las líneas
+	 */
+	private volatile long dropped;
+
+	/**
+	 * Booleano que indica si ya no se admiten líneas
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Booleano que indica si el hilo de impresión ha terminado
+	 */
+	private volatile boolean finished;
+
+	/**
+	 * Método constructor. Lanza el hilo de impresión.
+	 *
+	 * @param out          Stream en el que se imprimen las líneas
+	 * @param frameMillis  Intervalo mínimo entre dos escrituras en milisegundos (0
+	 *                     para escribir en cuanto haya líneas)
+	 * @param catchUpAfter Líneas acumuladas a partir de las cuales sólo se
+	 *                     imprimen las últimas (0 para imprimirlas siempre todas)
+	 * @param catchUpLines Líneas que se imprimen al ponerse al día
+	 * @throws IllegalArgumentException Si el intervalo o el umbral son negativos
+	 *                                  o las líneas no están entre 1 y el umbral
+	 */
+	public ConsoleRenderer(PrintStream out, long frameMillis, int catchUpAfter, int catchUpLines) {
+		if (frameMillis < 0) {
+			throw new IllegalArgumentException("El intervalo de impresión no puede ser negativo: " + frameMillis);
+		}
+		if (catchUpAfter < 0) {
+			throw new IllegalArgumentException("El umbral de puesta al día no puede ser negativo: " + catchUpAfter);
+		}
+		if (catchUpAfter > 0 && (catchUpLines < 1 || catchUpLines > catchUpAfter)) {
+			throw new IllegalArgumentException(
+					"Las líneas de puesta al día deben estar entre 1 y " + catchUpAfter + ": " + catchUpLines);
+		}
+		this.out = out;
+		this.frameNanos = TimeUnit.MILLISECONDS.toNanos(frameMillis);
+		this.catchUpAfter = catchUpAfter;
+		this.catchUpLines = catchUpLines;
+		this.renderer = new Thread(this, "chat-client-renderer");
+		this.renderer.setDaemon(true);
+		this.renderer.start();
+	}
+
+	/**
+	 * Método que deja una línea en la cola sin esperar nunca. Si la cola está
+	 * llena se descarta la más antigua, salvo la marca de fin. Las líneas que
+	 * llegan mientras se cierra siguen pasando por la cola para no adelantarse a
+	 * las pendientes; una vez terminado el hilo de impresión se imprimen
+	 * directamente.
+	 *
+	 * @param line Línea a imprimir
+	 */
+	public void render(String line) {
+		while (!queue.offer(line)) { // El terminal no da abasto
+			String oldest = queue.pollFirst();
+			if (oldest == END) { // La marca de fin no se descarta
+				oldest = queue.pollFirst();
+				queue.offerFirst(END);
+			}
+			if (oldest != null) {
+				dropped++;
+			}
+		}
+		if (finished) { // El hilo de impresión ya no recogerá la línea
+			printLate();
+		}
+	}
+
+	/**
+	 * Método que imprime en orden las líneas que quedan en la cola después de
+	 * terminar el hilo de impresión.
+	 */
+	private synchronized void printLate() {
+		String line;
+		while ((line = queue.poll()) != null) {
+			out.println(line);
+		}
+	}
+
+	/**
+	 * Método que ejecuta el hilo de impresión hasta que se cierra.
+	 */
+	@Override
+	public void run() {
+		long last = System.nanoTime() - frameNanos;
+		try {
+			boolean end = false;
+			while (!end) {
+				String first = queue.take();
+				// Esperar al siguiente intervalo, salvo para imprimir lo último al cerrar
+				long wait = last + frameNanos - System.nanoTime();
+				if (wait > 0 && first != END) {
+					LockSupport.parkNanos(wait);
+				}
+				frame.add(first);
+				queue.drainTo(frame);
+				for (int i = frame.size() - 1; i >= 0 && !end; i--) {
+					if (frame.get(i) == END) { // Se compara la referencia: puede haber líneas vacías
+						// Las líneas entregadas a la vez que se cerraba se imprimen también
+						frame.remove(i);
+						end = true;
+					}
+				}
+				write();
+				last = System.nanoTime();
+			}
+		} catch (InterruptedException e) { // Capturar interrupciones
+			Thread.currentThread().interrupt();
+		} finally {
+			finished = true;
+			// Imprimir las líneas entregadas después de la marca de fin
+			printLate();
+		}
+	}
+
+	/**
+	 * Método que imprime las líneas del intervalo con una sola escritura. Si
+	 * superan el umbral, sólo imprime las últimas.
+	 */
+	private void write() {
+		int count = frame.size();
+		if (count == 0) {
+			return;
+		}
+		int from = catchUpAfter > 0 && count > catchUpAfter ? count - catchUpLines : 0;
+		String separator = System.lineSeparator();
+		if (from > 0) {
+			text.append("... ").append(from).append(" mensajes omitidos ...").append(separator);
+		}
+		for (int i = from; i < count; i++) {
+			text.append(frame.get(i)).append(separator);
+		}
+		out.print(text);
+		out.flush();
+		text.setLength(0);
+		frame.clear();
+		frames++;
+		printed += count - from;
+		skipped += from;
+	}
+
+	/**
+	 * Método que deja de admitir líneas y espera a que se impriman las
+	 * pendientes. Si se invoca desde el hilo de impresión no espera.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (Thread.currentThread() == renderer) {
+			return;
+		}
+		try {
+			if (queue.offer(END, CLOSE_MILLIS, TimeUnit.MILLISECONDS)) {
+				renderer.join(CLOSE_MILLIS);
+			}
+		} catch (InterruptedException e) { // Capturar interrupciones
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Método que devuelve el número de escrituras realizadas.
+	 *
+	 * @return frames Número de escrituras
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * Método que devuelve el número de líneas impresas.
+	 *
+	 * @return printed Número de líneas impresas
+	 */
+	public long getPrinted() {
+		return printed;
+	}
+
+	/**
+	 * Método que devuelve el número de líneas omitidas al ponerse al día o por
+	 * tener la cola llena.
+	 *
+	 * @return skipped Número de líneas omitidas
+	 */
+	public long getSkipped() {
+		return skipped + dropped;
+	}
+}
@@ -0,0 +1,171 @@
+package es.ubu.lsi.client;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Confirmación acumulada de las tramas recibidas del servidor.
+ *
+ * Cada trama del flujo de la sesión tiene implícitamente un número de secuencia:
+ * su posición en el flujo, que cuentan por igual el cliente y el servidor. En
+ * lugar de confirmar cada trama, se confirma de una vez el número de tramas
+ * recibidas: cuando se acumulan las configuradas sin confirmar o, si el
+ * tráfico se detiene, cuando pasa el intervalo configurado. El servidor lo usa
+ * para medir el retraso del cliente y liberar las tramas que ya no tendrá que
+ * reenviar.
+ *
+ * El envío de la confirmación lo implementan las subclases.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public abstract class DeliveryAcknowledger implements Runnable {
+
+	/**
+	 * Tramas sin confirmar a partir de las cuales se confirman de inmediato
+	 */
+	private final int every;
+
+	/**
+	 * Intervalo máximo sin confirmar las tramas recibidas en nanosegundos
+	 */
+	private final long periodNanos;
+
+	/**
+	 * Hilo que confirma periódicamente
+	 */
+	private final Thread timer;
+
+	/**
+	 * Número de tramas recibidas
+	 */
+	private volatile long received;
+
+	/**
+	 * Número de tramas confirmadas
+	 */
+	private volatile long acknowledged;
+
+	/**
+	 * Número de confirmaciones enviadas
+	 */
+	private volatile long acks;
+
+	/**
+	 * Booleano que indica si ya no se confirman tramas
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Método constructor. Lanza el hilo que confirma periódicamente.
+	 *
+	 * @param every        Tramas sin confirmar a partir de las cuales se
+	 *                     confirman de inmediato
+	 * @param periodMillis Intervalo máximo sin confirmar en milisegundos
+	 * @throws IllegalArgumentException Si las tramas o el intervalo no son
+	 *                                  positivos
+	 */
+	public DeliveryAcknowledger(int every, long periodMillis) {
+		if (every < 1) {
+			throw new IllegalArgumentException("Las tramas por confirmación deben ser positivas: " + every);
+		}
+		if (periodMillis < 1) {
+			throw new IllegalArgumentException("El intervalo de confirmación debe ser positivo: " + periodMillis);
+		}
+		this.every = every;
+		this.periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+		this.timer = new Thread(this, "chat-client-acks");
+		this.timer.setDaemon(true);
+		this.timer.start();
+	}
+
+	/**
+	 * Método que envía la confirmación acumulada al servidor.
+	 *
+	 * @param received Número de tramas recibidas
+	 * @throws IOException Si no es posible enviarla
+	 */
+	protected abstract void acknowledge(long received) throws IOException;
+
+	/**
+	 * Método que anota el número de tramas recibidas y las confirma si se han
+	 * acumulado las configuradas. Lo invoca el hilo que lee del socket.
+	 *
+	 * @param count Número de tramas recibidas en la sesión
+	 */
+	public void received(long count) {
+		this.received = count;
+		if (count - acknowledged >= every) {
+			flush();
+		}
+	}
+
+	/**
+	 * Método que empieza a contar de nuevo tras registrarse en una sesión nueva,
+	 * en la que el servidor no ha recibido ninguna confirmación.
+	 *
+	 * @param count Número de tramas recibidas en la nueva sesión
+	 */
+	public synchronized void restart(long count) {
+		this.acknowledged = 0;
+		this.received = count;
+	}
+
+	/**
+	 * Método que confirma las tramas recibidas, si hay alguna sin confirmar. Si
+	 * el envío falla, por ejemplo durante una reconexión, se confirman en el
+	 * siguiente intento.
+	 */
+	public synchronized void flush() {
+		long count = received;
+		if (closed || count <= acknowledged) {
+			return;
+		}
+		try {
+			acknowledge(count);
+			acknowledged = count;
+			acks++;
+		} catch (IOException e) { // Se confirmarán en el siguiente intento
+		}
+	}
+
+	/**
+	 * Método que ejecuta el hilo que confirma las tramas recibidas cada intervalo
+	 * hasta que se cierra.
+	 */
+	@Override
+	public void run() {
+		while (!closed) {
+			LockSupport.parkNanos(periodNanos);
+			flush();
+		}
+	}
+
+	/**
+	 * Método que deja de confirmar tramas.
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(timer);
+	}
+
+	/**
+	 * Método que devuelve el número de confirmaciones enviadas.
+	 *
+	 * @return acks Número de confirmaciones
+	 */
+	public long getAcks() {
+		return acks;
+	}
+
+	/**
+	 * Método que devuelve el número de tramas confirmadas.
+	 *
+	 * @return acknowledged Tramas confirmadas
+	 */
+	public long getAcknowledged() {
+		return acknowledged;
+	}
+}
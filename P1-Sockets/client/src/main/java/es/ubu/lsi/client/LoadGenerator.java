@@ -0,0 +1,594 @@
+package es.ubu.lsi.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.ChatMessageDecoder;
+import es.ubu.lsi.common.ChatMessageEncoder;
+import es.ubu.lsi.common.LatencyHistogram;
+
+/**
+ * Generador de carga para el servidor de chat.
+ *
+ * Abre N sesiones con el mismo registro que {@link ChatClientImpl} y envía
+ * mensajes en bucle abierto a un ritmo fijo, repartidos entre las sesiones.
+ * Cada mensaje lleva el instante en que debía enviarse según el ritmo, de modo
+ * que la latencia, medida cuando la difusión vuelve a su remitente, incluye
+ * también el retraso acumulado si el servidor no da abasto. Un único hilo lee
+ * todas las sesiones con un {@link Selector}.
+ *
+ * La configuración se toma de las propiedades del sistema {@code load.host},
+ * {@code load.port}, {@code load.sessions}, {@code load.rate} (mensajes por
+ * segundo en total), {@code load.duration} (segundos) y {@code load.size}
+ * (tamaño de los mensajes: {@code 64}, {@code 16-512} para una distribución
+ * uniforme o {@code exp:128} para una exponencial de media 128).
+ *
+ * Con {@code load.mux} mayor que 0 las sesiones se agrupan en conexiones
+ * multiplexadas ({@link MultiplexedChatClient}) de ese número de sesiones cada
+ * una, en lugar de abrir una conexión por sesión.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class LoadGenerator {
+
+	/**
+	 * Marca que precede al instante de envío en el texto de los mensajes
+	 */
+	private static final String STAMP = "t=";
+
+	/**
+	 * Tiempo que se esperan los últimos mensajes tras dejar de enviar
+	 */
+	private static final long DRAIN_MILLIS = 2000;
+
+	/**
+	 * Sesión simulada.
+	 *
+	 * @author Eduardo Manuel Cabeza Lopez
+	 */
+	private static final class LoadSession {
+
+		/**
+		 * Nickname de la sesión
+		 */
+		final String nickname;
+
+		/**
+		 * Comienzo de los mensajes que envía la propia sesión
+		 */
+		final String prefix;
+
+		/**
+		 * Canal propio de la sesión, o null si usa una conexión multiplexada
+		 */
+		final SocketChannel channel;
+
+		/**
+		 * Decodificador de las tramas que llegan por el canal propio
+		 */
+		final ChatMessageDecoder decoder = new ChatMessageDecoder();
+
+		/**
+		 * Sesión sobre la conexión multiplexada, o null si usa un canal propio
+		 */
+		MultiplexedChatClient.Session logical;
+
+		/**
+		 * Identificador asignado por el servidor
+		 */
+		int id;
+
+		/**
+		 * Método constructor.
+		 *
+		 * @param nickname Nickname de la sesión
+		 * @param channel  Canal propio, o null si usa una conexión multiplexada
+		 */
+		LoadSession(String nickname, SocketChannel channel) {
+			this.nickname = nickname;
+			this.prefix = nickname + " ";
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * Dirección del servidor
+	 */
+	private final InetSocketAddress address;
+
+	/**
+	 * Número de sesiones
+	 */
+	private final int sessionCount;
+
+	/**
+	 * Mensajes por segundo en total
+	 */
+	private final double rate;
+
+	/**
+	 * Duración del envío en nanosegundos
+	 */
+	private final long durationNanos;
+
+	/**
+	 * Distribución del tamaño de los mensajes
+	 */
+	private final SizeDistribution sizes;
+
+	/**
+	 * Sesiones por conexión multiplexada, o 0 para una conexión por sesión
+	 */
+	private final int mux;
+
+	/**
+	 * Conexiones multiplexadas abiertas
+	 */
+	private final List<MultiplexedChatClient> connections = new ArrayList<MultiplexedChatClient>();
+
+	/**
+	 * Sesiones registradas
+	 */
+	private final List<LoadSession> sessions = new ArrayList<LoadSession>();
+
+	/**
+	 * Sesiones con canal propio pendientes de registrar en el selector
+	 */
+	private final ConcurrentLinkedQueue<LoadSession> pendingRegistrations = new ConcurrentLinkedQueue<LoadSession>();
+
+	/**
+	 * Selector del hilo lector
+	 */
+	private final Selector selector;
+
+	/**
+	 * Booleano que indica si la prueba sigue en marcha
+	 */
+	private volatile boolean running = true;
+
+	/**
+	 * Latencia en microsegundos de los mensajes que vuelven a su remitente
+	 */
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	/**
+	 * Número de mensajes enviados
+	 */
+	private final AtomicLong sent = new AtomicLong();
+
+	/**
+	 * Número de mensajes recibidos por su propio remitente
+	 */
+	private final AtomicLong echoes = new AtomicLong();
+
+	/**
+	 * Número de mensajes entregados a todas las sesiones
+	 */
+	private final AtomicLong delivered = new AtomicLong();
+
+	/**
+	 * Método constructor.
+	 *
+	 * @param address         Dirección del servidor
+	 * @param sessionCount    Número de sesiones
+	 * @param rate            Mensajes por segundo en total
+	 * @param durationSeconds Duración del envío en segundos
+	 * @param sizes           Distribución del tamaño de los mensajes
+	 * @throws IOException Si no es posible abrir el selector
+	 */
+	public LoadGenerator(InetSocketAddress address, int sessionCount, double rate, long durationSeconds,
+			SizeDistribution sizes) throws IOException {
+		this(address, sessionCount, rate, durationSeconds, sizes, 0);
+	}
+
+	/**
+	 * Método constructor.
+	 *
+	 * @param address         Dirección del servidor
+	 * @param sessionCount    Número de sesiones
+	 * @param rate            Mensajes por segundo en total
+	 * @param durationSeconds Duración del envío en segundos
+	 * @param sizes           Distribución del tamaño de los mensajes
+	 * @param mux             Sesiones por conexión multiplexada, o 0 para abrir
+	 *                        una conexión por sesión
+	 * @throws IOException Si no es posible abrir el selector
+	 */
+	public LoadGenerator(InetSocketAddress address, int sessionCount, double rate, long durationSeconds,
+			SizeDistribution sizes, int mux) throws IOException {
+		if (mux < 0) {
+			throw new IllegalArgumentException("Sesiones por conexión no válidas: " + mux);
+		}
+		this.address = address;
+		this.sessionCount = sessionCount;
+		this.rate = rate;
+		this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+		this.sizes = sizes;
+		this.mux = mux;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Método que conecta las sesiones, envía los mensajes durante el tiempo
+	 * configurado, espera las últimas respuestas e imprime el informe.
+	 *
+	 * @throws IOException Si no es posible conectar las sesiones
+	 */
+	public void run() throws IOException {
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readLoop();
+			}
+		}, "load-reader");
+		reader.start();
+		try {
+			long start = System.nanoTime();
+			if (mux > 0) {
+				connectMultiplexed();
+			} else {
+				for (int i = 1; i <= sessionCount; i++) {
+					connect("load" + i);
+				}
+			}
+			System.out.printf("%d sesiones conectadas en %d ms%n", sessionCount,
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			if (mux > 0) {
+				System.out.printf("%d conexiones multiplexadas%n", connections.size());
+			}
+			long sendNanos = sendLoop();
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(DRAIN_MILLIS));
+			report(sendNanos);
+		} finally {
+			running = false;
+			selector.wakeup();
+			for (LoadSession session : sessions) {
+				logout(session);
+			}
+			for (MultiplexedChatClient connection : connections) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Método que conecta una sesión y realiza el registro en el servidor. El
+	 * registro usa streams sin búfer sobre el canal bloqueante para no leer más
+	 * allá del mensaje de bienvenida; después el canal pasa a modo no bloqueante
+	 * y se entrega al hilo lector.
+	 *
+	 * @param nickname Nickname de la sesión
+	 * @throws IOException Si no es posible conectar o registrar la sesión
+	 */
+	private void connect(String nickname) throws IOException {
+		SocketChannel channel = SocketChannel.open(address);
+		channel.socket().setTcpNoDelay(true);
+		LoadSession session = new LoadSession(nickname, channel);
+		ChatMessage welcome = ChatClientImpl.login(nickname,
+				new DataOutputStream(channel.socket().getOutputStream()),
+				new DataInputStream(channel.socket().getInputStream()));
+		session.id = welcome.getId();
+		channel.configureBlocking(false);
+		sessions.add(session);
+		pendingRegistrations.add(session);
+		selector.wakeup();
+	}
+
+	/**
+	 * Método que abre las sesiones sobre conexiones multiplexadas de
+	 * {@code mux} sesiones cada una. Las peticiones de registro de una conexión
+	 * se envían sin esperar respuesta y después se esperan todas.
+	 *
+	 * @throws IOException Si no es posible conectar o registrar alguna sesión
+	 */
+	private void connectMultiplexed() throws IOException {
+		List<CompletableFuture<MultiplexedChatClient.Session>> registrations = new ArrayList<CompletableFuture<MultiplexedChatClient.Session>>();
+		MultiplexedChatClient connection = null;
+		for (int i = 1; i <= sessionCount; i++) {
+			if ((i - 1) % mux == 0) {
+				connection = new MultiplexedChatClient(address.getHostString(), address.getPort());
+				connections.add(connection);
+			}
+			final LoadSession session = new LoadSession("load" + i, null);
+			sessions.add(session);
+			registrations.add(connection.open(session.nickname, new MultiplexedChatClient.Listener() {
+				@Override
+				public void onMessage(MultiplexedChatClient.Session logical, ChatMessage message) {
+					LoadGenerator.this.onMessage(session, message.getMessage());
+				}
+
+				@Override
+				public void onClosed(MultiplexedChatClient.Session logical) {
+					if (running) {
+						System.err.println("Error: Conexión perdida con la sesión " + session.nickname);
+					}
+				}
+			}));
+		}
+		for (int i = 0; i < registrations.size(); i++) {
+			LoadSession session = sessions.get(i);
+			try {
+				session.logical = registrations.get(i).get();
+			} catch (ExecutionException e) { // Registro rechazado o conexión perdida
+				throw new IOException(e.getCause().getMessage(), e.getCause());
+			} catch (InterruptedException e) { // Capturar excepciones InterruptedException
+				Thread.currentThread().interrupt();
+				throw new IOException("Registro interrumpido");
+			}
+			session.id = session.logical.getId();
+		}
+	}
+
+	/**
+	 * Método que envía mensajes en bucle abierto: el mensaje i se envía en el
+	 * instante {@code inicio + i / rate}, o de inmediato si ya se ha pasado.
+	 *
+	 * @return sendNanos Duración real del envío en nanosegundos
+	 * @throws IOException Si se pierde la conexión de una sesión
+	 */
+	private long sendLoop() throws IOException {
+		Random random = new Random(42);
+		double intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+		long start = System.nanoTime();
+		for (long i = 0;; i++) {
+			long intended = start + (long) (i * intervalNanos);
+			if (intended - start >= durationNanos) {
+				break;
+			}
+			long wait = intended - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			LoadSession session = sessions.get((int) (i % sessions.size()));
+			write(session, new ChatMessage(session.id, MessageType.MESSAGE, text(intended, sizes.next(random))));
+			sent.incrementAndGet();
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Método que compone el texto de un mensaje con el instante de envío previsto
+	 * y relleno hasta el tamaño indicado.
+	 *
+	 * @param intended Instante de envío previsto
+	 * @param size     Tamaño del texto
+	 * @return text Texto del mensaje
+	 */
+	private static String text(long intended, int size) {
+		StringBuilder text = new StringBuilder(Math.max(size, 24)).append(STAMP).append(intended).append(' ');
+		while (text.length() < size) {
+			text.append('x');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Método que escribe un mensaje completo en el canal no bloqueante de una
+	 * sesión, o lo deja en la cola de su conexión multiplexada.
+	 *
+	 * @param session Sesión
+	 * @param message Mensaje
+	 * @throws IOException Si se pierde la conexión
+	 */
+	private static void write(LoadSession session, ChatMessage message) throws IOException {
+		if (session.logical != null) {
+			session.logical.sendMessage(message);
+			return;
+		}
+		ByteBuffer frame = ChatMessageEncoder.encode(message);
+		while (frame.hasRemaining()) {
+			if (session.channel.write(frame) == 0) {
+				Thread.yield(); // El búfer del socket está lleno
+			}
+		}
+	}
+
+	/**
+	 * Método que ejecuta el hilo lector: lee todas las sesiones, cuenta los
+	 * mensajes entregados y mide la latencia de los que vuelven a su remitente.
+	 */
+	private void readLoop() {
+		try {
+			while (running) {
+				selector.select();
+				LoadSession pending;
+				while ((pending = pendingRegistrations.poll()) != null) {
+					pending.channel.register(selector, SelectionKey.OP_READ, pending);
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					read((LoadSession) key.attachment(), key);
+				}
+			}
+		} catch (IOException e) { // Capturar excepciones IOException
+			System.err.println("Error: Fallo en el selector del generador de carga.");
+		}
+	}
+
+	/**
+	 * Método que lee los mensajes disponibles de una sesión.
+	 *
+	 * @param session Sesión
+	 * @param key     Clave de la sesión
+	 */
+	private void read(LoadSession session, SelectionKey key) {
+		try {
+			if (session.channel.read(session.decoder.buffer()) < 0) {
+				throw new IOException("Conexión cerrada por el servidor");
+			}
+			ChatMessage message;
+			while ((message = session.decoder.next()) != null) {
+				onMessage(session, message.getMessage());
+			}
+		} catch (IOException e) { // Capturar excepciones IOException
+			System.err.println("Error: Conexión perdida con la sesión " + session.nickname);
+			key.cancel();
+		}
+	}
+
+	/**
+	 * Método que procesa el texto de un mensaje recibido por una sesión.
+	 *
+	 * @param session Sesión que lo recibe
+	 * @param text    Texto con el formato "nick hh:mm: t=instante relleno"
+	 */
+	private void onMessage(LoadSession session, String text) {
+		int stamp = text.indexOf(STAMP);
+		if (stamp < 0) { // Avisos del servidor
+			return;
+		}
+		delivered.incrementAndGet();
+		if (text.startsWith(session.prefix)) { // Vuelve a su remitente
+			int end = text.indexOf(' ', stamp);
+			long intended = Long.parseLong(text.substring(stamp + STAMP.length(), end < 0 ? text.length() : end));
+			latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended));
+			echoes.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Método que envía LOGOUT y cierra una sesión.
+	 *
+	 * @param session Sesión
+	 */
+	private static void logout(LoadSession session) {
+		if (session.channel == null && session.logical == null) { // No llegó a registrarse
+			return;
+		}
+		try {
+			write(session, new ChatMessage(session.id, MessageType.LOGOUT, ""));
+		} catch (IOException e) { // La conexión ya está cerrada
+		}
+		if (session.channel == null) { // Se cierra con su conexión multiplexada
+			return;
+		}
+		try {
+			session.channel.close();
+		} catch (IOException e) { // Capturar excepciones IOException
+			System.err.println("Error: No se ha podido cerrar la sesión " + session.nickname);
+		}
+	}
+
+	/**
+	 * Método que imprime el rendimiento y los percentiles de latencia.
+	 *
+	 * @param sendNanos Duración real del envío en nanosegundos
+	 */
+	private void report(long sendNanos) {
+		double seconds = sendNanos / 1e9;
+		System.out.printf("Enviados: %d mensajes en %.1f s (%.0f msg/s)%n", sent.get(), seconds, sent.get() / seconds);
+		System.out.printf("Recibidos por el remitente: %d (%.2f%%)%n", echoes.get(),
+				sent.get() == 0 ? 0 : 100.0 * echoes.get() / sent.get());
+		System.out.printf("Entregados a todas las sesiones: %d (%.0f msg/s)%n", delivered.get(),
+				delivered.get() / seconds);
+		System.out.printf("Latencia (ms): media %.2f, p50 %.2f, p99 %.2f, p999 %.2f, máx %.2f%n",
+				latency.getMean() / 1000, latency.getPercentile(50) / 1000.0, latency.getPercentile(99) / 1000.0,
+				latency.getPercentile(99.9) / 1000.0, latency.getMax() / 1000.0);
+	}
+
+	/**
+	 * Método principal. La configuración se toma de las propiedades del sistema
+	 * descritas en la documentación de la clase.
+	 *
+	 * @param args No se usan
+	 */
+	public static void main(String[] args) {
+		try {
+			InetSocketAddress address = new InetSocketAddress(System.getProperty("load.host", "localhost"),
+					Integer.getInteger("load.port", 1500));
+			LoadGenerator generator = new LoadGenerator(address, Integer.getInteger("load.sessions", 100),
+					Double.parseDouble(System.getProperty("load.rate", "1000")), Long.getLong("load.duration", 30),
+					SizeDistribution.parse(System.getProperty("load.size", "64")), Integer.getInteger("load.mux", 0));
+			generator.run();
+		} catch (IllegalArgumentException e) { // Propiedad no válida
+			System.err.println("Configuración no válida: " + e.getMessage());
+			System.exit(1);
+		} catch (ClosedChannelException e) { // El servidor ha cerrado la conexión
+			System.err.println("Error: El servidor ha cerrado la conexión.");
+			System.exit(1);
+		} catch (IOException e) { // Capturar excepciones IOException
+			System.err.println("Error: No se puede conectar con el servidor.");
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Distribución del tamaño de los mensajes generados.
+	 *
+	 * @author Eduardo Manuel Cabeza Lopez
+	 */
+	public static final class SizeDistribution {
+		private final int min;
+		private final int max;
+		private final double mean;
+
+		private SizeDistribution(int min, int max, double mean) {
+			this.min = min;
+			this.max = max;
+			this.mean = mean;
+		}
+
+		/**
+		 * Método que interpreta una distribución: {@code n} (fija), {@code a-b}
+		 * (uniforme entre a y b) o {@code exp:m} (exponencial de media m).
+		 *
+		 * @param spec Descripción de la distribución
+		 * @return distribution Distribución
+		 * @throws IllegalArgumentException Si la descripción no es válida
+		 */
+		public static SizeDistribution parse(String spec) {
+			if (spec.startsWith("exp:")) {
+				return new SizeDistribution(1, ChatMessageEncoder.MAX_FRAME_LENGTH / 4,
+						Double.parseDouble(spec.substring(4)));
+			}
+			int dash = spec.indexOf('-');
+			if (dash > 0) {
+				int min = Integer.parseInt(spec.substring(0, dash));
+				int max = Integer.parseInt(spec.substring(dash + 1));
+				if (min > max) {
+					throw new IllegalArgumentException("Rango de tamaños no válido: " + spec);
+				}
+				return new SizeDistribution(min, max, 0);
+			}
+			int size = Integer.parseInt(spec);
+			return new SizeDistribution(size, size, 0);
+		}
+
+		/**
+		 * Método que devuelve un tamaño aleatorio según la distribución.
+		 *
+		 * @param random Generador de números aleatorios
+		 * @return size Tamaño en caracteres
+		 */
+		public int next(Random random) {
+			if (mean > 0) {
+				int size = (int) Math.round(-mean * Math.log(1 - random.nextDouble()));
+				return Math.max(min, Math.min(max, size));
+			}
+			return min == max ? min : min + random.nextInt(max - min + 1);
+		}
+	}
+}
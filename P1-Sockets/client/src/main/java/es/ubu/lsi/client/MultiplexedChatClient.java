@@ -0,0 +1,431 @@
+package es.ubu.lsi.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.ChatMessageDecoder;
+import es.ubu.lsi.common.ChatMessageEncoder;
+
+/**
+ * Cliente que mantiene muchas sesiones de chat sobre una sola conexión con el
+ * servidor, pensado para los bots que usan cientos de nicknames.
+ *
+ * La conexión se abre con un mensaje MUX, que el servidor confirma con otro.
+ * Desde entonces cada trama va precedida del número de canal (4 bytes en
+ * big-endian). Cada sesión ({@link Session}) ocupa un canal y se registra con
+ * su nickname como un cliente normal, obteniendo su propio identificador; el
+ * servidor la cierra enviando un MUX por su canal. Los modos del servidor con
+ * hilos bloqueantes admiten estas conexiones; el modo NIO las rechaza.
+ *
+ * Un hilo lee las tramas de todas las sesiones y se las entrega a su
+ * {@link Listener}, por lo que éste no debe bloquearse. Los envíos pueden
+ * hacerse desde cualquier hilo: se dejan en la cola de un
+ * {@link OutboundBatcher}, que los escribe en orden agrupando los de todas las
+ * sesiones.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class MultiplexedChatClient {
+
+	/**
+	 * Puerto predeterminado del servidor
+	 */
+	public static final int DEFAULT_PORT = 1500;
+
+	/**
+	 * Longitud en bytes del número de canal que precede a cada trama
+	 */
+	public static final int CHANNEL_LENGTH = 4;
+
+	/**
+	 * Máximo de mensajes por escritura
+	 */
+	private static final int BATCH_SIZE = 256;
+
+	/**
+	 * Interfaz que reciben los eventos de las sesiones. Los métodos se invocan
+	 * desde el hilo lector de la conexión.
+	 *
+	 * @author Eduardo Manuel Cabeza Lopez
+	 */
+	public interface Listener {
+
+		/**
+		 * Método que recibe un mensaje del servidor, a partir del siguiente al de
+		 * bienvenida.
+		 *
+		 * @param session Sesión que recibe el mensaje
+		 * @param message Mensaje recibido
+		 */
+		public void onMessage(Session session, ChatMessage message);
+
+		/**
+		 * Método que avisa de que la sesión se ha cerrado, por el servidor o porque
+		 * se ha perdido la conexión.
+		 *
+		 * @param session Sesión cerrada
+		 */
+		public void onClosed(Session session);
+	}
+
+	/**
+	 * Sesión de un usuario sobre la conexión compartida.
+	 *
+	 * @author Eduardo Manuel Cabeza Lopez
+	 */
+	public final class Session {
+
+		/**
+		 * Canal de la sesión
+		 */
+		private final int channel;
+
+		/**
+		 * Nickname del usuario
+		 */
+		private final String nickname;
+
+		/**
+		 * Receptor de los mensajes y del cierre
+		 */
+		private final Listener listener;
+
+		/**
+		 * Se completa al recibir la bienvenida
+		 */
+		private final CompletableFuture<Session> registered = new CompletableFuture<Session>();
+
+		/**
+		 * Identificador asignado por el servidor, o 0 hasta recibir la bienvenida
+		 */
+		private volatile int id;
+
+		/**
+		 * Booleano que indica si la sesión se ha cerrado
+		 */
+		private volatile boolean closed;
+
+		/**
+		 * Método constructor.
+		 *
+		 * @param channel  Canal de la sesión
+		 * @param nickname Nickname del usuario
+		 * @param listener Receptor de los mensajes y del cierre
+		 */
+		private Session(int channel, String nickname, Listener listener) {
+			this.channel = channel;
+			this.nickname = nickname;
+			this.listener = listener;
+		}
+
+		/**
+		 * Método que envía un mensaje por el canal de la sesión.
+		 *
+		 * @param message Mensaje a enviar
+		 * @throws IOException Si el mensaje es demasiado largo o se ha perdido la
+		 *                     conexión
+		 */
+		public void sendMessage(ChatMessage message) throws IOException {
+			send(channel, message);
+		}
+
+		/**
+		 * Método que envía un texto con el identificador de la sesión.
+		 *
+		 * @param text Texto del mensaje
+		 * @throws IOException Si el mensaje es demasiado largo o se ha perdido la
+		 *                     conexión
+		 */
+		public void sendText(String text) throws IOException {
+			sendMessage(new ChatMessage(id, MessageType.MESSAGE, text));
+		}
+
+		/**
+		 * Método que envía LOGOUT. El servidor cierra la sesión y se avisa al
+		 * listener.
+		 *
+		 * @throws IOException Si se ha perdido la conexión
+		 */
+		public void logout() throws IOException {
+			sendMessage(new ChatMessage(id, MessageType.LOGOUT, ""));
+		}
+
+		/**
+		 * Método que devuelve el identificador asignado por el servidor.
+		 *
+		 * @return id Identificador, o 0 si aún no se ha registrado
+		 */
+		public int getId() {
+			return id;
+		}
+
+		/**
+		 * Método que devuelve el nickname del usuario.
+		 *
+		 * @return nickname Nickname
+		 */
+		public String getNickname() {
+			return nickname;
+		}
+
+		/**
+		 * Método que indica si la sesión se ha cerrado.
+		 *
+		 * @return {@code true} si está cerrada
+		 */
+		public boolean isClosed() {
+			return closed;
+		}
+
+		/**
+		 * Método que procesa un mensaje recibido por el canal de la sesión.
+		 *
+		 * @param message Mensaje recibido
+		 */
+		private void receive(ChatMessage message) {
+			if (message.getType() == MessageType.MUX) { // El servidor cierra el canal
+				close(new IOException("El servidor ha rechazado el nickname " + nickname));
+			} else if (!registered.isDone()) { // Bienvenida
+				id = message.getId();
+				registered.complete(this);
+			} else {
+				listener.onMessage(this, message);
+			}
+		}
+
+		/**
+		 * Método que cierra la sesión tras un fallo de su listener. Se despide del
+		 * servidor para que libere el canal y se avisa al listener del cierre.
+		 *
+		 * @param error Fallo del listener
+		 */
+		private void fail(RuntimeException error) {
+			// Imprimir error
+			System.err.println("Error: Fallo al procesar un mensaje de " + nickname + ": " + error);
+			try {
+				logout();
+			} catch (IOException e) { // La conexión ya se ha perdido
+			}
+			try {
+				close(new IOException(error));
+			} catch (RuntimeException e) { // El listener también falla al cerrarse
+				System.err.println("Error: Fallo al cerrar la sesión de " + nickname + ": " + e);
+			}
+		}
+
+		/**
+		 * Método que marca la sesión como cerrada y avisa a quien espera el
+		 * registro o, si ya se había registrado, al listener.
+		 *
+		 * @param cause Error con el que se completa el registro pendiente
+		 */
+		private void close(IOException cause) {
+			closed = true;
+			sessions.remove(channel, this);
+			if (!registered.completeExceptionally(cause)) {
+				listener.onClosed(this);
+			}
+		}
+	}
+
+	/**
+	 * Socket de la conexión
+	 */
+	private final Socket socket;
+
+	/**
+	 * Stream de entrada de la conexión
+	 */
+	private final DataInputStream input;
+
+	/**
+	 * Envío en lotes de las tramas de todas las sesiones
+	 */
+	private final OutboundBatcher batcher;
+
+	/**
+	 * Sesiones abiertas, por canal
+	 */
+	private final ConcurrentHashMap<Integer, Session> sessions = new ConcurrentHashMap<Integer, Session>();
+
+	/**
+	 * Último canal asignado
+	 */
+	private final AtomicInteger channels = new AtomicInteger();
+
+	/**
+	 * Booleano que indica si la conexión se ha cerrado
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Método constructor. Abre la conexión, espera la confirmación del modo
+	 * multiplexado y lanza el hilo lector, que no impide que termine la máquina
+	 * virtual.
+	 *
+	 * @param host Hostname del servidor
+	 * @param port Puerto del servidor
+	 * @throws IOException Si no es posible conectar o el servidor no admite
+	 *                     conexiones multiplexadas
+	 */
+	public MultiplexedChatClient(String host, int port) throws IOException {
+		this.socket = new Socket(host, port);
+		try {
+			socket.setTcpNoDelay(true);
+			this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+			BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream(), OutboundBatcher.BATCH_BYTES);
+			ChatMessageEncoder.write(new ChatMessage(0, MessageType.MUX, ""), out);
+			out.flush();
+			ChatMessage ack;
+			try {
+				ack = ChatMessageDecoder.read(input);
+			} catch (EOFException e) { // El servidor cierra las conexiones que no entiende
+				ack = null;
+			}
+			if (ack == null || ack.getType() != MessageType.MUX) {
+				throw new IOException("El servidor no admite conexiones multiplexadas");
+			}
+			this.batcher = new OutboundBatcher(out, BATCH_SIZE, 0, new Runnable() {
+				@Override
+				public void run() {
+					close();
+				}
+			});
+		} catch (IOException | RuntimeException e) { // No dejar el socket abierto
+			socket.close();
+			throw e;
+		}
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readLoop();
+			}
+		}, "chat-mux-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Método que abre una sesión en un canal nuevo y envía la petición de
+	 * registro con su nickname. No espera la respuesta, de modo que pueden
+	 * registrarse muchas sesiones a la vez.
+	 *
+	 * @param nickname Nickname del usuario
+	 * @param listener Receptor de los mensajes y del cierre de la sesión
+	 * @return registered Futuro que se completa con la sesión al recibir la
+	 *         bienvenida, o con un error si el servidor rechaza el nickname o se
+	 *         pierde la conexión
+	 */
+	public CompletableFuture<Session> open(String nickname, Listener listener) {
+		Session session = new Session(channels.incrementAndGet(), nickname, listener);
+		sessions.put(session.channel, session);
+		try {
+			if (closed) {
+				throw new IOException("La conexión está cerrada");
+			}
+			send(session.channel, new ChatMessage(0, MessageType.MESSAGE, nickname));
+		} catch (IOException e) { // No se puede enviar la petición
+			session.close(e);
+		}
+		return session.registered;
+	}
+
+	/**
+	 * Método que codifica un mensaje precedido de su canal y lo deja en la cola
+	 * de envío.
+	 *
+	 * @param channel Canal del mensaje
+	 * @param message Mensaje
+	 * @throws IOException Si el mensaje es demasiado largo o se ha perdido la
+	 *                     conexión
+	 */
+	private void send(int channel, ChatMessage message) throws IOException {
+		byte[] frame = ChatMessageEncoder.encodeToArray(message);
+		byte[] tagged = new byte[CHANNEL_LENGTH + frame.length];
+		tagged[0] = (byte) (channel >>> 24);
+		tagged[1] = (byte) (channel >>> 16);
+		tagged[2] = (byte) (channel >>> 8);
+		tagged[3] = (byte) channel;
+		System.arraycopy(frame, 0, tagged, CHANNEL_LENGTH, frame.length);
+		batcher.sendFrame(tagged);
+	}
+
+	/**
+	 * Método que ejecuta el hilo lector: entrega cada trama a la sesión de su
+	 * canal hasta que se cierra la conexión, y entonces cierra todas las
+	 * sesiones.
+	 */
+	private void readLoop() {
+		IOException cause = new IOException("Conexión cerrada");
+		try {
+			while (!closed) {
+				int channel = input.readInt();
+				ChatMessage message = ChatMessageDecoder.read(input);
+				Session session = sessions.get(channel);
+				if (session != null) {
+					try {
+						session.receive(message);
+					} catch (RuntimeException e) { // Fallo del listener de una sesión
+						// Cerrar sólo esa sesión: el resto sigue usando la conexión
+						session.fail(e);
+					}
+				}
+			}
+		} catch (IOException e) { // Conexión perdida o cerrada
+			cause = e;
+		} finally {
+			close();
+			for (Session session : sessions.values()) {
+				session.close(cause);
+			}
+		}
+	}
+
+	/**
+	 * Método que devuelve el número de sesiones abiertas.
+	 *
+	 * @return sessions Sesiones abiertas o pendientes de registro
+	 */
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	/**
+	 * Método que indica si la conexión se ha cerrado.
+	 *
+	 * @return {@code true} si está cerrada
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Método que escribe los mensajes pendientes y cierra la conexión. El
+	 * servidor trata las sesiones que sigan abiertas como si hubieran perdido la
+	 * conexión; para despedirse hay que enviar antes LOGOUT por cada una.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		batcher.close();
+		try {
+			socket.close();
+		} catch (IOException e) { // Capturar excepciones IOException
+			// Imprimir error
+			System.err.println("Error: No se ha podido cerrar la conexión multiplexada.");
+		}
+	}
+}
@@ -0,0 +1,431 @@
+package es.ubu.lsi.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessageEncoder;
+import es.ubu.lsi.common.LatencyHistogram;
+
+/**
+ * Envío en segundo plano de los mensajes de un cliente, agrupados en lotes.
+ *
+ * Quien envía sólo codifica el mensaje y lo deja en una cola; un hilo escritor
+ * extrae las tramas en orden y escribe cada lote con una sola llamada al
+ * socket. Un lote se cierra al alcanzar el número máximo de mensajes o
+ * {@link #BATCH_BYTES} bytes, cuando la cola se vacía o, si se ha configurado
+ * una ventana de espera, cuando ésta expira. Con tráfico ligero cada mensaje se
+ * escribe de inmediato; en una ráfaga los mensajes se acumulan mientras se
+ * escribe el lote anterior y la conexión admite muchos más mensajes por
+ * segundo.
+ *
+ * Registra la latencia de envío de cada mensaje, desde que se entrega hasta que
+ * su lote se ha escrito, incluido el tiempo de espera en la cola.
+ *
+ * Si se ha negociado la compresión con el servidor, quien envía comprime cada
+ * trama que alcance el umbral antes de dejarla en la cola.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class OutboundBatcher implements Runnable {
+
+	/**
+	 * Máximo de bytes de un lote
+	 */
+	public static final int BATCH_BYTES = 64 * 1024;
+
+	/**
+	 * Máximo de mensajes esperando en la cola. Al llenarse, quien envía espera
+	 */
+	public static final int QUEUE_CAPACITY = 16 * 1024;
+
+	/**
+	 * Tiempo máximo de espera al cerrar para escribir los mensajes pendientes
+	 */
+	private static final long CLOSE_MILLIS = 5000;
+
+	/**
+	 * Trama pendiente junto con el instante en que se entregó
+	 *
+	 * @author Eduardo Manuel Cabeza Lopez
+	 */
+	private static final class Pending {
+
+		/**
+		 * Trama codificada
+		 */
+		final byte[] frame;
+
+		/**
+		 * Instante en nanosegundos en que se entregó la trama
+		 */
+		final long enqueued;
+
+		/**
+		 * Método constructor.
+		 *
+		 * @param frame    Trama codificada
+		 * @param enqueued Instante en nanosegundos en que se entregó
+		 */
+		Pending(byte[] frame, long enqueued) {
+			this.frame = frame;
+			this.enqueued = enqueued;
+		}
+	}
+
+	/**
+	 * Marca de fin de la cola
+	 */
+	private static final Pending END = new Pending(new byte[0], 0);
+
+	/**
+	 * Stream de salida de la conexión
+	 */
+	private final OutputStream out;
+
+	/**
+	 * Máximo de mensajes de un lote
+	 */
+	private final int maxBatch;
+
+	/**
+	 * Ventana de espera de más mensajes en nanosegundos
+	 */
+	private final long lingerNanos;
+
+	/**
+	 * Acción a ejecutar si falla la escritura
+	 */
+	private final Runnable onFailure;
+
+	/**
+	 * Mensajes pendientes de escribir, en orden
+	 */
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>(QUEUE_CAPACITY);
+
+	/**
+	 * Latencia de envío de cada mensaje en microsegundos
+	 */
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	/**
+	 * Mensajes del lote en curso. Sólo lo usa el hilo escritor
+	 */
+	private final Pending[] batch;
+
+	/**
+	 * Búfer del lote en curso. Sólo lo usa el hilo escritor
+	 */
+	private final byte[] buffer = new byte[BATCH_BYTES];
+
+	/**
+	 * Hilo escritor
+	 */
+	private final Thread writer;
+
+	/**
+	 * Número de lotes escritos
+	 */
+	private volatile long batches;
+
+	/**
+	 * Longitud mínima de las tramas que se comprimen, o -1 para no comprimir
+	 */
+	private volatile int compressThreshold = -1;
+
+	/**
+	 * Bytes de las tramas antes de comprimirlas
+	 */
+	private final LongAdder rawBytes = new LongAdder();
+
+	/**
+	 * Bytes de las tramas entregadas al hilo escritor
+	 */
+	private final LongAdder wireBytes = new LongAdder();
+
+	/**
+	 * Tiempo dedicado a comprimir en nanosegundos
+	 */
+	private final LongAdder compressNanos = new LongAdder();
+
+	/**
+	 * Booleano que indica si ya no se admiten mensajes
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Error de escritura, o null si no se ha producido
+	 */
+	private volatile IOException failure;
+
+	/**
+	 * Método constructor. Lanza el hilo escritor.
+	 *
+	 * @param out          Stream de salida de la conexión
+	 * @param maxBatch     Máximo de mensajes de un lote
+	 * @param lingerMicros Ventana de espera de más mensajes en microsegundos (0
+	 *                     para no esperar)
+	 * @param onFailure    Acción a ejecutar desde el hilo escritor si falla la
+	 *                     escritura
+	 * @throws IllegalArgumentException Si el tamaño del lote no es positivo o la
+	 *                                  ventana es negativa
+	 */
+	public OutboundBatcher(OutputStream out, int maxBatch, long lingerMicros, Runnable onFailure) {
+		if (maxBatch < 1) {
+			throw new IllegalArgumentException("El tamaño del lote debe ser positivo: " + maxBatch);
+		}
+		if (lingerMicros < 0) {
+			throw new IllegalArgumentException("La ventana de espera no puede ser negativa: " + lingerMicros);
+		}
+		this.out = out;
+		this.maxBatch = maxBatch;
+		this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+		this.onFailure = onFailure;
+		this.batch = new Pending[maxBatch];
+		this.writer = new Thread(this, "chat-client-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Método que codifica un mensaje y lo deja en la cola. Sólo espera si la cola
+	 * está llena.
+	 *
+	 * @param message Mensaje a enviar
+	 * @throws IOException Si el mensaje es demasiado largo, la escritura ha
+	 *                     fallado o el envío está cerrado
+	 */
+	public void send(ChatMessage message) throws IOException {
+		byte[] frame = ChatMessageEncoder.encodeToArray(message);
+		rawBytes.add(frame.length);
+		int threshold = compressThreshold;
+		if (threshold >= 0 && frame.length >= threshold) {
+			long start = System.nanoTime();
+			frame = ChatMessageEncoder.compress(frame);
+			compressNanos.add(System.nanoTime() - start);
+		}
+		wireBytes.add(frame.length);
+		sendFrame(frame);
+	}
+
+	/**
+	 * Método que establece la longitud mínima de las tramas que se comprimen, la
+	 * negociada con el servidor.
+	 *
+	 * @param compressThreshold Longitud mínima en bytes, o -1 para no comprimir
+	 */
+	public void setCompressThreshold(int compressThreshold) {
+		this.compressThreshold = compressThreshold;
+	}
+
+	/**
+	 * Método que deja en la cola una trama ya codificada, que se escribe tal cual.
+	 * Sólo espera si la cola está llena.
+	 *
+	 * @param frame Trama completa
+	 * @throws IOException Si la escritura ha fallado o el envío está cerrado
+	 */
+	void sendFrame(byte[] frame) throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+		if (closed) {
+			throw new IOException("El envío de mensajes está cerrado.");
+		}
+		try {
+			queue.put(new Pending(frame, System.nanoTime()));
+		} catch (InterruptedException e) { // Capturar interrupciones
+			Thread.currentThread().interrupt();
+			throw new IOException("Envío interrumpido.");
+		}
+	}
+
+	/**
+	 * Método que ejecuta el hilo escritor hasta que se cierra el envío o falla la
+	 * escritura.
+	 */
+	@Override
+	public void run() {
+		try {
+			boolean end = false;
+			while (!end) {
+				end = writeBatch(queue.take());
+			}
+		} catch (IOException e) { // Capturar excepciones IOException
+			// Los mensajes de la cola se conservan por si se pasan a otra conexión
+			failure = e;
+			// Imprimir error
+			System.err.println("Error: No se puede enviar el mensaje al servidor.");
+			System.err.println(e.getMessage());
+			onFailure.run();
+		} catch (InterruptedException e) { // Hilo interrumpido: terminar
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Método que forma un lote a partir de un mensaje ya extraído de la cola, lo
+	 * escribe y registra la latencia de cada mensaje.
+	 *
+	 * @param first Primer mensaje del lote
+	 * @return end Si se ha encontrado la marca de fin
+	 * @throws IOException          Si se pierde la conexión
+	 * @throws InterruptedException Si se interrumpe el hilo escritor
+	 */
+	private boolean writeBatch(Pending first) throws IOException, InterruptedException {
+		if (first == END) {
+			return true;
+		}
+		long deadline = System.nanoTime() + lingerNanos;
+		int frames = 0;
+		int count = 0;
+		boolean end = false;
+		Pending next = first;
+		while (next != null) {
+			if (next.frame.length > buffer.length - count && count > 0) {
+				// No cabe: escribir lo acumulado y seguir con el lote
+				out.write(buffer, 0, count);
+				count = 0;
+			}
+			if (next.frame.length > buffer.length) { // Trama mayor que el búfer
+				out.write(next.frame);
+			} else {
+				System.arraycopy(next.frame, 0, buffer, count, next.frame.length);
+				count += next.frame.length;
+			}
+			batch[frames++] = next;
+			if (frames == maxBatch) {
+				break;
+			}
+			next = queue.poll();
+			if (next == null && lingerNanos > 0) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining > 0) {
+					next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+				}
+			}
+			if (next == END) {
+				end = true;
+				break;
+			}
+		}
+		if (count > 0) {
+			out.write(buffer, 0, count);
+		}
+		out.flush();
+		batches++;
+		// Registrar la latencia de cada mensaje del lote
+		long now = System.nanoTime();
+		for (int i = 0; i < frames; i++) {
+			latency.record(TimeUnit.NANOSECONDS.toMicros(now - batch[i].enqueued));
+			batch[i] = null;
+		}
+		return end;
+	}
+
+	/**
+	 * Método que deja de admitir mensajes y espera a que se escriban los
+	 * pendientes. Si se invoca desde el hilo escritor no espera.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (failure != null || Thread.currentThread() == writer) {
+			return;
+		}
+		try {
+			if (queue.offer(END, CLOSE_MILLIS, TimeUnit.MILLISECONDS)) {
+				writer.join(CLOSE_MILLIS);
+			}
+		} catch (InterruptedException e) { // Capturar interrupciones
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Método que detiene el hilo escritor sin escribir los mensajes pendientes y
+	 * los pasa, en orden, a la cola de otro envío. Se usa al reconectar: los
+	 * mensajes que ya se estaban escribiendo en la conexión perdida no se pasan.
+	 *
+	 * @param next Envío de la nueva conexión, o null para descartarlos
+	 * @return pending Número de mensajes pendientes que se han pasado o
+	 *         descartado
+	 */
+	public int transferTo(OutboundBatcher next) {
+		closed = true;
+		writer.interrupt();
+		try {
+			writer.join(CLOSE_MILLIS);
+		} catch (InterruptedException e) { // Capturar interrupciones
+			Thread.currentThread().interrupt();
+		}
+		int count = 0;
+		Pending pending;
+		while ((pending = queue.poll()) != null) {
+			if (pending == END) {
+				continue;
+			}
+			if (next != null && !next.queue.offer(pending)) {
+				break; // La nueva cola está llena
+			}
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Método que indica si ha fallado la escritura en la conexión.
+	 *
+	 * @return {@code true} si el hilo escritor ha terminado por un error
+	 */
+	public boolean hasFailed() {
+		return failure != null;
+	}
+
+	/**
+	 * Método que devuelve el histograma de la latencia de envío.
+	 *
+	 * @return latency Latencia de cada mensaje en microsegundos, incluida la espera
+	 *         en la cola
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Método que devuelve el número de lotes escritos.
+	 *
+	 * @return batches Número de escrituras en el socket
+	 */
+	public long getBatches() {
+		return batches;
+	}
+
+	/**
+	 * Método que devuelve la razón de compresión de los mensajes enviados: bytes
+	 * sin comprimir por cada byte enviado.
+	 *
+	 * @return ratio Razón de compresión, o 1 si no se ha enviado nada
+	 */
+	public double getCompressionRatio() {
+		long wire = wireBytes.sum();
+		return wire == 0 ? 1 : (double) rawBytes.sum() / wire;
+	}
+
+	/**
+	 * Método que devuelve el tiempo dedicado a comprimir los mensajes enviados.
+	 *
+	 * @return cpuMicros Tiempo en microsegundos
+	 */
+	public long getCompressionCpuMicros() {
+		return compressNanos.sum() / 1000;
+	}
+}
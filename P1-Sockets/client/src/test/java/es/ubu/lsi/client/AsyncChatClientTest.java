@@ -0,0 +1,123 @@
+package es.ubu.lsi.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import es.ubu.lsi.common.ChatMessage;
+
+/**
+ * Tests del cliente asíncrono ({@link AsyncChatClient}) contra un servidor de
+ * eco.
+ */
+public class AsyncChatClientTest {
+
+	private EchoServer server;
+
+	private ClientEventLoop loop;
+
+	/**
+	 * Listener que guarda los mensajes recibidos y avisa del cierre.
+	 */
+	private static class Recorder implements ChatMessageListener {
+		final List<String> received = new ArrayList<String>();
+		final CountDownLatch closed = new CountDownLatch(1);
+		final CountDownLatch expected;
+
+		Recorder(int expected) {
+			this.expected = new CountDownLatch(expected);
+		}
+
+		@Override
+		public void onMessage(AsyncChatClient client, ChatMessage message) {
+			received.add(message.getMessage());
+			expected.countDown();
+		}
+
+		@Override
+		public void onClosed(AsyncChatClient client, Throwable cause) {
+			closed.countDown();
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		server = new EchoServer();
+		loop = new ClientEventLoop();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		loop.shutdown();
+		server.close();
+	}
+
+	/**
+	 * Comprueba que la conexión devuelve el identificador, que los futuros de
+	 * envío se completan y que los mensajes llegan al listener en orden.
+	 */
+	@Test
+	public void messagesShouldBeWrittenAndReceivedInOrder() throws Exception {
+		Recorder recorder = new Recorder(500);
+		AsyncChatClient client = new AsyncChatClient("127.0.0.1", server.getPort(), "ana", loop, recorder);
+		assertEquals(1, (int) client.connect().get(5, TimeUnit.SECONDS));
+
+		List<CompletableFuture<Void>> sent = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < 500; i++) {
+			sent.add(client.sendText("mensaje " + i));
+		}
+		CompletableFuture.allOf(sent.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+		assertTrue(recorder.expected.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 500; i++) {
+			assertEquals("mensaje " + i, recorder.received.get(i));
+		}
+
+		client.logout().get(5, TimeUnit.SECONDS);
+		assertTrue(recorder.closed.await(5, TimeUnit.SECONDS));
+		assertTrue(client.isClosed());
+	}
+
+	/**
+	 * Comprueba que un bucle atiende a muchos clientes a la vez y que un rechazo
+	 * se notifica por el futuro sin finalizar la máquina virtual.
+	 */
+	@Test
+	public void oneLoopShouldServeManyClientsAndReportRejections() throws Exception {
+		Recorder recorder = new Recorder(200);
+		List<AsyncChatClient> clients = new ArrayList<AsyncChatClient>();
+		List<CompletableFuture<Integer>> connections = new ArrayList<CompletableFuture<Integer>>();
+		for (int i = 0; i < 200; i++) {
+			AsyncChatClient client = new AsyncChatClient("127.0.0.1", server.getPort(), "bot" + i, loop, recorder);
+			clients.add(client);
+			connections.add(client.connect());
+		}
+		CompletableFuture.allOf(connections.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+		for (AsyncChatClient client : clients) {
+			client.sendText("hola de " + client.getNickname());
+		}
+		assertTrue(recorder.expected.await(10, TimeUnit.SECONDS));
+		assertEquals(200, loop.getClientCount());
+
+		AsyncChatClient rejected = new AsyncChatClient("127.0.0.1", server.getPort(), "ocupado", loop,
+				new Recorder(0));
+		try {
+			rejected.connect().get(5, TimeUnit.SECONDS);
+			fail("Se esperaba un rechazo");
+		} catch (ExecutionException e) {
+			assertTrue(rejected.isClosed());
+			assertTrue(rejected.sendText("hola").isCompletedExceptionally());
+		}
+	}
+}
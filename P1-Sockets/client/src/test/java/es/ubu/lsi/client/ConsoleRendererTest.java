@@ -0,0 +1,155 @@
+package es.ubu.lsi.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * Tests de la impresión agrupada de los mensajes recibidos
+ * ({@link ConsoleRenderer}).
+ */
+public class ConsoleRendererTest {
+
+	/**
+	 * Stream en memoria que cuenta los vaciados y puede bloquear la primera
+	 * escritura, como un terminal que no da abasto.
+	 */
+	private static class SlowStream extends ByteArrayOutputStream {
+		final CountDownLatch release;
+		final CountDownLatch blocked = new CountDownLatch(1);
+		int flushes;
+
+		SlowStream(CountDownLatch release) {
+			this.release = release;
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			blocked.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) { // No se interrumpe en los tests
+				Thread.currentThread().interrupt();
+			}
+			super.write(b, off, len);
+		}
+
+		@Override
+		public synchronized void flush() {
+			flushes++;
+		}
+	}
+
+	private static String[] lines(SlowStream out) {
+		return out.toString().split(System.lineSeparator());
+	}
+
+	/**
+	 * Comprueba que una ráfaga se imprime completa, en orden y en pocas
+	 * escrituras.
+	 */
+	@Test
+	public void burstsShouldBePrintedInOrderInFewFrames() {
+		SlowStream out = new SlowStream(new CountDownLatch(0));
+		ConsoleRenderer renderer = new ConsoleRenderer(new PrintStream(out), 20, 0, 0);
+		for (int i = 0; i < 1000; i++) {
+			renderer.render("mensaje " + i);
+		}
+		renderer.close();
+
+		String[] lines = lines(out);
+		assertEquals(1000, lines.length);
+		for (int i = 0; i < 1000; i++) {
+			assertEquals("mensaje " + i, lines[i]);
+		}
+		assertEquals(1000, renderer.getPrinted());
+		assertEquals(0, renderer.getSkipped());
+		assertTrue("escrituras: " + renderer.getFrames(), renderer.getFrames() < 20);
+		assertEquals(renderer.getFrames(), out.flushes);
+	}
+
+	/**
+	 * Comprueba que si el terminal se retrasa y se acumulan más líneas del
+	 * umbral, sólo se imprimen las últimas precedidas del número de omitidas.
+	 */
+	@Test
+	public void deepBacklogsShouldOnlyPrintTheLatestLines() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		SlowStream out = new SlowStream(release);
+		ConsoleRenderer renderer = new ConsoleRenderer(new PrintStream(out), 0, 100, 10);
+		renderer.render("primero");
+		out.blocked.await();
+		for (int i = 0; i < 500; i++) {
+			renderer.render("mensaje " + i);
+		}
+		release.countDown();
+		renderer.close();
+
+		String[] lines = lines(out);
+		assertEquals(12, lines.length);
+		assertEquals("primero", lines[0]);
+		assertEquals("... 490 mensajes omitidos ...", lines[1]);
+		for (int i = 0; i < 10; i++) {
+			assertEquals("mensaje " + (490 + i), lines[2 + i]);
+		}
+		assertEquals(11, renderer.getPrinted());
+		assertEquals(490, renderer.getSkipped());
+	}
+
+	/**
+	 * Comprueba que al desbordarse la cola mientras se cierra no se descarta la
+	 * marca de fin y las líneas entregadas después del cierre se imprimen en
+	 * orden tras las pendientes.
+	 */
+	@Test(timeout = 10000)
+	public void overflowWhileClosingShouldKeepEndAndOrder() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		SlowStream out = new SlowStream(release);
+		final ConsoleRenderer renderer = new ConsoleRenderer(new PrintStream(out), 0, 0, 0);
+		renderer.render("primero");
+		out.blocked.await();
+		Thread closer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				renderer.close();
+			}
+		});
+		closer.start();
+		// Esperar a que el cierre haya dejado la marca y espere al hilo de impresión
+		while (closer.getState() != Thread.State.TIMED_WAITING) {
+			Thread.sleep(1);
+		}
+		int count = ConsoleRenderer.QUEUE_CAPACITY + 10;
+		for (int i = 0; i < count; i++) {
+			renderer.render("mensaje " + i);
+		}
+		release.countDown();
+		closer.join(2000);
+		assertTrue("el cierre no ha terminado", !closer.isAlive());
+		renderer.render("tarde");
+
+		String[] lines = lines(out);
+		assertEquals("primero", lines[0]);
+		int previous = -1;
+		for (int i = 1; i < lines.length - 1; i++) {
+			int index = Integer.parseInt(lines[i].substring("mensaje ".length()));
+			assertTrue(index > previous);
+			previous = index;
+		}
+		assertEquals(count - 1, previous);
+		assertEquals("tarde", lines[lines.length - 1]);
+	}
+
+	/**
+	 * Comprueba que se rechaza una configuración de puesta al día no válida.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void catchUpLinesShouldNotExceedTheThreshold() {
+		new ConsoleRenderer(System.out, 50, 10, 20);
+	}
+}
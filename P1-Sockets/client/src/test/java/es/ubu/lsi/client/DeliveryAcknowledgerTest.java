@@ -0,0 +1,80 @@
+package es.ubu.lsi.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+/**
+ * Tests de la confirmación acumulada de las tramas recibidas
+ * ({@link DeliveryAcknowledger}).
+ */
+public class DeliveryAcknowledgerTest {
+
+	/**
+	 * Confirmación que anota los números confirmados y puede fallar.
+	 */
+	private static class RecordingAcknowledger extends DeliveryAcknowledger {
+		final List<Long> sent = new CopyOnWriteArrayList<Long>();
+		volatile boolean failing;
+
+		RecordingAcknowledger(int every, long periodMillis) {
+			super(every, periodMillis);
+		}
+
+		@Override
+		protected void acknowledge(long received) throws IOException {
+			if (failing) {
+				throw new IOException("Conexión perdida");
+			}
+			sent.add(received);
+		}
+	}
+
+	/**
+	 * Comprueba que se confirma una vez cada N tramas, que un envío fallido se
+	 * repite en la siguiente confirmación y que una sesión nueva empieza de cero.
+	 */
+	@Test
+	public void framesShouldBeAcknowledgedEveryN() {
+		RecordingAcknowledger acks = new RecordingAcknowledger(3, 60000);
+		for (long count = 1; count <= 7; count++) {
+			acks.received(count);
+		}
+		assertEquals(2, acks.sent.size());
+		assertEquals(Long.valueOf(6), acks.sent.get(1));
+
+		acks.failing = true;
+		acks.received(9);
+		acks.failing = false;
+		acks.received(10);
+		assertEquals(Long.valueOf(10), acks.sent.get(2));
+
+		acks.restart(1);
+		acks.received(2);
+		acks.received(3);
+		assertEquals(Long.valueOf(3), acks.sent.get(3));
+		assertEquals(4, acks.getAcks());
+		acks.close();
+	}
+
+	/**
+	 * Comprueba que si el tráfico se detiene las tramas se confirman al pasar el
+	 * intervalo.
+	 */
+	@Test
+	public void pendingFramesShouldBeAcknowledgedAfterThePeriod() throws InterruptedException {
+		RecordingAcknowledger acks = new RecordingAcknowledger(1000, 10);
+		acks.received(5);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (acks.sent.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(Long.valueOf(5), acks.sent.get(0));
+		assertEquals(5, acks.getAcknowledged());
+		acks.close();
+	}
+}
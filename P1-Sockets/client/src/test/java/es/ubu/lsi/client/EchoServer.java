@@ -0,0 +1,108 @@
+package es.ubu.lsi.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.ChatMessageDecoder;
+import es.ubu.lsi.common.ChatMessageEncoder;
+
+/**
+ * Servidor mínimo para los tests de los clientes: responde a cada registro con
+ * una bienvenida con un identificador nuevo y devuelve cada mensaje a su
+ * remitente. Rechaza el nickname "ocupado" cerrando la conexión y cierra la
+ * conexión al recibir un LOGOUT.
+ */
+class EchoServer implements AutoCloseable {
+
+	private final ServerSocket socket;
+
+	private final AtomicInteger ids = new AtomicInteger();
+
+	private final List<Socket> clients = new CopyOnWriteArrayList<Socket>();
+
+	EchoServer() throws IOException {
+		socket = new ServerSocket(0);
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final Socket client = socket.accept();
+						clients.add(client);
+						Thread thread = new Thread(new Runnable() {
+							@Override
+							public void run() {
+								serve(client);
+							}
+						});
+						thread.setDaemon(true);
+						thread.start();
+					}
+				} catch (IOException e) { // Servidor cerrado
+					return;
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	int getPort() {
+		return socket.getLocalPort();
+	}
+
+	private void serve(Socket client) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+			String nickname = ChatMessageDecoder.read(in).getMessage();
+			if (nickname.equals("ocupado")) {
+				client.close();
+				return;
+			}
+			int id = ids.incrementAndGet();
+			ChatMessageEncoder.write(new ChatMessage(id, MessageType.MESSAGE, "Bienvenido " + nickname), out);
+			out.flush();
+			while (true) {
+				ChatMessage message = ChatMessageDecoder.read(in);
+				if (message.getType() == MessageType.LOGOUT) {
+					client.close();
+					return;
+				}
+				ChatMessageEncoder.write(new ChatMessage(message.getId(), message.getType(), message.getMessage()),
+						out);
+				if (in.available() == 0) {
+					out.flush();
+				}
+			}
+		} catch (IOException e) { // Conexión cerrada
+			return;
+		}
+	}
+
+	/**
+	 * Cierra todas las conexiones abiertas sin cerrar el servidor.
+	 */
+	void dropClients() throws IOException {
+		for (Socket client : clients) {
+			client.close();
+		}
+		clients.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+		dropClients();
+	}
+}
@@ -0,0 +1,128 @@
+package es.ubu.lsi.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.ChatMessageDecoder;
+import es.ubu.lsi.common.ChatMessageEncoder;
+
+/**
+ * Tests del cliente multiplexado ({@link MultiplexedChatClient}) contra un
+ * servidor mínimo que acepta una sola conexión multiplexada.
+ */
+public class MultiplexedChatClientTest {
+
+	private ServerSocket listener;
+
+	/**
+	 * Tramas recibidas por el servidor, como "canal:tipo"
+	 */
+	private final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+
+	/**
+	 * Atiende la conexión: confirma el modo multiplexado, responde a cada
+	 * registro con la bienvenida seguida de un saludo y anota las demás tramas.
+	 */
+	private void serve() {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try (Socket client = listener.accept()) {
+					DataInputStream in = new DataInputStream(client.getInputStream());
+					DataOutputStream out = new DataOutputStream(client.getOutputStream());
+					ChatMessageDecoder.read(in);
+					ChatMessageEncoder.write(new ChatMessage(0, MessageType.MUX, ""), out);
+					out.flush();
+					while (true) {
+						int channel = in.readInt();
+						ChatMessage message = ChatMessageDecoder.read(in);
+						if (message.getId() == 0) {
+							send(out, channel, new ChatMessage(channel, MessageType.MESSAGE, "Bienvenido"));
+							send(out, channel, new ChatMessage(0, MessageType.MESSAGE, "hola"));
+						} else {
+							received.add(channel + ":" + message.getType());
+						}
+					}
+				} catch (IOException e) { // Conexión cerrada
+					return;
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void send(DataOutputStream out, int channel, ChatMessage message) throws IOException {
+		out.writeInt(channel);
+		ChatMessageEncoder.write(message, out);
+		out.flush();
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		listener = new ServerSocket(0);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		listener.close();
+	}
+
+	/**
+	 * Comprueba que un fallo del listener de una sesión sólo cierra esa sesión,
+	 * que se despide del servidor, y la conexión sigue atendiendo al resto.
+	 */
+	@Test
+	public void listenerErrorShouldOnlyCloseItsSession() throws Exception {
+		serve();
+		MultiplexedChatClient client = new MultiplexedChatClient("127.0.0.1", listener.getLocalPort());
+		final CountDownLatch anaClosed = new CountDownLatch(1);
+		MultiplexedChatClient.Session ana = client.open("ana", new MultiplexedChatClient.Listener() {
+			@Override
+			public void onMessage(MultiplexedChatClient.Session session, ChatMessage message) {
+				throw new IllegalStateException("fallo");
+			}
+
+			@Override
+			public void onClosed(MultiplexedChatClient.Session session) {
+				anaClosed.countDown();
+			}
+		}).get(5, TimeUnit.SECONDS);
+		assertEquals("1:LOGOUT", received.poll(5, TimeUnit.SECONDS));
+		assertTrue(anaClosed.await(5, TimeUnit.SECONDS));
+		assertTrue(ana.isClosed());
+
+		final CountDownLatch luisGreeted = new CountDownLatch(1);
+		client.open("luis", new MultiplexedChatClient.Listener() {
+			@Override
+			public void onMessage(MultiplexedChatClient.Session session, ChatMessage message) {
+				luisGreeted.countDown();
+			}
+
+			@Override
+			public void onClosed(MultiplexedChatClient.Session session) {
+			}
+		}).get(5, TimeUnit.SECONDS);
+		assertTrue(luisGreeted.await(5, TimeUnit.SECONDS));
+		assertFalse(client.isClosed());
+		assertEquals(1, client.getSessionCount());
+		client.close();
+	}
+}
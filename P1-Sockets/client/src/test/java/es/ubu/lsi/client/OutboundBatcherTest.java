@@ -0,0 +1,99 @@
+package es.ubu.lsi.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.ChatMessageDecoder;
+
+/**
+ * Tests del envío en lotes de los mensajes del cliente
+ * ({@link OutboundBatcher}).
+ */
+public class OutboundBatcherTest {
+
+	/**
+	 * Stream en memoria que cuenta las escrituras que llegan al socket.
+	 */
+	private static class CountingStream extends ByteArrayOutputStream {
+		int flushes;
+
+		@Override
+		public synchronized void flush() {
+			flushes++;
+		}
+	}
+
+	private static final Runnable NOTHING = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+
+	/**
+	 * Comprueba que una ráfaga se escribe en pocos lotes de como mucho el tamaño
+	 * configurado, en orden, y que se registra la latencia de cada mensaje.
+	 */
+	@Test
+	public void burstsShouldBeWrittenInOrderInFewBatches() throws IOException {
+		CountingStream out = new CountingStream();
+		OutboundBatcher batcher = new OutboundBatcher(out, 50, 20000, NOTHING);
+		for (int i = 0; i < 1000; i++) {
+			batcher.send(new ChatMessage(7, MessageType.MESSAGE, "mensaje " + i));
+		}
+		batcher.send(new ChatMessage(7, MessageType.LOGOUT, ""));
+		batcher.close();
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		for (int i = 0; i < 1000; i++) {
+			assertEquals("mensaje " + i, ChatMessageDecoder.read(in).getMessage());
+		}
+		assertEquals(MessageType.LOGOUT, ChatMessageDecoder.read(in).getType());
+		assertEquals(0, in.available());
+		assertEquals(1001, batcher.getLatency().getCount());
+		assertEquals(out.flushes, batcher.getBatches());
+		assertTrue("Lotes: " + out.flushes, out.flushes >= 21 && out.flushes < 100);
+	}
+
+	/**
+	 * Comprueba que un fallo de escritura se notifica una vez y que los envíos
+	 * posteriores fallan.
+	 */
+	@Test
+	public void writeFailuresShouldBeReported() throws Exception {
+		final CountDownLatch failed = new CountDownLatch(1);
+		OutputStream broken = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("Conexión perdida");
+			}
+		};
+		OutboundBatcher batcher = new OutboundBatcher(broken, 10, 0, new Runnable() {
+			@Override
+			public void run() {
+				failed.countDown();
+			}
+		});
+		batcher.send(new ChatMessage(1, MessageType.MESSAGE, "hola"));
+		assertTrue(failed.await(5, TimeUnit.SECONDS));
+		try {
+			batcher.send(new ChatMessage(1, MessageType.MESSAGE, "adiós"));
+			fail("Se esperaba un error de envío");
+		} catch (IOException e) {
+			assertEquals("Conexión perdida", e.getMessage());
+		}
+		batcher.close();
+	}
+}
@@ -0,0 +1,52 @@
+package es.ubu.lsi.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import es.ubu.lsi.client.LoadGenerator.SizeDistribution;
+
+/**
+ * Tests de las distribuciones de tamaño de {@link LoadGenerator}.
+ */
+public class SizeDistributionTest {
+
+	private final Random random = new Random(1);
+
+	/**
+	 * Comprueba las distribuciones fija y uniforme.
+	 */
+	@Test
+	public void fixedAndUniformShouldStayInRange() {
+		assertEquals(64, SizeDistribution.parse("64").next(random));
+		SizeDistribution uniform = SizeDistribution.parse("16-32");
+		for (int i = 0; i < 1000; i++) {
+			int size = uniform.next(random);
+			assertTrue(size >= 16 && size <= 32);
+		}
+	}
+
+	/**
+	 * Comprueba que la distribución exponencial tiene la media indicada.
+	 */
+	@Test
+	public void exponentialShouldHaveRequestedMean() {
+		SizeDistribution exp = SizeDistribution.parse("exp:128");
+		long sum = 0;
+		for (int i = 0; i < 100000; i++) {
+			sum += exp.next(random);
+		}
+		assertEquals(128, sum / 100000.0, 3);
+	}
+
+	/**
+	 * Comprueba que se rechazan los rangos invertidos.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void invertedRangeShouldBeRejected() {
+		SizeDistribution.parse("32-16");
+	}
+}
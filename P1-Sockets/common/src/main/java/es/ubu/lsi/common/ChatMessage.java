@@ -27,7 +27,17 @@ public class ChatMessage implements Serializable {
 		/** Shutdown server. */
 		SHUTDOWN,		
 		/** Logout client. */
-		LOGOUT;
+		LOGOUT,
+		/** Resumable login, resume token or session resume request. */
+		RESUME,
+		/** Multiplexed connection request or closed channel notice. */
+		MUX,
+		/** Compression request or reply, sent before logging in. */
+		COMPRESS,
+		/** Cumulative acknowledgement of the frames received so far. */
+		ACK,
+		/** Notice of frames dropped from a slow client's queue; the text is their number. */
+		DROPPED;
 	}
 	
 	/** Type. */
@@ -0,0 +1,247 @@
+package es.ubu.lsi.common;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import es.ubu.lsi.common.ChatMessage.MessageType;
+
+/**
+ * Clase que decodifica las tramas generadas por {@link ChatMessageEncoder}.
+ *
+ * Para streams bloqueantes se ofrece el método estático
+ * {@link #read(DataInputStream)}. Para canales no bloqueantes cada conexión usa
+ * su propia instancia, que acumula los bytes recibidos en un búfer interno
+ * hasta disponer de tramas completas. Las tramas comprimidas se descomprimen
+ * de forma transparente.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ * @see ChatMessageEncoder
+ */
+public class ChatMessageDecoder {
+
+	/**
+	 * Capacidad inicial del búfer de acumulación
+	 */
+	private static final int INITIAL_CAPACITY = 4096;
+
+	/**
+	 * Tipos de mensaje indexados por su ordinal
+	 */
+	private static final MessageType[] TYPES = MessageType.values();
+
+	/**
+	 * Descompresores libres, que se reutilizan para no reservar su memoria
+	 * nativa en cada trama
+	 */
+	private static final Queue<Inflater> INFLATERS = new ConcurrentLinkedQueue<Inflater>();
+
+	/**
+	 * Búfer de acumulación, en modo escritura salvo mientras se extraen tramas
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * Booleano que indica si el búfer está en modo lectura. Se mantiene así
+	 * entre llamadas consecutivas a {@link #next()} y sólo se compacta al
+	 * devolverlo para la siguiente lectura del canal, de modo que extraer varias
+	 * tramas de una misma lectura no copia los bytes restantes en cada una
+	 */
+	private boolean reading;
+
+	/**
+	 * Método constructor. Instancia un decodificador con un búfer vacío.
+	 */
+	public ChatMessageDecoder() {
+		this.buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Método que devuelve el búfer en el que se deben depositar los bytes leídos
+	 * del canal. Se garantiza que tiene espacio libre.
+	 *
+	 * @return buffer Búfer de acumulación en modo escritura
+	 */
+	public ByteBuffer buffer() {
+		if (reading) {
+			// Descartar de una vez las tramas ya extraídas
+			buffer.compact();
+			reading = false;
+		}
+		if (!buffer.hasRemaining()) {
+			grow(buffer.capacity() * 2);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Método que extrae el siguiente mensaje completo del búfer de acumulación.
+	 *
+	 * @return message Mensaje decodificado o null si todavía no se ha recibido
+	 *         una trama completa
+	 * @throws IOException Si la trama es incorrecta
+	 */
+	public ChatMessage next() throws IOException {
+		if (!reading) {
+			buffer.flip();
+			reading = true;
+		}
+		if (buffer.remaining() < ChatMessageEncoder.HEADER_LENGTH) {
+			return null;
+		}
+		// Consultar la longitud sin consumir la cabecera
+		int length = checkLength(buffer.getInt(buffer.position()));
+		int frameLength = ChatMessageEncoder.HEADER_LENGTH + length;
+		if (buffer.remaining() < frameLength) {
+			// Asegurar que la trama cabrá en el búfer cuando llegue completa
+			if (buffer.capacity() < frameLength) {
+				buffer.compact();
+				grow(frameLength);
+				buffer.flip();
+			}
+			return null;
+		}
+		buffer.position(buffer.position() + ChatMessageEncoder.HEADER_LENGTH);
+		ChatMessage message = decodeBody(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+		buffer.position(buffer.position() + length);
+		return message;
+	}
+
+	/**
+	 * Método que lee y decodifica una trama completa de un stream bloqueante.
+	 *
+	 * @param in Stream de entrada
+	 * @return message Mensaje decodificado
+	 * @throws IOException Si se pierde la conexión o la trama es incorrecta
+	 */
+	public static ChatMessage read(DataInputStream in) throws IOException {
+		int length = checkLength(in.readInt());
+		byte[] body = new byte[length];
+		in.readFully(body);
+		return decodeBody(body, 0, length);
+	}
+
+	/**
+	 * Método que comprueba que la longitud de una trama es válida.
+	 *
+	 * @param length Longitud leída de la cabecera
+	 * @return length La misma longitud si es válida
+	 * @throws StreamCorruptedException Si la longitud no es válida
+	 */
+	private static int checkLength(int length) throws StreamCorruptedException {
+		if (length < 0 || length > ChatMessageEncoder.MAX_FRAME_LENGTH) {
+			throw new StreamCorruptedException("Longitud de trama no válida: " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * Método que decodifica el cuerpo de una trama.
+	 *
+	 * @param bytes  Array con el cuerpo
+	 * @param offset Posición de inicio del cuerpo
+	 * @param length Longitud del cuerpo
+	 * @return message Mensaje decodificado
+	 * @throws IOException Si el cuerpo no contiene un mensaje válido
+	 */
+	static ChatMessage decodeBody(byte[] bytes, int offset, int length) throws IOException {
+		int end = offset + length;
+		if (length < 2) {
+			throw new StreamCorruptedException("Trama demasiado corta: " + length);
+		}
+		// Tipo del mensaje
+		int ordinal = bytes[offset++] & 0xFF;
+		if ((ordinal & ChatMessageEncoder.COMPRESSED_FLAG) != 0) {
+			// Descomprimir el identificador y el texto
+			ordinal &= ~ChatMessageEncoder.COMPRESSED_FLAG;
+			bytes = inflate(bytes, offset, end - offset);
+			offset = 0;
+			end = bytes.length;
+		}
+		if (ordinal >= TYPES.length) {
+			throw new StreamCorruptedException("Tipo de mensaje desconocido: " + ordinal);
+		}
+		// Identificador como varint
+		int id = 0;
+		int shift = 0;
+		byte b;
+		do {
+			if (offset == end || shift > 28) {
+				throw new StreamCorruptedException("Identificador de mensaje incorrecto");
+			}
+			b = bytes[offset++];
+			id |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		// Texto en UTF-8 hasta el final de la trama
+		String text = new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+		return new ChatMessage(id, TYPES[ordinal], text);
+	}
+
+	/**
+	 * Método que descomprime el resto del cuerpo de una trama comprimida.
+	 *
+	 * @param bytes  Array con los datos comprimidos
+	 * @param offset Posición de inicio de los datos
+	 * @param length Longitud de los datos
+	 * @return inflated Identificador y texto sin comprimir
+	 * @throws StreamCorruptedException Si los datos no son válidos o exceden la
+	 *                                  longitud máxima de trama
+	 */
+	private static byte[] inflate(byte[] bytes, int offset, int length) throws StreamCorruptedException {
+		Inflater inflater = INFLATERS.poll();
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		}
+		try {
+			inflater.setInput(bytes, offset, length);
+			byte[] inflated = new byte[Math.min(Math.max(64, length * 4), ChatMessageEncoder.MAX_FRAME_LENGTH)];
+			int pos = 0;
+			while (!inflater.finished()) {
+				if (pos == inflated.length) {
+					if (inflated.length == ChatMessageEncoder.MAX_FRAME_LENGTH) {
+						throw new StreamCorruptedException("Trama comprimida demasiado larga");
+					}
+					byte[] bigger = new byte[Math.min(inflated.length * 2, ChatMessageEncoder.MAX_FRAME_LENGTH)];
+					System.arraycopy(inflated, 0, bigger, 0, pos);
+					inflated = bigger;
+				}
+				int n = inflater.inflate(inflated, pos, inflated.length - pos);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new StreamCorruptedException("Trama comprimida incompleta");
+				}
+				pos += n;
+			}
+			if (pos == inflated.length) {
+				return inflated;
+			}
+			byte[] result = new byte[pos];
+			System.arraycopy(inflated, 0, result, 0, pos);
+			return result;
+		} catch (DataFormatException e) { // Datos comprimidos incorrectos
+			throw new StreamCorruptedException("Trama comprimida incorrecta: " + e.getMessage());
+		} finally {
+			inflater.reset();
+			INFLATERS.offer(inflater);
+		}
+	}
+
+	/**
+	 * Método que amplía el búfer de acumulación conservando su contenido.
+	 *
+	 * @param capacity Capacidad mínima del nuevo búfer
+	 */
+	private void grow(int capacity) {
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(capacity, buffer.capacity()));
+		buffer.flip();
+		bigger.put(buffer);
+		buffer = bigger;
+	}
+}
@@ -0,0 +1,268 @@
+package es.ubu.lsi.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Clase que codifica mensajes del chat en tramas binarias para su envío por la
+ * red.
+ *
+ * Cada trama se compone de una cabecera con la longitud del cuerpo (4 bytes en
+ * big-endian) seguida del cuerpo:
+ * <ul>
+ * <li>1 byte con el tipo del mensaje (ordinal de
+ * {@link ChatMessage.MessageType}).</li>
+ * <li>El identificador del cliente como entero variable (varint): 7 bits por
+ * byte, empezando por los menos significativos, con el bit alto indicando que
+ * siguen más bytes.</li>
+ * <li>El texto del mensaje en UTF-8 hasta el final de la trama. Un texto nulo se
+ * codifica como vacío.</li>
+ * </ul>
+ * Delimitar los mensajes permite decodificarlos de forma incremental tanto
+ * desde streams bloqueantes como desde canales no bloqueantes, y el formato no
+ * guarda estado entre tramas.
+ *
+ * Una trama puede comprimirse ({@link #compress(byte[])}) si el otro extremo
+ * lo ha aceptado al conectarse: el tipo lleva activado el bit
+ * {@link #COMPRESSED_FLAG} y el resto del cuerpo (identificador y texto) se
+ * sustituye por su compresión DEFLATE sin cabeceras. Cada trama se comprime por
+ * separado, de modo que tampoco guarda estado y la misma trama comprimida
+ * puede enviarse a todos los destinatarios.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ * @see ChatMessageDecoder
+ */
+public final class ChatMessageEncoder {
+
+	/**
+	 * Longitud en bytes de la cabecera de cada trama
+	 */
+	public static final int HEADER_LENGTH = 4;
+
+	/**
+	 * Longitud máxima admitida para el cuerpo de una trama
+	 */
+	public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+	/**
+	 * Bit del tipo que indica que el resto del cuerpo está comprimido
+	 */
+	public static final int COMPRESSED_FLAG = 0x80;
+
+	/**
+	 * Compresores libres, que se reutilizan para no reservar su memoria nativa
+	 * en cada trama
+	 */
+	private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<Deflater>();
+
+	/**
+	 * Constructor privado. Clase de utilidad no instanciable.
+	 */
+	private ChatMessageEncoder() {
+	}
+
+	/**
+	 * Método que codifica un mensaje en una trama completa (cabecera y cuerpo).
+	 *
+	 * @param message Mensaje a codificar
+	 * @return frame ByteBuffer preparado para lectura con la trama
+	 * @throws IOException Si el mensaje excede la longitud máxima de trama
+	 */
+	public static ByteBuffer encode(ChatMessage message) throws IOException {
+		return ByteBuffer.wrap(encodeToArray(message));
+	}
+
+	/**
+	 * Método que codifica un mensaje en un array con la trama completa y de la
+	 * longitud exacta de la trama.
+	 *
+	 * @param message Mensaje a codificar
+	 * @return frame Array con la trama
+	 * @throws IOException Si el mensaje excede la longitud máxima de trama
+	 */
+	public static byte[] encodeToArray(ChatMessage message) throws IOException {
+		String text = message.getMessage() == null ? "" : message.getMessage();
+		int bodyLength = 1 + varintLength(message.getId()) + utf8Length(text);
+		if (bodyLength > MAX_FRAME_LENGTH) {
+			throw new IOException("Mensaje demasiado largo: " + bodyLength + " bytes");
+		}
+		// Escribir cabecera, tipo e identificador y a continuación el texto
+		byte[] frame = new byte[HEADER_LENGTH + bodyLength];
+		int pos = writeInt(bodyLength, frame, 0);
+		frame[pos++] = (byte) message.getType().ordinal();
+		pos = writeVarint(message.getId(), frame, pos);
+		writeUtf8(text, frame, pos);
+		return frame;
+	}
+
+	/**
+	 * Método que codifica un mensaje y lo escribe en un stream de salida con una
+	 * única llamada. No vacía el stream.
+	 *
+	 * @param message Mensaje a codificar
+	 * @param out     Stream de salida
+	 * @throws IOException Si no es posible codificar o escribir el mensaje
+	 */
+	public static void write(ChatMessage message, OutputStream out) throws IOException {
+		byte[] frame = encodeToArray(message);
+		out.write(frame, 0, frame.length);
+	}
+
+	/**
+	 * Método que comprime una trama completa. Si la trama ya está comprimida o la
+	 * compresión no la reduce, se devuelve la misma trama. Puede invocarse desde
+	 * cualquier hilo.
+	 *
+	 * @param frame Trama completa sin comprimir
+	 * @return compressed Nueva trama comprimida, o la misma si no sale a cuenta
+	 */
+	public static byte[] compress(byte[] frame) {
+		int start = HEADER_LENGTH + 1;
+		if (frame.length <= start || (frame[HEADER_LENGTH] & COMPRESSED_FLAG) != 0) {
+			return frame;
+		}
+		Deflater deflater = DEFLATERS.poll();
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+		try {
+			deflater.setInput(frame, start, frame.length - start);
+			deflater.finish();
+			// Sólo interesa si la trama comprimida es más corta que la original
+			byte[] compressed = new byte[frame.length - 1];
+			int pos = start;
+			while (!deflater.finished() && pos < compressed.length) {
+				pos += deflater.deflate(compressed, pos, compressed.length - pos);
+			}
+			if (!deflater.finished()) {
+				return frame;
+			}
+			writeInt(pos - HEADER_LENGTH, compressed, 0);
+			compressed[HEADER_LENGTH] = (byte) (frame[HEADER_LENGTH] | COMPRESSED_FLAG);
+			byte[] result = new byte[pos];
+			System.arraycopy(compressed, 0, result, 0, pos);
+			return result;
+		} finally {
+			deflater.reset();
+			DEFLATERS.offer(deflater);
+		}
+	}
+
+	/**
+	 * Método que devuelve el número de bytes que ocupa un entero como varint.
+	 *
+	 * @param value Entero a codificar
+	 * @return length Número de bytes (entre 1 y 5)
+	 */
+	static int varintLength(int value) {
+		int length = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * Método que escribe un entero como varint.
+	 *
+	 * @param value Entero a codificar
+	 * @param dest  Array de destino
+	 * @param pos   Posición de escritura
+	 * @return pos Posición siguiente al último byte escrito
+	 */
+	static int writeVarint(int value, byte[] dest, int pos) {
+		while ((value & ~0x7F) != 0) {
+			dest[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		dest[pos++] = (byte) value;
+		return pos;
+	}
+
+	/**
+	 * Método que escribe un entero en big-endian.
+	 *
+	 * @param value Entero a escribir
+	 * @param dest  Array de destino
+	 * @param pos   Posición de escritura
+	 * @return pos Posición siguiente al último byte escrito
+	 */
+	static int writeInt(int value, byte[] dest, int pos) {
+		dest[pos] = (byte) (value >>> 24);
+		dest[pos + 1] = (byte) (value >>> 16);
+		dest[pos + 2] = (byte) (value >>> 8);
+		dest[pos + 3] = (byte) value;
+		return pos + 4;
+	}
+
+	/**
+	 * Método que calcula la longitud en UTF-8 de un texto sin codificarlo. Los
+	 * surrogates desemparejados ocupan un byte, como en
+	 * {@link String#getBytes(java.nio.charset.Charset)}.
+	 *
+	 * @param text Texto a medir
+	 * @return length Número de bytes en UTF-8
+	 */
+	static int utf8Length(String text) {
+		int length = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				length++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Método que codifica un texto en UTF-8 directamente sobre el array de
+	 * destino, que debe tener espacio suficiente. Los surrogates desemparejados
+	 * se sustituyen por '?'.
+	 *
+	 * @param text Texto a codificar
+	 * @param dest Array de destino
+	 * @param pos  Posición de escritura
+	 * @return pos Posición siguiente al último byte escrito
+	 */
+	static int writeUtf8(String text, byte[] dest, int pos) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				dest[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				dest[pos++] = (byte) (0xC0 | (c >> 6));
+				dest[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, text.charAt(++i));
+				dest[pos++] = (byte) (0xF0 | (cp >> 18));
+				dest[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				dest[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				dest[pos++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				dest[pos++] = (byte) '?';
+			} else {
+				dest[pos++] = (byte) (0xE0 | (c >> 12));
+				dest[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				dest[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return pos;
+	}
+}
@@ -0,0 +1,154 @@
+package es.ubu.lsi.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latencias con cubos logarítmicos.
+ *
+ * Cada potencia de dos se divide en 32 cubos lineales, por lo que los
+ * percentiles se obtienen con un error relativo menor del 3% sea cual sea la
+ * magnitud de los valores, y el histograma ocupa siempre lo mismo. Puede
+ * registrarse desde varios hilos a la vez. Las unidades de los valores las
+ * decide quien lo usa (normalmente microsegundos).
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Bits de precisión dentro de cada potencia de dos
+	 */
+	private static final int SUB_BITS = 5;
+
+	/**
+	 * Número de cubos por potencia de dos
+	 */
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/**
+	 * Número total de cubos, suficiente para cualquier long no negativo
+	 */
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	/**
+	 * Número de valores de cada cubo
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Número de valores registrados
+	 */
+	private final AtomicLong count = new AtomicLong();
+
+	/**
+	 * Suma de los valores registrados
+	 */
+	private final AtomicLong sum = new AtomicLong();
+
+	/**
+	 * Mayor valor registrado
+	 */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Método que registra un valor. Los valores negativos se registran como 0.
+	 *
+	 * @param value Valor a registrar
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// Reintentar si otro hilo ha actualizado el máximo
+		}
+	}
+
+	/**
+	 * Método que devuelve el valor por debajo del cual queda el porcentaje
+	 * indicado de los valores registrados.
+	 *
+	 * @param percentile Percentil entre 0 y 100
+	 * @return value Límite superior del cubo del percentil, o 0 si no hay valores
+	 */
+	public long getPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(upperBound(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Método que devuelve el número de valores registrados.
+	 *
+	 * @return count Número de valores
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Método que devuelve la media de los valores registrados.
+	 *
+	 * @return mean Media, o 0 si no hay valores
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Método que devuelve el mayor valor registrado.
+	 *
+	 * @return max Mayor valor
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Método que devuelve el cubo de un valor no negativo.
+	 *
+	 * @param value Valor
+	 * @return index Índice del cubo
+	 */
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Método que devuelve el mayor valor que cae en un cubo.
+	 *
+	 * @param index Índice del cubo
+	 * @return value Límite superior del cubo
+	 */
+	static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,209 @@
+package es.ubu.lsi.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import es.ubu.lsi.common.ChatMessage.MessageType;
+
+/**
+ * Tests del formato de trama de {@link ChatMessageEncoder} y
+ * {@link ChatMessageDecoder}.
+ */
+public class ChatMessageCodecTest {
+
+	/**
+	 * Comprueba que un mensaje se recupera igual tras codificarlo y leerlo de un
+	 * stream.
+	 */
+	@Test
+	public void shouldRoundTripThroughStream() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChatMessageEncoder.write(new ChatMessage(7, MessageType.MESSAGE, "hola"), out);
+		ChatMessageEncoder.write(new ChatMessage(300000, MessageType.LOGOUT, ""), out);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		assertMessage(7, MessageType.MESSAGE, "hola", ChatMessageDecoder.read(in));
+		assertMessage(300000, MessageType.LOGOUT, "", ChatMessageDecoder.read(in));
+	}
+
+	/**
+	 * Comprueba la disposición de los bytes: longitud, tipo, varint y texto.
+	 */
+	@Test
+	public void shouldUseCompactLayout() throws IOException {
+		ByteBuffer frame = ChatMessageEncoder.encode(new ChatMessage(300, MessageType.SHUTDOWN, "ab"));
+
+		assertEquals(1 + 2 + 2, frame.getInt());
+		assertEquals(MessageType.SHUTDOWN.ordinal(), frame.get());
+		assertEquals((byte) 0xAC, frame.get());
+		assertEquals((byte) 0x02, frame.get());
+		assertEquals('a', frame.get());
+		assertEquals('b', frame.get());
+		assertEquals(0, frame.remaining());
+	}
+
+	/**
+	 * Comprueba que el texto se codifica igual que con el codificador UTF-8 de la
+	 * plataforma, incluidos caracteres fuera del plano básico y surrogates
+	 * desemparejados.
+	 */
+	@Test
+	public void shouldEncodeUtf8LikePlatform() throws IOException {
+		String text = "añó € 😀 \uD800x";
+		ByteBuffer frame = ChatMessageEncoder.encode(new ChatMessage(1, MessageType.MESSAGE, text));
+		byte[] expected = text.getBytes(StandardCharsets.UTF_8);
+
+		assertEquals(2 + expected.length, frame.getInt());
+		frame.position(frame.position() + 2);
+		byte[] actual = new byte[frame.remaining()];
+		frame.get(actual);
+		assertEquals(new String(expected, StandardCharsets.UTF_8), new String(actual, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Comprueba que el decodificador incremental sólo devuelve mensajes cuando la
+	 * trama está completa, aunque los bytes lleguen de uno en uno.
+	 */
+	@Test
+	public void shouldDecodeIncrementally() throws IOException {
+		ByteBuffer frame = ChatMessageEncoder.encode(new ChatMessage(42, MessageType.MESSAGE, "trozo a trozo"));
+		ChatMessageDecoder decoder = new ChatMessageDecoder();
+
+		ChatMessage message = null;
+		while (frame.hasRemaining()) {
+			assertNull(message);
+			decoder.buffer().put(frame.get());
+			message = decoder.next();
+		}
+		assertMessage(42, MessageType.MESSAGE, "trozo a trozo", message);
+		assertNull(decoder.next());
+	}
+
+	/**
+	 * Comprueba que se extraen todas las tramas de una misma lectura y que la
+	 * trama incompleta del final se completa con la siguiente.
+	 */
+	@Test
+	public void shouldDrainSeveralFramesFromOneRead() throws IOException {
+		ChatMessageDecoder decoder = new ChatMessageDecoder();
+		ByteBuffer buffer = decoder.buffer();
+		for (int i = 0; i < 3; i++) {
+			buffer.put(ChatMessageEncoder.encode(new ChatMessage(i, MessageType.MESSAGE, "mensaje " + i)));
+		}
+		ByteBuffer last = ChatMessageEncoder.encode(new ChatMessage(3, MessageType.MESSAGE, "mensaje 3"));
+		last.limit(6);
+		buffer.put(last);
+		for (int i = 0; i < 3; i++) {
+			assertMessage(i, MessageType.MESSAGE, "mensaje " + i, decoder.next());
+		}
+		assertNull(decoder.next());
+		last.limit(last.capacity());
+		decoder.buffer().put(last);
+		assertMessage(3, MessageType.MESSAGE, "mensaje 3", decoder.next());
+		assertNull(decoder.next());
+	}
+
+	/**
+	 * Comprueba que el decodificador amplía su búfer para tramas grandes.
+	 */
+	@Test
+	public void shouldDecodeFramesLargerThanBuffer() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			text.append('x');
+		}
+		ByteBuffer frame = ChatMessageEncoder.encode(new ChatMessage(1, MessageType.MESSAGE, text.toString()));
+		ChatMessageDecoder decoder = new ChatMessageDecoder();
+
+		ChatMessage message = null;
+		while (message == null) {
+			ByteBuffer buffer = decoder.buffer();
+			while (buffer.hasRemaining() && frame.hasRemaining()) {
+				buffer.put(frame.get());
+			}
+			message = decoder.next();
+		}
+		assertEquals(text.toString(), message.getMessage());
+	}
+
+	/**
+	 * Comprueba que se rechazan tipos desconocidos.
+	 */
+	@Test(expected = StreamCorruptedException.class)
+	public void shouldRejectUnknownType() throws IOException {
+		byte[] frame = { 0, 0, 0, 2, (byte) 0x7F, 1 };
+		ChatMessageDecoder.read(new DataInputStream(new ByteArrayInputStream(frame)));
+	}
+
+	/**
+	 * Comprueba que se rechazan longitudes fuera de rango.
+	 */
+	@Test(expected = StreamCorruptedException.class)
+	public void shouldRejectOversizedFrame() throws IOException {
+		byte[] frame = { (byte) 0x7F, 0, 0, 0 };
+		ChatMessageDecoder.read(new DataInputStream(new ByteArrayInputStream(frame)));
+	}
+
+	/**
+	 * Comprueba que una trama comprimida ocupa menos, lleva marcado el tipo y se
+	 * decodifica igual que la original por los dos decodificadores.
+	 */
+	@Test
+	public void shouldRoundTripCompressedFrames() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			text.append("hola a todos ");
+		}
+		byte[] frame = ChatMessageEncoder.encodeToArray(new ChatMessage(300, MessageType.MESSAGE, text.toString()));
+		byte[] compressed = ChatMessageEncoder.compress(frame);
+
+		assertTrue(compressed.length < frame.length / 4);
+		assertEquals(MessageType.MESSAGE.ordinal() | ChatMessageEncoder.COMPRESSED_FLAG,
+				compressed[ChatMessageEncoder.HEADER_LENGTH] & 0xFF);
+		assertSame(compressed, ChatMessageEncoder.compress(compressed));
+		assertMessage(300, MessageType.MESSAGE, text.toString(),
+				ChatMessageDecoder.read(new DataInputStream(new ByteArrayInputStream(compressed))));
+		ChatMessageDecoder decoder = new ChatMessageDecoder();
+		decoder.buffer().put(compressed);
+		assertMessage(300, MessageType.MESSAGE, text.toString(), decoder.next());
+	}
+
+	/**
+	 * Comprueba que las tramas que no se reducen al comprimirlas se dejan igual.
+	 */
+	@Test
+	public void shouldNotCompressWhenItDoesNotPay() throws IOException {
+		byte[] frame = ChatMessageEncoder.encodeToArray(new ChatMessage(1, MessageType.MESSAGE, "hola"));
+		assertSame(frame, ChatMessageEncoder.compress(frame));
+	}
+
+	/**
+	 * Comprueba que se rechazan tramas comprimidas incorrectas.
+	 */
+	@Test(expected = StreamCorruptedException.class)
+	public void shouldRejectCorruptCompressedFrame() throws IOException {
+		byte[] frame = { 0, 0, 0, 3, (byte) ChatMessageEncoder.COMPRESSED_FLAG, (byte) 0xFF, (byte) 0xFF };
+		ChatMessageDecoder.read(new DataInputStream(new ByteArrayInputStream(frame)));
+	}
+
+	/**
+	 * Comprueba los campos de un mensaje decodificado.
+	 */
+	private static void assertMessage(int id, MessageType type, String text, ChatMessage message) {
+		assertEquals(id, message.getId());
+		assertEquals(type, message.getType());
+		assertEquals(text, message.getMessage());
+	}
+}
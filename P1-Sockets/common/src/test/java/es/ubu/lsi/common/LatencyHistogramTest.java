@@ -0,0 +1,53 @@
+package es.ubu.lsi.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests de {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+	/**
+	 * Comprueba que los percentiles se obtienen con el error relativo esperado.
+	 */
+	@Test
+	public void percentilesShouldBeWithinPrecision() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long value = 1; value <= 100000; value++) {
+			histogram.record(value);
+		}
+
+		assertEquals(100000, histogram.getCount());
+		assertEquals(50000.5, histogram.getMean(), 1e-9);
+		assertEquals(100000, histogram.getMax());
+		assertWithin(50000, histogram.getPercentile(50));
+		assertWithin(99000, histogram.getPercentile(99));
+		assertWithin(99900, histogram.getPercentile(99.9));
+		assertEquals(100000, histogram.getPercentile(100));
+	}
+
+	/**
+	 * Comprueba que los valores pequeños son exactos y que todo valor cae dentro
+	 * de su cubo.
+	 */
+	@Test
+	public void bucketsShouldContainTheirValues() {
+		for (long value = 0; value < 32; value++) {
+			assertEquals(value, LatencyHistogram.upperBound(LatencyHistogram.index(value)));
+		}
+		long[] values = { 32, 33, 63, 64, 1000, 123456789, Long.MAX_VALUE };
+		for (long value : values) {
+			int index = LatencyHistogram.index(value);
+			assertTrue(LatencyHistogram.upperBound(index) >= value);
+			assertTrue(index == 0 || LatencyHistogram.upperBound(index - 1) < value);
+		}
+		assertEquals(0, new LatencyHistogram().getPercentile(99));
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue(expected + " ~ " + actual, Math.abs(actual - expected) <= expected / 32);
+	}
+}
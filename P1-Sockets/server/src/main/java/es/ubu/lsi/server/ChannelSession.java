@@ -0,0 +1,237 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessageDecoder;
+import es.ubu.lsi.server.WriteStats.FlushCause;
+
+/**
+ * Sesión de un cliente atendida por un {@link ChatReactor}.
+ *
+ * La lectura, decodificación y escritura se realizan desde el hilo del bucle
+ * de eventos. Las tramas enviadas a la sesión se encolan sin copiarlas en su
+ * cola de salida, y el bucle de eventos las vuelca en su búfer de escritura y
+ * las escribe en el canal cuando éste admite escritura.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class ChannelSession extends ClientSession {
+
+	/**
+	 * Canal del cliente
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * Bucle de eventos que atiende la sesión
+	 */
+	private final ChatReactor reactor;
+
+	/**
+	 * Clave del canal en el selector del bucle de eventos
+	 */
+	private SelectionKey key;
+
+	/**
+	 * Decodificador con los bytes recibidos pendientes de procesar
+	 */
+	private final ChatMessageDecoder decoder;
+
+	/**
+	 * Tramas extraídas de la cola de salida que aún no se han escrito por
+	 * completo. Sólo las usa el bucle de eventos, de modo que la política de
+	 * desbordamiento nunca descarta una trama a medio escribir.
+	 */
+	private final Deque<SharedFrame> inFlight = new ArrayDeque<SharedFrame>();
+
+	/**
+	 * Bytes ya escritos de la primera trama en curso
+	 */
+	private int headOffset;
+
+	/**
+	 * Indica si la sesión ya está en la cola de peticiones de escritura de su
+	 * bucle de eventos
+	 */
+	private final AtomicBoolean writeRequested = new AtomicBoolean();
+
+	/**
+	 * Indica si la sesión ya se ha descontado de su bucle de eventos al cerrarse
+	 */
+	private final AtomicBoolean released = new AtomicBoolean();
+
+	/**
+	 * Método constructor. Instancia una sesión para un canal aceptado.
+	 *
+	 * @param server  Servidor al que pertenece la sesión
+	 * @param reactor Bucle de eventos que atiende la sesión
+	 * @param channel Canal del cliente en modo no bloqueante
+	 */
+	ChannelSession(ChatServerImpl server, ChatReactor reactor, SocketChannel channel) {
+		super(server);
+		this.reactor = reactor;
+		this.channel = channel;
+		this.decoder = new ChatMessageDecoder();
+	}
+
+	/**
+	 * Método que asigna la clave del canal en el selector.
+	 *
+	 * @param key Clave de registro del canal
+	 */
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Método que pide al bucle de eventos que escriba las tramas encoladas.
+	 */
+	@Override
+	protected void wakeWriter() {
+		reactor.requestWrite(this);
+	}
+
+	/**
+	 * Método que marca la sesión como pendiente de escritura.
+	 *
+	 * @return {@code true} si no estaba ya pendiente
+	 */
+	boolean markWriteRequested() {
+		return writeRequested.compareAndSet(false, true);
+	}
+
+	/**
+	 * Método que desmarca la sesión como pendiente de escritura. Se invoca desde
+	 * el bucle de eventos antes de activar la escritura.
+	 */
+	void clearWriteRequested() {
+		writeRequested.set(false);
+	}
+
+	/**
+	 * Método que solicita eventos de escritura para el canal. Se invoca desde el
+	 * bucle de eventos.
+	 */
+	void enableWrite() {
+		if (key != null && key.isValid()) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Método que indica si el hilo actual puede esperar a que haya sitio en la
+	 * cola. El hilo del bucle de eventos nunca espera, ya que es el que la vacía.
+	 *
+	 * @return {@code true} si el hilo actual no es el del bucle de eventos
+	 */
+	@Override
+	protected boolean canBlock() {
+		return !reactor.inEventLoop();
+	}
+
+	/**
+	 * Método que lee los bytes disponibles en el canal y procesa los mensajes
+	 * completos recibidos. Se invoca desde el bucle de eventos.
+	 *
+	 * @throws IOException Si se pierde la conexión o se recibe una trama incorrecta
+	 */
+	void onReadable() throws IOException {
+		int read = channel.read(decoder.buffer());
+		if (read < 0) {
+			throw new IOException("Conexión cerrada por el cliente");
+		}
+		server.getMetrics().bytesRead(read);
+		ChatMessage message;
+		while (isAlive() && (message = decoder.next()) != null) {
+			if (isLogged()) {
+				handle(message);
+			} else {
+				login(message);
+			}
+		}
+	}
+
+	/**
+	 * Método que escribe en el canal las tramas pendientes. Copia en el búfer de
+	 * escritura del bucle de eventos tantas tramas como quepan, extrayéndolas de
+	 * la cola de salida, y las escribe con una sola llamada. Deja de solicitar
+	 * eventos de escritura cuando no quedan tramas. Se invoca desde el bucle de
+	 * eventos.
+	 *
+	 * @param out Búfer de escritura del bucle de eventos
+	 * @throws IOException Si se pierde la conexión
+	 */
+	void onWritable(ByteBuffer out) throws IOException {
+		while (!inFlight.isEmpty() || !queue.isEmpty()) {
+			// Copiar primero las tramas en curso a partir de la parte ya escrita
+			out.clear();
+			int offset = headOffset;
+			for (SharedFrame frame : inFlight) {
+				if (!out.hasRemaining()) {
+					break;
+				}
+				out.put(frame.bytes(), offset, Math.min(frame.length() - offset, out.remaining()));
+				offset = 0;
+			}
+			// Completar el búfer con tramas extraídas de la cola
+			SharedFrame frame;
+			while (out.hasRemaining() && (frame = queue.poll()) != null) {
+				frame = wire(frame);
+				inFlight.add(frame);
+				out.put(frame.bytes(), 0, Math.min(frame.length(), out.remaining()));
+			}
+			out.flip();
+			FlushCause cause = out.limit() == out.capacity() ? FlushCause.SIZE : FlushCause.IDLE;
+			int written = channel.write(out);
+			int bytes = written;
+			// Descartar las tramas escritas por completo
+			int frames = 0;
+			written += headOffset;
+			while (!inFlight.isEmpty() && written >= inFlight.peek().length()) {
+				written -= inFlight.poll().length();
+				frames++;
+			}
+			headOffset = written;
+			queue.written(frames);
+			server.getWriteStats().record(cause, bytes, frames);
+			if (out.hasRemaining()) { // El búfer del socket está lleno
+				return;
+			}
+		}
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		// Volver a pedir escritura si se ha encolado algo mientras tanto
+		if (!queue.isEmpty()) {
+			enableWrite();
+		}
+	}
+
+	/**
+	 * Método que cierra el canal del cliente y lo elimina del selector.
+	 */
+	@Override
+	public void closeClient() {
+		setAlive(false);
+		// Descontar la sesión de su bucle de eventos una sola vez
+		if (released.compareAndSet(false, true)) {
+			reactor.sessionClosed();
+		}
+		try {
+			if (key != null) {
+				key.cancel();
+			}
+			channel.close();
+		} catch (IOException e) { // Capturar excepciones IOException
+			// Imprimir error
+			System.err.println("Error: No se ha podido desconectar correctamente al usuario " + getNickname());
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Hilo aceptador del modo NIO.
+ *
+ * Acepta las conexiones en su canal de escucha y reparte cada una entre N
+ * bucles de eventos ({@link ChatReactor}), cada uno con su propio hilo y
+ * selector. A partir de ese momento el bucle elegido se encarga de todas las
+ * lecturas y escrituras de la sesión, de modo que el servidor aprovecha
+ * tantos núcleos como bucles tenga.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class ChatAcceptor implements Runnable {
+
+	/**
+	 * Criterios para elegir el bucle de eventos de cada conexión.
+	 *
+	 * @author Eduardo Manuel Cabeza Lopez
+	 */
+	public enum Balance {
+		/** Los bucles se eligen por turnos. */
+		ROUND_ROBIN,
+		/** Se elige el bucle con menos sesiones abiertas. */
+		LEAST_LOADED;
+	}
+
+	/**
+	 * Espera tras un fallo al aceptar, por ejemplo por falta de descriptores,
+	 * para no repetirlo sin pausa
+	 */
+	private static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+	/**
+	 * Canal de escucha del servidor
+	 */
+	private final ServerSocketChannel serverChannel;
+
+	/**
+	 * Bucles de eventos entre los que se reparten las conexiones
+	 */
+	private final ChatReactor[] workers;
+
+	/**
+	 * Criterio de reparto
+	 */
+	private final Balance balance;
+
+	/**
+	 * Siguiente bucle en el reparto por turnos
+	 */
+	private int next;
+
+	/**
+	 * Booleano que indica si el aceptador está activo
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Método constructor. Abre el canal de escucha en el puerto indicado y crea
+	 * los bucles de eventos, sin iniciarlos.
+	 *
+	 * @param server  Servidor al que pertenecen las sesiones
+	 * @param port    Puerto de escucha
+	 * @param threads Número de bucles de eventos
+	 * @param balance Criterio de reparto de las conexiones
+	 * @throws IOException Si no es posible abrir el canal o los selectores. Lo
+	 *                     ya abierto se cierra
+	 */
+	public ChatAcceptor(ChatServerImpl server, int port, int threads, Balance balance) throws IOException {
+		this.serverChannel = ServerSocketChannel.open();
+		this.balance = balance;
+		this.workers = new ChatReactor[threads];
+		try {
+			this.serverChannel.bind(new InetSocketAddress(port));
+			for (int i = 0; i < threads; i++) {
+				workers[i] = new ChatReactor(server);
+			}
+		} catch (IOException e) { // Cerrar lo ya abierto antes de propagarla
+			stopAccepting();
+			for (ChatReactor worker : workers) {
+				if (worker != null) {
+					worker.shutdown();
+				}
+			}
+			throw e;
+		}
+		this.running = true;
+	}
+
+	/**
+	 * Método que inicia los bucles de eventos, cada uno en su hilo.
+	 */
+	public void startWorkers() {
+		for (int i = 0; i < workers.length; i++) {
+			new Thread(workers[i], "chat-reactor-" + (i + 1)).start();
+		}
+	}
+
+	/**
+	 * Método que acepta conexiones hasta que se detiene el aceptador y entrega
+	 * cada una a un bucle de eventos.
+	 */
+	@Override
+	public void run() {
+		while (running) {
+			SocketChannel channel = null;
+			try {
+				channel = serverChannel.accept();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				choose().register(channel);
+			} catch (AsynchronousCloseException e) { // Se ha cerrado el canal de escucha
+				break;
+			} catch (IOException e) { // Capturar excepciones IOException
+				// Imprimir error
+				System.err.println("Error: No se puede aceptar la conexión con el cliente.");
+				if (channel != null) {
+					// Cerrar la conexión aceptada que no se ha podido entregar
+					close(channel);
+				} else if (!pause()) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Método que cierra una conexión aceptada sin propagar errores.
+	 *
+	 * @param channel Canal del cliente
+	 */
+	private static void close(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) { // La conexión ya no se usa
+		}
+	}
+
+	/**
+	 * Método que espera antes de volver a aceptar tras un fallo, para que un
+	 * error persistente no ocupe el hilo sin pausa.
+	 *
+	 * @return {@code false} si se ha interrumpido el hilo
+	 */
+	private boolean pause() {
+		try {
+			Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+			return true;
+		} catch (InterruptedException e) { // Capturar interrupciones
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Método que elige el bucle de eventos de una conexión nueva según el
+	 * criterio de reparto.
+	 *
+	 * @return worker Bucle de eventos elegido
+	 */
+	ChatReactor choose() {
+		if (balance == Balance.LEAST_LOADED) {
+			ChatReactor best = workers[0];
+			for (ChatReactor worker : workers) {
+				if (worker.getSessionCount() < best.getSessionCount()) {
+					best = worker;
+				}
+			}
+			return best;
+		}
+		ChatReactor worker = workers[next];
+		next = (next + 1) % workers.length;
+		return worker;
+	}
+
+	/**
+	 * Método que devuelve el puerto en el que escucha el aceptador.
+	 *
+	 * @return port Puerto local del canal de escucha
+	 */
+	public int getLocalPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Método que devuelve los bucles de eventos.
+	 *
+	 * @return workers Bucles de eventos
+	 */
+	public ChatReactor[] getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * Método que cierra el canal de escucha, de modo que {@link #run()} termina,
+	 * sin detener los bucles de eventos de las sesiones abiertas. Puede invocarse
+	 * desde cualquier hilo.
+	 */
+	public void stopAccepting() {
+		running = false;
+		try {
+			serverChannel.close();
+		} catch (IOException e) { // Capturar excepciones IOException
+			System.err.println("Error: Fallo al cerrar el canal de escucha.");
+		}
+	}
+
+	/**
+	 * Método que deja de aceptar conexiones y detiene los bucles de eventos.
+	 * Puede invocarse desde cualquier hilo.
+	 */
+	public void shutdown() {
+		stopAccepting();
+		for (ChatReactor worker : workers) {
+			worker.shutdown();
+		}
+	}
+}
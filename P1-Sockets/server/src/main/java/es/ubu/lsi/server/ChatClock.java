@@ -0,0 +1,176 @@
+package es.ubu.lsi.server;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloj de baja resolución para las marcas de tiempo de los mensajes.
+ *
+ * Un temporizador en segundo plano formatea la hora una vez por tick y publica
+ * el texto y sus bytes UTF-8, de modo que consultar la hora al difundir un
+ * mensaje sólo lee el último valor. El formateador se usa únicamente desde el
+ * constructor y después desde el hilo del temporizador, por lo que no hay
+ * problemas de concurrencia.
+ *
+ * Para medir latencias se ofrece además una variante de alta resolución
+ * ({@link #currentTimeMicros()}).
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class ChatClock {
+
+	/**
+	 * Hora formateada junto con sus bytes UTF-8
+	 *
+	 * @author Eduardo Manuel Cabeza Lopez
+	 */
+	private static final class Tick {
+
+		/**
+		 * Hora formateada
+		 */
+		final String text;
+
+		/**
+		 * Bytes UTF-8 de la hora formateada
+		 */
+		final byte[] utf8;
+
+		/**
+		 * Método constructor. Codifica la hora en UTF-8 una sola vez.
+		 *
+		 * @param text Hora formateada
+		 */
+		Tick(String text) {
+			this.text = text;
+			this.utf8 = text.getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Instante de referencia en milisegundos de la variante de alta resolución
+	 */
+	private static final long BASE_MILLIS = System.currentTimeMillis();
+
+	/**
+	 * Instante de referencia en nanosegundos de la variante de alta resolución
+	 */
+	private static final long BASE_NANOS = System.nanoTime();
+
+	/**
+	 * Formateador de la hora, usado sólo desde el temporizador
+	 */
+	private final SimpleDateFormat format;
+
+	/**
+	 * Periodo de refresco en milisegundos
+	 */
+	private final long tickMillis;
+
+	/**
+	 * Último valor publicado
+	 */
+	private volatile Tick current;
+
+	/**
+	 * Temporizador que refresca el valor
+	 */
+	private ScheduledExecutorService timer;
+
+	/**
+	 * Método constructor. Formatea la hora actual; el valor no se refresca hasta
+	 * que se invoca {@link #start()}.
+	 *
+	 * @param pattern    Patrón de {@link SimpleDateFormat}
+	 * @param timeZone   Identificador de la zona horaria
+	 * @param tickMillis Periodo de refresco en milisegundos
+	 */
+	public ChatClock(String pattern, String timeZone, long tickMillis) {
+		this.format = new SimpleDateFormat(pattern);
+		this.format.setTimeZone(TimeZone.getTimeZone(timeZone));
+		this.tickMillis = tickMillis;
+		refresh();
+	}
+
+	/**
+	 * Método que inicia el temporizador de refresco en un hilo demonio.
+	 */
+	public synchronized void start() {
+		if (timer != null) {
+			return;
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				// Hilo demonio para no impedir que termine la JVM
+				Thread thread = new Thread(task, "chat-clock");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				refresh();
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Método que detiene el temporizador de refresco.
+	 */
+	public synchronized void stop() {
+		if (timer != null) {
+			timer.shutdownNow();
+			timer = null;
+		}
+	}
+
+	/**
+	 * Método que formatea la hora actual y la publica si ha cambiado.
+	 */
+	private void refresh() {
+		String text = format.format(new Date());
+		if (!text.equals(current == null ? null : current.text)) {
+			current = new Tick(text);
+		}
+	}
+
+	/**
+	 * Método que devuelve la hora formateada en el último tick.
+	 *
+	 * @return time Hora actual
+	 */
+	public String now() {
+		return current.text;
+	}
+
+	/**
+	 * Método que devuelve los bytes UTF-8 de la hora formateada en el último
+	 * tick. El array es compartido y no debe modificarse.
+	 *
+	 * @return utf8 Hora actual codificada en UTF-8
+	 */
+	public byte[] nowUtf8() {
+		return current.utf8;
+	}
+
+	/**
+	 * Método que devuelve el instante actual en microsegundos desde la época,
+	 * calculado con {@link System#nanoTime()} a partir de un instante de
+	 * referencia. Es monótono y sirve para instrumentar latencias.
+	 *
+	 * @return micros Microsegundos desde la época
+	 */
+	public static long currentTimeMicros() {
+		return BASE_MILLIS * 1000 + (System.nanoTime() - BASE_NANOS) / 1000;
+	}
+}
@@ -0,0 +1,596 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Diario de solo anexado con los mensajes difundidos por el servidor.
+ *
+ * Los mensajes se guardan con un número de secuencia en segmentos de tamaño
+ * fijo proyectados en memoria. Quien difunde un mensaje sólo lo encola; un hilo
+ * escritor vacía la cola por lotes, escribe cada lote en el segmento activo y
+ * aplica la política de sincronización con el disco una vez por lote o cada
+ * cierto tiempo, de modo que la difusión nunca espera al disco. Si la cola se
+ * llena los mensajes se descartan y se cuentan.
+ *
+ * Cada registro tiene el formato {@code [longitud][CRC32][secuencia][instante]
+ * [longitud de la sala][sala][texto]}; una longitud 0 marca el final de los
+ * datos del segmento. Al abrir el diario se recorre el último segmento para
+ * continuar tras su último registro válido. Al cambiar de segmento se eliminan
+ * los más antiguos según el tamaño total o la antigüedad configurados. Los
+ * registros se leen con {@link JournalReader}.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class ChatJournal {
+
+	/**
+	 * Políticas de sincronización del diario con el disco.
+	 *
+	 * @author Eduardo Manuel Cabeza Lopez
+	 */
+	public enum FsyncPolicy {
+		/** Se sincroniza sólo al cerrar el diario; el sistema decide el resto. */
+		NEVER,
+		/** Se sincroniza tras escribir cada lote. */
+		BATCH,
+		/** Se sincroniza como mucho una vez por periodo si hay datos nuevos. */
+		INTERVAL;
+	}
+
+	/**
+	 * Extensión de los ficheros de segmento
+	 */
+	static final String SEGMENT_SUFFIX = ".journal";
+
+	/**
+	 * Bytes de la cabecera de cada registro: longitud y CRC32
+	 */
+	static final int HEADER_BYTES = 8;
+
+	/**
+	 * Bytes fijos del cuerpo de cada registro: secuencia, instante y longitud de
+	 * la sala
+	 */
+	static final int FIXED_BODY_BYTES = 18;
+
+	/**
+	 * Número máximo de mensajes encolados pendientes de escribir
+	 */
+	private static final int QUEUE_CAPACITY = 65536;
+
+	/**
+	 * Número máximo de mensajes escritos en cada lote
+	 */
+	private static final int MAX_BATCH = 1024;
+
+	/**
+	 * Mensaje pendiente de escribir.
+	 */
+	private static class Entry {
+
+		/**
+		 * Instante en milisegundos en que se difundió el mensaje
+		 */
+		final long timeMillis;
+
+		/**
+		 * Nombre de la sala, o cadena vacía para todas las sesiones
+		 */
+		final String room;
+
+		/**
+		 * Texto formateado del mensaje
+		 */
+		final String text;
+
+		/**
+		 * Método constructor.
+		 *
+		 * @param timeMillis Instante en milisegundos en que se difundió
+		 * @param room       Nombre de la sala, o cadena vacía para todas
+		 * @param text       Texto formateado del mensaje
+		 */
+		Entry(long timeMillis, String room, String text) {
+			this.timeMillis = timeMillis;
+			this.room = room;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Directorio de los segmentos
+	 */
+	private final Path directory;
+
+	/**
+	 * Tamaño en bytes de cada segmento
+	 */
+	private final int segmentBytes;
+
+	/**
+	 * Política de sincronización con el disco
+	 */
+	private final FsyncPolicy fsyncPolicy;
+
+	/**
+	 * Periodo en milisegundos de la política INTERVAL
+	 */
+	private final long fsyncMillis;
+
+	/**
+	 * Tamaño total máximo de los segmentos, o 0 sin límite
+	 */
+	private final long retainBytes;
+
+	/**
+	 * Antigüedad máxima en milisegundos de los segmentos, o 0 sin límite
+	 */
+	private final long retainMillis;
+
+	/**
+	 * Mensajes pendientes de escribir
+	 */
+	private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>(QUEUE_CAPACITY);
+
+	/**
+	 * Mensajes descartados por tener la cola llena
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Número de lotes escritos
+	 */
+	private final AtomicLong batches = new AtomicLong();
+
+	/**
+	 * Número de sincronizaciones con el disco
+	 */
+	private final AtomicLong syncs = new AtomicLong();
+
+	/**
+	 * Número de secuencia del último registro escrito
+	 */
+	private volatile long lastSequence;
+
+	/**
+	 * Fichero del segmento activo. Sólo lo usa el hilo escritor
+	 */
+	private FileChannel channel;
+
+	/**
+	 * Proyección en memoria del segmento activo. Sólo la usa el hilo escritor
+	 */
+	private MappedByteBuffer segment;
+
+	/**
+	 * Búfer en el que se compone cada registro. Sólo lo usa el hilo escritor
+	 */
+	private byte[] scratch = new byte[1024];
+
+	/**
+	 * Suma de comprobación de los registros. Sólo la usa el hilo escritor
+	 */
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * Indica si hay datos escritos sin sincronizar
+	 */
+	private boolean dirty;
+
+	/**
+	 * Instante de la última sincronización
+	 */
+	private long lastSyncMillis;
+
+	/**
+	 * Hilo escritor
+	 */
+	private Thread writer;
+
+	/**
+	 * Booleano que indica si el diario se ha cerrado
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Método constructor. Abre el diario en el directorio indicado, creándolo si
+	 * no existe, y continúa tras el último registro válido.
+	 *
+	 * @param directory    Directorio de los segmentos
+	 * @param segmentBytes Tamaño en bytes de cada segmento
+	 * @param fsyncPolicy  Política de sincronización con el disco
+	 * @param fsyncMillis  Periodo en milisegundos de la política INTERVAL
+	 * @param retainBytes  Tamaño total máximo de los segmentos, o 0 sin límite
+	 * @param retainMillis Antigüedad máxima de los segmentos, o 0 sin límite
+	 * @throws IOException Si no es posible abrir el diario
+	 */
+	public ChatJournal(Path directory, int segmentBytes, FsyncPolicy fsyncPolicy, long fsyncMillis,
+			long retainBytes, long retainMillis) throws IOException {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.fsyncPolicy = fsyncPolicy;
+		this.fsyncMillis = fsyncMillis;
+		this.retainBytes = retainBytes;
+		this.retainMillis = retainMillis;
+		Files.createDirectories(directory);
+		recover();
+		applyRetention();
+	}
+
+	/**
+	 * Método que abre el último segmento y se sitúa tras su último registro
+	 * válido, o crea el primer segmento si no hay ninguno.
+	 *
+	 * @throws IOException Si no es posible abrir el segmento
+	 */
+	private void recover() throws IOException {
+		List<Path> segments = listSegments(directory);
+		if (segments.isEmpty()) {
+			openSegment(1);
+			return;
+		}
+		Path last = segments.get(segments.size() - 1);
+		long first = firstSequence(last);
+		channel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), segmentBytes));
+		long expected = first;
+		while (true) {
+			int start = segment.position();
+			JournalRecord record = readRecord(segment, expected);
+			if (record == null) {
+				segment.position(start);
+				break;
+			}
+			expected++;
+		}
+		lastSequence = expected - 1;
+		// Borrar los restos de un registro a medio escribir
+		if (segment.remaining() >= 4 && segment.getInt(segment.position()) != 0) {
+			for (int i = segment.position(); i < segment.limit(); i++) {
+				segment.put(i, (byte) 0);
+			}
+			segment.force();
+		}
+	}
+
+	/**
+	 * Método que crea y proyecta un segmento nuevo.
+	 *
+	 * @param firstSequence Número de secuencia de su primer registro
+	 * @throws IOException Si no es posible crear el segmento
+	 */
+	private void openSegment(long firstSequence) throws IOException {
+		Path path = directory.resolve(String.format("%020d%s", firstSequence, SEGMENT_SUFFIX));
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+	}
+
+	/**
+	 * Método que sincroniza y cierra el segmento activo. La proyección se libera
+	 * cuando la recoge el recolector de basura.
+	 *
+	 * @throws IOException Si no es posible cerrar el segmento
+	 */
+	private void closeSegment() throws IOException {
+		segment.force();
+		channel.close();
+		segment = null;
+	}
+
+	/**
+	 * Método que inicia el hilo escritor del diario.
+	 */
+	public void start() {
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "chat-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Método que encola un mensaje difundido para escribirlo en el diario. No
+	 * espera a que se escriba ni bloquea si la cola está llena: en ese caso el
+	 * mensaje se descarta y se cuenta.
+	 *
+	 * @param room Sala del mensaje, o null para los avisos a todas las salas
+	 * @param text Texto formateado del mensaje
+	 */
+	public void append(String room, String text) {
+		if (closed) {
+			return;
+		}
+		if (!queue.offer(new Entry(System.currentTimeMillis(), room == null ? "" : room, text))
+				&& dropped.getAndIncrement() == 0) {
+			// Imprimir error sólo la primera vez
+			System.err.println("Error: El diario no da abasto. Se descartan mensajes.");
+		}
+	}
+
+	/**
+	 * Método que ejecuta el hilo escritor. Escribe los mensajes encolados por
+	 * lotes hasta que se cierra el diario y la cola se vacía.
+	 */
+	private void writeLoop() {
+		List<Entry> batch = new ArrayList<Entry>(MAX_BATCH);
+		long pollMillis = Math.min(fsyncMillis, 100);
+		try {
+			while (!closed || !queue.isEmpty()) {
+				Entry first = queue.poll(pollMillis, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch, MAX_BATCH - 1);
+					for (Entry entry : batch) {
+						write(entry);
+					}
+					batch.clear();
+					batches.incrementAndGet();
+					dirty = true;
+				}
+				sync(false);
+			}
+			sync(true);
+			closeSegment();
+		} catch (InterruptedException e) { // Capturar interrupciones
+			Thread.currentThread().interrupt();
+		} catch (IOException e) { // Capturar excepciones IOException
+			// Imprimir error
+			System.err.println("Error: No ha sido posible escribir en el diario: " + e.getMessage());
+			closed = true;
+		}
+	}
+
+	/**
+	 * Método que escribe un registro en el segmento activo, cambiando de segmento
+	 * si no cabe. Se invoca desde el hilo escritor.
+	 *
+	 * @param entry Mensaje a escribir
+	 * @throws IOException Si no es posible cambiar de segmento
+	 */
+	private void write(Entry entry) throws IOException {
+		byte[] room = entry.room.getBytes(StandardCharsets.UTF_8);
+		byte[] text = entry.text.getBytes(StandardCharsets.UTF_8);
+		int length = FIXED_BODY_BYTES + room.length + text.length;
+		if (HEADER_BYTES + length + 4 > segmentBytes) {
+			// Imprimir error
+			System.err.println("Error: Mensaje demasiado grande para el diario (" + length + " bytes)");
+			return;
+		}
+		// Dejar siempre sitio para la marca de final de datos
+		if (segment.remaining() < HEADER_BYTES + length + 4) {
+			closeSegment();
+			openSegment(lastSequence + 1);
+			applyRetention();
+		}
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+		ByteBuffer body = ByteBuffer.wrap(scratch, 0, length);
+		body.putLong(lastSequence + 1).putLong(entry.timeMillis).putShort((short) room.length).put(room).put(text);
+		crc.reset();
+		crc.update(scratch, 0, length);
+		segment.putInt(length).putInt((int) crc.getValue()).put(scratch, 0, length);
+		lastSequence++;
+	}
+
+	/**
+	 * Método que sincroniza el segmento activo con el disco según la política
+	 * configurada. Se invoca desde el hilo escritor.
+	 *
+	 * @param closing Indica si se está cerrando el diario
+	 */
+	private void sync(boolean closing) {
+		if (!dirty) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (closing || fsyncPolicy == FsyncPolicy.BATCH
+				|| (fsyncPolicy == FsyncPolicy.INTERVAL && now - lastSyncMillis >= fsyncMillis)) {
+			segment.force();
+			syncs.incrementAndGet();
+			lastSyncMillis = now;
+			dirty = false;
+		}
+	}
+
+	/**
+	 * Método que elimina los segmentos más antiguos mientras se supere el tamaño
+	 * total o la antigüedad configurados. El segmento activo nunca se elimina.
+	 * Si no es posible eliminar un segmento, por ejemplo porque aún está
+	 * proyectado en memoria, se conserva junto con los posteriores y se reintenta
+	 * en el siguiente cambio de segmento sin detener el diario.
+	 */
+	private void applyRetention() {
+		if (retainBytes <= 0 && retainMillis <= 0) {
+			return;
+		}
+		List<Path> segments;
+		long total = 0;
+		try {
+			segments = listSegments(directory);
+			for (Path path : segments) {
+				total += Files.size(path);
+			}
+		} catch (IOException e) { // Capturar excepciones IOException
+			// Imprimir error
+			System.err.println("Error: No se pueden listar los segmentos del diario: " + e.getMessage());
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (Path path : segments.subList(0, segments.size() - 1)) {
+			try {
+				boolean tooBig = retainBytes > 0 && total > retainBytes;
+				boolean tooOld = retainMillis > 0 && now - Files.getLastModifiedTime(path).toMillis() > retainMillis;
+				if (!tooBig && !tooOld) {
+					break;
+				}
+				long size = Files.size(path);
+				Files.delete(path);
+				total -= size;
+			} catch (IOException e) { // Capturar excepciones IOException
+				// Imprimir error y dejar los segmentos restantes para el siguiente intento
+				System.err.println("Error: No se puede eliminar el segmento " + path.getFileName() + ": " + e);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Método que lee el siguiente registro de un segmento y comprueba su
+	 * integridad. Si no hay un registro válido con el número de secuencia
+	 * esperado deja la posición en un punto indeterminado.
+	 *
+	 * @param buffer   Segmento situado al comienzo de un registro
+	 * @param expected Número de secuencia esperado
+	 * @return record Registro leído o null al llegar al final de los datos
+	 */
+	static JournalRecord readRecord(ByteBuffer buffer, long expected) {
+		if (buffer.remaining() < HEADER_BYTES) {
+			return null;
+		}
+		int length = buffer.getInt();
+		int checksum = buffer.getInt();
+		if (length < FIXED_BODY_BYTES || length > buffer.remaining()) {
+			return null;
+		}
+		byte[] body = new byte[length];
+		buffer.get(body);
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, length);
+		if ((int) crc.getValue() != checksum) {
+			return null;
+		}
+		ByteBuffer in = ByteBuffer.wrap(body);
+		long sequence = in.getLong();
+		long timeMillis = in.getLong();
+		int roomLength = in.getShort() & 0xFFFF;
+		if (sequence != expected || FIXED_BODY_BYTES + roomLength > length) {
+			return null;
+		}
+		String room = new String(body, FIXED_BODY_BYTES, roomLength, StandardCharsets.UTF_8);
+		String text = new String(body, FIXED_BODY_BYTES + roomLength, length - FIXED_BODY_BYTES - roomLength,
+				StandardCharsets.UTF_8);
+		return new JournalRecord(sequence, timeMillis, room, text);
+	}
+
+	/**
+	 * Método que devuelve los segmentos de un directorio ordenados por su primer
+	 * número de secuencia.
+	 *
+	 * @param directory Directorio del diario
+	 * @return segments Rutas de los segmentos
+	 * @throws IOException Si no es posible listar el directorio
+	 */
+	static List<Path> listSegments(Path directory) throws IOException {
+		List<Path> segments = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+			for (Path path : stream) {
+				segments.add(path);
+			}
+		}
+		// Los nombres tienen longitud fija, así que el orden alfabético es el numérico
+		Collections.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * Método que devuelve el número de secuencia del primer registro de un
+	 * segmento a partir de su nombre.
+	 *
+	 * @param segment Ruta del segmento
+	 * @return sequence Número de secuencia
+	 */
+	static long firstSequence(Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	/**
+	 * Método que cierra el diario: deja de aceptar mensajes, espera a que se
+	 * escriban los encolados y sincroniza el segmento activo.
+	 */
+	public void close() {
+		closed = true;
+		if (writer == null) {
+			try {
+				closeSegment();
+			} catch (IOException e) { // Capturar excepciones IOException
+				System.err.println("Error: Fallo al cerrar el diario.");
+			}
+			return;
+		}
+		try {
+			writer.join(5000);
+		} catch (InterruptedException e) { // Capturar interrupciones
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Método que devuelve el número de secuencia del último registro escrito.
+	 *
+	 * @return lastSequence Número de secuencia, o 0 si el diario está vacío
+	 */
+	public long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * Método que devuelve el número de mensajes descartados por tener la cola
+	 * llena.
+	 *
+	 * @return dropped Mensajes descartados
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Método que devuelve el número de lotes escritos.
+	 *
+	 * @return batches Lotes escritos
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/**
+	 * Método que devuelve el número de sincronizaciones con el disco.
+	 *
+	 * @return syncs Sincronizaciones
+	 */
+	public long getSyncs() {
+		return syncs.get();
+	}
+
+	/**
+	 * Método que devuelve el directorio del diario.
+	 *
+	 * @return directory Directorio de los segmentos
+	 */
+	public Path getDirectory() {
+		return directory;
+	}
+}
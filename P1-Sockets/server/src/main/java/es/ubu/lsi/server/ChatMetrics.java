@@ -0,0 +1,369 @@
+package es.ubu.lsi.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import es.ubu.lsi.common.LatencyHistogram;
+
+/**
+ * Métricas del servidor de chat publicadas por JMX.
+ *
+ * Los contadores se actualizan desde los hilos que reciben y difunden mensajes,
+ * así que se usan contadores repartidos ({@link LongAdder}) y un histograma de
+ * cubos fijos ({@link LatencyHistogram}): registrar un valor no reserva memoria
+ * ni bloquea, y las métricas pueden quedarse activas en producción. El resto
+ * (sesiones, colas de salida y escrituras) se calcula al consultarlas a partir
+ * del estado del servidor.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class ChatMetrics implements ChatMetricsMXBean {
+
+	/**
+	 * Motivos por los que se desconecta a un cliente.
+	 *
+	 * @author Eduardo Manuel Cabeza Lopez
+	 */
+	public enum DisconnectReason {
+		/** El cliente ha enviado un LOGOUT. */
+		LOGOUT,
+		/** Se ha perdido la conexión al leer o escribir. */
+		CONNECTION_LOST,
+		/** No ha sido posible encolar una trama (cola llena o sesión cerrada). */
+		SEND_FAILED,
+		/** El nickname ya estaba en uso o la petición de conexión no era válida. */
+		REJECTED,
+		/** Se ha apagado el servidor. */
+		SHUTDOWN;
+	}
+
+	/**
+	 * Periodo mínimo en milisegundos sobre el que se calculan los ritmos
+	 */
+	private static final long RATE_WINDOW_MILLIS = 1000;
+
+	/**
+	 * Servidor del que se obtienen las sesiones y los contadores de escritura
+	 */
+	private final ChatServerImpl server;
+
+	/**
+	 * Número de mensajes recibidos de los clientes
+	 */
+	private final LongAdder messagesIn = new LongAdder();
+
+	/**
+	 * Número de bytes leídos de los clientes
+	 */
+	private final LongAdder bytesIn = new LongAdder();
+
+	/**
+	 * Número de mensajes descartados por estar bloqueado el remitente
+	 */
+	private final LongAdder bannedMessages = new LongAdder();
+
+	/**
+	 * Número de desconexiones por cada motivo
+	 */
+	private final LongAdder[] disconnects = new LongAdder[DisconnectReason.values().length];
+
+	/**
+	 * Tiempos de difusión en microsegundos
+	 */
+	private final LatencyHistogram fanout = new LatencyHistogram();
+
+	/**
+	 * Instante, mensajes recibidos y tramas escritas de la última muestra de
+	 * ritmos. Protegidos por el propio objeto
+	 */
+	private long sampleMillis = System.currentTimeMillis();
+	private long sampleIn;
+	private long sampleOut;
+
+	/**
+	 * Ritmos de entrada y salida calculados en la última muestra
+	 */
+	private double rateIn;
+	private double rateOut;
+
+	/**
+	 * Nombre con el que se ha registrado el MBean, o null si no se ha registrado
+	 */
+	private ObjectName name;
+
+	/**
+	 * Método constructor. Instancia las métricas a cero.
+	 *
+	 * @param server Servidor medido
+	 */
+	public ChatMetrics(ChatServerImpl server) {
+		this.server = server;
+		for (int i = 0; i < disconnects.length; i++) {
+			disconnects[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Método que registra el MBean en el servidor de plataforma con el nombre
+	 * {@code es.ubu.lsi.server:type=ChatServer,port=<puerto>}.
+	 *
+	 * @param port Puerto del servidor de chat
+	 * @throws JMException Si no es posible registrarlo
+	 */
+	void register(int port) throws JMException {
+		MBeanServer platform = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName("es.ubu.lsi.server:type=ChatServer,port=" + port);
+		platform.registerMBean(this, objectName);
+		this.name = objectName;
+	}
+
+	/**
+	 * Método que elimina el MBean del servidor de plataforma si se había
+	 * registrado.
+	 */
+	void unregister() {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) { // Ya no estaba registrado
+			// Imprimir error
+			System.err.println("Error: No se pueden retirar las métricas: " + e.getMessage());
+		}
+		name = null;
+	}
+
+	/**
+	 * Método que registra un mensaje recibido de un cliente.
+	 */
+	void messageReceived() {
+		messagesIn.increment();
+	}
+
+	/**
+	 * Método que registra los bytes leídos de un cliente.
+	 *
+	 * @param bytes Bytes leídos
+	 */
+	void bytesRead(long bytes) {
+		bytesIn.add(bytes);
+	}
+
+	/**
+	 * Método que registra un mensaje descartado por estar bloqueado el remitente.
+	 */
+	void messageBanned() {
+		bannedMessages.increment();
+	}
+
+	/**
+	 * Método que registra la desconexión de un cliente.
+	 *
+	 * @param reason Motivo de la desconexión
+	 */
+	void disconnected(DisconnectReason reason) {
+		disconnects[reason.ordinal()].increment();
+	}
+
+	/**
+	 * Método que registra el tiempo en entregar una trama a todos sus
+	 * destinatarios.
+	 *
+	 * @param nanos Tiempo en nanosegundos
+	 */
+	void fanoutCompleted(long nanos) {
+		fanout.record(nanos / 1000);
+	}
+
+	/**
+	 * Método que devuelve el número de desconexiones por un motivo.
+	 *
+	 * @param reason Motivo de la desconexión
+	 * @return disconnects Número de desconexiones
+	 */
+	public long getDisconnects(DisconnectReason reason) {
+		return disconnects[reason.ordinal()].sum();
+	}
+
+	/**
+	 * Método que devuelve el histograma de los tiempos de difusión.
+	 *
+	 * @return fanout Histograma en microsegundos
+	 */
+	public LatencyHistogram getFanout() {
+		return fanout;
+	}
+
+	@Override
+	public int getConnectedSessions() {
+		return server.getSessions().size();
+	}
+
+	@Override
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	@Override
+	public synchronized double getMessagesInPerSecond() {
+		sample();
+		return rateIn;
+	}
+
+	@Override
+	public long getMessagesOut() {
+		return server.getWriteStats().getFrames();
+	}
+
+	@Override
+	public synchronized double getMessagesOutPerSecond() {
+		sample();
+		return rateOut;
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return server.getWriteStats().getBytes();
+	}
+
+	@Override
+	public long getBannedMessages() {
+		return bannedMessages.sum();
+	}
+
+	@Override
+	public long getFanoutCount() {
+		return fanout.getCount();
+	}
+
+	@Override
+	public double getFanoutMeanMicros() {
+		return fanout.getMean();
+	}
+
+	@Override
+	public long getFanoutP50Micros() {
+		return fanout.getPercentile(50);
+	}
+
+	@Override
+	public long getFanoutP99Micros() {
+		return fanout.getPercentile(99);
+	}
+
+	@Override
+	public long getFanoutP999Micros() {
+		return fanout.getPercentile(99.9);
+	}
+
+	@Override
+	public long getFanoutMaxMicros() {
+		return fanout.getMax();
+	}
+
+	@Override
+	public Map<String, Integer> getQueueDepths() {
+		return server.getQueueDepths();
+	}
+
+	@Override
+	public int getMaxQueueDepth() {
+		int max = 0;
+		for (ClientSession client : server.getSessions()) {
+			max = Math.max(max, client.getQueueDepth());
+		}
+		return max;
+	}
+
+	@Override
+	public long getDroppedFrames() {
+		long dropped = 0;
+		for (ClientSession client : server.getSessions()) {
+			dropped += client.getDroppedFrames();
+		}
+		return dropped;
+	}
+
+	@Override
+	public Map<String, Double> getCompressionRatios() {
+		Map<String, Double> ratios = new LinkedHashMap<String, Double>();
+		for (ClientSession client : server.getSessions()) {
+			if (client.isCompressing()) {
+				ratios.put(client.getNickname(), client.getCompression().getRatio());
+			}
+		}
+		return ratios;
+	}
+
+	@Override
+	public Map<String, Long> getCompressionCpuMicros() {
+		Map<String, Long> micros = new LinkedHashMap<String, Long>();
+		for (ClientSession client : server.getSessions()) {
+			if (client.isCompressing()) {
+				micros.put(client.getNickname(), client.getCompression().getCpuMicros());
+			}
+		}
+		return micros;
+	}
+
+	@Override
+	public Map<String, Long> getClientLag() {
+		Map<String, Long> lag = new LinkedHashMap<String, Long>();
+		for (ClientSession client : server.getSessions()) {
+			if (client.isAcknowledging()) {
+				lag.put(client.getNickname(), client.getLag());
+			}
+		}
+		return lag;
+	}
+
+	@Override
+	public Map<String, Long> getDisconnects() {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (DisconnectReason reason : DisconnectReason.values()) {
+			counts.put(reason.name().toLowerCase(), getDisconnects(reason));
+		}
+		return counts;
+	}
+
+	/**
+	 * Método que recalcula los ritmos de entrada y salida si ha pasado al menos
+	 * un periodo desde la muestra anterior. Así los ritmos cubren el tiempo entre
+	 * consultas sin necesidad de un temporizador.
+	 */
+	private void sample() {
+		long now = System.currentTimeMillis();
+		long elapsed = now - sampleMillis;
+		if (elapsed < RATE_WINDOW_MILLIS) {
+			return;
+		}
+		long in = getMessagesIn();
+		long out = getMessagesOut();
+		rateIn = (in - sampleIn) * 1000.0 / elapsed;
+		rateOut = (out - sampleOut) * 1000.0 / elapsed;
+		sampleMillis = now;
+		sampleIn = in;
+		sampleOut = out;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d sesiones, %d mensajes recibidos, %d tramas escritas, difusión p50=%dus p99=%dus max=%dus",
+				getConnectedSessions(), getMessagesIn(), getMessagesOut(), getFanoutP50Micros(),
+				getFanoutP99Micros(), getFanoutMaxMicros());
+	}
+}
@@ -0,0 +1,173 @@
+package es.ubu.lsi.server;
+
+import java.util.Map;
+
+/**
+ * Interfaz de gestión (JMX) con las métricas del servidor de chat.
+ *
+ * Cada método es un atributo de solo lectura del MBean que registra
+ * {@link ChatServerImpl} al arrancar, consultable con jconsole o VisualVM.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public interface ChatMetricsMXBean {
+
+	/**
+	 * Método que devuelve el número de sesiones registradas.
+	 *
+	 * @return sessions Sesiones conectadas
+	 */
+	public int getConnectedSessions();
+
+	/**
+	 * Método que devuelve el número de mensajes recibidos de los clientes.
+	 *
+	 * @return messagesIn Mensajes recibidos
+	 */
+	public long getMessagesIn();
+
+	/**
+	 * Método que devuelve los mensajes recibidos por segundo desde la consulta
+	 * anterior.
+	 *
+	 * @return rate Mensajes recibidos por segundo
+	 */
+	public double getMessagesInPerSecond();
+
+	/**
+	 * Método que devuelve el número de tramas escritas a los clientes.
+	 *
+	 * @return messagesOut Tramas escritas
+	 */
+	public long getMessagesOut();
+
+	/**
+	 * Método que devuelve las tramas escritas por segundo desde la consulta
+	 * anterior.
+	 *
+	 * @return rate Tramas escritas por segundo
+	 */
+	public double getMessagesOutPerSecond();
+
+	/**
+	 * Método que devuelve el número de bytes leídos de los clientes.
+	 *
+	 * @return bytesIn Bytes leídos
+	 */
+	public long getBytesIn();
+
+	/**
+	 * Método que devuelve el número de bytes escritos a los clientes.
+	 *
+	 * @return bytesOut Bytes escritos
+	 */
+	public long getBytesOut();
+
+	/**
+	 * Método que devuelve el número de mensajes descartados por estar bloqueado
+	 * su remitente.
+	 *
+	 * @return banned Mensajes descartados
+	 */
+	public long getBannedMessages();
+
+	/**
+	 * Método que devuelve el número de difusiones medidas.
+	 *
+	 * @return count Número de difusiones
+	 */
+	public long getFanoutCount();
+
+	/**
+	 * Método que devuelve el tiempo medio en entregar una trama a todos sus
+	 * destinatarios.
+	 *
+	 * @return mean Media en microsegundos
+	 */
+	public double getFanoutMeanMicros();
+
+	/**
+	 * Método que devuelve la mediana del tiempo de difusión.
+	 *
+	 * @return p50 Percentil 50 en microsegundos
+	 */
+	public long getFanoutP50Micros();
+
+	/**
+	 * Método que devuelve el percentil 99 del tiempo de difusión.
+	 *
+	 * @return p99 Percentil 99 en microsegundos
+	 */
+	public long getFanoutP99Micros();
+
+	/**
+	 * Método que devuelve el percentil 99,9 del tiempo de difusión.
+	 *
+	 * @return p999 Percentil 99,9 en microsegundos
+	 */
+	public long getFanoutP999Micros();
+
+	/**
+	 * Método que devuelve el mayor tiempo de difusión.
+	 *
+	 * @return max Máximo en microsegundos
+	 */
+	public long getFanoutMaxMicros();
+
+	/**
+	 * Método que devuelve las tramas pendientes de envío de cada cliente.
+	 *
+	 * @return depths Pares nickname-profundidad de la cola de salida
+	 */
+	public Map<String, Integer> getQueueDepths();
+
+	/**
+	 * Método que devuelve la mayor cola de salida entre los clientes conectados.
+	 *
+	 * @return depth Tramas pendientes del cliente más retrasado
+	 */
+	public int getMaxQueueDepth();
+
+	/**
+	 * Método que devuelve las tramas descartadas por desbordamiento en las colas
+	 * de los clientes conectados.
+	 *
+	 * @return dropped Tramas descartadas
+	 */
+	public long getDroppedFrames();
+
+	/**
+	 * Método que devuelve la razón de compresión de cada cliente que la ha
+	 * negociado: bytes sin comprimir por cada byte enviado.
+	 *
+	 * @return ratios Pares nickname-razón de compresión
+	 */
+	public Map<String, Double> getCompressionRatios();
+
+	/**
+	 * Método que devuelve el tiempo de CPU dedicado a comprimir las tramas de
+	 * cada cliente que ha negociado la compresión. Las tramas compartidas se
+	 * comprimen una vez y el tiempo se anota en el primer cliente que las envía.
+	 *
+	 * @return micros Pares nickname-tiempo en microsegundos
+	 */
+	public Map<String, Long> getCompressionCpuMicros();
+
+	/**
+	 * Método que devuelve el retraso de cada cliente que confirma las tramas que
+	 * recibe: tramas enviadas o encoladas que aún no ha confirmado. Un retraso que
+	 * crece indica un consumidor lento.
+	 *
+	 * @return lag Pares nickname-tramas sin confirmar
+	 */
+	public Map<String, Long> getClientLag();
+
+	/**
+	 * Método que devuelve el número de desconexiones por cada motivo.
+	 *
+	 * @return disconnects Pares motivo-número de desconexiones
+	 */
+	public Map<String, Long> getDisconnects();
+}
@@ -0,0 +1,275 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bucle de eventos no bloqueante del servidor de chat.
+ *
+ * Cada bucle atiende, mediante su propio {@link Selector}, la lectura,
+ * decodificación y escritura de las sesiones que le asigna el
+ * {@link ChatAcceptor}, de modo que el número de hilos del servidor no depende
+ * del número de clientes conectados.
+ *
+ * Los demás hilos nunca tocan el selector ni las claves de este bucle: las
+ * conexiones nuevas y las peticiones de escritura se le entregan por colas sin
+ * cerrojos y el selector se despierta como mucho una vez por cada vuelta del
+ * bucle.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class ChatReactor implements Runnable {
+
+	/**
+	 * Servidor al que pertenecen las sesiones
+	 */
+	private final ChatServerImpl server;
+
+	/**
+	 * Selector del bucle de eventos
+	 */
+	private final Selector selector;
+
+	/**
+	 * Tamaño del búfer de escritura del bucle de eventos
+	 */
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Búfer en el que se copian las tramas compartidas de cada sesión antes de
+	 * escribirlas en su canal
+	 */
+	private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+	/**
+	 * Conexiones aceptadas pendientes de registrar en el selector
+	 */
+	private final ConcurrentLinkedQueue<SocketChannel> registrations = new ConcurrentLinkedQueue<SocketChannel>();
+
+	/**
+	 * Sesiones con tramas nuevas encoladas desde otros hilos
+	 */
+	private final ConcurrentLinkedQueue<ChannelSession> writeRequests = new ConcurrentLinkedQueue<ChannelSession>();
+
+	/**
+	 * Indica si ya se ha despertado al selector en esta vuelta del bucle
+	 */
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+	/**
+	 * Número de sesiones abiertas en este bucle
+	 */
+	private final AtomicInteger sessions = new AtomicInteger();
+
+	/**
+	 * Hilo que ejecuta el bucle de eventos
+	 */
+	private volatile Thread loopThread;
+
+	/**
+	 * Booleano que indica si el bucle de eventos está activo
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Método constructor. Abre el selector del bucle.
+	 *
+	 * @param server Servidor al que pertenecen las sesiones
+	 * @throws IOException Si no es posible abrir el selector
+	 */
+	public ChatReactor(ChatServerImpl server) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+		this.running = true;
+	}
+
+	/**
+	 * Método que ejecuta el bucle de eventos hasta que se detiene.
+	 */
+	@Override
+	public void run() {
+		loopThread = Thread.currentThread();
+		while (running) {
+			try {
+				selector.select();
+			} catch (IOException e) { // Capturar excepciones IOException
+				System.err.println("Error: Fallo en el selector del servidor.");
+				break;
+			}
+			// A partir de aquí, lo que se entregue necesita otro despertar
+			wakeupPending.set(false);
+			registerPending();
+			enablePendingWrites();
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (key.isValid()) {
+					process(key);
+				}
+			}
+		}
+		close();
+	}
+
+	/**
+	 * Método que entrega al bucle una conexión aceptada. Puede invocarse desde
+	 * cualquier hilo.
+	 *
+	 * @param channel Canal del cliente en modo no bloqueante
+	 */
+	void register(SocketChannel channel) {
+		sessions.incrementAndGet();
+		registrations.add(channel);
+		wakeup();
+	}
+
+	/**
+	 * Método que registra en el selector las conexiones entregadas al bucle.
+	 */
+	private void registerPending() {
+		SocketChannel channel;
+		while ((channel = registrations.poll()) != null) {
+			ChannelSession session = new ChannelSession(server, this, channel);
+			try {
+				session.setKey(channel.register(selector, SelectionKey.OP_READ, session));
+			} catch (ClosedChannelException e) { // El cliente ya se ha desconectado
+				session.closeClient();
+			}
+		}
+	}
+
+	/**
+	 * Método que atiende los eventos de lectura y escritura de una sesión.
+	 *
+	 * @param key Clave seleccionada de la sesión
+	 */
+	private void process(SelectionKey key) {
+		ChannelSession session = (ChannelSession) key.attachment();
+		try {
+			if (key.isReadable()) {
+				session.onReadable();
+			}
+			if (key.isValid() && key.isWritable()) {
+				session.onWritable(writeBuffer);
+			}
+		} catch (IOException | CancelledKeyException e) { // Capturar errores de conexión
+			// Si otro hilo ya la ha cerrado (al reanudarse desde otra conexión) no hay
+			// nada que hacer
+			if (!session.isAlive()) {
+				return;
+			}
+			// Imprimir error
+			System.err.println("Error: Conexión perdida con el usuario " + session.getNickname());
+			// Eliminar y cerrar el cliente con el que no se puede comunicar
+			server.connectionLost(session);
+			session.closeClient();
+		} catch (RuntimeException e) { // Capturar errores inesperados de la sesión
+			if (!session.isAlive()) {
+				return;
+			}
+			// Un fallo al atender a un cliente no debe detener el bucle del resto
+			System.err.println("Error: Fallo inesperado con el usuario " + session.getNickname() + ": " + e);
+			// Eliminar y cerrar sólo esta sesión, sin reservarla para reanudarla
+			server.remove(session.getClientId());
+			session.closeClient();
+		}
+	}
+
+	/**
+	 * Método que solicita al bucle de eventos que escriba las tramas pendientes de
+	 * una sesión. Puede invocarse desde cualquier hilo; desde otros hilos la
+	 * petición se entrega por una cola y sólo se despierta al selector si no se
+	 * ha hecho ya en esta vuelta.
+	 *
+	 * @param session Sesión con tramas pendientes
+	 */
+	void requestWrite(ChannelSession session) {
+		if (inEventLoop()) {
+			session.enableWrite();
+		} else if (session.markWriteRequested()) {
+			writeRequests.add(session);
+			wakeup();
+		}
+	}
+
+	/**
+	 * Método que activa la escritura de las sesiones con peticiones pendientes.
+	 */
+	private void enablePendingWrites() {
+		ChannelSession session;
+		while ((session = writeRequests.poll()) != null) {
+			session.clearWriteRequested();
+			session.enableWrite();
+		}
+	}
+
+	/**
+	 * Método que despierta al selector si no se ha despertado ya en esta vuelta.
+	 */
+	private void wakeup() {
+		if (wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Método que indica si el hilo actual es el del bucle de eventos.
+	 *
+	 * @return {@code true} si se invoca desde el bucle de eventos
+	 */
+	boolean inEventLoop() {
+		return Thread.currentThread() == loopThread;
+	}
+
+	/**
+	 * Método que descuenta una sesión cerrada del bucle.
+	 */
+	void sessionClosed() {
+		sessions.decrementAndGet();
+	}
+
+	/**
+	 * Método que devuelve el número de sesiones abiertas en el bucle.
+	 *
+	 * @return sessions Número de sesiones
+	 */
+	public int getSessionCount() {
+		return sessions.get();
+	}
+
+	/**
+	 * Método que detiene el bucle de eventos. Puede invocarse desde cualquier
+	 * hilo. El selector se cierra al salir del bucle.
+	 */
+	public void shutdown() {
+		running = false;
+		if (loopThread == null) { // El bucle no llegó a iniciarse
+			close();
+		} else {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Método que cierra el selector.
+	 */
+	private void close() {
+		try {
+			selector.close();
+		} catch (IOException e) { // Capturar excepciones IOException
+			System.err.println("Error: Fallo al cerrar el bucle de eventos.");
+		}
+	}
+}
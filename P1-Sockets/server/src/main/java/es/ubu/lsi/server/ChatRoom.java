@@ -0,0 +1,337 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import es.ubu.lsi.server.ChatMetrics.DisconnectReason;
+
+/**
+ * Sala de chat con nombre.
+ *
+ * Cada sala guarda sus miembros y una cola de tramas pendientes de difundir.
+ * La difusión se ejecuta en el carril del ejecutor particionado asignado a la
+ * sala, de modo que los mensajes de una sala se entregan en orden y salas
+ * distintas se reparten entre los núcleos. En cada turno se difunde como
+ * máximo un número fijo de tramas y, si quedan más, la sala vuelve a la cola
+ * de su carril detrás del resto de salas, así que una sala muy activa no deja
+ * sin servicio a las demás de su carril. Las tramas difundidas se guardan en
+ * el historial de la sala ({@link HistoryRing}) en el mismo orden en que se
+ * entregan.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class ChatRoom implements Runnable {
+
+	/**
+	 * Número máximo de tramas difundidas en cada turno de la sala
+	 */
+	private static final int MAX_FRAMES_PER_TURN = 16;
+
+	/**
+	 * Nombre de la sala
+	 */
+	private final String name;
+
+	/**
+	 * Prefijo con el que se muestran los mensajes de la sala
+	 */
+	private final String prefix;
+
+	/**
+	 * Servidor al que pertenece la sala
+	 */
+	private final ChatServerImpl server;
+
+	/**
+	 * Carril del ejecutor que difunde los mensajes de la sala, o null para
+	 * difundirlos en el hilo que los publica
+	 */
+	private final Executor lane;
+
+	/**
+	 * Historial de las últimas tramas, propio o compartido con las demás salas, o
+	 * null si no se guarda
+	 */
+	private final HistoryRing history;
+
+	/**
+	 * Sesiones que forman parte de la sala
+	 */
+	private final Set<ClientSession> members = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Tramas pendientes de difundir
+	 */
+	private final ConcurrentLinkedQueue<SharedFrame> pending = new ConcurrentLinkedQueue<SharedFrame>();
+
+	/**
+	 * Indica si la sala está en la cola de su carril o difundiendo
+	 */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	/**
+	 * Indica si la sala se ha eliminado por quedarse vacía
+	 */
+	private boolean closed;
+
+	/**
+	 * Número de sesiones que se han unido a la sala y aún no se han admitido en
+	 * su carril. Mientras haya alguna la sala no se elimina
+	 */
+	private int admitting;
+
+	/**
+	 * Método constructor. Instancia una sala vacía.
+	 *
+	 * @param server  Servidor al que pertenece la sala
+	 * @param name    Nombre de la sala
+	 * @param lane    Carril que difunde sus mensajes, o null para difundirlos en
+	 *                el hilo que los publica
+	 * @param visible Indica si los mensajes se muestran con el nombre de la sala
+	 * @param history Historial de las últimas tramas, o null para no guardarlas
+	 */
+	ChatRoom(ChatServerImpl server, String name, Executor lane, boolean visible, HistoryRing history) {
+		this.server = server;
+		this.name = name;
+		this.prefix = visible ? "[" + name + "] " : "";
+		this.lane = lane;
+		this.history = history;
+	}
+
+	/**
+	 * Método que reserva la entrada de una sesión en la sala, que no se
+	 * eliminará hasta admitirla con {@link #admit(ClientSession, boolean, boolean)}.
+	 *
+	 * @return {@code true} si se ha reservado y {@code false} si la sala ya se ha
+	 *         eliminado
+	 */
+	synchronized boolean reserve() {
+		if (closed) {
+			return false;
+		}
+		admitting++;
+		return true;
+	}
+
+	/**
+	 * Método que admite en la sala una sesión que ya la tiene asignada y, si se
+	 * pide, le envía el historial. Si la sala tiene carril, la copia del
+	 * historial y el alta se hacen en él como una sola tarea entre dos turnos de
+	 * difusión: cada trama está en el historial enviado o se le entrega en vivo,
+	 * nunca en ninguno de los dos. Sin carril se da de alta antes de copiar el
+	 * historial, de modo que una trama difundida a la vez puede llegarle dos
+	 * veces, pero ninguna se pierde. Si entretanto la sesión ha cambiado de sala
+	 * no se admite.
+	 *
+	 * @param session   Sesión con la entrada reservada
+	 * @param replay    Indica si se le envía el historial de la sala
+	 * @param removable Indica si la sala puede eliminarse al quedar vacía
+	 */
+	void admit(final ClientSession session, final boolean replay, final boolean removable) {
+		Runnable admission = new Runnable() {
+			@Override
+			public void run() {
+				boolean member;
+				boolean emptied = false;
+				synchronized (ChatRoom.this) {
+					admitting--;
+					member = session.getRoom() == ChatRoom.this;
+					if (member) {
+						members.add(session);
+					} else if (removable && members.isEmpty() && admitting == 0) {
+						closed = emptied = true;
+					}
+				}
+				if (emptied) {
+					server.getRooms().discard(ChatRoom.this);
+				} else if (member && replay && !session.sendHistory(ChatRoom.this)) {
+					server.remove(session.getClientId(), DisconnectReason.SEND_FAILED);
+				}
+			}
+		};
+		submit(admission);
+	}
+
+	/**
+	 * Método que elimina una sesión de la sala y, si se queda vacía, no hay
+	 * entradas pendientes de admitir y puede eliminarse, la marca como eliminada.
+	 *
+	 * @param session   Sesión
+	 * @param removable Indica si la sala puede eliminarse al quedar vacía
+	 * @return {@code true} si la sala se ha quedado vacía y se ha eliminado
+	 */
+	synchronized boolean remove(ClientSession session, boolean removable) {
+		members.remove(session);
+		if (removable && members.isEmpty() && admitting == 0) {
+			closed = true;
+		}
+		return closed;
+	}
+
+	/**
+	 * Método que sustituye a un miembro por la sesión con la que reanuda su
+	 * conexión. Si la sala tiene carril, la sustitución se hace en él entre dos
+	 * turnos de difusión, de modo que ninguna trama se entrega a las dos
+	 * sesiones ni a ninguna; las que recibe entretanto la anterior las reenvía
+	 * ella misma a la nueva.
+	 *
+	 * @param old  Sesión anterior
+	 * @param next Sesión nueva, que ya tiene asignada esta sala
+	 */
+	void replace(final ClientSession old, final ClientSession next) {
+		Runnable swap = new Runnable() {
+			@Override
+			public void run() {
+				synchronized (ChatRoom.this) {
+					// Si la sesión nueva ya ha cambiado de sala no se añade
+					if (members.remove(old) && next.getRoom() == ChatRoom.this) {
+						members.add(next);
+					}
+				}
+			}
+		};
+		submit(swap);
+	}
+
+	/**
+	 * Método que publica una trama para los miembros de la sala. No espera a que
+	 * se entregue salvo que la sala no tenga carril.
+	 *
+	 * @param frame Trama a difundir
+	 */
+	public void publish(SharedFrame frame) {
+		if (lane == null) {
+			remember(frame);
+			server.deliver(frame, members);
+			return;
+		}
+		pending.add(frame);
+		schedule();
+	}
+
+	/**
+	 * Método que pone la sala en la cola de su carril si no lo está ya.
+	 */
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				lane.execute(this);
+			} catch (RejectedExecutionException e) { // El carril se ha detenido al apagar
+				// Descartar las tramas que ya no se pueden difundir
+				pending.clear();
+				scheduled.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Método que ejecuta una tarea de la sala en su carril, o en el hilo actual si
+	 * la sala no tiene carril o el carril ya se ha detenido al apagar el
+	 * servidor.
+	 *
+	 * @param task Tarea a ejecutar
+	 */
+	private void submit(Runnable task) {
+		if (lane == null) {
+			task.run();
+			return;
+		}
+		try {
+			lane.execute(task);
+		} catch (RejectedExecutionException e) { // El carril se ha detenido al apagar
+			task.run();
+		}
+	}
+
+	/**
+	 * Método que ejecuta un turno de la sala en su carril: difunde como máximo
+	 * {@link #MAX_FRAMES_PER_TURN} tramas y cede el carril.
+	 */
+	@Override
+	public void run() {
+		SharedFrame frame;
+		for (int i = 0; i < MAX_FRAMES_PER_TURN && (frame = pending.poll()) != null; i++) {
+			remember(frame);
+			server.deliver(frame, members);
+		}
+		scheduled.set(false);
+		// Volver a la cola si quedan tramas o se han publicado durante el turno
+		if (!pending.isEmpty()) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Método que guarda una trama en el historial de la sala.
+	 *
+	 * @param frame Trama difundida
+	 */
+	private void remember(SharedFrame frame) {
+		if (history != null) {
+			history.add(frame);
+		}
+	}
+
+	/**
+	 * Método que envía a una sesión las tramas del historial de la sala tal como
+	 * se codificaron al difundirlas. Como mucho se envía media cola de salida, de
+	 * modo que el historial nunca la desborda.
+	 *
+	 * @param session Sesión destinataria
+	 * @throws IOException Si no es posible encolar las tramas
+	 */
+	void replayTo(ClientSession session) throws IOException {
+		if (history == null) {
+			return;
+		}
+		List<SharedFrame> frames = history.snapshot();
+		int limit = Math.max(1, server.getConfig().getQueueCapacity() / 2);
+		for (SharedFrame frame : frames.subList(Math.max(0, frames.size() - limit), frames.size())) {
+			session.sendFrame(frame);
+		}
+	}
+
+	/**
+	 * Método que devuelve el nombre de la sala.
+	 *
+	 * @return name Nombre de la sala
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Método que devuelve el prefijo con el que se muestran los mensajes.
+	 *
+	 * @return prefix Prefijo de los mensajes
+	 */
+	String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * Método que devuelve los miembros de la sala.
+	 *
+	 * @return members Conjunto de sesiones, débilmente consistente al recorrerlo
+	 */
+	public Set<ClientSession> getMembers() {
+		return members;
+	}
+
+	/**
+	 * Método que devuelve el número de tramas pendientes de difundir.
+	 *
+	 * @return pending Tramas pendientes
+	 */
+	public int getPending() {
+		return pending.size();
+	}
+}
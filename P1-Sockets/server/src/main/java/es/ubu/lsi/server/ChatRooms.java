@@ -0,0 +1,258 @@
+package es.ubu.lsi.server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Salas de chat del servidor y ejecutor particionado que difunde sus mensajes.
+ *
+ * Todas las sesiones empiezan en la sala {@link #DEFAULT_ROOM}, que nunca se
+ * elimina; el resto de salas se crean al unirse el primer miembro y se
+ * eliminan al salir el último. Cada sala se asigna a uno de N carriles de un
+ * hilo según su nombre. Según la configuración, cada sala guarda su propio
+ * historial de tramas recientes o todas comparten uno.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class ChatRooms {
+
+	/**
+	 * Nombre de la sala a la que pertenecen inicialmente todas las sesiones
+	 */
+	public static final String DEFAULT_ROOM = "general";
+
+	/**
+	 * Servidor al que pertenecen las salas
+	 */
+	private final ChatServerImpl server;
+
+	/**
+	 * Salas por nombre
+	 */
+	private final ConcurrentHashMap<String, ChatRoom> rooms = new ConcurrentHashMap<String, ChatRoom>();
+
+	/**
+	 * Carriles del ejecutor particionado. Vacío si los mensajes se difunden en el
+	 * hilo que los publica
+	 */
+	private final ExecutorService[] lanes;
+
+	/**
+	 * Sala por defecto
+	 */
+	private final ChatRoom defaultRoom;
+
+	/**
+	 * Número de tramas del historial de cada sala, o 0 sin historial
+	 */
+	private final int historySize;
+
+	/**
+	 * Historial compartido por todas las salas, o null si cada una tiene el suyo
+	 */
+	private final HistoryRing sharedHistory;
+
+	/**
+	 * Método constructor.
+	 *
+	 * @param server       Servidor al que pertenecen las salas
+	 * @param threads      Número de carriles del ejecutor. Con 0 los mensajes se
+	 *                     difunden en el hilo que los publica
+	 * @param historySize  Número de tramas recientes que se recuerdan, o 0 para no
+	 *                     recordarlas
+	 * @param historyScope Ámbito del historial
+	 */
+	ChatRooms(ChatServerImpl server, int threads, int historySize, HistoryRing.Scope historyScope) {
+		this.server = server;
+		this.historySize = historySize;
+		this.sharedHistory = historySize > 0 && historyScope == HistoryRing.Scope.GLOBAL
+				? new HistoryRing(historySize)
+				: null;
+		this.lanes = new ExecutorService[threads];
+		for (int i = 0; i < threads; i++) {
+			final String name = "chat-fanout-" + (i + 1);
+			lanes[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					// Hilo demonio para no impedir que termine la JVM
+					Thread thread = new Thread(task, name);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		this.defaultRoom = new ChatRoom(server, DEFAULT_ROOM, laneFor(DEFAULT_ROOM), false, newHistory());
+		rooms.put(DEFAULT_ROOM, defaultRoom);
+	}
+
+	/**
+	 * Método que devuelve el carril de una sala.
+	 *
+	 * @param name Nombre de la sala
+	 * @return lane Carril de la sala o null si no hay carriles
+	 */
+	private ExecutorService laneFor(String name) {
+		if (lanes.length == 0) {
+			return null;
+		}
+		int h = name.hashCode() * 0x9E3779B9;
+		return lanes[((h ^ (h >>> 16)) & Integer.MAX_VALUE) % lanes.length];
+	}
+
+	/**
+	 * Método que devuelve el historial de una sala nueva.
+	 *
+	 * @return history Historial compartido, uno nuevo o null si no hay historial
+	 */
+	private HistoryRing newHistory() {
+		if (sharedHistory != null || historySize == 0) {
+			return sharedHistory;
+		}
+		return new HistoryRing(historySize);
+	}
+
+	/**
+	 * Método que mueve una sesión a una sala, creándola si no existe. La sesión
+	 * sale antes de la sala en la que estuviera.
+	 *
+	 * @param session Sesión
+	 * @param name    Nombre de la sala
+	 * @return room Sala a la que se ha unido
+	 */
+	public ChatRoom join(ClientSession session, String name) {
+		return join(session, name, false);
+	}
+
+	/**
+	 * Método que mueve una sesión a una sala, creándola si no existe, y le envía
+	 * si se pide el historial de la sala. La sesión sale antes de la sala en la
+	 * que estuviera. El alta y el envío del historial se ordenan con la difusión
+	 * de la sala (véase {@link ChatRoom#admit(ClientSession, boolean, boolean)}),
+	 * por lo que pueden completarse después de volver.
+	 *
+	 * @param session Sesión
+	 * @param name    Nombre de la sala
+	 * @param replay  Indica si se le envía el historial de la sala
+	 * @return room Sala a la que se ha unido
+	 */
+	public ChatRoom join(ClientSession session, String name, boolean replay) {
+		synchronized (session) {
+			leaveCurrent(session);
+			while (true) {
+				ChatRoom room = rooms.get(name);
+				if (room == null) {
+					ChatRoom created = new ChatRoom(server, name, laneFor(name), true, newHistory());
+					room = rooms.putIfAbsent(name, created);
+					if (room == null) {
+						room = created;
+					}
+				}
+				// Si la sala se acaba de eliminar por quedar vacía, se vuelve a crear
+				if (room.reserve()) {
+					session.setRoom(room);
+					room.admit(session, replay, room != defaultRoom);
+					return room;
+				}
+				rooms.remove(name, room);
+			}
+		}
+	}
+
+	/**
+	 * Método que saca a una sesión de su sala, por ejemplo al desconectarse.
+	 *
+	 * @param session Sesión
+	 */
+	public void leave(ClientSession session) {
+		synchronized (session) {
+			leaveCurrent(session);
+		}
+	}
+
+	/**
+	 * Método que saca a una sesión de su sala y elimina la sala si se queda
+	 * vacía. Se invoca con el monitor de la sesión tomado.
+	 *
+	 * @param session Sesión
+	 */
+	private void leaveCurrent(ClientSession session) {
+		ChatRoom room = session.getRoom();
+		if (room == null) {
+			return;
+		}
+		session.setRoom(null);
+		if (room.remove(session, room != defaultRoom)) {
+			rooms.remove(room.getName(), room);
+		}
+	}
+
+	/**
+	 * Método que elimina una sala que se ha quedado vacía al fallar la admisión
+	 * de una sesión.
+	 *
+	 * @param room Sala eliminada
+	 */
+	void discard(ChatRoom room) {
+		rooms.remove(room.getName(), room);
+	}
+
+	/**
+	 * Método que pasa a una sesión nueva la sala de la sesión que reanuda.
+	 *
+	 * @param old  Sesión anterior del cliente
+	 * @param next Sesión con la que el cliente la reanuda
+	 */
+	void replace(ClientSession old, ClientSession next) {
+		synchronized (old) {
+			ChatRoom room = old.getRoom();
+			if (room == null) {
+				return;
+			}
+			old.setRoom(null);
+			next.setRoom(room);
+			room.replace(old, next);
+		}
+	}
+
+	/**
+	 * Método que devuelve la sala por defecto.
+	 *
+	 * @return room Sala por defecto
+	 */
+	public ChatRoom getDefault() {
+		return defaultRoom;
+	}
+
+	/**
+	 * Método que devuelve una sala por su nombre.
+	 *
+	 * @param name Nombre de la sala
+	 * @return room Sala o null si no existe
+	 */
+	public ChatRoom get(String name) {
+		return rooms.get(name);
+	}
+
+	/**
+	 * Método que devuelve las salas existentes.
+	 *
+	 * @return rooms Salas existentes
+	 */
+	public Collection<ChatRoom> getRooms() {
+		return rooms.values();
+	}
+
+	/**
+	 * Método que detiene los carriles del ejecutor.
+	 */
+	void shutdown() {
+		for (ExecutorService lane : lanes) {
+			lane.shutdownNow();
+		}
+	}
+}
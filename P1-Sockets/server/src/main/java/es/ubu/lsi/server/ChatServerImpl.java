@@ -2,21 +2,42 @@ package es.ubu.lsi.server;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
 
 import es.ubu.lsi.common.ChatMessage;
 import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.ChatMessageDecoder;
+import es.ubu.lsi.server.ChatMetrics.DisconnectReason;
 
 /**
  * Clase que implementa el servidor para el chat.
  * 
- * El envío y recepción de mensajes se realizan sobre sockets TCP. Se instancia
- * un Thread para cada cliente, donde se reciben los mensajes correspondientes.
- * El servidor reenvia los mensajes a todos los usuarios conectados. El hilo
- * principal se mantiene a la espera de peticiones de clientes.
+ * El envío y recepción de mensajes se realizan sobre sockets TCP. En el modo
+ * {@link ServerMode#THREADS} se instancia un Thread para cada cliente, donde se
+ * reciben los mensajes correspondientes, y el hilo principal se mantiene a la
+ * espera de peticiones de clientes. El modo {@link ServerMode#VIRTUAL} sigue el
+ * mismo esquema con hilos virtuales. En el modo {@link ServerMode#NIO} un
+ * aceptador ({@link ChatAcceptor}) reparte las conexiones entre varios bucles
+ * de eventos ({@link ChatReactor}). En todos los casos el servidor reenvia los
+ * mensajes a los usuarios de la sala del remitente ({@link ChatRooms}). Si se
+ * configura un clúster ({@link ClusterNode}), los mensajes se reenvían además a
+ * los demás nodos, que los difunden entre sus propios usuarios. Si se configura
+ * un diario ({@link ChatJournal}), cada mensaje difundido se guarda además en
+ * disco. Las métricas del servidor se publican por JMX ({@link ChatMetrics}).
  * 
  * @author Eduardo Manuel Cabeza Lopez
  * @version 1.0.0-SNAPSHOT
@@ -25,145 +46,631 @@ import es.ubu.lsi.common.ChatMessage.MessageType;
 public class ChatServerImpl implements ChatServer {
 
 	/**
-	 * Puerto fijo para el socket del servidor
+	 * Nombre con el que se firman los avisos del propio servidor
+	 */
+	private static final String SERVER_NICKNAME = "servidor";
+
+	/**
+	 * Tiempo máximo en milisegundos que se espera a cerrar las sesiones al apagar
+	 */
+	private static final long SESSION_CLOSE_MILLIS = 5000;
+
+	/**
+	 * Tamaño del búfer de entrada de cada cliente en los modos bloqueantes
+	 */
+	private static final int INPUT_BUFFER_SIZE = 1024;
+
+	/**
+	 * Espera tras un fallo al aceptar, por ejemplo por falta de descriptores,
+	 * para no repetirlo sin pausa
+	 */
+	private static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+	/**
+	 * Configuración del servidor
 	 */
-	private static final int PORT = 1500;
+	private final ServerConfig config;
 
 	/**
 	 * Último identificador proporcionado a un cliente
 	 */
-	private static int id = 0;
+	private final AtomicInteger id = new AtomicInteger();
+
+	/**
+	 * Registro de las sesiones conectadas, indexadas por identificador y por
+	 * nickname, con el estado de bloqueo de cada usuario
+	 */
+	private final SessionRegistry sessions = new SessionRegistry();
+
+	/**
+	 * Salas de chat y ejecutor que difunde sus mensajes
+	 */
+	private final ChatRooms rooms;
+
+	/**
+	 * Contadores de escritura de todas las conexiones
+	 */
+	private final WriteStats writeStats = new WriteStats();
+
+	/**
+	 * Métricas del servidor publicadas por JMX
+	 */
+	private final ChatMetrics metrics = new ChatMetrics(this);
+
+	/**
+	 * Comandos que reconoce el servidor en los mensajes de los clientes
+	 */
+	private final CommandRegistry commands = CommandRegistry.withDefaults();
+
+	/**
+	 * Reanudación de las sesiones de los clientes que pierden la conexión
+	 */
+	private final SessionResumption resumption;
 
 	/**
-	 * HashMap que almacena pares nickname-Thread para identificar los hilos de cada
-	 * cliente
+	 * Conexiones multiplexadas abiertas
 	 */
-	Map<String, ServerThreadForClient> users = new HashMap<String, ServerThreadForClient>();
+	private final Set<MultiplexedConnection> multiplexed = ConcurrentHashMap.newKeySet();
 
 	/**
-	 * HashMap que almacena pares id-nickname para identificar usuarios en el
+	 * Reloj usado para obtener la hora a la que se produce cada evento en el
 	 * servidor
 	 */
-	Map<Integer, String> userIds = new HashMap<Integer, String>();
+	private final ChatClock clock;
+
+	/**
+	 * Nodo del clúster, o null si el servidor no forma parte de ninguno
+	 */
+	private final ClusterNode cluster;
+
+	/**
+	 * Diario de los mensajes difundidos, o null si no se guardan
+	 */
+	private ChatJournal journal;
 
 	/**
-	 * Hashmap que almacena pares nickname-boolean donde le booleano indica si se
-	 * encuentra bloqueado(true) o no (false). Si un usuario no está en la lista
-	 * nunca ha sido bloqueado. Los usuarios bloqueados se mantienen en la lista
-	 * mientras el servidor siga en ejecución.
+	 * Indica si se ha iniciado el apagado del servidor
 	 */
-	Map<String, Boolean> usersBanned = new HashMap<String, Boolean>();
+	private final AtomicBoolean stopping = new AtomicBoolean();
 
 	/**
-	 * SimpleDateFormater usado para obtener la hora a la que se produce cada evento
-	 * en el servidor
+	 * Se abre al terminar el apagado del servidor
 	 */
-	private static SimpleDateFormat timeFormat;
+	private final CountDownLatch terminated = new CountDownLatch(1);
 
 	/**
 	 * Booleano que indica si el servidor está activo
 	 */
-	private boolean isAlive;
+	private volatile boolean isAlive;
 
 	/**
 	 * Socket del servidor
 	 */
-	ServerSocket serverSocket;
+	volatile ServerSocket serverSocket;
+
+	/**
+	 * Aceptador del servidor en modo NIO
+	 */
+	private volatile ChatAcceptor acceptor;
 
 	/**
-	 * Método constructor. Instancia un servidor de chat
+	 * Método constructor. Instancia un servidor de chat con un hilo por cliente en
+	 * el puerto predeterminado.
 	 */
 	public ChatServerImpl() {
-		// Activar servidor y crear el timeFormat
+		this(new ServerConfig());
+	}
+
+	/**
+	 * Método constructor. Instancia un servidor de chat con la configuración
+	 * predeterminada en el puerto y modo indicados.
+	 * 
+	 * @param port Puerto de escucha del servidor
+	 * @param mode Modo de ejecución del servidor
+	 */
+	public ChatServerImpl(int port, ServerMode mode) {
+		this(new ServerConfig().setPort(port).setMode(mode));
+	}
+
+	/**
+	 * Método constructor. Instancia un servidor de chat.
+	 * 
+	 * @param config Configuración del servidor
+	 */
+	public ChatServerImpl(ServerConfig config) {
+		// Activar servidor y crear el reloj
+		this.config = config;
 		this.isAlive = true;
-		timeFormat = new SimpleDateFormat("HH:mm");
+		this.clock = config.newClock();
+		this.rooms = new ChatRooms(this, config.getFanoutThreads(), config.getHistorySize(), config.getHistoryScope());
+		this.resumption = new SessionResumption(this, config.getResumeTimeoutMillis(), config.getResumeBacklog());
+		this.cluster = config.isClustered() ? new ClusterNode(this) : null;
 	}
 
 	/**
 	 * Método que inicia el servidor. Inicia el servidor y se mantiene a la espera
 	 * de peticiones de clientes. Cuando recibe una petición, la acepta y lanza un
-	 * hilo para el cliente y los registra.
+	 * hilo para el cliente y los registra. En modo NIO ejecuta el bucle de
+	 * aceptación en el hilo que invoca el método. Vuelve cuando el servidor se
+	 * apaga ({@link #shutdown()}).
+	 * 
+	 * @throws IllegalStateException Si no es posible iniciar el servidor. Antes
+	 *                               se liberan los recursos ya abiertos
 	 */
 	public void startup() {
+		// Refrescar la hora en segundo plano
+		clock.start();
+		// Publicar las métricas por JMX
+		try {
+			metrics.register(getPort());
+		} catch (JMException e) { // Capturar excepciones JMException
+			// Imprimir error. El servidor funciona igualmente sin métricas
+			System.err.println("Error: No se pueden publicar las métricas por JMX: " + e.getMessage());
+		}
+		// Abrir el diario de mensajes si está configurado
+		try {
+			journal = config.newJournal();
+			if (journal != null) {
+				journal.start();
+				// Imprimir mensaje
+				System.out.println("Diario de mensajes en " + journal.getDirectory() + " a partir de la secuencia "
+						+ (journal.getLastSequence() + 1));
+			}
+		} catch (IOException e) { // Capturar excepciones IOException
+			throw abort("No se puede abrir el diario de mensajes: " + e.getMessage(), e);
+		}
+		// Unirse al clúster si está configurado
+		if (cluster != null) {
+			try {
+				cluster.start();
+			} catch (IOException e) { // Capturar excepciones IOException
+				throw abort("No se puede abrir el puerto del clúster.", e);
+			}
+		}
+		if (getMode() == ServerMode.NIO) {
+			startupReactor();
+			return;
+		}
+		// Factoría para el bucle de aceptación y los hilos de los clientes
+		final ThreadFactory threads;
+		try {
+			threads = SessionThreads.forMode(getMode(), "chat-client-");
+		} catch (UnsupportedOperationException e) { // Hilos virtuales no soportados
+			throw abort(e.getMessage(), e);
+		}
 		try {
 			// Crear y asignar el socket del servidor
 			setServerSocket(new ServerSocket(getPort()));
 			// Imprimir mensaje
-			System.out.println("Servidor escuchando por el puerto " + getPort() + " a las " + getTime());
+			System.out.println("Servidor escuchando por el puerto " + getLocalPort() + " a las " + getTime());
 		} catch (IOException e) { // Capturar excepciones IOException
-			// Imprimir error
-			System.err.println("Error: No se puede conectar el servidor.");
-			// Finalizar con estado != 0
-			System.exit(1);
+			throw abort("No se puede conectar el servidor.", e);
+		}
+		if (getMode() == ServerMode.VIRTUAL) {
+			// El bucle de aceptación también se ejecuta en un hilo virtual
+			Thread acceptor = SessionThreads.virtual("chat-accept-").newThread(new Runnable() {
+				@Override
+				public void run() {
+					acceptLoop(threads);
+				}
+			});
+			acceptor.start();
+			try {
+				acceptor.join();
+			} catch (InterruptedException e) { // Capturar interrupciones
+				Thread.currentThread().interrupt();
+			}
+		} else {
+			acceptLoop(threads);
 		}
+		// Esperar a que termine el apagado antes de devolver el control
+		awaitTermination();
+	}
+
+	/**
+	 * Método que se mantiene a la espera de peticiones de clientes mientras el
+	 * servidor esté activo. Lanza un hilo para cada conexión aceptada.
+	 * 
+	 * @param threads Factoría de hilos para los clientes
+	 */
+	private void acceptLoop(ThreadFactory threads) {
 		while (getIsAlive()) { // Mientras el servidor esté activo
 			try {
 				// Aceptar la conexión y obtener el socket del cliente
 				Socket client = getServerSocket().accept();
 				// Se crea el hilo en el servidor para el cliente
-				ServerThreadForClient clientThread = new ServerThreadForClient(client);
+				ServerThreadForClient clientThread = new ServerThreadForClient(client, threads);
 				// Se lanza el hilo
-				clientThread.start();
+				threads.newThread(clientThread).start();
 			} catch (IOException e) { // Capturar excepciones IOException
-				// Imprimir error
-				System.err.println("Error: No se puede aceptar la conexión con el cliente.");
+				if (getIsAlive()) { // Si no se ha cerrado el socket al apagar
+					// Imprimir error
+					System.err.println("Error: No se puede aceptar la conexión con el cliente.");
+					if (!pauseAccept()) {
+						break;
+					}
+				}
 			}
 		}
 	}
 
 	/**
-	 * Método que apaga el servidor. Cierra todos los clientes en el servidor y
-	 * después cierra su socket.
+	 * Método que espera antes de volver a aceptar tras un fallo, para que un
+	 * error persistente no ocupe el hilo sin pausa.
+	 *
+	 * @return {@code false} si se ha interrumpido el hilo
 	 */
-	public void shutdown() {
-		// Desactivar el servidor
-		setIsAlive(false);
+	private boolean pauseAccept() {
+		try {
+			Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+			return true;
+		} catch (InterruptedException e) { // Capturar interrupciones
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Método que inicia el servidor en modo NIO. Abre el canal de escucha, inicia
+	 * los bucles de eventos y acepta conexiones hasta que se apaga el servidor.
+	 * 
+	 * @throws IllegalStateException Si no es posible abrir el canal de escucha
+	 */
+	private void startupReactor() {
 		try {
-			// Cerrar todos los clientes
-			for (ServerThreadForClient client : getUsers().values()) {
-				client.closeClient();
+			// Crear el aceptador con su canal de escucha y sus bucles de eventos
+			acceptor = new ChatAcceptor(this, getPort(), getConfig().getReactorThreads(),
+					getConfig().getReactorBalance());
+			acceptor.startWorkers();
+			// Imprimir mensaje
+			System.out.println("Servidor (NIO) escuchando por el puerto " + getLocalPort() + " con "
+					+ getConfig().getReactorThreads() + " bucles de eventos a las " + getTime());
+		} catch (IOException e) { // Capturar excepciones IOException
+			throw abort("No se puede conectar el servidor.", e);
+		}
+		acceptor.run();
+		// Esperar a que termine el apagado antes de devolver el control
+		awaitTermination();
+	}
+
+	/**
+	 * Método que aborta el arranque del servidor. Imprime el error y libera los
+	 * recursos ya abiertos, de modo que el servidor queda apagado y quien lo
+	 * invoca decide cómo terminar.
+	 * 
+	 * @param message Descripción del error
+	 * @param cause   Excepción que ha impedido el arranque
+	 * @return exception Excepción que debe lanzar el arranque
+	 */
+	private IllegalStateException abort(String message, Exception cause) {
+		// Imprimir error
+		System.err.println("Error: " + message);
+		if (stopping.compareAndSet(false, true)) {
+			try {
+				setIsAlive(false);
+				stopAccepting();
+				release();
+			} finally {
+				terminated.countDown();
+			}
+		}
+		return new IllegalStateException(message, cause);
+	}
+
+	/**
+	 * Método que apaga el servidor avisando a todos los clientes. Ver
+	 * {@link #shutdown(ChatMessage)}.
+	 */
+	public void shutdown() {
+		shutdown(new ChatMessage(0, MessageType.LOGOUT, "Cerrando el servidor."));
+	}
+
+	/**
+	 * Método que apaga el servidor en un hilo nuevo. Lo usan los hilos que
+	 * atienden a los clientes, que deben seguir libres mientras se escriben los
+	 * últimos mensajes.
+	 * 
+	 * @param notice Aviso que se difunde a todos los clientes
+	 */
+	void requestShutdown(final ChatMessage notice) {
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				shutdown(notice);
 			}
-			// Cerrar el socket del servidor si es no nulo
-			if (getServerSocket() != null) {
+		}, "chat-shutdown").start();
+	}
+
+	/**
+	 * Método que apaga el servidor por fases y devuelve el control a quien lo
+	 * invoca, sin finalizar la máquina virtual. Primero deja de aceptar
+	 * conexiones, después difunde el aviso a todos los clientes, espera como
+	 * máximo {@link ServerConfig#getShutdownDrainMillis()} a que se escriban sus
+	 * colas de salida, cierra las sesiones en paralelo y por último detiene los
+	 * bucles de eventos y libera el resto de recursos. Sólo la primera llamada
+	 * apaga el servidor; las demás esperan a que termine.
+	 * 
+	 * @param notice Aviso que se difunde a todos los clientes
+	 */
+	void shutdown(ChatMessage notice) {
+		if (!stopping.compareAndSet(false, true)) {
+			awaitTermination();
+			return;
+		}
+		try {
+			// Imprimir mensaje en el servidor
+			System.out.println("Apagando el servidor.");
+			// 1. Dejar de aceptar conexiones
+			setIsAlive(false);
+			stopAccepting();
+			// 2. Informar a todos los participantes, estén en la sala que estén
+			broadcastAll(notice);
+			// 3. Dar a los escritores la oportunidad de enviar los últimos mensajes
+			awaitDrained(getConfig().getShutdownDrainMillis());
+			// 4. Cerrar todos los clientes
+			closeSessions();
+			// 5. Liberar los bucles de eventos y el resto de recursos
+			release();
+			// Imprimir mensaje en el servidor
+			System.out.println("Servidor apagado a las " + getTime());
+		} finally {
+			terminated.countDown();
+		}
+	}
+
+	/**
+	 * Método que cierra el socket o el canal de escucha, de modo que termina el
+	 * bucle de aceptación.
+	 */
+	private void stopAccepting() {
+		// Cerrar el socket del servidor si es no nulo
+		if (getServerSocket() != null) {
+			try {
 				getServerSocket().close();
+			} catch (IOException e) { // Capturar excepciones IOException
+				// Imprimir error
+				System.err.println("Error: Fallo al cerrar el socket del servidor.");
 			}
-			// Finalizar con estado 0
-			System.exit(0);
-		} catch (IOException e) { // Capturar excepciones IOException
-			// Imprimir error
-			System.err.println("Error: Fallo al apagar el servidor.");
-			// Finalizar con estado != 0
-			System.exit(1);
+		}
+		// Cerrar el canal de escucha del aceptador si es no nulo
+		if (acceptor != null) {
+			acceptor.stopAccepting();
+		}
+	}
+
+	/**
+	 * Método que espera, como máximo el tiempo indicado, a que se escriban las
+	 * tramas pendientes de todos los clientes.
+	 * 
+	 * @param timeoutMillis Tiempo máximo de espera en milisegundos
+	 */
+	private void awaitDrained(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		for (ClientSession client : getSessions()) {
+			// Las sesiones suspendidas no tienen conexión a la que escribir
+			while (!client.isParked() && client.hasPendingOutput() && System.currentTimeMillis() < deadline) {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) { // Capturar interrupciones
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Método que elimina y cierra todas las sesiones, repartidas entre varios
+	 * hilos para que una conexión lenta no retrase al resto.
+	 */
+	private void closeSessions() {
+		final List<ClientSession> clients = new ArrayList<ClientSession>();
+		for (ClientSession client : getSessions()) {
+			clients.add(client);
+		}
+		if (clients.isEmpty()) {
+			return;
+		}
+		final int threads = Math.min(clients.size(), Math.max(2, Runtime.getRuntime().availableProcessors()));
+		ExecutorService closers = Executors.newFixedThreadPool(threads, SessionThreads.platform("chat-close-"));
+		for (int i = 0; i < threads; i++) {
+			final int first = i;
+			closers.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = first; j < clients.size(); j += threads) {
+						remove(clients.get(j).getClientId(), DisconnectReason.SHUTDOWN);
+					}
+				}
+			});
+		}
+		closers.shutdown();
+		try {
+			if (!closers.awaitTermination(SESSION_CLOSE_MILLIS, TimeUnit.MILLISECONDS)) {
+				// Imprimir error
+				System.err.println("Error: No se han podido cerrar todas las sesiones a tiempo.");
+			}
+		} catch (InterruptedException e) { // Capturar interrupciones
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Método que detiene los bucles de eventos, abandona el clúster, cierra el
+	 * diario y detiene el reloj y los hilos de difusión.
+	 */
+	private void release() {
+		// Detener el aceptador y los bucles de eventos si es no nulo
+		if (acceptor != null) {
+			acceptor.shutdown();
+		}
+		// Cerrar las conexiones multiplexadas, cuyas sesiones ya están cerradas
+		for (MultiplexedConnection connection : multiplexed) {
+			connection.close();
+		}
+		// Abandonar el clúster si es no nulo
+		if (cluster != null) {
+			cluster.shutdown();
+		}
+		// Escribir los últimos mensajes del diario si es no nulo
+		if (journal != null) {
+			journal.close();
+		}
+		// Detener el reloj, los hilos de difusión y el temporizador de las sesiones
+		// suspendidas y retirar las métricas
+		clock.stop();
+		rooms.shutdown();
+		resumption.shutdown();
+		metrics.unregister();
+	}
+
+	/**
+	 * Método que espera a que termine el apagado iniciado por otro hilo, como
+	 * máximo el tiempo de vaciado más el de cierre de las sesiones.
+	 */
+	private void awaitTermination() {
+		try {
+			terminated.await(getConfig().getShutdownDrainMillis() + 2 * SESSION_CLOSE_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) { // Capturar interrupciones
+			Thread.currentThread().interrupt();
 		}
 	}
 
+	/**
+	 * Método que indica si el servidor ha terminado de apagarse.
+	 * 
+	 * @return {@code true} si se ha completado el apagado
+	 */
+	public boolean isTerminated() {
+		return terminated.getCount() == 0;
+	}
+
 	/**
 	 * Método que realzia el broadcast de los mensajes recibidos por los clientes.
-	 * Crea y envía un mensaje para cada uno de los clientes conectados al servidor.
+	 * Formatea y codifica el mensaje una única vez y lo publica en la sala del
+	 * remitente, que entrega la misma trama a cada uno de sus miembros. Si hay
+	 * clúster, el mensaje formateado se reenvía una vez a cada nodo.
 	 */
 	public void broadcast(ChatMessage message) {
-		// Obtener nick del remitente
-		String nick = getNickname(message.getId());
+		// Obtener la sesión y el nick del remitente
+		ClientSession sender = getSessions().get(message.getId());
+		String nick = sender == null ? null : sender.getNickname();
 		// Si está bloqueado lo ignoramos
-		if (getusersBanned().getOrDefault(nick, false)) {
+		if (sender != null && sender.isBanned()) {
+			metrics.messageBanned();
+			return;
+		}
+		// Sala del remitente
+		ChatRoom room = sender == null || sender.getRoom() == null ? rooms.getDefault() : sender.getRoom();
+		// Crear y codificar el mensaje con el contenido y tipo de message
+		String text = room.getPrefix() + nick + " " + getTime() + ": " + message.getMessage();
+		SharedFrame frame;
+		try {
+			frame = SharedFrame.of(new ChatMessage(message.getId(), message.getType(), text));
+		} catch (IOException e) { // Capturar excepciones IOException
+			// Imprimir error
+			System.err.println("Error: No ha sido posible codificar el mensaje de " + nick);
+			return;
+		}
+		// Publicar la trama para los miembros de la sala
+		room.publish(frame);
+		// Reenviar el mensaje a los demás nodos
+		if (cluster != null) {
+			cluster.relay(room.getName(), message.getType(), message.getId(), text);
+		}
+		// Guardar el mensaje en el diario
+		if (journal != null) {
+			journal.append(room.getName(), text);
+		}
+	}
+
+	/**
+	 * Método que difunde un aviso a todos los clientes conectados, estén en la
+	 * sala que estén. La trama se encola en el hilo que invoca el método. Los
+	 * avisos sin remitente (identificador 0) se firman como el servidor. El aviso
+	 * sólo concierne a este nodo, como el de apagado, y no se reenvía al resto
+	 * del clúster.
+	 * 
+	 * @param message Mensaje a difundir
+	 */
+	public void broadcastAll(ChatMessage message) {
+		String nick = message.getId() == 0 ? SERVER_NICKNAME : getNickname(message.getId());
+		String text = nick + " " + getTime() + ": " + message.getMessage();
+		try {
+			deliver(SharedFrame.of(new ChatMessage(message.getId(), message.getType(), text)), getSessions());
+		} catch (IOException e) { // Capturar excepciones IOException
+			// Imprimir error
+			System.err.println("Error: No ha sido posible codificar el mensaje de " + nick);
+			return;
+		}
+		// Guardar el aviso en el diario
+		if (journal != null) {
+			journal.append(null, text);
+		}
+	}
+
+	/**
+	 * Método que difunde entre las sesiones locales un mensaje ya formateado
+	 * recibido de otro nodo del clúster. Los mensajes de una sala sólo llegan a
+	 * sus miembros locales, si la sala existe en este nodo.
+	 * 
+	 * @param roomName Nombre de la sala, o null para todas las sesiones
+	 * @param type     Tipo del mensaje
+	 * @param id       Identificador del remitente en su nodo
+	 * @param text     Texto formateado del mensaje
+	 */
+	void deliverRemote(String roomName, MessageType type, int id, String text) {
+		SharedFrame frame;
+		try {
+			frame = SharedFrame.of(new ChatMessage(id, type, text));
+		} catch (IOException e) { // Capturar excepciones IOException
+			// Imprimir error
+			System.err.println("Error: No ha sido posible codificar un mensaje de otro nodo.");
 			return;
 		}
-		// Para cada cliente, crear y enviar un mensaje con el contenido y tipo de
-		// message
-		for (ServerThreadForClient client : getUsers().values()) {
-			// Crear mensaje
-			ChatMessage newMsg = new ChatMessage(message.getId(), message.getType(),
-					getNickname(message.getId()) + " " + getTime() + ": " + message.getMessage());
+		if (roomName == null) {
+			deliver(frame, getSessions());
+			return;
+		}
+		ChatRoom room = rooms.get(roomName);
+		if (room != null) {
+			room.publish(frame);
+		}
+	}
+
+	/**
+	 * Método que indica si un nickname está en uso en este servidor o en otro
+	 * nodo del clúster.
+	 * 
+	 * @param nickname Nickname del usuario
+	 * @return {@code true} si hay un usuario conectado con ese nickname
+	 */
+	boolean isNicknameInUse(String nickname) {
+		return getSessions().getByNickname(nickname) != null
+				|| (cluster != null && cluster.getNodeOf(nickname) != null);
+	}
+
+	/**
+	 * Método que entrega la misma trama a cada uno de los destinatarios y registra
+	 * en las métricas el tiempo empleado.
+	 * 
+	 * @param frame      Trama a entregar
+	 * @param recipients Sesiones destinatarias
+	 */
+	void deliver(SharedFrame frame, Iterable<ClientSession> recipients) {
+		long start = System.nanoTime();
+		for (ClientSession client : recipients) {
 			try {
 				// Enviar mensaje
-				client.output.writeObject(newMsg);
+				client.sendFrame(frame);
 			} catch (IOException e) { // Capturas excepciones IOException
 				// Imprimir error
 				System.err.println("Error: No ha sido posible enviar el mensaje al cliente.");
 				// Eliminar el cliente con el que se ha perdido la comunicación
-				remove(client.getClientId());
+				remove(client.getClientId(), DisconnectReason.SEND_FAILED);
 			}
 		}
+		metrics.fanoutCompleted(System.nanoTime() - start);
 	}
 
 	/**
@@ -173,74 +680,235 @@ public class ChatServerImpl implements ChatServer {
 	 * @return nickname Nickname del cliente
 	 */
 	public String getNickname(int id) {
-		return getUserIds().get(id);
+		ClientSession client = getSessions().get(id);
+		return client == null ? null : client.getNickname();
 	}
 
 	/**
-	 * Método que elimina un cliente del servidor.
+	 * Método que elimina un cliente del servidor cuya conexión se ha perdido.
 	 * 
 	 * @param id Identificador del cliente
 	 */
 	@Override
 	public void remove(int id) {
-		// Obtener nickname del cliente
-		String nick = getNickname(id);
-		if (nick != null) { // Si no es nulo
-			// Obtenemos el cliente y lo eliminamos del Hashmap de hilos y clientes
-			ServerThreadForClient client = getUsers().remove(nick);
-			if (client != null) { // Si no es nulo
-				// Cerrar el hilo del cliente en el servidor
-				client.closeClient();
-				// Eliminar del HashMap de nicknames y identificadores
-				getUserIds().remove(id);
-				// Imprimir mensajes en el servidor
-				System.out.println("El usuario " + nick + " ha sido eliminado del chat a las " + getTime());
-				System.out.println("Usuarios conectados actualmente: " + getUsers().size());
+		remove(id, DisconnectReason.CONNECTION_LOST);
+	}
+
+	/**
+	 * Método que atiende la pérdida de la conexión de una sesión. Si el cliente
+	 * puede reanudarla, se conserva durante un tiempo en lugar de eliminarla. Se
+	 * decide sobre la propia sesión y no sobre su identificador, que tras una
+	 * reanudación corresponde a la sesión de la nueva conexión.
+	 * 
+	 * @param session Sesión cuya conexión se ha perdido
+	 */
+	void connectionLost(ClientSession session) {
+		if (!stopping.get() && resumption.park(session)) {
+			session.closeClient();
+			return;
+		}
+		remove(session.getClientId(), DisconnectReason.CONNECTION_LOST);
+	}
+
+	/**
+	 * Método que anota una conexión multiplexada abierta para cerrarla al apagar
+	 * el servidor.
+	 * 
+	 * @param connection Conexión multiplexada
+	 */
+	void multiplexedOpened(MultiplexedConnection connection) {
+		multiplexed.add(connection);
+	}
+
+	/**
+	 * Método que retira una conexión multiplexada cerrada.
+	 * 
+	 * @param connection Conexión multiplexada
+	 */
+	void multiplexedClosed(MultiplexedConnection connection) {
+		multiplexed.remove(connection);
+	}
+
+	/**
+	 * Método que elimina un cliente del servidor y registra el motivo en las
+	 * métricas.
+	 * 
+	 * @param id     Identificador del cliente
+	 * @param reason Motivo de la desconexión
+	 */
+	void remove(int id, DisconnectReason reason) {
+		// Eliminar el cliente del registro de sesiones
+		ClientSession client = getSessions().remove(id);
+		if (client != null) { // Si no es nulo
+			// Contar la desconexión
+			metrics.disconnected(reason);
+			// Sacar al cliente de su sala
+			getRooms().leave(client);
+			// Informar a los demás nodos
+			if (cluster != null) {
+				cluster.userLeft(client.getNickname());
 			}
+			// Cerrar la sesión del cliente en el servidor
+			client.closeClient();
+			// Imprimir mensajes en el servidor
+			System.out.println("El usuario " + client.getNickname() + " ha sido eliminado del chat a las " + getTime());
+			System.out.println("Usuarios conectados actualmente: " + getSessions().size());
 		} else { // Si no se encuentra al usuario
 			// Imprimir mensaje en el servidor
-			System.out.println("No existe el usuario " + nick);
+			System.out.println("No existe el usuario con ID " + id);
 		}
 	}
 
 	/**
-	 * Método que devuelve la hora con precisión de minutos con el formato hh:mm
+	 * Método que devuelve la hora con el formato configurado (hh:mm por defecto).
+	 * Devuelve el valor que el reloj formatea en segundo plano.
 	 * 
 	 * @return time Hora actual
 	 */
 	public String getTime() {
-		return timeFormat.format(new Date());
+		return clock.now();
+	}
+
+	/**
+	 * Método que devuelve los contadores de escritura de las conexiones del
+	 * servidor: bytes por llamada al sistema y motivos de cada escritura.
+	 * 
+	 * @return writeStats Contadores de escritura
+	 */
+	public WriteStats getWriteStats() {
+		return this.writeStats;
+	}
+
+	/**
+	 * Método que devuelve las métricas del servidor.
+	 * 
+	 * @return metrics Métricas del servidor
+	 */
+	public ChatMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * Método que devuelve el registro de comandos del servidor, en el que pueden
+	 * añadirse comandos nuevos.
+	 * 
+	 * @return commands Registro de comandos
+	 */
+	public CommandRegistry getCommands() {
+		return this.commands;
+	}
+
+	/**
+	 * Método que devuelve el reloj del servidor.
+	 * 
+	 * @return clock Reloj del servidor
+	 */
+	public ChatClock getClock() {
+		return this.clock;
+	}
+
+	/**
+	 * Método que devuelve el número de tramas pendientes de envío de cada cliente
+	 * conectado.
+	 * 
+	 * @return depths Pares nickname-profundidad de la cola de salida
+	 */
+	public Map<String, Integer> getQueueDepths() {
+		Map<String, Integer> depths = new HashMap<String, Integer>();
+		for (ClientSession client : getSessions()) {
+			depths.put(client.getNickname(), client.getQueueDepth());
+		}
+		return depths;
 	}
 
 	/**
-	 * Método principal.
+	 * Método principal. La configuración se toma de las propiedades del sistema
+	 * (ver {@link ServerConfig#fromSystemProperties()}).
 	 * 
-	 * @param args No se esperan argumentos en línea de comandos.
+	 * @param args Opcionalmente el modo de ejecución del servidor (threads, virtual
+	 *             o nio).
 	 */
 	public static void main(String[] args) {
-		// Instanciar el servidor e iniciarlo
-		new ChatServerImpl().startup();
+		ServerConfig config = null;
+		try {
+			config = ServerConfig.fromSystemProperties();
+			if (args.length == 1) { // Si se pasa un argumento se supone el modo
+				config.setMode(ServerMode.valueOf(args[0].toUpperCase()));
+			}
+		} catch (IllegalArgumentException e) { // Modo o propiedad no válidos
+			System.err.println("Configuración no válida. Los modos son threads, virtual o nio.");
+			System.exit(1);
+		}
+		// Instanciar el servidor
+		final ChatServerImpl server = new ChatServerImpl(config);
+		// Apagarlo ordenadamente también si se detiene la máquina virtual (Ctrl+C,
+		// SIGTERM). Si ya se ha apagado no hace nada
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.shutdown();
+			}
+		}, "chat-shutdown-hook"));
+		try {
+			// Iniciar el servidor. Vuelve cuando se apaga
+			server.startup();
+		} catch (IllegalStateException e) { // No se ha podido iniciar
+			// Finalizar con estado != 0. El error ya se ha impreso
+			System.exit(1);
+		}
 	}
 
 	/**
-	 * Método synchronized que devuelve el siguiente identificador.Se usa el método
-	 * sincronizado para evitar problemas de concurrencia al tener varios hilos
-	 * intentando acceder al mismo atributo.
+	 * Método que devuelve el siguiente identificador. Se usa un contador atómico
+	 * para evitar problemas de concurrencia al tener varios hilos intentando
+	 * acceder al mismo atributo sin bloquear el hilo que lo invoca.
 	 * 
 	 * @return id Identificador para el próximo cliente
 	 */
-	private synchronized int getNextId() {
-		id += 1;
-		return id;
+	int getNextId() {
+		return id.incrementAndGet();
 	}
 
 	/**
 	 * Método que devuelve el puerto del servidor.
 	 * 
-	 * @return PORT Puerto del servidor
+	 * @return port Puerto del servidor
+	 */
+	private int getPort() {
+		return getConfig().getPort();
+	}
+
+	/**
+	 * Método que devuelve el puerto en el que escucha el servidor, que es el que
+	 * elige el sistema si el configurado es 0.
+	 * 
+	 * @return port Puerto local, o -1 si el servidor aún no escucha
+	 */
+	int getLocalPort() {
+		ServerSocket socket = getServerSocket();
+		if (socket != null) {
+			return socket.getLocalPort();
+		}
+		ChatAcceptor nio = acceptor;
+		return nio != null ? nio.getLocalPort() : -1;
+	}
+
+	/**
+	 * Método que devuelve el modo de ejecución del servidor.
+	 * 
+	 * @return mode Modo de ejecución
+	 */
+	public ServerMode getMode() {
+		return getConfig().getMode();
+	}
+
+	/**
+	 * Método que devuelve la configuración del servidor.
+	 * 
+	 * @return config Configuración del servidor
 	 */
-	private static int getPort() {
-		return PORT;
+	public ServerConfig getConfig() {
+		return this.config;
 	}
 
 	/**
@@ -263,30 +931,48 @@ public class ChatServerImpl implements ChatServer {
 	}
 
 	/**
-	 * Método que devuelve el HashMap de nicknames de clientes e hilos
+	 * Método que devuelve el registro de sesiones conectadas.
+	 * 
+	 * @return sessions Registro de sesiones
+	 */
+	SessionRegistry getSessions() {
+		return this.sessions;
+	}
+
+	/**
+	 * Método que devuelve las salas de chat del servidor.
+	 * 
+	 * @return rooms Salas de chat
+	 */
+	ChatRooms getRooms() {
+		return this.rooms;
+	}
+
+	/**
+	 * Método que devuelve la reanudación de sesiones del servidor.
 	 * 
-	 * @return users HashMap con clientes y hilos
+	 * @return resumption Reanudación de sesiones
 	 */
-	private Map<String, ServerThreadForClient> getUsers() {
-		return this.users;
+	SessionResumption getResumption() {
+		return this.resumption;
 	}
 
 	/**
-	 * Método que devuelve el HashMap con identificadores y nicknames de clientes
+	 * Método que devuelve el nodo del clúster del servidor.
 	 * 
-	 * @return userIds HashMap de identificadores y nicknames
+	 * @return cluster Nodo del clúster o null si no forma parte de ninguno
 	 */
-	private Map<Integer, String> getUserIds() {
-		return this.userIds;
+	public ClusterNode getCluster() {
+		return this.cluster;
 	}
 
 	/**
-	 * Método que devuelve el HashMap de usuarios bloqueados.
+	 * Método que devuelve el diario de mensajes del servidor.
 	 * 
-	 * @return usersBanned HashMap de clientes bloqueados
+	 * @return journal Diario o null si no se guardan los mensajes
 	 */
-	private Map<String, Boolean> getusersBanned() {
-		return this.usersBanned;
+	public ChatJournal getJournal() {
+		return this.journal;
 	}
 
 	/**
@@ -308,58 +994,68 @@ public class ChatServerImpl implements ChatServer {
 	}
 
 	/**
-	 * Clase interna que extiende de Thread para lanzar hilos por cada conexión que
-	 * se acepta con un cliente.
+	 * Clase interna que atiende en un hilo bloqueante a cada cliente cuya
+	 * conexión se acepta. Un segundo hilo escritor vacía la cola de salida del
+	 * cliente en el socket, de modo que quien difunde un mensaje nunca espera a
+	 * que la escritura termine.
 	 * 
 	 * @author Eduardo Manuel Cabeza Lopez
 	 *
 	 */
-	class ServerThreadForClient extends Thread {
-
-		/**
-		 * Identificador del cliente
-		 */
-		private int clientId;
+	class ServerThreadForClient extends ClientSession implements Runnable {
 
 		/**
-		 * Booleano que indica si el hilo del cliente está activo
+		 * Socket del cliente asociado el hilo
 		 */
-		private boolean threadAlive;
+		private Socket threadSocket;
 
 		/**
-		 * Nickname del cliente asociado al hilo
+		 * Stream de entrada del cliente en el servidor
 		 */
-		private String nickname;
+		private DataInputStream input;
 
 		/**
-		 * Socket del cliente asociado el hilo
+		 * Stream de salida del cliente en el servidor
 		 */
-		private Socket threadSocket;
+		private OutputStream output;
 
 		/**
-		 * ObjectInputStream del cliente en el servidor
+		 * Factoría con la que se crea el hilo escritor
 		 */
-		private ObjectInputStream input;
+		private final ThreadFactory threads;
 
 		/**
-		 * ObjectOutputStream del cliente en el servidor
+		 * Hilo escritor que vacía la cola de salida del cliente
 		 */
-		private ObjectOutputStream output;
+		private volatile Thread writer;
 
 		/**
 		 * Método constructor. Instancia un hilo para un cliente en el servidor.
 		 * 
-		 * @param socket Socket del cliente asociado al hilo
+		 * @param socket  Socket del cliente asociado al hilo
+		 * @param threads Factoría con la que se crea el hilo escritor
 		 */
-		public ServerThreadForClient(Socket socket) {
+		public ServerThreadForClient(Socket socket, ThreadFactory threads) {
+			super(ChatServerImpl.this);
 			// Inicializar el estado del hilo
 			this.threadSocket = socket; // Asignar socket
-			this.threadAlive = true; // Activar estado del hilo
+			this.threads = threads;
 			try {
-				// Crear ObjectOutputStream
-				output = new ObjectOutputStream(socket.getOutputStream());
-				// Crear ObjectInputStream
-				input = new ObjectInputStream(socket.getInputStream());
+				// Crear stream de salida. Cada trama se escribe completa en una sola llamada
+				output = socket.getOutputStream();
+				// Crear stream de entrada con un búfer pequeño para las sesiones inactivas,
+				// contando los bytes leídos del socket
+				InputStream counted = new FilterInputStream(socket.getInputStream()) {
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException {
+						int n = super.read(b, off, len);
+						if (n > 0) {
+							metrics.bytesRead(n);
+						}
+						return n;
+					}
+				};
+				input = new DataInputStream(new BufferedInputStream(counted, INPUT_BUFFER_SIZE));
 			} catch (IOException e) { // Capturar excepciones IOException
 				// Imprimir error
 				System.err.println("Error: No ha sido posible crear un hilo para el nuevo cliente.");
@@ -368,269 +1064,139 @@ public class ChatServerImpl implements ChatServer {
 
 		/**
 		 * Método que incia el cliente en el servidor. Se mantiene a la espera de un
-		 * mensaje del cliente y lo reenvía en caso de ser un mensaje normal. En caso
-		 * contrario toma la acción determinada por el tipo de mensaje.
+		 * mensaje del cliente y toma la acción determinada por el tipo de mensaje.
 		 */
 		@Override
 		public void run() {
 			try {
-				// Conectar el cliente
-				connect();
-				while (getThreadAlive()) { // Mientras el hilo esté activo
-					// Recibir mensaje
-					ChatMessage message = (ChatMessage) input.readObject();
-					// Realizar acciónes en fnción del tipo del mensaje
-					switch (message.getType()) {
-					case MESSAGE: // Si es de tipo MESSAGE
-						// Procesar mensaje
-						processMsg(message);
-						break;
-					case LOGOUT: // Si es de tipo LOGOUT
-						// Eliminar el cliente
-						remove(getClientId());
-						// Cerrar el hilo del cliente
-						closeClient();
-						// Imprimir mensaje en el servidor
-						System.out.println("Se ha desconectado el usuario " + getNickname() + " a las " + getTime());
-						// Desactivar el hilo
-						setThreadAlive(false);
-						break;
-					case SHUTDOWN: // Si es mensaje de tipo SHUTDOWN
-						// Si el usuario es administrador
-						if (getNickname().equalsIgnoreCase("ADMIN")) {
-							// Informar a todos los participantes
-							broadcast(new ChatMessage(getClientId(), MessageType.LOGOUT, "Cerrando el servidor."));
-							// Imprimir mensaje en el servidor
-							System.out.println("Apagando el servidor.");
-							// Apagar el servidor
-							ChatServerImpl.this.shutdown();
-							return;
-						} else { // Si no es administrador
-							// Informar al usuario que no dispone de permiso para apagar el servidor
-							System.out.println("Solo el administrador puede apagar el servidor.");
-						}
-						break;
-					default:
-						break;
+				// Obtener el mensaje de petición del cliente
+				ChatMessage request = ChatMessageDecoder.read(getInput());
+				if (request.getType() == MessageType.MUX) {
+					// Conexión multiplexada: la atiende este mismo hilo
+					serveMultiplexed();
+					return;
+				}
+				// Lanzar el hilo escritor del cliente
+				writer = threads.newThread(new Runnable() {
+					@Override
+					public void run() {
+						writeLoop();
+					}
+				});
+				writer.start();
+				// Conectar el cliente. Antes del registro puede negociar la compresión
+				login(request);
+				while (isAlive()) { // Mientras el hilo esté activo
+					// Recibir y procesar mensaje
+					ChatMessage message = ChatMessageDecoder.read(getInput());
+					if (isLogged()) {
+						handle(message);
+					} else {
+						login(message);
 					}
 				}
-			} catch (ClassNotFoundException | IOException e) { // Capturar excepciones ClassNotFoundException y
-																// IOException
-				// Imprimir error
-				System.err.println("Error: Conexión perdida con el usuario " + getNickname());
-				// Eliminar el cliente con el que no se puede comunicar
-				remove(getClientId());
-				// Cerrar el cliente con el que no se puede comunicar
-				closeClient();
+			} catch (IOException e) { // Capturar excepciones IOException
+				if (isAlive()) {
+					// Imprimir error
+					System.err.println("Error: Conexión perdida con el usuario " + getNickname());
+					// Eliminar el cliente con el que no se puede comunicar
+					connectionLost(this);
+					// Cerrar el cliente con el que no se puede comunicar
+					closeClient();
+				}
 			}
 		}
 
 		/**
-		 * Método que devuelve el ObjectOutputStream del cliente
-		 * 
-		 * @return output ObjectOutputStream del cliente
-		 */
-		private ObjectOutputStream getOutput() {
-			return this.output;
-		}
-
-		/**
-		 * Método que devuelve el ObjectInputStream del cliente
-		 * 
-		 * @return input ObjectInputStream del cliente
-		 */
-		private ObjectInputStream getInput() {
-			return this.input;
-		}
-
-		/**
-		 * Método que devuelve el socket del cliente
-		 * 
-		 * @return threadSocket Socket del cliente
-		 */
-		private Socket getThreadSocket() {
-			return this.threadSocket;
-		}
-
-		/**
-		 * Método que obtiene el nickname del cliente asociado al hilo
+		 * Método que atiende la conexión como multiplexada hasta que se cierra. Este
+		 * hilo pasa a leer las tramas de todos sus canales.
 		 * 
-		 * @return nickname Nickname del cliente
+		 * @throws IOException Si no es posible preparar la conexión
 		 */
-		private String getNickname() {
-			return this.nickname;
+		private void serveMultiplexed() throws IOException {
+			setAlive(false);
+			new MultiplexedConnection(ChatServerImpl.this, getThreadSocket(), getInput(), getOutput(), threads).run();
 		}
 
 		/**
-		 * Método que asigna un nickname de usuario al hilo del cliente en el servidor
-		 * 
-		 * @param nickname Nickname del usuario
-		 */
-		private void setNickname(String nickname) {
-			this.nickname = nickname;
-		}
-
-		/**
-		 * Método que devuelve el identificador del cliente asociado al hilo
-		 * 
-		 * @return clientId Identificador del cliente
+		 * Método que ejecuta el hilo escritor. Espera tramas en la cola de salida y
+		 * las escribe en el socket mientras la sesión esté activa, agrupando las
+		 * que llegan en ráfaga.
 		 */
-		private int getClientId() {
-			return this.clientId;
-		}
-
-		/**
-		 * Método que asigna el identificador del cliente al hilo asociado
-		 * 
-		 * @param id Identificador del cliente
-		 */
-		private void setClientId(int id) {
-			this.clientId = id;
+		private void writeLoop() {
+			CoalescingWriter batcher = new CoalescingWriter(getOutput(), getConfig().getFlushBytes(),
+					getConfig().getLingerMicros(), getWriteStats()) {
+				@Override
+				protected SharedFrame prepare(SharedFrame frame) {
+					// Enviar la versión comprimida si el cliente la ha negociado
+					return wire(frame);
+				}
+			};
+			try {
+				while (isAlive()) {
+					batcher.write(queue.take(), queue);
+				}
+			} catch (InterruptedException e) { // La sesión se ha cerrado
+				return;
+			} catch (IOException e) { // Capturar excepciones IOException
+				if (isAlive()) {
+					// Imprimir error
+					System.err.println("Error: No ha sido posible enviar el mensaje al cliente " + getNickname());
+					// Eliminar y cerrar el cliente con el que no se puede comunicar
+					connectionLost(this);
+					closeClient();
+				}
+			}
 		}
 
 		/**
-		 * Método que devuelve el valor del atributo threadAlive que indica si el hilo
-		 * está activo.
-		 * 
-		 * @return threadAlive Valor del atributo threadAlive
+		 * Método que avisa al escritor de que hay tramas nuevas. No es necesario, ya
+		 * que el escritor espera directamente sobre la cola.
 		 */
-		private boolean getThreadAlive() {
-			return this.threadAlive;
+		@Override
+		protected void wakeWriter() {
 		}
 
 		/**
-		 * Método que modifica el valor del atributo threadAlive con el valor booleano
-		 * pasado como argumento.
+		 * Método que devuelve el stream de salida del cliente
 		 * 
-		 * @param b Nuevo valor de threadAlive
+		 * @return output Stream de salida del cliente
 		 */
-		private void setThreadAlive(boolean b) {
-			this.threadAlive = b;
+		private OutputStream getOutput() {
+			return this.output;
 		}
 
 		/**
-		 * Método que procesa mensajes de tipo MESSAGE. Comprueba si el remitente se
-		 * encuentra bloqueado, en cuyo caso ignora el mensaje. Si no, comprueba si se
-		 * trata de un comando válido y toma la acción adecuada en cada caso. Si es un
-		 * comando, ejecuta el método correspondiente y, en caso contrario, se difunde
-		 * el mensaje.
+		 * Método que devuelve el stream de entrada del cliente
 		 * 
-		 * @param message Objeto de clase ChatMessage a procesar
+		 * @return input Stream de entrada del cliente
 		 */
-		private void processMsg(ChatMessage message) {
-			// Si remitente esta bloqueado ignoramos su mensaje
-			if (getusersBanned().getOrDefault(getNickname(), false)) {
-				return;
-			}
-			// Separar cada palabra del mensaje en una cadena distinta dentro de un array
-			String[] words = message.getMessage().split(" ");
-
-			if (words.length == 2) { // Si se tiene 2 cadenas en el mensaje
-				// Obtener primera cadena
-				String first = words[0];
-				// Obtener segunda cadena
-				String second = words[1];
-				switch (first) { // Decidir acción en función de la primera palabra
-				case "ban": // Si es ban
-					// Se supone la segunda palabra el nickname del usuario a bloquear
-					// Se bloquea al usuario
-					bannUser(second, true);
-					break;
-				case "unban": // Si es unban
-					// Se supone que la segunda palabra es el nickname del usuario a desbloquear
-					// Desbloquear usuario
-					bannUser(second, false);
-					break;
-				default:
-					// Si no es comando de bloqueo/desbloqueo se trata de un mensaje
-					// Difundir el mensaje
-					broadcast(message);
-					break;
-				}
-			} else { // Si se tiene otro número de palabras
-				// Difundir el mensaje
-				broadcast(message);
-			}
+		private DataInputStream getInput() {
+			return this.input;
 		}
 
 		/**
-		 * Método que conecta el cliente con el servidor al instanciar el thread del
-		 * cliente en el servidor. El método enía un mensaje de bienvenida al cliente
-		 * después de que el servidor acepte la conexión con el cliente. Recibe el
-		 * mensaje de petición que se envía desde el cliente con el nickname, el cual se
-		 * registra en el servidor. Se genera un identificador para el cliente y se le
-		 * envía con el mensaje de bienvenida.
+		 * Método que devuelve el socket del cliente
 		 * 
-		 * @throws IOException            Excepciones por problemas de conexión entre el
-		 *                                cliente y el servidor
-		 * @throws ClassNotFoundException Excepciones en caso de recibir un objeto de
-		 *                                clase inesperada
-		 */
-		private void connect() throws IOException, ClassNotFoundException {
-			// Obtener el mensaje de petición del cliente
-			ChatMessage loginMessage = (ChatMessage) getInput().readObject();
-			if (loginMessage.getType() == MessageType.MESSAGE) { // Si es de tipo MESSAGE
-				// Establecemos el nickname que se recibe en el cuerpo del mensaje
-				setNickname(loginMessage.getMessage());
-				// Registramos el usuario y el hilo asociado en el HashMap correspondiente
-				getUsers().put(getNickname(), this);
-				// Generamos y registramos el identificador del cliente
-				setClientId(getNextId());
-				getUserIds().put(id, getNickname());
-				// Enviar mensaje de bienvenida al cliente
-				sendWelcome();
-				// Imprimir en el servidor el número de clientes conectados
-				System.out.println("Clientes conectados actualmente: " + getUsers().size());
-			} else { // Si no es de tipo MESSAGE
-				// Imprimir error. No se esperan peticiones con mensajes LOGOUT o SHUTDOWN
-				System.err.println("Error: Mensaje de tipo inesperado. Abortando la conexión con el cliente.");
-				// Eliminar y cerrar el cliente en el servidor
-				remove(getClientId());
-				closeClient();
-				return;
-			}
-		}
-
-		/**
-		 * Método qeu envía el mensaje de bienvenida al nuevo cliente que se conecta al
-		 * servidor *
+		 * @return threadSocket Socket del cliente
 		 */
-		private void sendWelcome() {
-			try {
-				// Crear el cuerpo del mensaje
-				String welcomeMessage = String.format("Bienvenido al chat %s. Te hemos asignado el ID %d",
-						getNickname(), getClientId());
-				// Crear y enviar el mensaje al nuevo usuario
-				getOutput().writeObject(new ChatMessage(getClientId(), MessageType.MESSAGE, welcomeMessage));
-				// Imprimir mensaje en el servidor
-				System.out.println(getNickname() + " se ha conectado al chat.");
-				// Informar a todos los usuarios de la nueva incorporación al chat
-				broadcast(new ChatMessage(getClientId(), MessageType.MESSAGE, "Se ha conectado al chat."));
-			} catch (IOException e) { // Capturar excepciones IOException
-				// Imprimir error
-				System.err.println("Error: No se puede enviar el mensaje de bienvenida a " + getNickname());
-				// Eliminar y cerrar el clietne con el que no podemos comunicarnos
-				remove(getClientId());
-				closeClient();
-			}
+		private Socket getThreadSocket() {
+			return this.threadSocket;
 		}
 
 		/**
 		 * Método que cierra la conexión con el cliente. Cierra, en caso de que estén
-		 * activos, el ObjectInputStream del cliente, el ObjectOutputStream del cliente,
-		 * el socket del cliente y marca el thread como inactivo en threadAlive.
+		 * activos, el stream de entrada del cliente, el stream de salida del cliente,
+		 * el socket del cliente y marca el hilo como inactivo.
 		 */
-		private void closeClient() {
+		@Override
+		public void closeClient() {
 			try {
-				// Desactivar hilo
-				setThreadAlive(false);
-				// Cerrar ObjectInputStream si es no nulo
-				if (getInput() != null)
-					getInput().close();
-				// Cerrar ObjectOutputStream si es no nulo
-				if (getOutput() != null)
-					getOutput().close();
-				// Cerrar el socket del cliente si es no nulo
+				// Desactivar hilo y detener el escritor
+				setAlive(false);
+				if (writer != null && writer != Thread.currentThread())
+					writer.interrupt();
+				// Cerrar el socket del cliente si es no nulo. Cierra también sus streams
 				if (getThreadSocket() != null)
 					getThreadSocket().close();
 			} catch (IOException e) { // Capturar excepciones IOException
@@ -639,31 +1205,6 @@ public class ChatServerImpl implements ChatServer {
 			}
 		}
 
-		/**
-		 * Método que bloquea o desbloquea usuarios en función del valor del argumento
-		 * ban. Si vale true se bloquea al usuario y si vale false se desbloquea.
-		 * 
-		 * 
-		 * @param nickname Nickname del usuario a bloquear/desbloquear
-		 * @param ban      Opción para bloquear/desbloquear
-		 */
-		private void bannUser(String username, boolean ban) {
-			// Insertar usuario a lista de bloqueados o modificar su estado si ya se
-			// encuentra en la lista
-			getusersBanned().put(username, ban);
-			if (ban == true) { // Si se quiere bloquear
-				// Imprimir mensaje en el servidor
-				System.out.println(username + " ha bloqueado a " + getNickname() + " a las " + getTime());
-				// Informar a los participantes del bloqueo
-				broadcast(new ChatMessage(getClientId(), MessageType.MESSAGE, " ha bloqueado a " + username));
-			} else { // Si se quiere desbloquear
-				// Imprimir mensaje en el servidor
-				System.out.println(username + " ha sido desbloqueado por " + getNickname() + " a las " + getTime());
-				// Informar a todos los participantes del desbloqueo
-				broadcast(new ChatMessage(getClientId(), MessageType.MESSAGE, " ha desbloqueado a " + username));
-			}
-		}
-
 	}
 
-}
\ No newline at end of file
+}
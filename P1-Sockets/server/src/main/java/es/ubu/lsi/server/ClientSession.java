@@ -0,0 +1,827 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.util.List;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.server.ChatMetrics.DisconnectReason;
+
+/**
+ * Clase abstracta que representa la sesión de un cliente en el servidor.
+ *
+ * Contiene la lógica del protocolo del chat (registro, difusión de mensajes,
+ * salas, bloqueos, logout y shutdown) independientemente del transporte. Cada
+ * modo de ejecución del servidor proporciona una subclase que se encarga de
+ * recibir los mensajes del cliente y de escribir en la conexión las tramas de
+ * su cola de salida.
+ *
+ * Si el cliente lo pide al registrarse, la sesión puede reanudarse: cuando se
+ * pierde la conexión no se elimina, sino que se suspende durante un tiempo
+ * conservando su identificador, su sala y las tramas que se le siguen
+ * difundiendo, y el cliente puede recuperarla desde otra conexión (ver
+ * {@link SessionResumption}).
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public abstract class ClientSession {
+
+	/**
+	 * Método de compresión que admite el servidor
+	 */
+	static final String COMPRESSION_METHOD = "deflate";
+
+	/**
+	 * Servidor al que pertenece la sesión
+	 */
+	protected final ChatServerImpl server;
+
+	/**
+	 * Identificador del cliente
+	 */
+	private int clientId;
+
+	/**
+	 * Nickname del cliente asociado a la sesión
+	 */
+	private String nickname;
+
+	/**
+	 * Booleano que indica si la sesión está activa
+	 */
+	private volatile boolean alive;
+
+	/**
+	 * Booleano que indica si el usuario está bloqueado. Lo mantiene el registro
+	 * de sesiones
+	 */
+	private volatile boolean banned;
+
+	/**
+	 * Sala en la que se encuentra el cliente. La mantiene {@link ChatRooms}
+	 */
+	private volatile ChatRoom room;
+
+	/**
+	 * Cola acotada de tramas pendientes de enviar al cliente
+	 */
+	protected final OutboundQueue queue;
+
+	/**
+	 * Longitud mínima de las tramas que se comprimen para el cliente, o -1 si no
+	 * ha negociado la compresión
+	 */
+	private volatile int compressThreshold = -1;
+
+	/**
+	 * Contadores de compresión de la conexión
+	 */
+	private final CompressionStats compression = new CompressionStats();
+
+	/**
+	 * Número de tramas del flujo de la sesión que el cliente ha confirmado
+	 */
+	private volatile long acknowledged;
+
+	/**
+	 * Booleano que indica si el cliente confirma las tramas que recibe
+	 */
+	private volatile boolean acknowledging;
+
+	/**
+	 * Credencial para reanudar la sesión, o null si no puede reanudarse
+	 */
+	private volatile String resumeToken;
+
+	/**
+	 * Booleano que indica si la sesión ha perdido la conexión y se conserva a la
+	 * espera de que el cliente la reanude
+	 */
+	private volatile boolean parked;
+
+	/**
+	 * Sesión con la que el cliente ha reanudado ésta, a la que se reenvían las
+	 * tramas que aún le lleguen. Protegida por el monitor de la sesión
+	 */
+	private ClientSession successor;
+
+	/**
+	 * Método constructor. Instancia una sesión activa sin registrar.
+	 *
+	 * @param server Servidor al que pertenece la sesión
+	 */
+	protected ClientSession(ChatServerImpl server) {
+		this.server = server;
+		this.alive = true;
+		this.queue = server.getConfig().newOutboundQueue();
+	}
+
+	/**
+	 * Método que envía un mensaje dirigido sólo a este cliente.
+	 *
+	 * @param message Mensaje a enviar
+	 * @throws IOException Si no es posible enviar el mensaje
+	 */
+	public void send(ChatMessage message) throws IOException {
+		sendFrame(SharedFrame.of(message));
+	}
+
+	/**
+	 * Método que encola una trama para el cliente sin esperar a que se escriba.
+	 * La trama puede estar compartida con otros destinatarios, por lo que no se
+	 * modifica. Si la cola está llena se aplica su política de desbordamiento.
+	 *
+	 * @param frame Trama a enviar
+	 * @throws IOException Si la sesión está cerrada o hay que desconectar al
+	 *                     cliente por desbordamiento de su cola
+	 */
+	public void sendFrame(SharedFrame frame) throws IOException {
+		if (parked) {
+			sendParked(frame);
+			return;
+		}
+		if (!isAlive()) {
+			throw new IOException("Sesión cerrada");
+		}
+		if (!queue.offer(frame, canBlock())) {
+			throw new IOException("Cola de salida llena (" + queue.depth() + " tramas pendientes)");
+		}
+		if (parked) {
+			// Se ha suspendido entretanto: si ya se ha reanudado, pasar la trama a la
+			// nueva sesión
+			sendParked(null);
+			return;
+		}
+		wakeWriter();
+	}
+
+	/**
+	 * Método que entrega una trama a la sesión suspendida: la guarda en la cola
+	 * hasta que el cliente la reanude o, si ya lo ha hecho, la reenvía a la nueva
+	 * sesión junto con las que queden en la cola.
+	 *
+	 * @param frame Trama a enviar, o null para reenviar sólo las de la cola
+	 * @throws IOException Si la cola está llena y su política es desconectar
+	 */
+	private synchronized void sendParked(SharedFrame frame) throws IOException {
+		if (successor == null) {
+			if (frame != null && !queue.offer(frame, false)) {
+				throw new IOException("Cola de salida llena (" + queue.depth() + " tramas pendientes)");
+			}
+			return;
+		}
+		SharedFrame pending;
+		while ((pending = queue.poll()) != null) {
+			successor.sendFrame(pending);
+			queue.written(1);
+		}
+		if (frame != null) {
+			successor.sendFrame(frame);
+		}
+	}
+
+	/**
+	 * Método que avisa al escritor de la sesión de que hay tramas nuevas en la
+	 * cola.
+	 */
+	protected abstract void wakeWriter();
+
+	/**
+	 * Método que indica si el hilo actual puede esperar a que haya sitio en la
+	 * cola de salida.
+	 *
+	 * @return {@code true} si puede esperar
+	 */
+	protected boolean canBlock() {
+		return true;
+	}
+
+	/**
+	 * Método que devuelve la trama que se escribe en la conexión en lugar de la
+	 * extraída de la cola: su versión comprimida, compartida con el resto de
+	 * destinatarios, si el cliente ha negociado la compresión y la trama alcanza
+	 * el umbral. Lo invoca el escritor de la sesión, que también es el único que
+	 * actualiza los contadores de compresión.
+	 *
+	 * @param frame Trama extraída de la cola
+	 * @return wire Trama a escribir
+	 */
+	SharedFrame wire(SharedFrame frame) {
+		int threshold = compressThreshold;
+		if (threshold < 0) {
+			return frame;
+		}
+		if (frame.length() < threshold) {
+			compression.uncompressed(frame.length());
+			return frame;
+		}
+		return frame.compressed(compression);
+	}
+
+	/**
+	 * Método que indica si el cliente ha negociado la compresión.
+	 *
+	 * @return {@code true} si se le comprimen las tramas
+	 */
+	public boolean isCompressing() {
+		return compressThreshold >= 0;
+	}
+
+	/**
+	 * Método que devuelve los contadores de compresión de la conexión.
+	 *
+	 * @return compression Contadores de compresión
+	 */
+	public CompressionStats getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Método que anota la confirmación acumulada del cliente: el número de tramas
+	 * del flujo que ha recibido. Libera del anillo de tramas enviadas las ya
+	 * confirmadas, que no habrá que reenviar al reanudar la sesión. Se ignoran las
+	 * confirmaciones que no avanzan o que superan las tramas enviadas.
+	 *
+	 * @param ack Mensaje ACK con el número de tramas recibidas
+	 */
+	void acknowledge(ChatMessage ack) {
+		long received;
+		try {
+			received = Long.parseLong(ack.getMessage());
+		} catch (NumberFormatException e) { // Número de tramas incorrecto
+			return;
+		}
+		if (received <= acknowledged || received > queue.getSequence()) {
+			return;
+		}
+		HistoryRing sent = queue.getSent();
+		if (sent != null) {
+			sent.release(received);
+		}
+		// Publicar la confirmación cuando las tramas ya están liberadas
+		acknowledged = received;
+		acknowledging = true;
+	}
+
+	/**
+	 * Método que indica si el cliente confirma las tramas que recibe.
+	 *
+	 * @return {@code true} si ha enviado alguna confirmación
+	 */
+	public boolean isAcknowledging() {
+		return acknowledging;
+	}
+
+	/**
+	 * Método que devuelve el retraso del cliente: tramas que se le han enviado o
+	 * están en su cola y aún no ha confirmado.
+	 *
+	 * @return lag Tramas sin confirmar
+	 */
+	public long getLag() {
+		return queue.getSequence() + queue.depth() - acknowledged;
+	}
+
+	/**
+	 * Método que devuelve el número de tramas pendientes de enviar al cliente.
+	 *
+	 * @return depth Profundidad de la cola de salida
+	 */
+	public int getQueueDepth() {
+		return queue.depth();
+	}
+
+	/**
+	 * Método que indica si quedan tramas por escribir en la conexión, en la cola
+	 * de salida o ya extraídas de ella.
+	 *
+	 * @return {@code true} si quedan tramas pendientes
+	 */
+	boolean hasPendingOutput() {
+		return queue.hasUnwritten();
+	}
+
+	/**
+	 * Método que hace que la sesión pueda reanudarse: a partir de ahora se anotan
+	 * las tramas que se le envían.
+	 *
+	 * @param token   Credencial para reanudarla
+	 * @param backlog Número de tramas enviadas que se conservan
+	 */
+	void enableResume(String token, int backlog) {
+		this.queue.trackSent(new HistoryRing(backlog));
+		this.resumeToken = token;
+	}
+
+	/**
+	 * Método que suspende la sesión tras perder la conexión, si puede
+	 * reanudarse.
+	 *
+	 * @return {@code true} si se acaba de suspender, {@code false} si no puede
+	 *         reanudarse o ya estaba suspendida
+	 */
+	synchronized boolean suspend() {
+		if (resumeToken == null || parked) {
+			return false;
+		}
+		parked = true;
+		return true;
+	}
+
+	/**
+	 * Método que renuncia a reanudar la sesión suspendida, si nadie la ha
+	 * reanudado, para poder eliminarla.
+	 *
+	 * @return {@code true} si puede eliminarse
+	 */
+	synchronized boolean expire() {
+		if (successor != null) {
+			return false;
+		}
+		resumeToken = null;
+		parked = false;
+		return true;
+	}
+
+	/**
+	 * Método que entrega la sesión a la nueva conexión con la que el cliente la
+	 * reanuda. Si el servidor aún no había detectado la pérdida de la conexión
+	 * anterior, la cierra. La nueva sesión recibe el identificador, el nickname,
+	 * el estado de bloqueo y la credencial; después la respuesta de reanudación,
+	 * las tramas enviadas que el cliente no llegó a recibir y las que quedaban en
+	 * la cola, en ese orden. Las tramas que lleguen a esta sesión a partir de
+	 * ahora se reenvían a la nueva. La cola sólo se vacía si la entrega termina:
+	 * si falla, la sesión sigue suspendida con sus tramas a la espera de otro
+	 * intento.
+	 *
+	 * @param next     Sesión de la nueva conexión, aún sin registrar
+	 * @param token    Credencial que presenta el cliente
+	 * @param received Número de tramas que el cliente ha recibido
+	 * @param backlog  Número de tramas enviadas que se conservan
+	 * @return {@code true} si se ha entregado, {@code false} si la credencial o
+	 *         el número de tramas no son válidos o ya se ha reanudado
+	 * @throws IOException Si no es posible enviar las tramas a la nueva sesión
+	 */
+	synchronized boolean handOver(ClientSession next, String token, long received, int backlog) throws IOException {
+		HistoryRing sent = queue.getSent();
+		if (resumeToken == null || !resumeToken.equals(token) || successor != null || sent == null
+				|| received < 0 || received > sent.getNext()) {
+			return false;
+		}
+		if (!parked) { // El servidor aún no ha detectado la pérdida de la conexión
+			parked = true;
+			closeClient();
+		}
+		// Las tramas que se han perdido sin remedio se saltan: el cliente lo sabe
+		// porque el flujo continúa en un número mayor que el que ha pedido
+		List<SharedFrame> missed = sent.since(received);
+		long base = sent.getNext() - missed.size();
+		next.setClientId(getClientId());
+		next.setNickname(getNickname());
+		next.setBanned(isBanned());
+		next.queue.trackSent(new HistoryRing(backlog, base));
+		next.acknowledged = base;
+		next.acknowledging = acknowledging;
+		next.resumeToken = resumeToken;
+		next.send(new ChatMessage(getClientId(), MessageType.RESUME, resumeToken + " " + base));
+		for (SharedFrame frame : missed) {
+			next.sendFrame(frame);
+		}
+		// Copiar la cola sin extraerla por si la entrega falla
+		for (SharedFrame frame : queue.pending()) {
+			next.sendFrame(frame);
+		}
+		queue.clear();
+		successor = next;
+		return true;
+	}
+
+	/**
+	 * Método que devuelve la credencial para reanudar la sesión.
+	 *
+	 * @return resumeToken Credencial, o null si la sesión no puede reanudarse
+	 */
+	String getResumeToken() {
+		return this.resumeToken;
+	}
+
+	/**
+	 * Método que indica si la sesión está suspendida a la espera de que el
+	 * cliente la reanude.
+	 *
+	 * @return {@code true} si está suspendida
+	 */
+	public boolean isParked() {
+		return this.parked;
+	}
+
+	/**
+	 * Método que devuelve el número de tramas descartadas por desbordamiento de la
+	 * cola de salida.
+	 *
+	 * @return dropped Tramas descartadas
+	 */
+	public long getDroppedFrames() {
+		return queue.getDropped();
+	}
+
+	/**
+	 * Método que cierra la conexión con el cliente y marca la sesión como
+	 * inactiva.
+	 */
+	public abstract void closeClient();
+
+	/**
+	 * Método que procesa un mensaje recibido del cliente ya registrado. Toma la
+	 * acción determinada por el tipo del mensaje.
+	 *
+	 * @param message Mensaje recibido
+	 */
+	void handle(ChatMessage message) {
+		// Las confirmaciones y demás tramas de control no cuentan como mensajes
+		if (message.getType() == MessageType.MESSAGE || message.getType() == MessageType.LOGOUT
+				|| message.getType() == MessageType.SHUTDOWN) {
+			server.getMetrics().messageReceived();
+		}
+		// Realizar acciónes en función del tipo del mensaje
+		switch (message.getType()) {
+		case MESSAGE: // Si es de tipo MESSAGE
+			// Procesar mensaje
+			processMsg(message);
+			break;
+		case LOGOUT: // Si es de tipo LOGOUT
+			// Eliminar el cliente
+			server.remove(getClientId(), DisconnectReason.LOGOUT);
+			// Cerrar la conexión con el cliente
+			closeClient();
+			// Imprimir mensaje en el servidor
+			System.out.println("Se ha desconectado el usuario " + getNickname() + " a las " + server.getTime());
+			break;
+		case SHUTDOWN: // Si es mensaje de tipo SHUTDOWN
+			// Si el usuario es administrador
+			if (getNickname().equalsIgnoreCase("ADMIN")) {
+				// Apagar el servidor en otro hilo, informando a todos los participantes
+				// estén en la sala que estén. Este hilo debe seguir libre para que se
+				// escriban los últimos mensajes
+				server.requestShutdown(new ChatMessage(getClientId(), MessageType.LOGOUT, "Cerrando el servidor."));
+			} else { // Si no es administrador
+				// Informar al usuario que no dispone de permiso para apagar el servidor
+				System.out.println("Solo el administrador puede apagar el servidor.");
+			}
+			break;
+		case ACK: // Si es una confirmación de las tramas recibidas
+			acknowledge(message);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Método que registra al cliente a partir del mensaje de petición que envía al
+	 * conectarse con su nickname. Se genera un identificador para el cliente y se
+	 * le envía con el mensaje de bienvenida.
+	 *
+	 * @param loginMessage Mensaje de petición del cliente
+	 */
+	void login(ChatMessage loginMessage) {
+		server.getMetrics().messageReceived();
+		if (loginMessage.getType() == MessageType.COMPRESS) {
+			// Negociación de la compresión antes del registro
+			negotiateCompression(loginMessage);
+		} else if (loginMessage.getType() == MessageType.RESUME && loginMessage.getId() != 0) {
+			// Petición de reanudar una sesión anterior con su identificador
+			server.getResumption().resume(this, loginMessage);
+		} else if (loginMessage.getType() == MessageType.MESSAGE || loginMessage.getType() == MessageType.RESUME) {
+			// Si es de tipo MESSAGE, o RESUME para pedir una sesión que pueda reanudarse
+			// Establecemos el nickname que se recibe en el cuerpo del mensaje
+			setNickname(loginMessage.getMessage());
+			// Rechazar la conexión si el nickname ya está en uso en el servidor o en el
+			// clúster
+			if (server.isNicknameInUse(getNickname())) {
+				System.err.println("Error: El nickname " + getNickname() + " ya está en uso. Abortando la conexión.");
+				server.getMetrics().disconnected(DisconnectReason.REJECTED);
+				closeClient();
+				return;
+			}
+			// Generamos el identificador del cliente
+			setClientId(server.getNextId());
+			// Si lo pide, anotar desde la bienvenida las tramas enviadas para que pueda
+			// reanudar la sesión
+			boolean resumable = loginMessage.getType() == MessageType.RESUME;
+			if (resumable) {
+				server.getResumption().enable(this);
+			}
+			// Enviar mensaje de bienvenida al cliente antes de registrarlo, para que sea
+			// lo primero que recibe, seguido de la credencial
+			if (!sendWelcome() || (resumable && !sendResumeToken())) {
+				server.getMetrics().disconnected(DisconnectReason.SEND_FAILED);
+				return;
+			}
+			// Registramos el usuario en el servidor
+			if (!server.getSessions().register(this)) {
+				// Otro cliente se ha registrado con el mismo nickname entretanto
+				System.err.println("Error: El nickname " + getNickname() + " ya está en uso. Abortando la conexión.");
+				server.getMetrics().disconnected(DisconnectReason.REJECTED);
+				closeClient();
+				return;
+			}
+			// Informar a los demás nodos del clúster
+			if (server.getCluster() != null) {
+				server.getCluster().userJoined(getNickname());
+			}
+			// Unir al cliente a la sala por defecto y enviarle sus mensajes recientes,
+			// ordenados con la difusión de la sala para no perder ni repetir ninguno
+			server.getRooms().join(this, ChatRooms.DEFAULT_ROOM, true);
+			// Imprimir en el servidor el número de clientes conectados
+			System.out.println("Clientes conectados actualmente: " + server.getSessions().size());
+			// Informar a todos los usuarios de la nueva incorporación al chat
+			server.broadcast(new ChatMessage(getClientId(), MessageType.MESSAGE, "Se ha conectado al chat."));
+		} else { // Si no es de tipo MESSAGE
+			// Imprimir error. No se esperan peticiones con mensajes LOGOUT o SHUTDOWN
+			System.err.println("Error: Mensaje de tipo inesperado. Abortando la conexión con el cliente.");
+			// Eliminar y cerrar el cliente en el servidor
+			server.getMetrics().disconnected(DisconnectReason.REJECTED);
+			server.remove(getClientId());
+			closeClient();
+		}
+	}
+
+	/**
+	 * Método que responde a la petición de compresión que el cliente puede
+	 * enviar antes de registrarse. Si la acepta, la respuesta indica el método y
+	 * el umbral ("deflate 256") y a partir de ella se le comprimen las tramas que
+	 * alcancen el umbral; si no, la respuesta va vacía. La sesión sigue sin
+	 * registrar a la espera de la petición de registro.
+	 *
+	 * @param request Petición con el método de compresión
+	 */
+	private void negotiateCompression(ChatMessage request) {
+		int threshold = server.getConfig().getCompressThreshold();
+		boolean accepted = threshold >= 0 && COMPRESSION_METHOD.equals(request.getMessage());
+		try {
+			send(new ChatMessage(0, MessageType.COMPRESS, accepted ? COMPRESSION_METHOD + " " + threshold : ""));
+			if (accepted) {
+				// El cliente descomprime cualquier trama marcada, incluida la respuesta
+				compressThreshold = threshold;
+			}
+		} catch (IOException e) { // Capturar excepciones IOException
+			// Imprimir error
+			System.err.println("Error: No se ha podido responder a la petición de compresión.");
+			server.getMetrics().disconnected(DisconnectReason.SEND_FAILED);
+			closeClient();
+		}
+	}
+
+	/**
+	 * Método que procesa mensajes de tipo MESSAGE. Comprueba si el remitente se
+	 * encuentra bloqueado, en cuyo caso ignora el mensaje. Si no, comprueba si se
+	 * trata de un comando registrado ({@link CommandRegistry}), en cuyo caso lo
+	 * ejecuta y, en caso contrario, se difunde el mensaje.
+	 *
+	 * @param message Objeto de clase ChatMessage a procesar
+	 */
+	void processMsg(ChatMessage message) {
+		// Si remitente esta bloqueado ignoramos su mensaje
+		if (isBanned()) {
+			server.getMetrics().messageBanned();
+			return;
+		}
+		// Ejecutar el comando si lo es o difundir el mensaje
+		if (!server.getCommands().dispatch(this, message)) {
+			server.broadcast(message);
+		}
+	}
+
+	/**
+	 * Método que envía el mensaje de bienvenida al nuevo cliente que se conecta al
+	 * servidor.
+	 * 
+	 * @return {@code true} si se ha podido enviar
+	 */
+	boolean sendWelcome() {
+		try {
+			// Crear el cuerpo del mensaje
+			String welcomeMessage = String.format("Bienvenido al chat %s. Te hemos asignado el ID %d",
+					getNickname(), getClientId());
+			// Crear y enviar el mensaje al nuevo usuario
+			// La bienvenida nunca se descarta: el cliente la espera para registrarse
+			sendFrame(SharedFrame.pinned(new ChatMessage(getClientId(), MessageType.MESSAGE, welcomeMessage)));
+			// Imprimir mensaje en el servidor
+			System.out.println(getNickname() + " se ha conectado al chat.");
+			return true;
+		} catch (IOException e) { // Capturar excepciones IOException
+			// Imprimir error
+			System.err.println("Error: No se puede enviar el mensaje de bienvenida a " + getNickname());
+			// Cerrar el cliente con el que no podemos comunicarnos
+			closeClient();
+			return false;
+		}
+	}
+
+	/**
+	 * Método que envía al cliente la credencial con la que puede reanudar la
+	 * sesión, vacía si el servidor no conserva las sesiones.
+	 * 
+	 * @return {@code true} si se ha podido enviar
+	 */
+	boolean sendResumeToken() {
+		try {
+			String token = getResumeToken();
+			send(new ChatMessage(getClientId(), MessageType.RESUME, token == null ? "" : token));
+			return true;
+		} catch (IOException e) { // Capturar excepciones IOException
+			// Imprimir error
+			System.err.println("Error: No se puede enviar la credencial de la sesión a " + getNickname());
+			// Cerrar el cliente con el que no podemos comunicarnos
+			closeClient();
+			return false;
+		}
+	}
+
+	/**
+	 * Método que envía al cliente los mensajes recientes de una sala, codificados
+	 * tal como se difundieron.
+	 * 
+	 * @param room Sala
+	 * @return {@code true} si se han podido enviar
+	 */
+	boolean sendHistory(ChatRoom room) {
+		try {
+			room.replayTo(this);
+			return true;
+		} catch (IOException e) { // Capturar excepciones IOException
+			// Imprimir error
+			System.err.println("Error: No se pueden enviar los mensajes recientes a " + getNickname());
+			// Cerrar el cliente con el que no podemos comunicarnos
+			closeClient();
+			return false;
+		}
+	}
+
+	/**
+	 * Método que bloquea o desbloquea usuarios en función del valor del argumento
+	 * ban. Si vale true se bloquea al usuario y si vale false se desbloquea.
+	 *
+	 * @param username Nickname del usuario a bloquear/desbloquear
+	 * @param ban      Opción para bloquear/desbloquear
+	 */
+	void bannUser(String username, boolean ban) {
+		// Modificar el estado de bloqueo del usuario, esté o no conectado, también
+		// en los demás nodos del clúster
+		server.getSessions().setBanned(username, ban);
+		if (server.getCluster() != null) {
+			server.getCluster().banChanged(username, ban);
+		}
+		if (ban == true) { // Si se quiere bloquear
+			// Imprimir mensaje en el servidor
+			System.out.println(username + " ha bloqueado a " + getNickname() + " a las " + server.getTime());
+			// Informar a los participantes del bloqueo
+			server.broadcast(new ChatMessage(getClientId(), MessageType.MESSAGE, " ha bloqueado a " + username));
+		} else { // Si se quiere desbloquear
+			// Imprimir mensaje en el servidor
+			System.out.println(username + " ha sido desbloqueado por " + getNickname() + " a las " + server.getTime());
+			// Informar a todos los participantes del desbloqueo
+			server.broadcast(new ChatMessage(getClientId(), MessageType.MESSAGE, " ha desbloqueado a " + username));
+		}
+	}
+
+	/**
+	 * Método que mueve al cliente a una sala, creándola si no existe, le envía sus
+	 * mensajes recientes e informa a sus miembros.
+	 *
+	 * @param name Nombre de la sala
+	 */
+	void joinRoom(String name) {
+		// Cambiar de sala, con sus mensajes recientes si cada sala tiene su propio
+		// historial
+		server.getRooms().join(this, name, server.getConfig().getHistoryScope() == HistoryRing.Scope.ROOM);
+		// Imprimir mensaje en el servidor
+		System.out.println(getNickname() + " se ha unido a la sala " + name + " a las " + server.getTime());
+		// Informar a los miembros de la nueva sala
+		server.broadcast(new ChatMessage(getClientId(), MessageType.MESSAGE, "Se ha unido a la sala " + name));
+	}
+
+	/**
+	 * Método que saca al cliente de una sala y lo devuelve a la sala por defecto.
+	 * Se ignora si el cliente no está en esa sala.
+	 *
+	 * @param name Nombre de la sala
+	 */
+	void leaveRoom(String name) {
+		ChatRoom current = getRoom();
+		if (current == null || !current.getName().equals(name) || name.equals(ChatRooms.DEFAULT_ROOM)) {
+			return;
+		}
+		// Informar a los miembros de la sala antes de salir
+		server.broadcast(new ChatMessage(getClientId(), MessageType.MESSAGE, "Ha salido de la sala " + name));
+		// Volver a la sala por defecto
+		server.getRooms().join(this, ChatRooms.DEFAULT_ROOM);
+		// Imprimir mensaje en el servidor
+		System.out.println(getNickname() + " ha salido de la sala " + name + " a las " + server.getTime());
+	}
+
+	/**
+	 * Método que devuelve la sala en la que se encuentra el cliente.
+	 *
+	 * @return room Sala actual o null si no se ha registrado
+	 */
+	public ChatRoom getRoom() {
+		return this.room;
+	}
+
+	/**
+	 * Método que asigna la sala del cliente. Sólo lo invoca {@link ChatRooms}.
+	 *
+	 * @param room Sala actual
+	 */
+	void setRoom(ChatRoom room) {
+		this.room = room;
+	}
+
+	/**
+	 * Método que obtiene el nickname del cliente asociado a la sesión
+	 *
+	 * @return nickname Nickname del cliente
+	 */
+	public String getNickname() {
+		return this.nickname;
+	}
+
+	/**
+	 * Método que asigna un nickname de usuario a la sesión
+	 *
+	 * @param nickname Nickname del usuario
+	 */
+	void setNickname(String nickname) {
+		this.nickname = nickname;
+	}
+
+	/**
+	 * Método que devuelve el identificador del cliente asociado a la sesión
+	 *
+	 * @return clientId Identificador del cliente
+	 */
+	public int getClientId() {
+		return this.clientId;
+	}
+
+	/**
+	 * Método que asigna el identificador del cliente a la sesión
+	 *
+	 * @param id Identificador del cliente
+	 */
+	void setClientId(int id) {
+		this.clientId = id;
+	}
+
+	/**
+	 * Método que indica si el cliente ya se ha registrado en el servidor.
+	 *
+	 * @return {@code true} si el cliente tiene un nickname asignado
+	 */
+	boolean isLogged() {
+		return this.nickname != null;
+	}
+
+	/**
+	 * Método que devuelve el valor del atributo alive que indica si la sesión está
+	 * activa.
+	 *
+	 * @return alive Valor del atributo alive
+	 */
+	public boolean isAlive() {
+		return this.alive;
+	}
+
+	/**
+	 * Método que modifica el valor del atributo alive con el valor booleano pasado
+	 * como argumento.
+	 *
+	 * @param b Nuevo valor de alive
+	 */
+	void setAlive(boolean b) {
+		this.alive = b;
+	}
+
+	/**
+	 * Método que indica si el usuario de la sesión está bloqueado.
+	 *
+	 * @return banned {@code true} si está bloqueado
+	 */
+	public boolean isBanned() {
+		return this.banned;
+	}
+
+	/**
+	 * Método que modifica el estado de bloqueo de la sesión. Sólo lo invoca el
+	 * registro de sesiones.
+	 *
+	 * @param b Nuevo valor de banned
+	 */
+	void setBanned(boolean b) {
+		this.banned = b;
+	}
+}
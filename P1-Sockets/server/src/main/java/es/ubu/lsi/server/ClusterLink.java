@@ -0,0 +1,322 @@
+package es.ubu.lsi.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import es.ubu.lsi.common.ChatMessageEncoder;
+
+/**
+ * Enlace TCP entre dos nodos del clúster.
+ *
+ * Cada trama del enlace contiene una operación y una lista de campos de texto:
+ * {@code [op][número de campos]} seguidos de cada campo como
+ * {@code [longitud][bytes UTF-8]}. Un hilo lector aplica las operaciones
+ * recibidas en el nodo local y un hilo escritor vuelca la cola de salida del
+ * enlace, de modo que quien difunde un mensaje nunca espera a un nodo remoto.
+ * Si un nodo no consume su cola a tiempo se cierra el enlace.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+class ClusterLink {
+
+	/**
+	 * Presentación del nodo: nombre
+	 */
+	static final byte HELLO = 1;
+
+	/**
+	 * Usuario conectado en el nodo remitente: nickname
+	 */
+	static final byte USER_JOIN = 2;
+
+	/**
+	 * Usuario desconectado del nodo remitente: nickname
+	 */
+	static final byte USER_LEAVE = 3;
+
+	/**
+	 * Bloqueo de un usuario: nickname
+	 */
+	static final byte BAN = 4;
+
+	/**
+	 * Desbloqueo de un usuario: nickname
+	 */
+	static final byte UNBAN = 5;
+
+	/**
+	 * Mensaje a difundir: sala (vacía para todas), tipo, identificador y texto ya
+	 * formateado
+	 */
+	static final byte MESSAGE = 6;
+
+	/**
+	 * Número máximo de tramas pendientes de enviar al nodo remoto
+	 */
+	private static final int OUTBOX_CAPACITY = 4096;
+
+	/**
+	 * Nodo local
+	 */
+	private final ClusterNode node;
+
+	/**
+	 * Socket del enlace
+	 */
+	private final Socket socket;
+
+	/**
+	 * Dirección a la que se ha conectado este nodo, o null si el enlace lo abrió el
+	 * nodo remoto
+	 */
+	private final String dialedAddress;
+
+	/**
+	 * Tramas pendientes de enviar al nodo remoto
+	 */
+	private final BlockingQueue<byte[]> outbox = new LinkedBlockingQueue<byte[]>(OUTBOX_CAPACITY);
+
+	/**
+	 * Indica si el enlace se ha cerrado
+	 */
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	/**
+	 * Nombre del nodo remoto, conocido tras su presentación
+	 */
+	private volatile String peerName;
+
+	/**
+	 * Hilo escritor del enlace
+	 */
+	private Thread writer;
+
+	/**
+	 * Método constructor.
+	 *
+	 * @param node          Nodo local
+	 * @param socket        Socket conectado con el nodo remoto
+	 * @param dialedAddress Dirección a la que se ha conectado este nodo, o null si
+	 *                      el enlace lo abrió el nodo remoto
+	 */
+	ClusterLink(ClusterNode node, Socket socket, String dialedAddress) {
+		this.node = node;
+		this.socket = socket;
+		this.dialedAddress = dialedAddress;
+	}
+
+	/**
+	 * Método que inicia los hilos del enlace y envía la presentación del nodo
+	 * local.
+	 */
+	void start() {
+		send(HELLO, node.getName());
+		String peer = dialedAddress != null ? dialedAddress : String.valueOf(socket.getRemoteSocketAddress());
+		writer = daemon(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "chat-cluster-out-" + peer);
+		writer.start();
+		daemon(new Runnable() {
+			@Override
+			public void run() {
+				readLoop();
+			}
+		}, "chat-cluster-in-" + peer).start();
+	}
+
+	/**
+	 * Método que crea un hilo demonio para no impedir que termine la JVM.
+	 *
+	 * @param task Tarea del hilo
+	 * @param name Nombre del hilo
+	 * @return thread Hilo sin iniciar
+	 */
+	private static Thread daemon(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * Método que encola una trama para el nodo remoto sin esperar a que se
+	 * escriba. Si la cola está llena se cierra el enlace.
+	 *
+	 * @param op     Operación
+	 * @param fields Campos de la operación
+	 */
+	void send(byte op, String... fields) {
+		if (closed.get()) {
+			return;
+		}
+		if (!outbox.offer(encode(op, fields))) {
+			// Imprimir error
+			System.err.println("Error: El nodo " + peerName + " no consume sus mensajes. Cerrando el enlace.");
+			close();
+		}
+	}
+
+	/**
+	 * Método que codifica una trama del enlace.
+	 *
+	 * @param op     Operación
+	 * @param fields Campos de la operación
+	 * @return bytes Trama codificada
+	 */
+	static byte[] encode(byte op, String... fields) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(op);
+			out.writeByte(fields.length);
+			for (String field : fields) {
+				byte[] utf8 = field.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(utf8.length);
+				out.write(utf8);
+			}
+		} catch (IOException e) { // No se produce al escribir en memoria
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Método que lee los campos de una trama del enlace cuya operación ya se ha
+	 * leído.
+	 *
+	 * @param in Stream de entrada del enlace
+	 * @return fields Campos de la trama
+	 * @throws IOException Si se pierde la conexión o la trama es incorrecta
+	 */
+	static String[] readFields(DataInputStream in) throws IOException {
+		String[] fields = new String[in.readUnsignedByte()];
+		for (int i = 0; i < fields.length; i++) {
+			int length = in.readInt();
+			if (length < 0 || length > ChatMessageEncoder.MAX_FRAME_LENGTH) {
+				throw new StreamCorruptedException("Longitud de campo no válida: " + length);
+			}
+			byte[] utf8 = new byte[length];
+			in.readFully(utf8);
+			fields[i] = new String(utf8, StandardCharsets.UTF_8);
+		}
+		return fields;
+	}
+
+	/**
+	 * Método que ejecuta el hilo lector. Espera la presentación del nodo remoto y
+	 * aplica en el nodo local las operaciones recibidas hasta que se cierra el
+	 * enlace.
+	 */
+	private void readLoop() {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			// La primera trama debe ser la presentación
+			byte op = in.readByte();
+			String[] fields = readFields(in);
+			if (op != HELLO || fields.length != 1) {
+				throw new StreamCorruptedException("Se esperaba la presentación del nodo");
+			}
+			peerName = fields[0];
+			if (!node.attach(this)) {
+				close();
+				return;
+			}
+			while (!closed.get()) {
+				op = in.readByte();
+				node.apply(this, op, readFields(in));
+			}
+		} catch (IOException e) { // Capturar excepciones IOException
+			if (!closed.get()) {
+				// Imprimir error
+				System.err.println("Error: Conexión perdida con el nodo " + peerName);
+			}
+		} catch (RuntimeException e) { // Capturar errores inesperados al aplicar una operación
+			// Imprimir error
+			System.err.println("Error: Fallo inesperado en el enlace con el nodo " + peerName + ": " + e);
+		}
+		// Cerrar el enlace para que se retiren los usuarios del nodo remoto
+		close();
+	}
+
+	/**
+	 * Método que ejecuta el hilo escritor. Escribe las tramas encoladas y vacía el
+	 * búfer cuando la cola se queda vacía.
+	 */
+	private void writeLoop() {
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			while (!closed.get()) {
+				out.write(outbox.take());
+				byte[] frame;
+				while ((frame = outbox.poll()) != null) {
+					out.write(frame);
+				}
+				out.flush();
+			}
+		} catch (InterruptedException e) { // El enlace se ha cerrado
+			return;
+		} catch (IOException e) { // Capturar excepciones IOException
+			close();
+		}
+	}
+
+	/**
+	 * Método que cierra el enlace y lo desvincula del nodo local. Puede invocarse
+	 * varias veces desde cualquier hilo.
+	 */
+	void close() {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		if (writer != null && writer != Thread.currentThread()) {
+			writer.interrupt();
+		}
+		try {
+			socket.close();
+		} catch (IOException e) { // Capturar excepciones IOException
+			System.err.println("Error: No se ha podido cerrar el enlace con el nodo " + peerName);
+		}
+		node.detach(this);
+	}
+
+	/**
+	 * Método que indica si este nodo abrió el enlace.
+	 *
+	 * @return {@code true} si el enlace lo abrió este nodo
+	 */
+	boolean isOutbound() {
+		return dialedAddress != null;
+	}
+
+	/**
+	 * Método que devuelve la dirección a la que se ha conectado este nodo.
+	 *
+	 * @return dialedAddress Dirección o null si el enlace lo abrió el nodo remoto
+	 */
+	String getDialedAddress() {
+		return dialedAddress;
+	}
+
+	/**
+	 * Método que devuelve el nombre del nodo remoto.
+	 *
+	 * @return peerName Nombre del nodo o null si aún no se ha presentado
+	 */
+	String getPeerName() {
+		return peerName;
+	}
+}
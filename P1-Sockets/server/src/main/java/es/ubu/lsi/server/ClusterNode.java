@@ -0,0 +1,443 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import es.ubu.lsi.common.ChatMessage.MessageType;
+
+/**
+ * Nodo de un clúster de servidores de chat.
+ *
+ * Cada servidor mantiene sus propias sesiones y se enlaza por TCP con el resto
+ * de nodos. Los mensajes difundidos localmente se reenvían una única vez a cada
+ * nodo, que los difunde a su vez entre sus sesiones sin volver a reenviarlos.
+ * Los nodos se comunican también las conexiones, desconexiones y bloqueos de
+ * usuarios, de modo que los usuarios remotos cuentan al comprobar si un
+ * nickname está en uso y los bloqueos se aplican en todo el clúster.
+ *
+ * Un nodo se conecta periódicamente a los nodos configurados con los que no
+ * tenga enlace y acepta los enlaces que abren los demás, por lo que los nodos
+ * pueden arrancar en cualquier orden y unirse o abandonar el clúster sin
+ * reiniciar el resto. Si dos nodos abren a la vez un enlace entre ellos, ambos
+ * conservan el que abrió el nodo de menor nombre.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class ClusterNode {
+
+	/**
+	 * Tiempo máximo de espera en milisegundos al conectar con otro nodo
+	 */
+	private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+	/**
+	 * Servidor local
+	 */
+	private final ChatServerImpl server;
+
+	/**
+	 * Configuración del servidor local
+	 */
+	private final ServerConfig config;
+
+	/**
+	 * Nombre del nodo, único en el clúster
+	 */
+	private String name;
+
+	/**
+	 * Canal de escucha de los enlaces con otros nodos
+	 */
+	private ServerSocket listener;
+
+	/**
+	 * Tarea que se conecta periódicamente a los nodos configurados
+	 */
+	private ScheduledExecutorService dialer;
+
+	/**
+	 * Enlaces activos por nombre del nodo remoto
+	 */
+	private final ConcurrentHashMap<String, ClusterLink> links = new ConcurrentHashMap<String, ClusterLink>();
+
+	/**
+	 * Nombre del nodo alcanzado en cada dirección configurada
+	 */
+	private final ConcurrentHashMap<String, String> addressNames = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Usuarios conectados en otros nodos: nickname y nombre del nodo
+	 */
+	private final ConcurrentHashMap<String, String> remoteUsers = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Booleano que indica si el nodo está activo
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Método constructor. El nodo no escucha ni se conecta a otros nodos hasta
+	 * que se inicia.
+	 *
+	 * @param server Servidor local
+	 */
+	ClusterNode(ChatServerImpl server) {
+		this.server = server;
+		this.config = server.getConfig();
+	}
+
+	/**
+	 * Método que inicia el nodo: abre el canal de escucha de enlaces, acepta
+	 * los enlaces de otros nodos y se conecta periódicamente a los nodos
+	 * configurados.
+	 *
+	 * @throws IOException Si no es posible abrir el canal de escucha
+	 */
+	public void start() throws IOException {
+		listener = new ServerSocket(config.getClusterPort());
+		name = config.getClusterName() != null ? config.getClusterName() : defaultName(listener.getLocalPort());
+		running = true;
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+		}, "chat-cluster-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		dialer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				// Hilo demonio para no impedir que termine la JVM
+				Thread thread = new Thread(task, "chat-cluster-dial");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		dialer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				dialPeers();
+			}
+		}, 0, config.getClusterRetryMillis(), TimeUnit.MILLISECONDS);
+		// Imprimir mensaje
+		System.out.println("Nodo " + name + " del clúster escuchando por el puerto " + listener.getLocalPort());
+	}
+
+	/**
+	 * Método que devuelve el nombre predeterminado del nodo: nombre del equipo y
+	 * puerto de escucha de enlaces.
+	 *
+	 * @param port Puerto de escucha de enlaces
+	 * @return name Nombre del nodo
+	 */
+	private static String defaultName(int port) {
+		try {
+			return InetAddress.getLocalHost().getHostName() + ":" + port;
+		} catch (UnknownHostException e) { // Equipo sin nombre resoluble
+			return "localhost:" + port;
+		}
+	}
+
+	/**
+	 * Método que acepta enlaces de otros nodos mientras el nodo esté activo.
+	 */
+	private void acceptLoop() {
+		while (running) {
+			try {
+				Socket socket = listener.accept();
+				socket.setTcpNoDelay(true);
+				new ClusterLink(this, socket, null).start();
+			} catch (SocketException e) { // Se ha cerrado el canal de escucha
+				break;
+			} catch (IOException e) { // Capturar excepciones IOException
+				// Imprimir error
+				System.err.println("Error: No se puede aceptar el enlace con otro nodo.");
+			}
+		}
+	}
+
+	/**
+	 * Método que se conecta a los nodos configurados con los que no hay enlace.
+	 */
+	private void dialPeers() {
+		for (String address : config.getClusterPeers()) {
+			String peer = addressNames.get(address);
+			// Omitir los nodos enlazados y el propio nodo
+			if (!running || (peer != null && (peer.equals(name) || links.containsKey(peer)))) {
+				continue;
+			}
+			int separator = address.lastIndexOf(':');
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(address.substring(0, separator),
+						Integer.parseInt(address.substring(separator + 1))), CONNECT_TIMEOUT_MILLIS);
+				socket.setTcpNoDelay(true);
+				new ClusterLink(this, socket, address).start();
+			} catch (IOException e) { // El nodo aún no está disponible, se reintentará
+				try {
+					socket.close();
+				} catch (IOException ignored) { // No hay nada más que cerrar
+				}
+			}
+		}
+	}
+
+	/**
+	 * Método que vincula un enlace cuyo nodo remoto ya se ha presentado y le
+	 * envía el estado local: usuarios conectados y bloqueos. Si ya existe un enlace
+	 * con ese nodo sólo se conserva el que abrió el nodo de menor nombre.
+	 *
+	 * @param link Enlace presentado
+	 * @return {@code true} si se ha vinculado y {@code false} si debe cerrarse
+	 */
+	synchronized boolean attach(ClusterLink link) {
+		String peer = link.getPeerName();
+		if (peer.equals(name)) { // Enlace consigo mismo
+			if (link.isOutbound()) {
+				addressNames.put(link.getDialedAddress(), name);
+			}
+			return false;
+		}
+		if (link.isOutbound()) {
+			addressNames.put(link.getDialedAddress(), peer);
+		}
+		ClusterLink current = links.get(peer);
+		if (current != null) {
+			// Conservar el enlace que abrió el nodo de menor nombre
+			boolean keepOutbound = name.compareTo(peer) < 0;
+			if (current.isOutbound() == keepOutbound || link.isOutbound() != keepOutbound) {
+				return false;
+			}
+			links.put(peer, link);
+			current.close();
+		} else {
+			links.put(peer, link);
+			// Imprimir mensaje
+			System.out.println("Nodo " + peer + " unido al clúster a las " + server.getTime());
+		}
+		// Enviar el estado local al nodo remoto
+		for (ClientSession session : server.getSessions()) {
+			link.send(ClusterLink.USER_JOIN, session.getNickname());
+		}
+		for (String nickname : server.getSessions().getBanned()) {
+			link.send(ClusterLink.BAN, nickname);
+		}
+		return true;
+	}
+
+	/**
+	 * Método que desvincula un enlace cerrado. Si era el enlace vigente con su
+	 * nodo, olvida los usuarios de ese nodo.
+	 *
+	 * @param link Enlace cerrado
+	 */
+	synchronized void detach(ClusterLink link) {
+		String peer = link.getPeerName();
+		if (peer == null || !links.remove(peer, link)) {
+			return;
+		}
+		remoteUsers.values().removeAll(Collections.singleton(peer));
+		// Imprimir mensaje
+		System.out.println("Nodo " + peer + " fuera del clúster a las " + server.getTime());
+	}
+
+	/**
+	 * Método que aplica en el servidor local una operación recibida de otro nodo.
+	 * Las operaciones recibidas nunca se reenvían.
+	 *
+	 * @param link   Enlace por el que se ha recibido
+	 * @param op     Operación
+	 * @param fields Campos de la operación
+	 * @throws StreamCorruptedException Si la operación no tiene los campos
+	 *                                  esperados
+	 */
+	void apply(ClusterLink link, byte op, String[] fields) throws StreamCorruptedException {
+		switch (op) {
+		case ClusterLink.USER_JOIN:
+			expectFields(op, fields, 1);
+			remoteUsers.put(fields[0], link.getPeerName());
+			break;
+		case ClusterLink.USER_LEAVE:
+			expectFields(op, fields, 1);
+			remoteUsers.remove(fields[0], link.getPeerName());
+			break;
+		case ClusterLink.BAN:
+			expectFields(op, fields, 1);
+			server.getSessions().setBanned(fields[0], true);
+			break;
+		case ClusterLink.UNBAN:
+			expectFields(op, fields, 1);
+			server.getSessions().setBanned(fields[0], false);
+			break;
+		case ClusterLink.MESSAGE:
+			expectFields(op, fields, 4);
+			MessageType type;
+			int id;
+			try {
+				type = MessageType.valueOf(fields[1]);
+				id = Integer.parseInt(fields[2]);
+			} catch (IllegalArgumentException e) { // Tipo o identificador no válidos
+				throw new StreamCorruptedException("Mensaje no válido del nodo " + link.getPeerName());
+			}
+			server.deliverRemote(fields[0].isEmpty() ? null : fields[0], type, id, fields[3]);
+			break;
+		default:
+			// Imprimir error
+			System.err.println("Error: Operación desconocida " + op + " del nodo " + link.getPeerName());
+			break;
+		}
+	}
+
+	/**
+	 * Método que comprueba que una operación recibida tiene el número de campos
+	 * esperado.
+	 *
+	 * @param op       Operación
+	 * @param fields   Campos de la operación
+	 * @param expected Número de campos esperado
+	 * @throws StreamCorruptedException Si el número de campos no coincide
+	 */
+	private static void expectFields(byte op, String[] fields, int expected) throws StreamCorruptedException {
+		if (fields.length != expected) {
+			throw new StreamCorruptedException("La operación " + op + " tiene " + fields.length + " campos");
+		}
+	}
+
+	/**
+	 * Método que envía una operación a todos los nodos enlazados.
+	 *
+	 * @param op     Operación
+	 * @param fields Campos de la operación
+	 */
+	private void sendAll(byte op, String... fields) {
+		for (ClusterLink link : links.values()) {
+			link.send(op, fields);
+		}
+	}
+
+	/**
+	 * Método que reenvía a los demás nodos un mensaje ya formateado.
+	 *
+	 * @param room Nombre de la sala, o null para todas las sesiones
+	 * @param type Tipo del mensaje
+	 * @param id   Identificador del remitente
+	 * @param text Texto formateado del mensaje
+	 */
+	public void relay(String room, MessageType type, int id, String text) {
+		if (!links.isEmpty()) {
+			sendAll(ClusterLink.MESSAGE, room == null ? "" : room, type.name(), String.valueOf(id), text);
+		}
+	}
+
+	/**
+	 * Método que comunica a los demás nodos la conexión de un usuario local.
+	 *
+	 * @param nickname Nickname del usuario
+	 */
+	public void userJoined(String nickname) {
+		sendAll(ClusterLink.USER_JOIN, nickname);
+	}
+
+	/**
+	 * Método que comunica a los demás nodos la desconexión de un usuario local.
+	 *
+	 * @param nickname Nickname del usuario
+	 */
+	public void userLeft(String nickname) {
+		sendAll(ClusterLink.USER_LEAVE, nickname);
+	}
+
+	/**
+	 * Método que comunica a los demás nodos el bloqueo o desbloqueo de un usuario.
+	 *
+	 * @param nickname Nickname del usuario
+	 * @param ban      {@code true} para bloquear y {@code false} para desbloquear
+	 */
+	public void banChanged(String nickname, boolean ban) {
+		sendAll(ban ? ClusterLink.BAN : ClusterLink.UNBAN, nickname);
+	}
+
+	/**
+	 * Método que devuelve el nodo en el que está conectado un usuario remoto.
+	 *
+	 * @param nickname Nickname del usuario
+	 * @return node Nombre del nodo o null si no está conectado en otro nodo
+	 */
+	public String getNodeOf(String nickname) {
+		return remoteUsers.get(nickname);
+	}
+
+	/**
+	 * Método que devuelve los usuarios conectados en otros nodos.
+	 *
+	 * @return remoteUsers Pares nickname-nodo
+	 */
+	public Map<String, String> getRemoteUsers() {
+		return Collections.unmodifiableMap(remoteUsers);
+	}
+
+	/**
+	 * Método que devuelve los nombres de los nodos enlazados.
+	 *
+	 * @return peers Nombres de los nodos
+	 */
+	public Collection<String> getPeers() {
+		return Collections.unmodifiableSet(links.keySet());
+	}
+
+	/**
+	 * Método que devuelve el nombre del nodo.
+	 *
+	 * @return name Nombre del nodo
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Método que devuelve el puerto en el que el nodo acepta enlaces.
+	 *
+	 * @return port Puerto local del canal de escucha
+	 */
+	public int getLocalPort() {
+		return listener.getLocalPort();
+	}
+
+	/**
+	 * Método que detiene el nodo y cierra sus enlaces. Los demás nodos olvidan a
+	 * sus usuarios al perder el enlace.
+	 */
+	public void shutdown() {
+		running = false;
+		if (dialer != null) {
+			dialer.shutdownNow();
+		}
+		try {
+			if (listener != null) {
+				listener.close();
+			}
+		} catch (IOException e) { // Capturar excepciones IOException
+			System.err.println("Error: Fallo al cerrar el canal de escucha del clúster.");
+		}
+		for (ClusterLink link : links.values()) {
+			link.close();
+		}
+	}
+}
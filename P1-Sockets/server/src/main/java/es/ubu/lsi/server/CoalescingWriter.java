@@ -0,0 +1,181 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import es.ubu.lsi.server.WriteStats.FlushCause;
+
+/**
+ * Escritor que agrupa en una sola escritura las tramas pendientes de una
+ * conexión bloqueante.
+ *
+ * Si tras extraer una trama la cola está vacía, el tráfico es ligero y la
+ * trama se escribe de inmediato sin copiarla, por lo que la latencia de un
+ * mensaje aislado no empeora. Si hay más tramas esperando se trata de una
+ * ráfaga: se copian en un búfer hasta alcanzar el umbral de bytes o hasta que
+ * expira la ventana de espera, y se escriben con una sola llamada. El búfer se
+ * reserva con la primera ráfaga, así que las sesiones inactivas no lo ocupan.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class CoalescingWriter {
+
+	/**
+	 * Stream de salida de la conexión
+	 */
+	private final OutputStream out;
+
+	/**
+	 * Umbral de bytes a partir del cual se escribe el lote
+	 */
+	private final int flushBytes;
+
+	/**
+	 * Ventana de espera de más tramas en nanosegundos
+	 */
+	private final long lingerNanos;
+
+	/**
+	 * Contadores de escritura
+	 */
+	private final WriteStats stats;
+
+	/**
+	 * Búfer del lote en curso
+	 */
+	private byte[] batch;
+
+	/**
+	 * Bytes del lote en curso
+	 */
+	private int count;
+
+	/**
+	 * Tramas del lote en curso
+	 */
+	private int frames;
+
+	/**
+	 * Método constructor.
+	 *
+	 * @param out          Stream de salida de la conexión
+	 * @param flushBytes   Umbral de bytes a partir del cual se escribe el lote
+	 * @param lingerMicros Ventana de espera de más tramas en microsegundos (0 para
+	 *                     no esperar)
+	 * @param stats        Contadores de escritura
+	 */
+	public CoalescingWriter(OutputStream out, int flushBytes, long lingerMicros, WriteStats stats) {
+		this.out = out;
+		this.flushBytes = flushBytes;
+		this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+		this.stats = stats;
+	}
+
+	/**
+	 * Método que escribe una trama ya extraída de la cola junto con las que la
+	 * siguen, agrupándolas si llegan en ráfaga, y las descuenta de la cola una vez
+	 * escritas.
+	 *
+	 * @param first Trama extraída de la cola
+	 * @param queue Cola de salida de la sesión
+	 * @throws IOException          Si se pierde la conexión
+	 * @throws InterruptedException Si se interrumpe el hilo escritor
+	 */
+	public void write(SharedFrame first, OutboundQueue queue) throws IOException, InterruptedException {
+		first = prepare(first);
+		SharedFrame next = poll(queue);
+		if (next == null) { // Tráfico ligero: escribir de inmediato
+			out.write(first.bytes(), 0, first.length());
+			stats.record(FlushCause.IDLE, first.length(), 1);
+			queue.written(1);
+			return;
+		}
+		int extracted = 1;
+		// Ráfaga: agrupar hasta el umbral o hasta que expire la ventana
+		long deadline = System.nanoTime() + lingerNanos;
+		append(first);
+		FlushCause cause = FlushCause.IDLE;
+		while (next != null) {
+			append(next);
+			extracted++;
+			next = poll(queue);
+			if (next == null && lingerNanos > 0) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining > 0) {
+					next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (next != null) {
+						next = prepare(next);
+					}
+				}
+				cause = FlushCause.LINGER;
+			}
+		}
+		flush(cause);
+		queue.written(extracted);
+	}
+
+	/**
+	 * Método que extrae la siguiente trama de la cola sin esperar.
+	 *
+	 * @param queue Cola de salida de la sesión
+	 * @return frame Trama preparada para escribirla, o null si no hay más
+	 */
+	private SharedFrame poll(OutboundQueue queue) {
+		SharedFrame frame = queue.poll();
+		return frame == null ? null : prepare(frame);
+	}
+
+	/**
+	 * Método que devuelve la trama que se escribe en lugar de la extraída de la
+	 * cola. Por defecto es la misma; la sesión lo redefine para enviar la versión
+	 * comprimida.
+	 *
+	 * @param frame Trama extraída de la cola
+	 * @return frame Trama a escribir
+	 */
+	protected SharedFrame prepare(SharedFrame frame) {
+		return frame;
+	}
+
+	/**
+	 * Método que añade una trama al lote, escribiéndolo antes si no cabe.
+	 *
+	 * @param frame Trama a añadir
+	 * @throws IOException Si se pierde la conexión
+	 */
+	private void append(SharedFrame frame) throws IOException {
+		if (batch == null) {
+			batch = new byte[flushBytes];
+		}
+		if (frame.length() > batch.length - count) {
+			flush(FlushCause.SIZE);
+		}
+		if (frame.length() >= batch.length) { // Trama mayor que el búfer
+			out.write(frame.bytes(), 0, frame.length());
+			stats.record(FlushCause.SIZE, frame.length(), 1);
+			return;
+		}
+		System.arraycopy(frame.bytes(), 0, batch, count, frame.length());
+		count += frame.length();
+		frames++;
+	}
+
+	/**
+	 * Método que escribe el lote en curso, si no está vacío.
+	 *
+	 * @param cause Motivo de la escritura
+	 * @throws IOException Si se pierde la conexión
+	 */
+	private void flush(FlushCause cause) throws IOException {
+		if (count == 0) {
+			return;
+		}
+		out.write(batch, 0, count);
+		stats.record(cause, count, frames);
+		count = 0;
+		frames = 0;
+	}
+}
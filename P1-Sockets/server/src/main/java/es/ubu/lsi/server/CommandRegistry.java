@@ -0,0 +1,233 @@
+package es.ubu.lsi.server;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import es.ubu.lsi.common.ChatMessage;
+
+/**
+ * Registro de los comandos del chat.
+ *
+ * Un mensaje es un comando si su primera palabra es el nombre de un comando
+ * registrado y lo que sigue encaja con los argumentos que espera. Los comandos
+ * se guardan en una tabla indexada por la primera letra de su nombre, así que
+ * reconocer un comando sólo recorre el mensaje hasta el primer espacio y
+ * compara in situ con los pocos nombres que empiezan igual, sin trocear el
+ * mensaje ni crear objetos. Las líneas de chat normales no llegan a
+ * trocearse. Para añadir un comando basta con registrarlo.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class CommandRegistry {
+
+	/**
+	 * Argumentos que espera un comando.
+	 *
+	 * @author Eduardo Manuel Cabeza Lopez
+	 */
+	public enum Arguments {
+		/** Ninguno: el mensaje es sólo el nombre del comando. */
+		NONE,
+		/** Una única palabra tras el nombre. */
+		WORD,
+		/** Cualquier texto no vacío tras el nombre. */
+		TEXT;
+	}
+
+	/**
+	 * Acción de un comando.
+	 *
+	 * @author Eduardo Manuel Cabeza Lopez
+	 */
+	public interface Command {
+
+		/**
+		 * Método que ejecuta el comando.
+		 *
+		 * @param session  Sesión que envía el comando
+		 * @param message  Mensaje recibido
+		 * @param argument Argumento del comando, o null si no espera ninguno
+		 */
+		void execute(ClientSession session, ChatMessage message, String argument);
+	}
+
+	/**
+	 * Comando registrado con su nombre y sus argumentos
+	 *
+	 * @author Eduardo Manuel Cabeza Lopez
+	 */
+	private static final class Entry {
+
+		/**
+		 * Nombre del comando
+		 */
+		final String name;
+
+		/**
+		 * Argumentos que espera
+		 */
+		final Arguments arguments;
+
+		/**
+		 * Acción del comando
+		 */
+		final Command command;
+
+		/**
+		 * Método constructor.
+		 *
+		 * @param name      Nombre del comando
+		 * @param arguments Argumentos que espera
+		 * @param command   Acción del comando
+		 */
+		Entry(String name, Arguments arguments, Command command) {
+			this.name = name;
+			this.arguments = arguments;
+			this.command = command;
+		}
+	}
+
+	/**
+	 * Número de posiciones de la tabla de comandos
+	 */
+	private static final int BUCKETS = 128;
+
+	/**
+	 * Comandos indexados por la primera letra de su nombre. Cada posición se
+	 * sustituye entera al registrar, por lo que las búsquedas no necesitan
+	 * cerrojos
+	 */
+	private final AtomicReferenceArray<Entry[]> table = new AtomicReferenceArray<Entry[]>(BUCKETS);
+
+	/**
+	 * Método que devuelve un registro con los comandos del chat: ban, unban, join
+	 * y leave, seguidos de una palabra.
+	 *
+	 * @return registry Registro con los comandos predeterminados
+	 */
+	public static CommandRegistry withDefaults() {
+		CommandRegistry registry = new CommandRegistry();
+		registry.register("ban", Arguments.WORD, new Command() {
+			@Override
+			public void execute(ClientSession session, ChatMessage message, String argument) {
+				// Se supone que el argumento es el nickname del usuario a bloquear
+				session.bannUser(argument, true);
+			}
+		});
+		registry.register("unban", Arguments.WORD, new Command() {
+			@Override
+			public void execute(ClientSession session, ChatMessage message, String argument) {
+				// Se supone que el argumento es el nickname del usuario a desbloquear
+				session.bannUser(argument, false);
+			}
+		});
+		registry.register("join", Arguments.WORD, new Command() {
+			@Override
+			public void execute(ClientSession session, ChatMessage message, String argument) {
+				// Se supone que el argumento es el nombre de la sala
+				session.joinRoom(argument);
+			}
+		});
+		registry.register("leave", Arguments.WORD, new Command() {
+			@Override
+			public void execute(ClientSession session, ChatMessage message, String argument) {
+				// Se supone que el argumento es el nombre de la sala actual
+				session.leaveRoom(argument);
+			}
+		});
+		return registry;
+	}
+
+	/**
+	 * Método que registra un comando. Sustituye al comando con el mismo nombre y
+	 * argumentos si ya existía.
+	 *
+	 * @param name      Nombre del comando, una palabra no vacía
+	 * @param arguments Argumentos que espera
+	 * @param command   Acción del comando
+	 */
+	public synchronized void register(String name, Arguments arguments, Command command) {
+		if (name.isEmpty() || name.indexOf(' ') >= 0) {
+			throw new IllegalArgumentException("Nombre de comando no válido: '" + name + "'");
+		}
+		int bucket = bucket(name.charAt(0));
+		Entry[] entries = table.get(bucket);
+		Entry entry = new Entry(name, arguments, command);
+		if (entries == null) {
+			table.set(bucket, new Entry[] { entry });
+			return;
+		}
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i].name.equals(name) && entries[i].arguments == arguments) {
+				Entry[] copy = entries.clone();
+				copy[i] = entry;
+				table.set(bucket, copy);
+				return;
+			}
+		}
+		Entry[] copy = Arrays.copyOf(entries, entries.length + 1);
+		copy[entries.length] = entry;
+		table.set(bucket, copy);
+	}
+
+	/**
+	 * Método que ejecuta el comando de un mensaje si lo es.
+	 *
+	 * @param session Sesión que envía el mensaje
+	 * @param message Mensaje recibido
+	 * @return {@code true} si el mensaje era un comando y se ha ejecutado
+	 */
+	public boolean dispatch(ClientSession session, ChatMessage message) {
+		String text = message.getMessage();
+		if (text == null || text.isEmpty()) {
+			return false;
+		}
+		Entry[] entries = table.get(bucket(text.charAt(0)));
+		if (entries == null) { // Vía rápida: ningún comando empieza así
+			return false;
+		}
+		int space = text.indexOf(' ');
+		int nameLength = space < 0 ? text.length() : space;
+		for (Entry entry : entries) {
+			if (entry.name.length() == nameLength && text.regionMatches(0, entry.name, 0, nameLength)
+					&& accepts(entry.arguments, text, space)) {
+				entry.command.execute(session, message, space < 0 ? null : text.substring(space + 1));
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Método que comprueba si lo que sigue al nombre de un comando encaja con los
+	 * argumentos que espera.
+	 *
+	 * @param arguments Argumentos que espera el comando
+	 * @param text      Texto del mensaje
+	 * @param space     Posición del primer espacio, o -1 si no hay
+	 * @return {@code true} si los argumentos son válidos
+	 */
+	private static boolean accepts(Arguments arguments, String text, int space) {
+		switch (arguments) {
+		case NONE:
+			return space < 0;
+		case WORD:
+			return space >= 0 && space + 1 < text.length() && text.indexOf(' ', space + 1) < 0;
+		default:
+			return space >= 0 && space + 1 < text.length();
+		}
+	}
+
+	/**
+	 * Método que devuelve la posición de la tabla de los comandos que empiezan por
+	 * una letra.
+	 *
+	 * @param first Primera letra
+	 * @return bucket Posición de la tabla
+	 */
+	private static int bucket(char first) {
+		return first & (BUCKETS - 1);
+	}
+}
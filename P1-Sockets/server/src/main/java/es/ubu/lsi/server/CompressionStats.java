@@ -0,0 +1,130 @@
+package es.ubu.lsi.server;
+
+/**
+ * Contadores de compresión de la conexión de un cliente.
+ *
+ * Se registran los bytes de cada trama antes y después de comprimirla,
+ * incluidas las que se envían sin comprimir por no alcanzar el umbral, y el
+ * tiempo de CPU dedicado a comprimir. Como cada trama compartida se comprime
+ * una sola vez, el tiempo se anota sólo en la conexión que la comprimió; las
+ * demás la reutilizan sin coste. Los actualiza únicamente el escritor de la
+ * conexión.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class CompressionStats {
+
+	/**
+	 * Bytes de las tramas sin comprimir
+	 */
+	private volatile long rawBytes;
+
+	/**
+	 * Bytes enviados
+	 */
+	private volatile long wireBytes;
+
+	/**
+	 * Tramas enviadas comprimidas
+	 */
+	private volatile long compressedFrames;
+
+	/**
+	 * Tramas comprimidas reutilizadas de otra conexión
+	 */
+	private volatile long reusedFrames;
+
+	/**
+	 * Tiempo dedicado a comprimir en nanosegundos
+	 */
+	private volatile long cpuNanos;
+
+	/**
+	 * Método que registra una trama enviada sin comprimir.
+	 *
+	 * @param bytes Longitud de la trama
+	 */
+	void uncompressed(int bytes) {
+		rawBytes += bytes;
+		wireBytes += bytes;
+	}
+
+	/**
+	 * Método que registra una trama que ha pasado por la compresión. Si no se ha
+	 * reducido se envía tal cual, pero el tiempo dedicado cuenta igualmente.
+	 *
+	 * @param raw   Longitud de la trama original
+	 * @param wire  Longitud de la trama enviada
+	 * @param nanos Tiempo dedicado a comprimirla, o 0 si se ha reutilizado
+	 */
+	void compressed(int raw, int wire, long nanos) {
+		rawBytes += raw;
+		wireBytes += wire;
+		if (wire < raw) {
+			compressedFrames++;
+			if (nanos == 0) {
+				reusedFrames++;
+			}
+		}
+		cpuNanos += nanos;
+	}
+
+	/**
+	 * Método que devuelve los bytes de las tramas sin comprimir.
+	 *
+	 * @return rawBytes Bytes antes de comprimir
+	 */
+	public long getRawBytes() {
+		return rawBytes;
+	}
+
+	/**
+	 * Método que devuelve los bytes enviados.
+	 *
+	 * @return wireBytes Bytes después de comprimir
+	 */
+	public long getWireBytes() {
+		return wireBytes;
+	}
+
+	/**
+	 * Método que devuelve el número de tramas enviadas comprimidas.
+	 *
+	 * @return compressedFrames Tramas comprimidas
+	 */
+	public long getCompressedFrames() {
+		return compressedFrames;
+	}
+
+	/**
+	 * Método que devuelve el número de tramas comprimidas que ya había comprimido
+	 * otra conexión.
+	 *
+	 * @return reusedFrames Tramas reutilizadas
+	 */
+	public long getReusedFrames() {
+		return reusedFrames;
+	}
+
+	/**
+	 * Método que devuelve el tiempo dedicado a comprimir.
+	 *
+	 * @return cpuMicros Tiempo en microsegundos
+	 */
+	public long getCpuMicros() {
+		return cpuNanos / 1000;
+	}
+
+	/**
+	 * Método que devuelve la razón de compresión: bytes sin comprimir por cada
+	 * byte enviado.
+	 *
+	 * @return ratio Razón de compresión, o 1 si no se ha enviado nada
+	 */
+	public double getRatio() {
+		long wire = wireBytes;
+		return wire == 0 ? 1 : (double) rawBytes / wire;
+	}
+}
@@ -0,0 +1,218 @@
+package es.ubu.lsi.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Historial de las últimas tramas difundidas.
+ *
+ * Guarda las tramas ya codificadas en un anillo de tamaño fijo reservado al
+ * crearlo, de modo que la memoria no depende del tráfico. Quienes difunden
+ * escriben sin cerrojos: cada trama obtiene una posición de un contador atómico
+ * y sobrescribe la más antigua. Cada posición guarda la trama junto con su
+ * número de secuencia en una entrada inmutable que se publica de una vez, y
+ * sólo se sustituye por una entrada más reciente, así que con varios escritores
+ * que dan la vuelta al anillo a la vez prevalece siempre la trama más nueva. Una
+ * copia del historial sólo incluye tramas completas y en orden; si el anillo da
+ * la vuelta durante la copia, las tramas sobrescritas se omiten.
+ *
+ * También se usa para recordar las últimas tramas enviadas a una sesión que
+ * puede reanudarse; en ese caso el número de secuencia de cada trama es su
+ * posición en el flujo de la sesión, y las que el cliente confirma se liberan
+ * sin esperar a que se sobrescriban.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class HistoryRing {
+
+	/**
+	 * Ámbitos del historial.
+	 *
+	 * @author Eduardo Manuel Cabeza Lopez
+	 */
+	public enum Scope {
+		/** Cada sala tiene su propio historial. */
+		ROOM,
+		/** Todas las salas comparten un único historial. */
+		GLOBAL;
+	}
+
+	/**
+	 * Trama de una posición del anillo junto con su número de secuencia.
+	 */
+	private static final class Entry {
+
+		/**
+		 * Número de secuencia de la trama
+		 */
+		final long sequence;
+
+		/**
+		 * Trama ya codificada
+		 */
+		final SharedFrame frame;
+
+		/**
+		 * Método constructor.
+		 *
+		 * @param sequence Número de secuencia de la trama
+		 * @param frame    Trama ya codificada
+		 */
+		Entry(long sequence, SharedFrame frame) {
+			this.sequence = sequence;
+			this.frame = frame;
+		}
+	}
+
+	/**
+	 * Entradas del anillo
+	 */
+	private final AtomicReferenceArray<Entry> entries;
+
+	/**
+	 * Número de secuencia de la siguiente trama
+	 */
+	private final AtomicLong next;
+
+	/**
+	 * Número de secuencia de la primera trama
+	 */
+	private final long first;
+
+	/**
+	 * Número de tramas del anillo
+	 */
+	private final int capacity;
+
+	/**
+	 * Número de secuencia de la primera trama que no se ha liberado. Sólo lo
+	 * modifica quien confirma las tramas
+	 */
+	private volatile long released;
+
+	/**
+	 * Método constructor. Reserva un anillo vacío.
+	 *
+	 * @param capacity Número de tramas que se recuerdan
+	 */
+	public HistoryRing(int capacity) {
+		this(capacity, 0);
+	}
+
+	/**
+	 * Método constructor. Reserva un anillo vacío cuya primera trama tendrá el
+	 * número de secuencia indicado.
+	 *
+	 * @param capacity Número de tramas que se recuerdan
+	 * @param first    Número de secuencia de la primera trama
+	 */
+	public HistoryRing(int capacity, long first) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("El historial debe tener al menos una trama");
+		}
+		this.capacity = capacity;
+		this.first = first;
+		this.released = first;
+		this.next = new AtomicLong(first);
+		this.entries = new AtomicReferenceArray<Entry>(capacity);
+	}
+
+	/**
+	 * Método que añade una trama al historial, sustituyendo a la más antigua si
+	 * está lleno. Si otro escritor ya ha guardado en la misma posición una trama
+	 * más reciente, la trama añadida se descarta porque ya estaría sobrescrita.
+	 *
+	 * @param frame Trama ya codificada
+	 */
+	public void add(SharedFrame frame) {
+		long sequence = next.getAndIncrement();
+		int index = (int) (sequence % capacity);
+		Entry entry = new Entry(sequence, frame);
+		while (true) {
+			Entry current = entries.get(index);
+			if (current != null && current.sequence > sequence) {
+				return; // Ya sobrescrita por una trama más reciente
+			}
+			if (entries.compareAndSet(index, current, entry)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Método que devuelve una copia de las tramas del historial, de la más
+	 * antigua a la más reciente.
+	 *
+	 * @return frames Tramas del historial
+	 */
+	public List<SharedFrame> snapshot() {
+		return since(first);
+	}
+
+	/**
+	 * Método que devuelve una copia de las tramas del historial a partir de un
+	 * número de secuencia, de la más antigua a la más reciente. Si las primeras
+	 * ya se han sobrescrito, la copia empieza por la más antigua que se conserva.
+	 *
+	 * @param from Número de secuencia de la primera trama que se quiere
+	 * @return frames Tramas del historial desde ese número de secuencia
+	 */
+	public List<SharedFrame> since(long from) {
+		long end = next.get();
+		long start = Math.max(from, Math.max(first, end - capacity));
+		if (start >= end) {
+			return new ArrayList<SharedFrame>(0);
+		}
+		List<SharedFrame> copy = new ArrayList<SharedFrame>((int) (end - start));
+		for (long sequence = start; sequence < end; sequence++) {
+			Entry entry = entries.get((int) (sequence % capacity));
+			if (entry != null && entry.sequence == sequence) {
+				copy.add(entry.frame);
+			} // Si no, aún no escrita, liberada o ya sobrescrita
+		}
+		return copy;
+	}
+
+	/**
+	 * Método que libera las tramas anteriores a un número de secuencia, que ya no
+	 * se copiarán. Si una posición se está sobrescribiendo se respeta la trama
+	 * nueva.
+	 *
+	 * @param before Número de secuencia de la primera trama que se conserva
+	 */
+	public void release(long before) {
+		long end = Math.min(before, next.get());
+		long start = Math.max(released, end - capacity);
+		for (long sequence = start; sequence < end; sequence++) {
+			int index = (int) (sequence % capacity);
+			Entry entry = entries.get(index);
+			if (entry != null && entry.sequence == sequence) {
+				entries.compareAndSet(index, entry, null);
+			}
+		}
+		released = Math.max(released, end);
+	}
+
+	/**
+	 * Método que devuelve el número de secuencia de la siguiente trama, es decir,
+	 * el de la última añadida más uno.
+	 *
+	 * @return next Número de secuencia de la siguiente trama
+	 */
+	public long getNext() {
+		return next.get();
+	}
+
+	/**
+	 * Método que devuelve el número de tramas que recuerda el historial.
+	 *
+	 * @return capacity Capacidad del anillo
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+}
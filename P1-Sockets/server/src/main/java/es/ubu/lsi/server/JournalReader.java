@@ -0,0 +1,152 @@
+package es.ubu.lsi.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Lector secuencial del diario de mensajes ({@link ChatJournal}).
+ *
+ * Recorre los segmentos en orden proyectándolos en memoria de solo lectura, a
+ * partir de un número de secuencia. Puede leerse mientras el servidor escribe:
+ * al llegar al final de los datos {@link #next()} devuelve null y una llamada
+ * posterior continúa con los registros escritos después.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class JournalReader {
+
+	/**
+	 * Directorio del diario
+	 */
+	private final Path directory;
+
+	/**
+	 * Número de secuencia del primer registro que se devuelve
+	 */
+	private final long fromSequence;
+
+	/**
+	 * Segmento en curso, o null si aún no se ha abierto ninguno
+	 */
+	private Path current;
+
+	/**
+	 * Proyección del segmento en curso
+	 */
+	private MappedByteBuffer buffer;
+
+	/**
+	 * Número de secuencia del siguiente registro del segmento en curso
+	 */
+	private long expected;
+
+	/**
+	 * Método constructor.
+	 *
+	 * @param directory    Directorio del diario
+	 * @param fromSequence Número de secuencia del primer registro a devolver
+	 */
+	public JournalReader(Path directory, long fromSequence) {
+		this.directory = directory;
+		this.fromSequence = fromSequence;
+	}
+
+	/**
+	 * Método que devuelve el siguiente registro del diario.
+	 *
+	 * @return record Registro o null si no hay más registros por ahora
+	 * @throws IOException Si no es posible leer los segmentos
+	 */
+	public JournalRecord next() throws IOException {
+		while (true) {
+			if (buffer == null && !advance()) {
+				return null;
+			}
+			int start = buffer.position();
+			JournalRecord record = ChatJournal.readRecord(buffer, expected);
+			if (record != null) {
+				expected++;
+				if (record.getSequence() >= fromSequence) {
+					return record;
+				}
+				continue;
+			}
+			// Final de los datos del segmento: pasar al siguiente si existe
+			buffer.position(start);
+			if (!advance()) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Método que abre el segmento siguiente al actual, o el que contiene el
+	 * primer registro pedido si aún no se ha abierto ninguno. La proyección del
+	 * segmento en curso ve los registros que se escriben después de abrirlo.
+	 *
+	 * @return {@code true} si se ha abierto un segmento nuevo
+	 * @throws IOException Si no es posible abrir el segmento
+	 */
+	private boolean advance() throws IOException {
+		List<Path> segments = ChatJournal.listSegments(directory);
+		Path next = null;
+		for (Path segment : segments) {
+			if (current == null) {
+				// El último segmento que empieza antes del primer registro pedido
+				if (next == null || ChatJournal.firstSequence(segment) <= fromSequence) {
+					next = segment;
+				}
+			} else if (segment.compareTo(current) > 0) {
+				next = segment;
+				break;
+			}
+		}
+		if (next == null) {
+			return false;
+		}
+		try (FileChannel channel = FileChannel.open(next, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (NoSuchFileException e) { // Eliminado por la retención entretanto
+			return advance();
+		}
+		current = next;
+		expected = ChatJournal.firstSequence(next);
+		return true;
+	}
+
+	/**
+	 * Método principal. Exporta el diario a la salida estándar, un registro por
+	 * línea con los campos separados por tabuladores: secuencia, instante en
+	 * milisegundos, sala y texto.
+	 *
+	 * @param args Directorio del diario y, opcionalmente, el primer número de
+	 *             secuencia
+	 * @throws IOException Si no es posible leer el diario
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Uso: JournalReader <directorio> [secuencia inicial]");
+			System.exit(1);
+		}
+		JournalReader reader = new JournalReader(Paths.get(args[0]), args.length > 1 ? Long.parseLong(args[1]) : 1);
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+		JournalRecord record;
+		while ((record = reader.next()) != null) {
+			out.write(record.toString());
+			out.write('\n');
+		}
+		out.flush();
+	}
+}
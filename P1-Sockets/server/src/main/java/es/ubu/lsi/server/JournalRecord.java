@@ -0,0 +1,87 @@
+package es.ubu.lsi.server;
+
+/**
+ * Registro del diario de mensajes ({@link ChatJournal}).
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class JournalRecord {
+
+	/**
+	 * Número de secuencia del registro
+	 */
+	private final long sequence;
+
+	/**
+	 * Instante en milisegundos en que se difundió el mensaje
+	 */
+	private final long timeMillis;
+
+	/**
+	 * Sala del mensaje, vacía para los avisos a todas las salas
+	 */
+	private final String room;
+
+	/**
+	 * Texto formateado del mensaje
+	 */
+	private final String text;
+
+	/**
+	 * Método constructor.
+	 *
+	 * @param sequence   Número de secuencia
+	 * @param timeMillis Instante en milisegundos
+	 * @param room       Sala del mensaje
+	 * @param text       Texto formateado
+	 */
+	public JournalRecord(long sequence, long timeMillis, String room, String text) {
+		this.sequence = sequence;
+		this.timeMillis = timeMillis;
+		this.room = room;
+		this.text = text;
+	}
+
+	/**
+	 * Método que devuelve el número de secuencia del registro.
+	 *
+	 * @return sequence Número de secuencia
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Método que devuelve el instante en que se difundió el mensaje.
+	 *
+	 * @return timeMillis Instante en milisegundos
+	 */
+	public long getTimeMillis() {
+		return timeMillis;
+	}
+
+	/**
+	 * Método que devuelve la sala del mensaje.
+	 *
+	 * @return room Sala, vacía para los avisos a todas las salas
+	 */
+	public String getRoom() {
+		return room;
+	}
+
+	/**
+	 * Método que devuelve el texto formateado del mensaje.
+	 *
+	 * @return text Texto del mensaje
+	 */
+	public String getText() {
+		return text;
+	}
+
+	@Override
+	public String toString() {
+		return sequence + "\t" + timeMillis + "\t" + room + "\t" + text;
+	}
+}
@@ -0,0 +1,382 @@
+package es.ubu.lsi.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.ChatMessageDecoder;
+import es.ubu.lsi.server.WriteStats.FlushCause;
+
+/**
+ * Conexión que transporta las sesiones de muchos usuarios, pensada para los
+ * clientes que mantienen cientos de nicknames, como los bots.
+ *
+ * El cliente la abre enviando un mensaje MUX como primera trama y recibe otro
+ * MUX de confirmación. Desde entonces cada trama, en los dos sentidos, va
+ * precedida del número de canal (4 bytes en big-endian), que elige el cliente.
+ * La primera trama de un canal es la petición de registro con el nickname
+ * (tipo MESSAGE e id 0) y cada canal se atiende como una sesión más
+ * ({@link MultiplexedSession}), con su propio identificador, sala y cola de
+ * salida. Cuando el servidor cierra una sesión envía un MUX por su canal; un
+ * MUX del cliente por un canal abierto lo cierra como si se hubiera perdido su
+ * conexión.
+ *
+ * Un hilo lee las tramas y las entrega a la sesión de su canal, y otro da
+ * turnos a las sesiones con tramas pendientes y las escribe agrupadas,
+ * anteponiendo el canal a cada trama compartida. De este modo cientos de
+ * usuarios ocupan un socket y dos hilos del servidor.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class MultiplexedConnection implements Runnable {
+
+	/**
+	 * Longitud en bytes del número de canal que precede a cada trama
+	 */
+	public static final int CHANNEL_LENGTH = 4;
+
+	/**
+	 * Máximo de tramas que se escriben de una sesión en cada turno, para que una
+	 * sesión con mucho tráfico no retrase a las demás
+	 */
+	private static final int TURN_FRAMES = 64;
+
+	/**
+	 * Servidor al que pertenecen las sesiones
+	 */
+	private final ChatServerImpl server;
+
+	/**
+	 * Socket de la conexión
+	 */
+	private final Socket socket;
+
+	/**
+	 * Stream de entrada de la conexión
+	 */
+	private final DataInputStream input;
+
+	/**
+	 * Stream de salida de la conexión
+	 */
+	private final OutputStream output;
+
+	/**
+	 * Factoría con la que se crea el hilo escritor
+	 */
+	private final ThreadFactory threads;
+
+	/**
+	 * Sesiones abiertas, por canal
+	 */
+	private final ConcurrentHashMap<Integer, MultiplexedSession> channels = new ConcurrentHashMap<Integer, MultiplexedSession>();
+
+	/**
+	 * Sesiones con tramas pendientes, en orden de llegada
+	 */
+	private final LinkedBlockingQueue<MultiplexedSession> ready = new LinkedBlockingQueue<MultiplexedSession>();
+
+	/**
+	 * Trama del aviso de canal cerrado, compartida por todos los canales
+	 */
+	private final SharedFrame closeNotice;
+
+	/**
+	 * Lote en curso. Sólo lo usa el hilo escritor
+	 */
+	private final byte[] batch;
+
+	/**
+	 * Bytes del lote en curso
+	 */
+	private int count;
+
+	/**
+	 * Tramas del lote en curso
+	 */
+	private int frames;
+
+	/**
+	 * Indica si la conexión se ha cerrado
+	 */
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	/**
+	 * Hilo escritor
+	 */
+	private volatile Thread writer;
+
+	/**
+	 * Tramas de cada sesión extraídas de su cola y añadidas a un lote aún sin
+	 * escribir. Sólo lo usa el escritor
+	 */
+	private final Map<MultiplexedSession, Integer> batched = new HashMap<MultiplexedSession, Integer>();
+
+	/**
+	 * Método constructor.
+	 *
+	 * @param server  Servidor al que pertenecen las sesiones
+	 * @param socket  Socket de la conexión
+	 * @param input   Stream de entrada, ya leída la petición MUX
+	 * @param output  Stream de salida
+	 * @param threads Factoría con la que se crea el hilo escritor
+	 * @throws IOException Si no es posible codificar el aviso de canal cerrado
+	 */
+	MultiplexedConnection(ChatServerImpl server, Socket socket, DataInputStream input, OutputStream output,
+			ThreadFactory threads) throws IOException {
+		this.server = server;
+		this.socket = socket;
+		this.input = input;
+		this.output = output;
+		this.threads = threads;
+		this.closeNotice = SharedFrame.of(new ChatMessage(0, MessageType.MUX, ""));
+		this.batch = new byte[server.getConfig().getFlushBytes()];
+	}
+
+	/**
+	 * Método que confirma el modo multiplexado, lanza el hilo escritor y lee las
+	 * tramas de todos los canales hasta que se pierde la conexión. Se ejecuta en
+	 * el hilo que aceptó la conexión.
+	 */
+	@Override
+	public void run() {
+		server.multiplexedOpened(this);
+		try {
+			// Confirmar el modo antes de que el escritor empiece a usar el socket
+			output.write(closeNotice.bytes(), 0, closeNotice.length());
+			writer = threads.newThread(new Runnable() {
+				@Override
+				public void run() {
+					writeLoop();
+				}
+			});
+			writer.start();
+			while (!closed.get()) {
+				int channel = input.readInt();
+				dispatch(channel, ChatMessageDecoder.read(input));
+			}
+		} catch (IOException e) { // Capturar excepciones IOException
+			// El cliente que ya ha cerrado todos sus canales puede cerrar sin avisar
+			if (!closed.get() && !channels.isEmpty()) {
+				// Imprimir error
+				System.err.println("Error: Conexión multiplexada perdida con " + socket.getRemoteSocketAddress()
+						+ " (" + channels.size() + " sesiones)");
+			}
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Método que entrega un mensaje a la sesión de su canal, o la crea si es la
+	 * petición de registro de un canal nuevo.
+	 *
+	 * @param channel Canal del mensaje
+	 * @param message Mensaje recibido
+	 */
+	private void dispatch(int channel, ChatMessage message) {
+		MultiplexedSession session = channels.get(channel);
+		if (session == null) {
+			if (message.getType() != MessageType.MESSAGE || message.getId() != 0) {
+				// Mensaje de un canal ya cerrado que el cliente envió antes del aviso
+				return;
+			}
+			// Canal nuevo: registrar al usuario
+			session = new MultiplexedSession(server, this, channel);
+			channels.put(channel, session);
+			session.login(message);
+		} else if (message.getType() == MessageType.MUX) {
+			// El cliente abandona el canal
+			server.connectionLost(session);
+			session.closeClient();
+		} else {
+			session.handle(message);
+		}
+	}
+
+	/**
+	 * Método que da turno a una sesión con tramas pendientes, si no lo tiene ya.
+	 * Puede invocarse desde cualquier hilo.
+	 *
+	 * @param session Sesión de la conexión
+	 */
+	void schedule(MultiplexedSession session) {
+		if (session.markScheduled()) {
+			ready.add(session);
+		}
+	}
+
+	/**
+	 * Método que retira una sesión cerrada por el servidor y programa el envío del
+	 * aviso de canal cerrado.
+	 *
+	 * @param session Sesión cerrada
+	 */
+	void closed(MultiplexedSession session) {
+		channels.remove(session.getChannel(), session);
+		schedule(session);
+	}
+
+	/**
+	 * Método que ejecuta el hilo escritor. Atiende por turnos a las sesiones con
+	 * tramas pendientes y escribe el lote cuando ya no queda ninguna.
+	 */
+	private void writeLoop() {
+		try {
+			while (!closed.get()) {
+				MultiplexedSession session = ready.take();
+				do {
+					writeTurn(session);
+				} while ((session = ready.poll()) != null);
+				flush(FlushCause.IDLE);
+			}
+		} catch (InterruptedException e) { // La conexión se ha cerrado
+			return;
+		} catch (IOException e) { // Capturar excepciones IOException
+			if (!closed.get()) {
+				// Imprimir error
+				System.err.println("Error: No ha sido posible escribir en la conexión multiplexada con "
+						+ socket.getRemoteSocketAddress());
+				close();
+			}
+		}
+	}
+
+	/**
+	 * Método que escribe en el lote las tramas pendientes de una sesión, como
+	 * mucho {@link #TURN_FRAMES}, y le vuelve a dar turno si quedan más. Si la
+	 * sesión está cerrada y ya no le quedan tramas, añade el aviso de canal
+	 * cerrado.
+	 *
+	 * @param session Sesión con turno
+	 * @throws IOException Si se pierde la conexión
+	 */
+	private void writeTurn(MultiplexedSession session) throws IOException {
+		session.clearScheduled();
+		int written = 0;
+		SharedFrame frame;
+		while (written < TURN_FRAMES && (frame = session.queue.poll()) != null) {
+			append(session.getChannel(), session.wire(frame));
+			written++;
+		}
+		if (written > 0) {
+			// Descontarlas de la cola cuando se escriba el lote
+			Integer previous = batched.get(session);
+			batched.put(session, previous == null ? written : previous + written);
+		}
+		if (written == TURN_FRAMES) {
+			schedule(session);
+		} else if (!session.isAlive() && session.claimCloseNotice()) {
+			append(session.getChannel(), closeNotice);
+		}
+	}
+
+	/**
+	 * Método que añade al lote una trama precedida de su canal, escribiendo antes
+	 * el lote si no cabe.
+	 *
+	 * @param channel Canal de la trama
+	 * @param frame   Trama compartida
+	 * @throws IOException Si se pierde la conexión
+	 */
+	private void append(int channel, SharedFrame frame) throws IOException {
+		int length = CHANNEL_LENGTH + frame.length();
+		if (length > batch.length - count) {
+			flush(FlushCause.SIZE);
+		}
+		if (length > batch.length) { // Trama mayor que el búfer
+			byte[] header = new byte[CHANNEL_LENGTH];
+			writeChannel(channel, header, 0);
+			output.write(header);
+			output.write(frame.bytes(), 0, frame.length());
+			server.getWriteStats().record(FlushCause.SIZE, length, 1);
+			return;
+		}
+		writeChannel(channel, batch, count);
+		System.arraycopy(frame.bytes(), 0, batch, count + CHANNEL_LENGTH, frame.length());
+		count += length;
+		frames++;
+	}
+
+	/**
+	 * Método que escribe el lote en curso, si no está vacío.
+	 *
+	 * @param cause Motivo de la escritura
+	 * @throws IOException Si se pierde la conexión
+	 */
+	private void flush(FlushCause cause) throws IOException {
+		if (count == 0) {
+			return;
+		}
+		output.write(batch, 0, count);
+		server.getWriteStats().record(cause, count, frames);
+		count = 0;
+		frames = 0;
+		for (Map.Entry<MultiplexedSession, Integer> entry : batched.entrySet()) {
+			entry.getKey().queue.written(entry.getValue());
+		}
+		batched.clear();
+	}
+
+	/**
+	 * Método que escribe un número de canal en big-endian.
+	 *
+	 * @param channel Canal
+	 * @param dest    Array de destino
+	 * @param pos     Posición de escritura
+	 */
+	private static void writeChannel(int channel, byte[] dest, int pos) {
+		dest[pos] = (byte) (channel >>> 24);
+		dest[pos + 1] = (byte) (channel >>> 16);
+		dest[pos + 2] = (byte) (channel >>> 8);
+		dest[pos + 3] = (byte) channel;
+	}
+
+
+	/**
+	 * Método que devuelve el número de sesiones abiertas en la conexión.
+	 *
+	 * @return sessions Número de canales abiertos
+	 */
+	public int getSessionCount() {
+		return channels.size();
+	}
+
+	/**
+	 * Método que cierra la conexión. Las sesiones que sigan abiertas se tratan
+	 * como si hubieran perdido su conexión. Puede invocarse desde cualquier hilo y
+	 * sólo la primera llamada tiene efecto.
+	 */
+	void close() {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		for (MultiplexedSession session : channels.values()) {
+			if (session.isAlive() && session.getClientId() != 0) {
+				server.connectionLost(session);
+			}
+			session.closeClient();
+		}
+		if (writer != null) {
+			writer.interrupt();
+		}
+		try {
+			socket.close();
+		} catch (IOException e) { // Capturar excepciones IOException
+			// Imprimir error
+			System.err.println("Error: No se ha podido cerrar la conexión multiplexada.");
+		}
+		server.multiplexedClosed(this);
+	}
+}
@@ -0,0 +1,108 @@
+package es.ubu.lsi.server;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sesión de un cliente que comparte la conexión con otras a través de un canal
+ * de una {@link MultiplexedConnection}.
+ *
+ * Tiene su propio identificador, nickname, sala y cola de salida como
+ * cualquier otra sesión, pero no tiene hilos ni socket propios: el hilo lector
+ * de la conexión le entrega los mensajes de su canal y el escritor vacía su
+ * cola cuando le llega el turno.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class MultiplexedSession extends ClientSession {
+
+	/**
+	 * Conexión que transporta la sesión
+	 */
+	private final MultiplexedConnection connection;
+
+	/**
+	 * Canal de la sesión en la conexión
+	 */
+	private final int channel;
+
+	/**
+	 * Indica si la sesión ya está en la cola de turnos del escritor
+	 */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	/**
+	 * Indica si ya se ha enviado al cliente el aviso de canal cerrado
+	 */
+	private final AtomicBoolean closeNoticed = new AtomicBoolean();
+
+	/**
+	 * Método constructor. Instancia una sesión sin registrar para un canal.
+	 *
+	 * @param server     Servidor al que pertenece la sesión
+	 * @param connection Conexión que transporta la sesión
+	 * @param channel    Canal de la sesión
+	 */
+	MultiplexedSession(ChatServerImpl server, MultiplexedConnection connection, int channel) {
+		super(server);
+		this.connection = connection;
+		this.channel = channel;
+	}
+
+	/**
+	 * Método que devuelve el canal de la sesión.
+	 *
+	 * @return channel Canal en la conexión
+	 */
+	int getChannel() {
+		return this.channel;
+	}
+
+	/**
+	 * Método que pide turno al escritor de la conexión.
+	 */
+	@Override
+	protected void wakeWriter() {
+		connection.schedule(this);
+	}
+
+	/**
+	 * Método que marca la sesión como pendiente de turno.
+	 *
+	 * @return {@code true} si no lo estaba ya
+	 */
+	boolean markScheduled() {
+		return scheduled.compareAndSet(false, true);
+	}
+
+	/**
+	 * Método que desmarca la sesión como pendiente de turno. Lo invoca el
+	 * escritor antes de vaciar la cola, de modo que una trama encolada entretanto
+	 * vuelve a pedir turno.
+	 */
+	void clearScheduled() {
+		scheduled.set(false);
+	}
+
+	/**
+	 * Método que reserva el envío del aviso de canal cerrado, que sólo se envía
+	 * una vez.
+	 *
+	 * @return {@code true} si aún no se había enviado
+	 */
+	boolean claimCloseNotice() {
+		return closeNoticed.compareAndSet(false, true);
+	}
+
+	/**
+	 * Método que cierra la sesión sin cerrar la conexión, que sigue atendiendo a
+	 * las demás. El escritor envía las tramas que queden en la cola y después el
+	 * aviso de canal cerrado.
+	 */
+	@Override
+	public void closeClient() {
+		setAlive(false);
+		connection.closed(this);
+	}
+}
@@ -0,0 +1,411 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+
+/**
+ * Cola acotada de tramas pendientes de enviar a un cliente.
+ *
+ * Quien difunde un mensaje sólo encola la trama; el escritor de la sesión la
+ * extrae y la escribe en la conexión. Cuando la cola está llena se aplica la
+ * política de desbordamiento configurada, de modo que un cliente lento no
+ * retrasa la entrega al resto de participantes. Si se descartan tramas, la
+ * siguiente que extrae el escritor es un aviso DROPPED con el número de tramas
+ * descartadas, para que el cliente sepa que le faltan.
+ *
+ * Si la sesión puede reanudarse, cada trama que extrae el escritor se anota
+ * además en un anillo de tramas enviadas, para reenviar las que el cliente no
+ * llegó a recibir si pierde la conexión.
+ *
+ * Cada trama extraída recibe implícitamente el siguiente número de secuencia
+ * del flujo de la sesión, el mismo que cuenta el cliente y que confirma con
+ * los mensajes ACK. Los avisos de tramas descartadas ocupan una posición del
+ * flujo como cualquier otra trama. Las respuestas de los protocolos de
+ * reanudación y de compresión no forman parte del flujo.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class OutboundQueue {
+
+	/**
+	 * Políticas aplicadas cuando la cola de un cliente está llena.
+	 *
+	 * @author Eduardo Manuel Cabeza Lopez
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Se descartan los mensajes más antiguos para hacer sitio a la nueva trama.
+		 * La bienvenida, las tramas de control y los avisos no se descartan; si no
+		 * queda ningún mensaje que descartar se desconecta al cliente.
+		 */
+		DROP_OLDEST,
+		/** Se desconecta al cliente. */
+		DISCONNECT,
+		/**
+		 * Se espera hasta un tiempo máximo a que haya sitio y, si no lo hay, se
+		 * desconecta al cliente.
+		 */
+		BLOCK;
+	}
+
+	/**
+	 * Tramas pendientes de enviar
+	 */
+	private final ArrayBlockingQueue<SharedFrame> frames;
+
+	/**
+	 * Política de desbordamiento
+	 */
+	private final OverflowPolicy policy;
+
+	/**
+	 * Tiempo máximo de espera en milisegundos con la política BLOCK
+	 */
+	private final long blockTimeoutMillis;
+
+	/**
+	 * Número de tramas descartadas por desbordamiento
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Número de tramas descartadas de las que aún no se ha avisado al cliente
+	 */
+	private final AtomicLong unnoticed = new AtomicLong();
+
+	/**
+	 * Número de tramas encoladas o ya extraídas que el escritor aún no ha escrito
+	 */
+	private final AtomicInteger unwritten = new AtomicInteger();
+
+	/**
+	 * Últimas tramas extraídas por el escritor, o null si no se anotan
+	 */
+	private volatile HistoryRing sent;
+
+	/**
+	 * Número de secuencia de la siguiente trama extraída
+	 */
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * Método constructor. Instancia una cola vacía.
+	 *
+	 * @param capacity           Número máximo de tramas pendientes
+	 * @param policy             Política de desbordamiento
+	 * @param blockTimeoutMillis Tiempo máximo de espera con la política BLOCK
+	 */
+	public OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeoutMillis) {
+		this.frames = new ArrayBlockingQueue<SharedFrame>(capacity);
+		this.policy = policy;
+		this.blockTimeoutMillis = blockTimeoutMillis;
+	}
+
+	/**
+	 * Método que encola una trama aplicando la política de desbordamiento si la
+	 * cola está llena.
+	 *
+	 * @param frame    Trama a encolar
+	 * @param mayBlock Indica si el hilo que encola puede esperar. Si es false la
+	 *                 política BLOCK se comporta como DISCONNECT
+	 * @return {@code true} si la trama se ha encolado y {@code false} si se debe
+	 *         desconectar al cliente
+	 */
+	public boolean offer(SharedFrame frame, boolean mayBlock) {
+		// Contarla antes de encolarla, de modo que nunca parezca ya escrita
+		unwritten.incrementAndGet();
+		if (enqueue(frame, mayBlock)) {
+			return true;
+		}
+		unwritten.decrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Método que encola una trama ya contada aplicando la política de
+	 * desbordamiento si la cola está llena.
+	 *
+	 * @param frame    Trama a encolar
+	 * @param mayBlock Indica si el hilo que encola puede esperar
+	 * @return {@code true} si la trama se ha encolado
+	 */
+	private boolean enqueue(SharedFrame frame, boolean mayBlock) {
+		if (frames.offer(frame)) {
+			return true;
+		}
+		switch (policy) {
+		case DROP_OLDEST: // Hacer sitio descartando los mensajes más antiguos
+			while (!frames.offer(frame)) {
+				SharedFrame oldest = oldestEvictable();
+				if (oldest == null) { // Sólo quedan tramas que no se pueden descartar
+					return false;
+				}
+				if (frames.remove(oldest)) { // Si el escritor no la ha extraído ya
+					dropped.incrementAndGet();
+					unnoticed.incrementAndGet();
+					unwritten.decrementAndGet();
+				}
+			}
+			return true;
+		case BLOCK: // Esperar a que el escritor haga sitio
+			if (mayBlock) {
+				try {
+					return frames.offer(frame, blockTimeoutMillis, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) { // Capturar interrupciones
+					Thread.currentThread().interrupt();
+				}
+			}
+			return false;
+		default: // DISCONNECT
+			return false;
+		}
+	}
+
+	/**
+	 * Método que busca la trama más antigua de la cola que puede descartarse.
+	 *
+	 * @return frame Trama más antigua que puede descartarse, o null si no hay
+	 */
+	private SharedFrame oldestEvictable() {
+		for (SharedFrame frame : frames) {
+			if (frame.isEvictable()) {
+				return frame;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Método que espera y extrae la siguiente trama pendiente.
+	 *
+	 * @return frame Siguiente trama
+	 * @throws InterruptedException Si se interrumpe el hilo escritor
+	 */
+	public SharedFrame take() throws InterruptedException {
+		SharedFrame notice = notice();
+		return sent(notice != null ? notice : frames.take());
+	}
+
+	/**
+	 * Método que devuelve la siguiente trama pendiente sin extraerla.
+	 *
+	 * @return frame Siguiente trama o null si la cola está vacía
+	 */
+	public SharedFrame peek() {
+		return frames.peek();
+	}
+
+	/**
+	 * Método que extrae la siguiente trama pendiente sin esperar.
+	 *
+	 * @return frame Siguiente trama o null si la cola está vacía
+	 */
+	public SharedFrame poll() {
+		SharedFrame notice = notice();
+		return sent(notice != null ? notice : frames.poll());
+	}
+
+	/**
+	 * Método que extrae la siguiente trama pendiente esperando como máximo el
+	 * tiempo indicado.
+	 *
+	 * @param timeout Tiempo máximo de espera
+	 * @param unit    Unidad del tiempo de espera
+	 * @return frame Siguiente trama o null si no llega ninguna a tiempo
+	 * @throws InterruptedException Si se interrumpe el hilo escritor
+	 */
+	public SharedFrame poll(long timeout, TimeUnit unit) throws InterruptedException {
+		SharedFrame notice = notice();
+		return sent(notice != null ? notice : frames.poll(timeout, unit));
+	}
+
+	/**
+	 * Método que devuelve el aviso de las tramas descartadas desde el último, si
+	 * se ha descartado alguna. Lo extrae el escritor antes que el siguiente
+	 * mensaje, pero después de las tramas que no se descartan, como la
+	 * bienvenida, que el cliente espera antes que cualquier otra.
+	 *
+	 * @return notice Aviso DROPPED con el número de tramas descartadas, o null
+	 */
+	private SharedFrame notice() {
+		long count = unnoticed.get();
+		if (count == 0) {
+			return null;
+		}
+		SharedFrame head = frames.peek();
+		if (head != null && !head.isEvictable()) {
+			return null;
+		}
+		// Contar el aviso antes de dejar de contar las tramas que sustituye
+		unwritten.incrementAndGet();
+		unnoticed.addAndGet(-count);
+		return notice(count);
+	}
+
+	/**
+	 * Método que codifica el aviso de tramas descartadas.
+	 *
+	 * @param count Número de tramas descartadas
+	 * @return notice Aviso DROPPED
+	 */
+	private static SharedFrame notice(long count) {
+		try {
+			return SharedFrame.of(new ChatMessage(0, MessageType.DROPPED, Long.toString(count)));
+		} catch (IOException e) { // No se produce al codificar en memoria
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Método que numera una trama extraída y la anota en el anillo de tramas
+	 * enviadas. Las respuestas de los protocolos de reanudación y de compresión
+	 * no forman parte del flujo de la sesión y no se numeran ni se anotan.
+	 *
+	 * @param frame Trama extraída, o null
+	 * @return frame La misma trama
+	 */
+	private SharedFrame sent(SharedFrame frame) {
+		if (frame == null || frame.isControl()) {
+			return frame;
+		}
+		sequence.incrementAndGet();
+		HistoryRing ring = sent;
+		if (ring != null) {
+			ring.add(frame);
+		}
+		return frame;
+	}
+
+	/**
+	 * Método que empieza a anotar las tramas extraídas en un anillo de tramas
+	 * enviadas. La numeración del flujo continúa en la siguiente trama del
+	 * anillo.
+	 *
+	 * @param ring Anillo de tramas enviadas
+	 */
+	void trackSent(HistoryRing ring) {
+		this.sequence.set(ring.getNext());
+		this.sent = ring;
+	}
+
+	/**
+	 * Método que devuelve el anillo de tramas enviadas.
+	 *
+	 * @return sent Anillo de tramas enviadas, o null si no se anotan
+	 */
+	HistoryRing getSent() {
+		return this.sent;
+	}
+
+	/**
+	 * Método que devuelve el número de secuencia de la siguiente trama que se
+	 * extraiga, es decir, el número de tramas del flujo ya extraídas.
+	 *
+	 * @return sequence Número de secuencia de la siguiente trama
+	 */
+	public long getSequence() {
+		return sequence.get();
+	}
+
+	/**
+	 * Método que devuelve un iterador sobre las tramas pendientes en orden de
+	 * envío.
+	 *
+	 * @return iterator Iterador débilmente consistente
+	 */
+	public Iterator<SharedFrame> iterator() {
+		return frames.iterator();
+	}
+
+	/**
+	 * Método que devuelve una copia de las tramas pendientes en orden de envío,
+	 * sin extraerlas ni numerarlas. El aviso de las tramas descartadas, si lo
+	 * hay, va en el mismo lugar en que lo extraería el escritor.
+	 *
+	 * @return frames Tramas pendientes
+	 */
+	List<SharedFrame> pending() {
+		List<SharedFrame> copy = new ArrayList<SharedFrame>(frames.size() + 1);
+		long count = unnoticed.get();
+		for (SharedFrame frame : frames) {
+			if (count > 0 && frame.isEvictable()) {
+				copy.add(notice(count));
+				count = 0;
+			}
+			copy.add(frame);
+		}
+		if (count > 0) {
+			copy.add(notice(count));
+		}
+		return copy;
+	}
+
+	/**
+	 * Método que indica si no quedan tramas pendientes.
+	 *
+	 * @return {@code true} si la cola está vacía
+	 */
+	public boolean isEmpty() {
+		return frames.isEmpty() && unnoticed.get() == 0;
+	}
+
+	/**
+	 * Método que devuelve el número de tramas pendientes, contando el aviso de
+	 * tramas descartadas si queda alguno por extraer.
+	 *
+	 * @return depth Profundidad actual de la cola
+	 */
+	public int depth() {
+		return frames.size() + (unnoticed.get() > 0 ? 1 : 0);
+	}
+
+	/**
+	 * Método que devuelve el número de tramas descartadas por desbordamiento.
+	 *
+	 * @return dropped Tramas descartadas
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Método que vacía la cola descartando las tramas pendientes.
+	 */
+	public void clear() {
+		unnoticed.set(0);
+		unwritten.addAndGet(-frames.drainTo(new ArrayList<SharedFrame>()));
+	}
+
+	/**
+	 * Método que descuenta las tramas extraídas que el escritor ya ha escrito en
+	 * la conexión o ha entregado a otra sesión.
+	 *
+	 * @param count Número de tramas escritas
+	 */
+	public void written(int count) {
+		unwritten.addAndGet(-count);
+	}
+
+	/**
+	 * Método que indica si quedan tramas por escribir, en la cola o ya extraídas
+	 * por el escritor. Como las tramas se cuentan antes de encolarlas y se
+	 * descuentan después de escribirlas, no hay un momento en que una trama en
+	 * camino no cuente.
+	 *
+	 * @return {@code true} si quedan tramas sin escribir
+	 */
+	public boolean hasUnwritten() {
+		return unwritten.get() > 0 || unnoticed.get() > 0;
+	}
+}
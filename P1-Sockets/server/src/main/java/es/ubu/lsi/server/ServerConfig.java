@@ -0,0 +1,959 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+
+import es.ubu.lsi.server.ChatAcceptor.Balance;
+import es.ubu.lsi.server.ChatJournal.FsyncPolicy;
+import es.ubu.lsi.server.HistoryRing.Scope;
+import es.ubu.lsi.server.OutboundQueue.OverflowPolicy;
+
+/**
+ * Configuración del servidor de chat.
+ *
+ * Todos los valores tienen un valor predeterminado y pueden sobrescribirse con
+ * los métodos set o, desde la línea de comandos, con propiedades del sistema
+ * {@code -Dchat.<propiedad>=<valor>} (ver {@link #fromSystemProperties()}).
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class ServerConfig {
+
+	/**
+	 * Puerto de escucha
+	 */
+	private int port = 1500;
+
+	/**
+	 * Modo de ejecución
+	 */
+	private ServerMode mode = ServerMode.THREADS;
+
+	/**
+	 * Número máximo de tramas pendientes por cliente
+	 */
+	private int queueCapacity = 1024;
+
+	/**
+	 * Política de desbordamiento de la cola de cada cliente
+	 */
+	private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+	/**
+	 * Tiempo máximo de espera en milisegundos con la política BLOCK
+	 */
+	private long blockTimeoutMillis = 500;
+
+	/**
+	 * Umbral de bytes a partir del cual se escribe un lote de tramas
+	 */
+	private int flushBytes = 16 * 1024;
+
+	/**
+	 * Ventana en microsegundos durante la que se esperan más tramas de una ráfaga
+	 */
+	private long lingerMicros = 200;
+
+	/**
+	 * Longitud mínima en bytes de las tramas que se comprimen para los clientes
+	 * que lo piden. Con -1 no se admite la compresión
+	 */
+	private int compressThreshold = 256;
+
+	/**
+	 * Número de hilos que difunden los mensajes de las salas. Con 0 se difunden
+	 * en el hilo que recibe el mensaje
+	 */
+	private int fanoutThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Número de bucles de eventos entre los que se reparten las conexiones en
+	 * modo NIO
+	 */
+	private int reactorThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Criterio de reparto de las conexiones entre los bucles de eventos
+	 */
+	private Balance reactorBalance = Balance.ROUND_ROBIN;
+
+	/**
+	 * Número de mensajes recientes que se envían a los clientes al conectarse o
+	 * cambiar de sala. Con 0 no se guarda historial
+	 */
+	private int historySize = 20;
+
+	/**
+	 * Ámbito del historial de mensajes recientes
+	 */
+	private Scope historyScope = Scope.ROOM;
+
+	/**
+	 * Tiempo máximo en milisegundos que se espera a vaciar las colas al apagar
+	 */
+	private long shutdownDrainMillis = 1000;
+
+	/**
+	 * Tiempo en milisegundos que se conserva la sesión de un cliente que ha
+	 * perdido la conexión, o 0 para no conservarla
+	 */
+	private long resumeTimeoutMillis = 30000;
+
+	/**
+	 * Número de tramas ya enviadas que se conservan por sesión para reenviarlas
+	 * al reanudarla
+	 */
+	private int resumeBacklog = 256;
+
+	/**
+	 * Patrón de las marcas de tiempo de los mensajes
+	 */
+	private String timePattern = "HH:mm";
+
+	/**
+	 * Zona horaria de las marcas de tiempo de los mensajes
+	 */
+	private String timeZone = TimeZone.getDefault().getID();
+
+	/**
+	 * Periodo en milisegundos con el que se refrescan las marcas de tiempo
+	 */
+	private long clockTickMillis = 1000;
+
+	/**
+	 * Puerto en el que se aceptan enlaces de otros nodos del clúster. Con -1 el
+	 * servidor no forma parte de ningún clúster
+	 */
+	private int clusterPort = -1;
+
+	/**
+	 * Nombre del nodo en el clúster, o null para usar el nombre del equipo y el
+	 * puerto de enlaces
+	 */
+	private String clusterName;
+
+	/**
+	 * Direcciones host:puerto de los demás nodos del clúster
+	 */
+	private List<String> clusterPeers = Collections.emptyList();
+
+	/**
+	 * Periodo en milisegundos con el que se reintenta conectar con los nodos sin
+	 * enlace
+	 */
+	private long clusterRetryMillis = 2000;
+
+	/**
+	 * Directorio del diario de mensajes, o null para no guardarlos
+	 */
+	private String journalDir;
+
+	/**
+	 * Tamaño en bytes de cada segmento del diario
+	 */
+	private int journalSegmentBytes = 64 * 1024 * 1024;
+
+	/**
+	 * Política de sincronización del diario con el disco
+	 */
+	private FsyncPolicy journalFsync = FsyncPolicy.INTERVAL;
+
+	/**
+	 * Periodo en milisegundos de la sincronización periódica del diario
+	 */
+	private long journalFsyncMillis = 1000;
+
+	/**
+	 * Tamaño total máximo de los segmentos del diario, o 0 sin límite
+	 */
+	private long journalRetainBytes = 1024L * 1024 * 1024;
+
+	/**
+	 * Antigüedad máxima en milisegundos de los segmentos del diario, o 0 sin
+	 * límite
+	 */
+	private long journalRetainMillis;
+
+	/**
+	 * Método que crea una configuración con los valores predeterminados
+	 * sobrescritos por las propiedades del sistema {@code chat.port},
+	 * {@code chat.mode}, {@code chat.queue.capacity}, {@code chat.queue.policy},
+	 * {@code chat.queue.blockTimeout}, {@code chat.write.flushBytes},
+	 * {@code chat.write.lingerMicros}, {@code chat.compress.threshold},
+	 * {@code chat.fanout.threads},
+	 * {@code chat.reactors}, {@code chat.reactor.balance}, {@code chat.history.size},
+	 * {@code chat.history.scope}, {@code chat.shutdown.drainMillis},
+	 * {@code chat.resume.timeoutMillis}, {@code chat.resume.backlog},
+	 * {@code chat.time.pattern},
+	 * {@code chat.time.zone}, {@code chat.time.tick}, {@code chat.cluster.port},
+	 * {@code chat.cluster.name}, {@code chat.cluster.peers},
+	 * {@code chat.cluster.retry}, {@code chat.journal.dir},
+	 * {@code chat.journal.segmentBytes}, {@code chat.journal.fsync},
+	 * {@code chat.journal.fsyncMillis}, {@code chat.journal.retainBytes} y
+	 * {@code chat.journal.retainMillis}.
+	 *
+	 * @return config Configuración resultante
+	 * @throws IllegalArgumentException Si alguna propiedad tiene un valor no
+	 *                                  válido
+	 */
+	public static ServerConfig fromSystemProperties() {
+		ServerConfig config = new ServerConfig();
+		config.setPort(Integer.getInteger("chat.port", config.getPort()));
+		config.setMode(ServerMode.valueOf(System.getProperty("chat.mode", config.getMode().name()).toUpperCase()));
+		config.setQueueCapacity(Integer.getInteger("chat.queue.capacity", config.getQueueCapacity()));
+		config.setOverflowPolicy(OverflowPolicy
+				.valueOf(System.getProperty("chat.queue.policy", config.getOverflowPolicy().name()).toUpperCase()));
+		config.setBlockTimeoutMillis(Long.getLong("chat.queue.blockTimeout", config.getBlockTimeoutMillis()));
+		config.setFlushBytes(Integer.getInteger("chat.write.flushBytes", config.getFlushBytes()));
+		config.setLingerMicros(Long.getLong("chat.write.lingerMicros", config.getLingerMicros()));
+		config.setCompressThreshold(Integer.getInteger("chat.compress.threshold", config.getCompressThreshold()));
+		config.setFanoutThreads(Integer.getInteger("chat.fanout.threads", config.getFanoutThreads()));
+		config.setReactorThreads(Integer.getInteger("chat.reactors", config.getReactorThreads()));
+		config.setReactorBalance(
+				Balance.valueOf(System.getProperty("chat.reactor.balance", config.getReactorBalance().name()).toUpperCase()));
+		config.setHistorySize(Integer.getInteger("chat.history.size", config.getHistorySize()));
+		config.setHistoryScope(
+				Scope.valueOf(System.getProperty("chat.history.scope", config.getHistoryScope().name()).toUpperCase()));
+		config.setShutdownDrainMillis(Long.getLong("chat.shutdown.drainMillis", config.getShutdownDrainMillis()));
+		config.setResumeTimeoutMillis(Long.getLong("chat.resume.timeoutMillis", config.getResumeTimeoutMillis()));
+		config.setResumeBacklog(Integer.getInteger("chat.resume.backlog", config.getResumeBacklog()));
+		config.setTimePattern(System.getProperty("chat.time.pattern", config.getTimePattern()));
+		config.setTimeZone(System.getProperty("chat.time.zone", config.getTimeZone()));
+		config.setClockTickMillis(Long.getLong("chat.time.tick", config.getClockTickMillis()));
+		config.setClusterPort(Integer.getInteger("chat.cluster.port", config.getClusterPort()));
+		config.setClusterName(System.getProperty("chat.cluster.name", config.getClusterName()));
+		config.setClusterPeers(parsePeers(System.getProperty("chat.cluster.peers", "")));
+		config.setClusterRetryMillis(Long.getLong("chat.cluster.retry", config.getClusterRetryMillis()));
+		config.setJournalDir(System.getProperty("chat.journal.dir", config.getJournalDir()));
+		config.setJournalSegmentBytes(Integer.getInteger("chat.journal.segmentBytes", config.getJournalSegmentBytes()));
+		config.setJournalFsync(
+				FsyncPolicy.valueOf(System.getProperty("chat.journal.fsync", config.getJournalFsync().name()).toUpperCase()));
+		config.setJournalFsyncMillis(Long.getLong("chat.journal.fsyncMillis", config.getJournalFsyncMillis()));
+		config.setJournalRetainBytes(Long.getLong("chat.journal.retainBytes", config.getJournalRetainBytes()));
+		config.setJournalRetainMillis(Long.getLong("chat.journal.retainMillis", config.getJournalRetainMillis()));
+		return config;
+	}
+
+	/**
+	 * Método que crea una nueva cola de salida según esta configuración.
+	 *
+	 * @return queue Cola de salida vacía
+	 */
+	OutboundQueue newOutboundQueue() {
+		return new OutboundQueue(getQueueCapacity(), getOverflowPolicy(), getBlockTimeoutMillis());
+	}
+
+	/**
+	 * Método que crea el reloj de las marcas de tiempo según esta configuración.
+	 *
+	 * @return clock Reloj sin iniciar
+	 */
+	ChatClock newClock() {
+		return new ChatClock(getTimePattern(), getTimeZone(), getClockTickMillis());
+	}
+
+	/**
+	 * Método que abre el diario de mensajes según esta configuración.
+	 *
+	 * @return journal Diario sin iniciar, o null si no hay directorio configurado
+	 * @throws IOException Si no es posible abrir el diario
+	 */
+	ChatJournal newJournal() throws IOException {
+		if (getJournalDir() == null) {
+			return null;
+		}
+		return new ChatJournal(Paths.get(getJournalDir()), getJournalSegmentBytes(), getJournalFsync(),
+				getJournalFsyncMillis(), getJournalRetainBytes(), getJournalRetainMillis());
+	}
+
+	/**
+	 * Método que devuelve el puerto de escucha.
+	 * 
+	 * @return port Puerto de escucha
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Método que asigna el puerto de escucha.
+	 * 
+	 * @param port Puerto de escucha
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setPort(int port) {
+		this.port = port;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el modo de ejecución.
+	 * 
+	 * @return mode Modo de ejecución
+	 */
+	public ServerMode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Método que asigna el modo de ejecución.
+	 * 
+	 * @param mode Modo de ejecución
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setMode(ServerMode mode) {
+		this.mode = mode;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el número máximo de tramas pendientes por cliente.
+	 * 
+	 * @return queueCapacity Número máximo de tramas pendientes por cliente
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * Método que asigna el número máximo de tramas pendientes por cliente.
+	 * 
+	 * @param queueCapacity Número máximo de tramas pendientes por cliente
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setQueueCapacity(int queueCapacity) {
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("La capacidad de la cola debe ser positiva");
+		}
+		this.queueCapacity = queueCapacity;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve la política de desbordamiento de las colas.
+	 * 
+	 * @return overflowPolicy Política de desbordamiento de las colas
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Método que asigna la política de desbordamiento de las colas.
+	 * 
+	 * @param overflowPolicy Política de desbordamiento de las colas
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el tiempo máximo de espera con la política BLOCK.
+	 * 
+	 * @return blockTimeoutMillis Tiempo máximo de espera con la política BLOCK
+	 */
+	public long getBlockTimeoutMillis() {
+		return blockTimeoutMillis;
+	}
+
+	/**
+	 * Método que asigna el tiempo máximo de espera con la política BLOCK.
+	 * 
+	 * @param blockTimeoutMillis Tiempo máximo de espera con la política BLOCK
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setBlockTimeoutMillis(long blockTimeoutMillis) {
+		this.blockTimeoutMillis = blockTimeoutMillis;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el umbral de bytes de los lotes de escritura.
+	 * 
+	 * @return flushBytes Umbral de bytes
+	 */
+	public int getFlushBytes() {
+		return flushBytes;
+	}
+
+	/**
+	 * Método que asigna el umbral de bytes de los lotes de escritura.
+	 * 
+	 * @param flushBytes Umbral de bytes
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setFlushBytes(int flushBytes) {
+		if (flushBytes < 1) {
+			throw new IllegalArgumentException("El umbral de escritura debe ser positivo");
+		}
+		this.flushBytes = flushBytes;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve la ventana de espera de los lotes de escritura.
+	 * 
+	 * @return lingerMicros Ventana en microsegundos
+	 */
+	public long getLingerMicros() {
+		return lingerMicros;
+	}
+
+	/**
+	 * Método que asigna la ventana de espera de los lotes de escritura. Con 0 las
+	 * ráfagas se escriben en cuanto se vacía la cola.
+	 * 
+	 * @param lingerMicros Ventana en microsegundos
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setLingerMicros(long lingerMicros) {
+		if (lingerMicros < 0) {
+			throw new IllegalArgumentException("La ventana de escritura no puede ser negativa");
+		}
+		this.lingerMicros = lingerMicros;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve la longitud mínima de las tramas que se comprimen para
+	 * los clientes que lo piden.
+	 * 
+	 * @return compressThreshold Longitud en bytes, o -1 si no se admite la
+	 *         compresión
+	 */
+	public int getCompressThreshold() {
+		return compressThreshold;
+	}
+
+	/**
+	 * Método que asigna la longitud mínima de las tramas que se comprimen para
+	 * los clientes que lo piden. Las más cortas apenas se reducen y se envían sin
+	 * comprimir.
+	 * 
+	 * @param compressThreshold Longitud en bytes, o -1 para no admitir la
+	 *                          compresión
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setCompressThreshold(int compressThreshold) {
+		if (compressThreshold < -1) {
+			throw new IllegalArgumentException("Umbral de compresión no válido: " + compressThreshold);
+		}
+		this.compressThreshold = compressThreshold;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el número de hilos que difunden los mensajes de las
+	 * salas.
+	 * 
+	 * @return fanoutThreads Número de hilos de difusión
+	 */
+	public int getFanoutThreads() {
+		return fanoutThreads;
+	}
+
+	/**
+	 * Método que asigna el número de hilos que difunden los mensajes de las salas.
+	 * Con 0 los mensajes se difunden en el hilo que los recibe.
+	 * 
+	 * @param fanoutThreads Número de hilos de difusión
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setFanoutThreads(int fanoutThreads) {
+		if (fanoutThreads < 0) {
+			throw new IllegalArgumentException("El número de hilos de difusión no puede ser negativo");
+		}
+		this.fanoutThreads = fanoutThreads;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el número de bucles de eventos del modo NIO.
+	 * 
+	 * @return reactorThreads Número de bucles de eventos
+	 */
+	public int getReactorThreads() {
+		return reactorThreads;
+	}
+
+	/**
+	 * Método que asigna el número de bucles de eventos del modo NIO.
+	 * 
+	 * @param reactorThreads Número de bucles de eventos
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setReactorThreads(int reactorThreads) {
+		if (reactorThreads < 1) {
+			throw new IllegalArgumentException("Debe haber al menos un bucle de eventos");
+		}
+		this.reactorThreads = reactorThreads;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el criterio de reparto de las conexiones entre los
+	 * bucles de eventos.
+	 * 
+	 * @return reactorBalance Criterio de reparto
+	 */
+	public Balance getReactorBalance() {
+		return reactorBalance;
+	}
+
+	/**
+	 * Método que asigna el criterio de reparto de las conexiones entre los bucles
+	 * de eventos.
+	 * 
+	 * @param reactorBalance Criterio de reparto
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setReactorBalance(Balance reactorBalance) {
+		this.reactorBalance = reactorBalance;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el número de mensajes recientes del historial.
+	 * 
+	 * @return historySize Número de mensajes, o 0 sin historial
+	 */
+	public int getHistorySize() {
+		return historySize;
+	}
+
+	/**
+	 * Método que asigna el número de mensajes recientes que se envían a los
+	 * clientes al conectarse o cambiar de sala.
+	 * 
+	 * @param historySize Número de mensajes, o 0 sin historial
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setHistorySize(int historySize) {
+		if (historySize < 0) {
+			throw new IllegalArgumentException("El tamaño del historial no puede ser negativo");
+		}
+		this.historySize = historySize;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el ámbito del historial de mensajes recientes.
+	 * 
+	 * @return historyScope Ámbito del historial
+	 */
+	public Scope getHistoryScope() {
+		return historyScope;
+	}
+
+	/**
+	 * Método que asigna el ámbito del historial: uno por sala o uno compartido
+	 * por todas las salas.
+	 * 
+	 * @param historyScope Ámbito del historial
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setHistoryScope(Scope historyScope) {
+		this.historyScope = historyScope;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el tiempo máximo de espera a que se vacíen las colas de
+	 * salida al apagar el servidor.
+	 * 
+	 * @return shutdownDrainMillis Tiempo máximo en milisegundos
+	 */
+	public long getShutdownDrainMillis() {
+		return shutdownDrainMillis;
+	}
+
+	/**
+	 * Método que asigna el tiempo máximo de espera a que se vacíen las colas de
+	 * salida al apagar el servidor.
+	 * 
+	 * @param shutdownDrainMillis Tiempo máximo en milisegundos, o 0 para no
+	 *                            esperar
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setShutdownDrainMillis(long shutdownDrainMillis) {
+		if (shutdownDrainMillis < 0) {
+			throw new IllegalArgumentException("El tiempo de vaciado no puede ser negativo");
+		}
+		this.shutdownDrainMillis = shutdownDrainMillis;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el tiempo que se conserva la sesión de un cliente que
+	 * ha perdido la conexión a la espera de que la reanude.
+	 * 
+	 * @return resumeTimeoutMillis Tiempo en milisegundos, o 0 si no se conservan
+	 */
+	public long getResumeTimeoutMillis() {
+		return resumeTimeoutMillis;
+	}
+
+	/**
+	 * Método que asigna el tiempo que se conserva la sesión de un cliente que ha
+	 * perdido la conexión a la espera de que la reanude.
+	 * 
+	 * @param resumeTimeoutMillis Tiempo en milisegundos, o 0 para no conservarlas
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setResumeTimeoutMillis(long resumeTimeoutMillis) {
+		if (resumeTimeoutMillis < 0) {
+			throw new IllegalArgumentException("El tiempo de reanudación no puede ser negativo");
+		}
+		this.resumeTimeoutMillis = resumeTimeoutMillis;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el número de tramas ya enviadas que se conservan por
+	 * sesión para reenviarlas al reanudarla.
+	 * 
+	 * @return resumeBacklog Número de tramas
+	 */
+	public int getResumeBacklog() {
+		return resumeBacklog;
+	}
+
+	/**
+	 * Método que asigna el número de tramas ya enviadas que se conservan por
+	 * sesión para reenviarlas al reanudarla.
+	 * 
+	 * @param resumeBacklog Número de tramas
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setResumeBacklog(int resumeBacklog) {
+		if (resumeBacklog < 1) {
+			throw new IllegalArgumentException("Se debe conservar al menos una trama por sesión");
+		}
+		this.resumeBacklog = resumeBacklog;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el patrón de las marcas de tiempo.
+	 * 
+	 * @return timePattern Patrón de {@link java.text.SimpleDateFormat}
+	 */
+	public String getTimePattern() {
+		return timePattern;
+	}
+
+	/**
+	 * Método que asigna el patrón de las marcas de tiempo.
+	 * 
+	 * @param timePattern Patrón de {@link java.text.SimpleDateFormat}
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setTimePattern(String timePattern) {
+		this.timePattern = timePattern;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve la zona horaria de las marcas de tiempo.
+	 * 
+	 * @return timeZone Identificador de la zona horaria
+	 */
+	public String getTimeZone() {
+		return timeZone;
+	}
+
+	/**
+	 * Método que asigna la zona horaria de las marcas de tiempo.
+	 * 
+	 * @param timeZone Identificador de la zona horaria
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setTimeZone(String timeZone) {
+		this.timeZone = timeZone;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el periodo de refresco de las marcas de tiempo.
+	 * 
+	 * @return clockTickMillis Periodo en milisegundos
+	 */
+	public long getClockTickMillis() {
+		return clockTickMillis;
+	}
+
+	/**
+	 * Método que asigna el periodo de refresco de las marcas de tiempo.
+	 * 
+	 * @param clockTickMillis Periodo en milisegundos
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setClockTickMillis(long clockTickMillis) {
+		if (clockTickMillis < 1) {
+			throw new IllegalArgumentException("El periodo del reloj debe ser positivo");
+		}
+		this.clockTickMillis = clockTickMillis;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el puerto en el que se aceptan enlaces de otros nodos.
+	 * 
+	 * @return clusterPort Puerto de enlaces o -1 si no hay clúster
+	 */
+	public int getClusterPort() {
+		return clusterPort;
+	}
+
+	/**
+	 * Método que asigna el puerto en el que se aceptan enlaces de otros nodos. Con
+	 * 0 se elige un puerto libre y con -1 el servidor no forma parte de ningún
+	 * clúster.
+	 * 
+	 * @param clusterPort Puerto de enlaces
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setClusterPort(int clusterPort) {
+		if (clusterPort < -1 || clusterPort > 65535) {
+			throw new IllegalArgumentException("Puerto de clúster no válido: " + clusterPort);
+		}
+		this.clusterPort = clusterPort;
+		return this;
+	}
+
+	/**
+	 * Método que indica si el servidor forma parte de un clúster.
+	 * 
+	 * @return {@code true} si hay puerto de enlaces configurado
+	 */
+	public boolean isClustered() {
+		return clusterPort >= 0;
+	}
+
+	/**
+	 * Método que devuelve el nombre del nodo en el clúster.
+	 * 
+	 * @return clusterName Nombre del nodo o null para el predeterminado
+	 */
+	public String getClusterName() {
+		return clusterName;
+	}
+
+	/**
+	 * Método que asigna el nombre del nodo en el clúster, que debe ser único.
+	 * 
+	 * @param clusterName Nombre del nodo o null para el predeterminado
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setClusterName(String clusterName) {
+		this.clusterName = clusterName;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve las direcciones de los demás nodos del clúster.
+	 * 
+	 * @return clusterPeers Direcciones host:puerto
+	 */
+	public List<String> getClusterPeers() {
+		return clusterPeers;
+	}
+
+	/**
+	 * Método que asigna las direcciones de los demás nodos del clúster. Pueden
+	 * incluir la del propio nodo, que se ignora.
+	 * 
+	 * @param clusterPeers Direcciones host:puerto
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setClusterPeers(List<String> clusterPeers) {
+		for (String peer : clusterPeers) {
+			int separator = peer.lastIndexOf(':');
+			if (separator < 1 || !peer.substring(separator + 1).matches("\\d{1,5}")) {
+				throw new IllegalArgumentException("Dirección de nodo no válida: " + peer);
+			}
+		}
+		this.clusterPeers = Collections.unmodifiableList(new ArrayList<String>(clusterPeers));
+		return this;
+	}
+
+	/**
+	 * Método que separa una lista de direcciones separadas por comas.
+	 * 
+	 * @param peers Direcciones host:puerto separadas por comas
+	 * @return list Lista de direcciones
+	 */
+	static List<String> parsePeers(String peers) {
+		List<String> list = new ArrayList<String>();
+		for (String peer : peers.split(",")) {
+			if (!peer.trim().isEmpty()) {
+				list.add(peer.trim());
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Método que devuelve el periodo de reintento de conexión con los nodos.
+	 * 
+	 * @return clusterRetryMillis Periodo en milisegundos
+	 */
+	public long getClusterRetryMillis() {
+		return clusterRetryMillis;
+	}
+
+	/**
+	 * Método que asigna el periodo de reintento de conexión con los nodos sin
+	 * enlace.
+	 * 
+	 * @param clusterRetryMillis Periodo en milisegundos
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setClusterRetryMillis(long clusterRetryMillis) {
+		if (clusterRetryMillis < 1) {
+			throw new IllegalArgumentException("El periodo de reintento debe ser positivo");
+		}
+		this.clusterRetryMillis = clusterRetryMillis;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el directorio del diario de mensajes.
+	 * 
+	 * @return journalDir Directorio o null si no se guardan los mensajes
+	 */
+	public String getJournalDir() {
+		return journalDir;
+	}
+
+	/**
+	 * Método que asigna el directorio del diario de mensajes.
+	 * 
+	 * @param journalDir Directorio o null para no guardar los mensajes
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setJournalDir(String journalDir) {
+		this.journalDir = journalDir;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el tamaño de cada segmento del diario.
+	 * 
+	 * @return journalSegmentBytes Tamaño en bytes
+	 */
+	public int getJournalSegmentBytes() {
+		return journalSegmentBytes;
+	}
+
+	/**
+	 * Método que asigna el tamaño de cada segmento del diario.
+	 * 
+	 * @param journalSegmentBytes Tamaño en bytes, al menos 4096
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setJournalSegmentBytes(int journalSegmentBytes) {
+		if (journalSegmentBytes < 4096) {
+			throw new IllegalArgumentException("Los segmentos del diario deben tener al menos 4096 bytes");
+		}
+		this.journalSegmentBytes = journalSegmentBytes;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve la política de sincronización del diario.
+	 * 
+	 * @return journalFsync Política de sincronización
+	 */
+	public FsyncPolicy getJournalFsync() {
+		return journalFsync;
+	}
+
+	/**
+	 * Método que asigna la política de sincronización del diario.
+	 * 
+	 * @param journalFsync Política de sincronización
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setJournalFsync(FsyncPolicy journalFsync) {
+		this.journalFsync = journalFsync;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el periodo de la sincronización periódica del diario.
+	 * 
+	 * @return journalFsyncMillis Periodo en milisegundos
+	 */
+	public long getJournalFsyncMillis() {
+		return journalFsyncMillis;
+	}
+
+	/**
+	 * Método que asigna el periodo de la sincronización periódica del diario.
+	 * 
+	 * @param journalFsyncMillis Periodo en milisegundos
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setJournalFsyncMillis(long journalFsyncMillis) {
+		if (journalFsyncMillis < 1) {
+			throw new IllegalArgumentException("El periodo de sincronización debe ser positivo");
+		}
+		this.journalFsyncMillis = journalFsyncMillis;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve el tamaño total máximo de los segmentos del diario.
+	 * 
+	 * @return journalRetainBytes Tamaño en bytes, o 0 sin límite
+	 */
+	public long getJournalRetainBytes() {
+		return journalRetainBytes;
+	}
+
+	/**
+	 * Método que asigna el tamaño total máximo de los segmentos del diario.
+	 * 
+	 * @param journalRetainBytes Tamaño en bytes, o 0 sin límite
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setJournalRetainBytes(long journalRetainBytes) {
+		if (journalRetainBytes < 0) {
+			throw new IllegalArgumentException("El tamaño máximo del diario no puede ser negativo");
+		}
+		this.journalRetainBytes = journalRetainBytes;
+		return this;
+	}
+
+	/**
+	 * Método que devuelve la antigüedad máxima de los segmentos del diario.
+	 * 
+	 * @return journalRetainMillis Antigüedad en milisegundos, o 0 sin límite
+	 */
+	public long getJournalRetainMillis() {
+		return journalRetainMillis;
+	}
+
+	/**
+	 * Método que asigna la antigüedad máxima de los segmentos del diario.
+	 * 
+	 * @param journalRetainMillis Antigüedad en milisegundos, o 0 sin límite
+	 * @return config Esta configuración
+	 */
+	public ServerConfig setJournalRetainMillis(long journalRetainMillis) {
+		if (journalRetainMillis < 0) {
+			throw new IllegalArgumentException("La antigüedad máxima del diario no puede ser negativa");
+		}
+		this.journalRetainMillis = journalRetainMillis;
+		return this;
+	}
+}
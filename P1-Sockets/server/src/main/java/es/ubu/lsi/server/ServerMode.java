@@ -0,0 +1,17 @@
+package es.ubu.lsi.server;
+
+/**
+ * Modos de ejecución del servidor de chat.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public enum ServerMode {
+	/** Un hilo bloqueante por cada cliente conectado. */
+	THREADS,
+	/** Un hilo virtual por cada cliente conectado (requiere Java 21). */
+	VIRTUAL,
+	/** Bucle de eventos no bloqueante basado en Selector. */
+	NIO;
+}
@@ -0,0 +1,359 @@
+package es.ubu.lsi.server;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Registro de las sesiones conectadas al servidor.
+ *
+ * Las sesiones se indexan por su identificador en una tabla hash de
+ * direccionamiento abierto con claves int, de modo que las búsquedas no crean
+ * objetos Integer. Un índice secundario permite buscarlas por nickname. El
+ * estado de bloqueo se guarda en la propia sesión; los nicknames bloqueados que
+ * no están conectados se recuerdan aparte y se aplican al registrarse.
+ *
+ * Las lecturas y el recorrido para la difusión no toman ningún cerrojo ni
+ * copian la tabla: ven el estado de la tabla vigente en cada momento. Las
+ * modificaciones se serializan con un único cerrojo, por lo que los índices no
+ * pueden quedar desincronizados.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class SessionRegistry implements Iterable<ClientSession> {
+
+	/**
+	 * Capacidad inicial de la tabla (potencia de dos)
+	 */
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * Marca de posición borrada en la tabla
+	 */
+	private static final Object TOMBSTONE = new Object();
+
+	/**
+	 * Tabla de sesiones indexada por identificador
+	 */
+	private volatile AtomicReferenceArray<Object> table;
+
+	/**
+	 * Número de sesiones registradas
+	 */
+	private volatile int size;
+
+	/**
+	 * Número de posiciones borradas en la tabla vigente
+	 */
+	private int tombstones;
+
+	/**
+	 * Índice secundario de sesiones por nickname
+	 */
+	private final ConcurrentHashMap<String, ClientSession> byNickname = new ConcurrentHashMap<String, ClientSession>();
+
+	/**
+	 * Nicknames bloqueados, estén o no conectados. Los usuarios bloqueados se
+	 * mantienen mientras el servidor siga en ejecución.
+	 */
+	private final Set<String> banned = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Cerrojo que serializa las modificaciones
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Método constructor. Instancia un registro vacío.
+	 */
+	public SessionRegistry() {
+		this.table = new AtomicReferenceArray<Object>(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Método que registra una sesión con identificador y nickname ya asignados.
+	 * Aplica el bloqueo si su nickname estaba bloqueado.
+	 *
+	 * @param session Sesión a registrar
+	 * @return {@code true} si se ha registrado y {@code false} si el nickname ya
+	 *         está en uso
+	 */
+	public boolean register(ClientSession session) {
+		lock.lock();
+		try {
+			if (byNickname.putIfAbsent(session.getNickname(), session) != null) {
+				return false;
+			}
+			session.setBanned(banned.contains(session.getNickname()));
+			if ((size + tombstones + 1) * 2 > table.length()) {
+				resize();
+			}
+			AtomicReferenceArray<Object> t = table;
+			int mask = t.length() - 1;
+			int index = mix(session.getClientId()) & mask;
+			Object entry;
+			while ((entry = t.get(index)) != null && entry != TOMBSTONE) {
+				index = (index + 1) & mask;
+			}
+			if (entry == TOMBSTONE) {
+				tombstones--;
+			}
+			t.set(index, session);
+			size++;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Método que elimina del registro la sesión con el identificador indicado.
+	 *
+	 * @param id Identificador del cliente
+	 * @return session Sesión eliminada o null si no estaba registrada
+	 */
+	public ClientSession remove(int id) {
+		lock.lock();
+		try {
+			AtomicReferenceArray<Object> t = table;
+			int index = find(t, id);
+			if (index < 0) {
+				return null;
+			}
+			ClientSession session = (ClientSession) t.get(index);
+			t.set(index, TOMBSTONE);
+			tombstones++;
+			size--;
+			byNickname.remove(session.getNickname(), session);
+			return session;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Método que sustituye una sesión registrada por la nueva conexión con la que
+	 * el cliente la reanuda, que tiene el mismo identificador y nickname.
+	 *
+	 * @param old  Sesión registrada
+	 * @param next Sesión que la sustituye
+	 * @return {@code true} si la sesión anterior seguía registrada
+	 */
+	public boolean replace(ClientSession old, ClientSession next) {
+		lock.lock();
+		try {
+			AtomicReferenceArray<Object> t = table;
+			int index = find(t, old.getClientId());
+			if (index < 0 || t.get(index) != old) {
+				return false;
+			}
+			t.set(index, next);
+			byNickname.replace(old.getNickname(), old, next);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Método que devuelve la sesión con el identificador indicado.
+	 *
+	 * @param id Identificador del cliente
+	 * @return session Sesión o null si no está registrada
+	 */
+	public ClientSession get(int id) {
+		AtomicReferenceArray<Object> t = table;
+		int index = find(t, id);
+		return index < 0 ? null : (ClientSession) t.get(index);
+	}
+
+	/**
+	 * Método que devuelve la sesión con el nickname indicado.
+	 *
+	 * @param nickname Nickname del cliente
+	 * @return session Sesión o null si no está conectado
+	 */
+	public ClientSession getByNickname(String nickname) {
+		return byNickname.get(nickname);
+	}
+
+	/**
+	 * Método que bloquea o desbloquea un nickname, esté o no conectado.
+	 *
+	 * @param nickname Nickname del usuario
+	 * @param ban      {@code true} para bloquear y {@code false} para desbloquear
+	 */
+	public void setBanned(String nickname, boolean ban) {
+		lock.lock();
+		try {
+			if (ban) {
+				banned.add(nickname);
+			} else {
+				banned.remove(nickname);
+			}
+			ClientSession session = byNickname.get(nickname);
+			if (session != null) {
+				session.setBanned(ban);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Método que indica si un nickname está bloqueado.
+	 *
+	 * @param nickname Nickname del usuario
+	 * @return {@code true} si está bloqueado
+	 */
+	public boolean isBanned(String nickname) {
+		return banned.contains(nickname);
+	}
+
+	/**
+	 * Método que devuelve los nicknames bloqueados, estén o no conectados.
+	 *
+	 * @return banned Vista no modificable de los nicknames bloqueados
+	 */
+	public Set<String> getBanned() {
+		return Collections.unmodifiableSet(banned);
+	}
+
+	/**
+	 * Método que devuelve el número de sesiones registradas.
+	 *
+	 * @return size Número de sesiones
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Método que devuelve un iterador sobre las sesiones registradas. Recorre la
+	 * tabla vigente sin copiarla; las sesiones registradas o eliminadas durante
+	 * el recorrido pueden aparecer o no.
+	 *
+	 * @return iterator Iterador débilmente consistente
+	 */
+	@Override
+	public Iterator<ClientSession> iterator() {
+		final AtomicReferenceArray<Object> t = table;
+		return new Iterator<ClientSession>() {
+			/**
+			 * Siguiente sesión que se devolverá, leída al avanzar, o null si no quedan
+			 */
+			private ClientSession nextSession;
+
+			/**
+			 * Posición de la tabla desde la que se sigue buscando
+			 */
+			private int index;
+
+			{
+				advance();
+			}
+
+			/**
+			 * Método que busca la siguiente sesión y la guarda, de modo que
+			 * {@code next()} devuelve la misma que ha visto {@code hasNext()} aunque
+			 * después se elimine de la tabla.
+			 */
+			private void advance() {
+				nextSession = null;
+				while (index < t.length() && nextSession == null) {
+					Object entry = t.get(index++);
+					if (entry instanceof ClientSession) {
+						nextSession = (ClientSession) entry;
+					}
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return nextSession != null;
+			}
+
+			@Override
+			public ClientSession next() {
+				ClientSession session = nextSession;
+				if (session == null) {
+					throw new NoSuchElementException();
+				}
+				advance();
+				return session;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Método que busca la posición de un identificador en una tabla.
+	 *
+	 * @param t  Tabla
+	 * @param id Identificador del cliente
+	 * @return index Posición o -1 si no está
+	 */
+	private static int find(AtomicReferenceArray<Object> t, int id) {
+		int mask = t.length() - 1;
+		int index = mix(id) & mask;
+		for (int probes = 0; probes < t.length(); probes++) {
+			Object entry = t.get(index);
+			if (entry == null) {
+				return -1;
+			}
+			if (entry != TOMBSTONE && ((ClientSession) entry).getClientId() == id) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Método que reconstruye la tabla sin posiciones borradas, duplicando su
+	 * capacidad si es necesario. Se invoca con el cerrojo tomado.
+	 */
+	private void resize() {
+		AtomicReferenceArray<Object> old = table;
+		int capacity = old.length();
+		while ((size + 1) * 2 > capacity) {
+			capacity *= 2;
+		}
+		AtomicReferenceArray<Object> t = new AtomicReferenceArray<Object>(capacity);
+		int mask = capacity - 1;
+		for (int i = 0; i < old.length(); i++) {
+			Object entry = old.get(i);
+			if (entry != null && entry != TOMBSTONE) {
+				int index = mix(((ClientSession) entry).getClientId()) & mask;
+				while (t.get(index) != null) {
+					index = (index + 1) & mask;
+				}
+				t.set(index, entry);
+			}
+		}
+		tombstones = 0;
+		table = t;
+	}
+
+	/**
+	 * Método que dispersa los bits de un identificador para repartir en la tabla
+	 * identificadores consecutivos.
+	 *
+	 * @param id Identificador del cliente
+	 * @return hash Valor dispersado
+	 */
+	private static int mix(int id) {
+		int h = id * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
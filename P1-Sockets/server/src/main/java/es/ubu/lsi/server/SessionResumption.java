@@ -0,0 +1,187 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.server.ChatMetrics.DisconnectReason;
+
+/**
+ * Reanudación de las sesiones de los clientes que pierden la conexión.
+ *
+ * Un cliente que se registra con un mensaje RESUME (id 0 y su nickname) recibe,
+ * tras la bienvenida, otro mensaje RESUME con una credencial aleatoria. Desde
+ * entonces el cliente cuenta las tramas que recibe y el servidor conserva las
+ * últimas que le ha enviado, numeradas en el mismo orden. Si se pierde la
+ * conexión la sesión no se elimina: se suspende durante el tiempo configurado
+ * sin salir de su sala ni liberar el nickname, y las tramas que se le difunden
+ * se acumulan en su cola.
+ *
+ * Para reanudarla, el cliente abre otra conexión y envía un mensaje RESUME con
+ * su identificador y el texto {@code "<credencial> <tramas recibidas>"}. El
+ * servidor contesta con un RESUME con el texto {@code "<credencial> <número>"},
+ * donde el número es el de la siguiente trama que recibirá (mayor que el
+ * pedido si se han perdido tramas), y a continuación le envía las tramas que no
+ * llegó a recibir y las acumuladas. Si la credencial no es válida cierra la
+ * conexión, y el cliente debe registrarse de nuevo. Los mensajes RESUME no se
+ * cuentan como tramas de la sesión.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class SessionResumption {
+
+	/**
+	 * Servidor al que pertenecen las sesiones
+	 */
+	private final ChatServerImpl server;
+
+	/**
+	 * Tiempo en milisegundos que se conserva una sesión suspendida, o 0 si no se
+	 * conservan
+	 */
+	private final long timeoutMillis;
+
+	/**
+	 * Número de tramas enviadas que se conservan por sesión
+	 */
+	private final int backlog;
+
+	/**
+	 * Generador de las credenciales
+	 */
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Temporizador que elimina las sesiones suspendidas que no se reanudan
+	 */
+	private final ScheduledExecutorService timer;
+
+	/**
+	 * Método constructor.
+	 *
+	 * @param server        Servidor al que pertenecen las sesiones
+	 * @param timeoutMillis Tiempo que se conserva una sesión suspendida, o 0 para
+	 *                      no conservarlas
+	 * @param backlog       Número de tramas enviadas que se conservan por sesión
+	 */
+	SessionResumption(ChatServerImpl server, long timeoutMillis, int backlog) {
+		this.server = server;
+		this.timeoutMillis = timeoutMillis;
+		this.backlog = backlog;
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				// Hilo demonio para no impedir que termine la JVM
+				Thread thread = new Thread(task, "chat-resume");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Método que asigna una credencial a una sesión que se está registrando. Si
+	 * no se conservan las sesiones no hace nada y la sesión no podrá reanudarse.
+	 *
+	 * @param session Sesión sin registrar
+	 */
+	void enable(ClientSession session) {
+		if (timeoutMillis > 0) {
+			session.enableResume(Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()), backlog);
+		}
+	}
+
+	/**
+	 * Método que suspende una sesión que ha perdido la conexión, si puede
+	 * reanudarse, y programa su eliminación si no se reanuda a tiempo.
+	 *
+	 * @param session Sesión registrada
+	 * @return {@code true} si la sesión queda suspendida y no debe eliminarse
+	 */
+	boolean park(ClientSession session) {
+		if (session.suspend()) {
+			// Imprimir mensaje en el servidor
+			System.out.println("Se conserva la sesión de " + session.getNickname() + " durante "
+					+ TimeUnit.MILLISECONDS.toSeconds(timeoutMillis) + " s");
+			expireLater(session);
+		}
+		return session.isParked();
+	}
+
+	/**
+	 * Método que programa la eliminación de una sesión suspendida si no se
+	 * reanuda a tiempo.
+	 *
+	 * @param session Sesión suspendida
+	 */
+	private void expireLater(final ClientSession session) {
+		try {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					// Eliminarla si nadie la ha reanudado
+					if (session.expire()) {
+						server.remove(session.getClientId(), DisconnectReason.CONNECTION_LOST);
+					}
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) { // El servidor se está apagando
+			// Las sesiones suspendidas se eliminan al cerrar todas las sesiones
+		}
+	}
+
+	/**
+	 * Método que atiende la petición de reanudar una sesión que llega por una
+	 * conexión nueva. Si es válida, la nueva sesión sustituye a la anterior en el
+	 * registro y en su sala; si no, se cierra la conexión.
+	 *
+	 * @param session Sesión de la nueva conexión, aún sin registrar
+	 * @param request Mensaje RESUME con el identificador y el texto
+	 *                {@code "<credencial> <tramas recibidas>"}
+	 */
+	void resume(ClientSession session, ChatMessage request) {
+		ClientSession previous = server.getSessions().get(request.getId());
+		String[] fields = request.getMessage().split(" ");
+		boolean resumed = false;
+		try {
+			resumed = previous != null && fields.length == 2
+					&& previous.handOver(session, fields[0], Long.parseLong(fields[1]), backlog);
+		} catch (NumberFormatException e) { // Número de tramas incorrecto
+			resumed = false;
+		} catch (IOException e) { // Capturar excepciones IOException
+			// Imprimir error
+			System.err.println("Error: No se pueden enviar las tramas pendientes a " + previous.getNickname());
+			resumed = false;
+			// La sesión anterior puede haberse suspendido al intentarlo sin que nadie
+			// vaya a detectar la pérdida de su conexión: se elimina si no se reanuda
+			expireLater(previous);
+		}
+		if (!resumed) {
+			// Imprimir error
+			System.err.println("Error: No se puede reanudar la sesión " + request.getId() + ". Abortando la conexión.");
+			server.getMetrics().disconnected(DisconnectReason.REJECTED);
+			session.closeClient();
+			return;
+		}
+		// Sustituir a la sesión anterior en el registro y en su sala
+		server.getSessions().replace(previous, session);
+		server.getRooms().replace(previous, session);
+		// Imprimir mensaje en el servidor
+		System.out.println(session.getNickname() + " ha reanudado su sesión a las " + server.getTime());
+	}
+
+	/**
+	 * Método que detiene el temporizador. Las sesiones suspendidas se eliminan al
+	 * cerrar todas las sesiones del servidor.
+	 */
+	void shutdown() {
+		timer.shutdownNow();
+	}
+}
@@ -0,0 +1,81 @@
+package es.ubu.lsi.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Clase de utilidad que crea las factorías de hilos usadas para el bucle de
+ * aceptación y las sesiones bloqueantes del servidor.
+ *
+ * Los hilos virtuales se obtienen por reflexión a través de
+ * {@code Thread.ofVirtual()}, de modo que el proyecto sigue compilando con el
+ * nivel de fuente configurado y el modo {@link ServerMode#VIRTUAL} está
+ * disponible cuando el servidor se ejecuta sobre Java 21 o superior.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public final class SessionThreads {
+
+	/**
+	 * Constructor privado. Clase de utilidad no instanciable.
+	 */
+	private SessionThreads() {
+	}
+
+	/**
+	 * Método que devuelve la factoría de hilos correspondiente a un modo de
+	 * ejecución bloqueante.
+	 *
+	 * @param mode   Modo de ejecución del servidor
+	 * @param prefix Prefijo del nombre de los hilos
+	 * @return factory Factoría de hilos
+	 * @throws UnsupportedOperationException Si se piden hilos virtuales y la JVM
+	 *                                       no los soporta
+	 */
+	public static ThreadFactory forMode(ServerMode mode, String prefix) {
+		if (mode == ServerMode.VIRTUAL) {
+			return virtual(prefix);
+		}
+		return platform(prefix);
+	}
+
+	/**
+	 * Método que devuelve una factoría de hilos de plataforma.
+	 *
+	 * @param prefix Prefijo del nombre de los hilos
+	 * @return factory Factoría de hilos de plataforma
+	 */
+	public static ThreadFactory platform(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable task) {
+				return new Thread(task, prefix + count.incrementAndGet());
+			}
+		};
+	}
+
+	/**
+	 * Método que devuelve una factoría de hilos virtuales.
+	 *
+	 * @param prefix Prefijo del nombre de los hilos
+	 * @return factory Factoría de hilos virtuales
+	 * @throws UnsupportedOperationException Si la JVM no soporta hilos virtuales
+	 */
+	public static ThreadFactory virtual(String prefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method name = builderClass.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, prefix, 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) { // JVM anterior a Java 21
+			throw new UnsupportedOperationException(
+					"Los hilos virtuales requieren Java 21 o superior (" + System.getProperty("java.version") + ")");
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.ChatMessageEncoder;
+
+/**
+ * Trama ya codificada que se comparte entre todos los destinatarios de un
+ * mensaje.
+ *
+ * El mensaje se formatea y codifica una sola vez y el mismo array se entrega a
+ * la conexión de cada cliente, que lo copia o escribe directamente sin volver a
+ * codificarlo. El contenido no debe modificarse después de crear la trama.
+ *
+ * Del mismo modo, la versión comprimida se calcula la primera vez que la pide
+ * una conexión que ha negociado la compresión y se guarda en la trama, de modo
+ * que el resto de destinatarios la reutilizan.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public final class SharedFrame {
+
+	/**
+	 * Tipos de mensaje por ordinal
+	 */
+	private static final MessageType[] TYPES = MessageType.values();
+
+	/**
+	 * Bytes de la trama completa (cabecera y cuerpo)
+	 */
+	private final byte[] bytes;
+
+	/**
+	 * Versión comprimida de la trama, o null si aún no se ha calculado. Es la
+	 * propia trama si comprimirla no la reduce
+	 */
+	private volatile SharedFrame compressed;
+
+	/**
+	 * Indica si la trama no puede descartarse al desbordarse la cola de salida
+	 */
+	private final boolean pinned;
+
+	/**
+	 * Método constructor. Envuelve una trama ya codificada sin copiarla.
+	 *
+	 * @param bytes Trama completa
+	 */
+	SharedFrame(byte[] bytes) {
+		this(bytes, false);
+	}
+
+	/**
+	 * Método constructor. Envuelve una trama ya codificada sin copiarla.
+	 *
+	 * @param bytes  Trama completa
+	 * @param pinned Indica si no puede descartarse al desbordarse la cola
+	 */
+	SharedFrame(byte[] bytes, boolean pinned) {
+		this.bytes = bytes;
+		this.pinned = pinned;
+	}
+
+	/**
+	 * Método que codifica un mensaje en una trama compartible.
+	 *
+	 * @param message Mensaje a codificar
+	 * @return frame Trama codificada
+	 * @throws IOException Si no es posible codificar el mensaje
+	 */
+	public static SharedFrame of(ChatMessage message) throws IOException {
+		return new SharedFrame(ChatMessageEncoder.encodeToArray(message));
+	}
+
+	/**
+	 * Método que codifica un mensaje en una trama que no se descarta aunque se
+	 * desborde la cola de salida, como la bienvenida que el cliente espera al
+	 * registrarse.
+	 *
+	 * @param message Mensaje a codificar
+	 * @return frame Trama codificada
+	 * @throws IOException Si no es posible codificar el mensaje
+	 */
+	static SharedFrame pinned(ChatMessage message) throws IOException {
+		return new SharedFrame(ChatMessageEncoder.encodeToArray(message), true);
+	}
+
+	/**
+	 * Método que devuelve los bytes de la trama. No deben modificarse.
+	 *
+	 * @return bytes Trama completa
+	 */
+	public byte[] bytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * Método que devuelve el tipo del mensaje de la trama sin decodificarla.
+	 *
+	 * @return type Tipo del mensaje
+	 */
+	public MessageType type() {
+		return TYPES[this.bytes[ChatMessageEncoder.HEADER_LENGTH] & ~ChatMessageEncoder.COMPRESSED_FLAG];
+	}
+
+	/**
+	 * Método que indica si la trama es una respuesta de los protocolos de
+	 * reanudación o de compresión, que no forman parte del flujo de la sesión.
+	 *
+	 * @return {@code true} si es una trama de control
+	 */
+	boolean isControl() {
+		if (this.bytes.length <= ChatMessageEncoder.HEADER_LENGTH) { // Trama sin tipo
+			return false;
+		}
+		MessageType type = type();
+		return type == MessageType.RESUME || type == MessageType.COMPRESS;
+	}
+
+	/**
+	 * Método que indica si la trama puede descartarse al desbordarse la cola de
+	 * salida. Sólo se descartan los mensajes del chat: nunca las tramas fijadas,
+	 * las de control ni los avisos como el de apagado.
+	 *
+	 * @return {@code true} si puede descartarse
+	 */
+	boolean isEvictable() {
+		if (this.bytes.length <= ChatMessageEncoder.HEADER_LENGTH) { // Trama sin tipo
+			return !pinned;
+		}
+		return !pinned && type() == MessageType.MESSAGE;
+	}
+
+	/**
+	 * Método que devuelve la versión comprimida de la trama, comprimiéndola si es
+	 * la primera vez que se pide, y lo anota en los contadores de la conexión que
+	 * la va a enviar. Si dos conexiones la piden a la vez puede comprimirse dos
+	 * veces, pero ambas obtienen el mismo resultado.
+	 *
+	 * @param stats Contadores de compresión de la conexión
+	 * @return compressed Trama comprimida, o esta misma si no se reduce
+	 */
+	public SharedFrame compressed(CompressionStats stats) {
+		SharedFrame result = compressed;
+		long nanos = 0;
+		if (result == null) {
+			long start = System.nanoTime();
+			byte[] deflated = ChatMessageEncoder.compress(bytes);
+			nanos = Math.max(1, System.nanoTime() - start);
+			result = deflated == bytes ? this : new SharedFrame(deflated);
+			compressed = result;
+		}
+		stats.compressed(length(), result.length(), nanos);
+		return result;
+	}
+
+	/**
+	 * Método que devuelve la longitud de la trama.
+	 *
+	 * @return length Número de bytes de la trama
+	 */
+	public int length() {
+		return this.bytes.length;
+	}
+}
@@ -0,0 +1,129 @@
+package es.ubu.lsi.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores de escritura de las conexiones del servidor.
+ *
+ * Cada escritura en un socket o canal se registra junto con el número de bytes
+ * y tramas que contiene y el motivo por el que se vació el lote, de modo que
+ * puede calcularse cuántos bytes se envían por llamada al sistema. Los
+ * contadores son compartidos por todas las sesiones del servidor.
+ *
+ * @author Eduardo Manuel Cabeza Lopez
+ * @version 1.0.0-SNAPSHOT
+ *
+ */
+public class WriteStats {
+
+	/**
+	 * Motivos por los que se escribe un lote de tramas.
+	 *
+	 * @author Eduardo Manuel Cabeza Lopez
+	 */
+	public enum FlushCause {
+		/** No quedaban tramas pendientes: se escribe de inmediato. */
+		IDLE,
+		/** El lote ha alcanzado el umbral de bytes. */
+		SIZE,
+		/** Ha expirado la ventana de espera de más tramas. */
+		LINGER;
+	}
+
+	/**
+	 * Número de escrituras
+	 */
+	private final LongAdder flushes = new LongAdder();
+
+	/**
+	 * Número de bytes escritos
+	 */
+	private final LongAdder bytes = new LongAdder();
+
+	/**
+	 * Número de tramas escritas por completo
+	 */
+	private final LongAdder frames = new LongAdder();
+
+	/**
+	 * Número de escrituras por cada motivo
+	 */
+	private final LongAdder[] causes = new LongAdder[FlushCause.values().length];
+
+	/**
+	 * Método constructor. Instancia los contadores a cero.
+	 */
+	public WriteStats() {
+		for (int i = 0; i < causes.length; i++) {
+			causes[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Método que registra una escritura.
+	 *
+	 * @param cause  Motivo de la escritura
+	 * @param bytes  Bytes escritos
+	 * @param frames Tramas completadas con la escritura
+	 */
+	public void record(FlushCause cause, int bytes, int frames) {
+		this.flushes.increment();
+		this.bytes.add(bytes);
+		this.frames.add(frames);
+		this.causes[cause.ordinal()].increment();
+	}
+
+	/**
+	 * Método que devuelve el número de escrituras.
+	 *
+	 * @return flushes Número de escrituras
+	 */
+	public long getFlushes() {
+		return flushes.sum();
+	}
+
+	/**
+	 * Método que devuelve el número de escrituras por un motivo.
+	 *
+	 * @param cause Motivo de la escritura
+	 * @return flushes Número de escrituras por ese motivo
+	 */
+	public long getFlushes(FlushCause cause) {
+		return causes[cause.ordinal()].sum();
+	}
+
+	/**
+	 * Método que devuelve el número de bytes escritos.
+	 *
+	 * @return bytes Bytes escritos
+	 */
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	/**
+	 * Método que devuelve el número de tramas escritas.
+	 *
+	 * @return frames Tramas escritas
+	 */
+	public long getFrames() {
+		return frames.sum();
+	}
+
+	/**
+	 * Método que devuelve la media de bytes escritos por llamada al sistema.
+	 *
+	 * @return bytesPerFlush Bytes por escritura, o 0 si no se ha escrito nada
+	 */
+	public double getBytesPerFlush() {
+		long n = getFlushes();
+		return n == 0 ? 0 : (double) getBytes() / n;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d escrituras, %d tramas, %.1f bytes/escritura (idle=%d, size=%d, linger=%d)",
+				getFlushes(), getFrames(), getBytesPerFlush(), getFlushes(FlushCause.IDLE),
+				getFlushes(FlushCause.SIZE), getFlushes(FlushCause.LINGER));
+	}
+}
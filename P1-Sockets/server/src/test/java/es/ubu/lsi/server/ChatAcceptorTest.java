@@ -0,0 +1,182 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.ChatMessageDecoder;
+import es.ubu.lsi.common.ChatMessageEncoder;
+import es.ubu.lsi.server.ChatAcceptor.Balance;
+import es.ubu.lsi.server.CommandRegistry.Arguments;
+import es.ubu.lsi.server.CommandRegistry.Command;
+
+/**
+ * Tests del reparto de conexiones entre bucles de eventos
+ * ({@link ChatAcceptor}) sobre la interfaz de loopback.
+ */
+public class ChatAcceptorTest {
+
+	private ChatAcceptor acceptor;
+
+	private final List<Socket> sockets = new ArrayList<Socket>();
+
+	private ChatServerImpl start(int threads, Balance balance) throws IOException {
+		ChatServerImpl server = new ChatServerImpl(new ServerConfig().setFanoutThreads(0));
+		acceptor = new ChatAcceptor(server, 0, threads, balance);
+		acceptor.startWorkers();
+		new Thread(acceptor, "chat-accept-test").start();
+		return server;
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket("127.0.0.1", acceptor.getLocalPort());
+		sockets.add(socket);
+		return socket;
+	}
+
+	private void awaitCounts(int... expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!countsEqual(expected) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		ChatReactor[] workers = acceptor.getWorkers();
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("bucle " + i, expected[i], workers[i].getSessionCount());
+		}
+	}
+
+	private boolean countsEqual(int[] expected) {
+		ChatReactor[] workers = acceptor.getWorkers();
+		for (int i = 0; i < expected.length; i++) {
+			if (workers[i].getSessionCount() != expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		if (acceptor != null) {
+			acceptor.shutdown();
+		}
+	}
+
+	/**
+	 * Comprueba que el reparto por turnos asigna el mismo número de conexiones a
+	 * cada bucle.
+	 */
+	@Test
+	public void roundRobinShouldSpreadConnectionsEvenly() throws Exception {
+		start(3, Balance.ROUND_ROBIN);
+		for (int i = 0; i < 6; i++) {
+			connect();
+		}
+		awaitCounts(2, 2, 2);
+	}
+
+	/**
+	 * Comprueba que el reparto por carga elige el bucle con menos sesiones
+	 * abiertas.
+	 */
+	@Test
+	public void leastLoadedShouldPickEmptiestWorker() throws Exception {
+		start(2, Balance.LEAST_LOADED);
+		Socket first = connect();
+		awaitCounts(1, 0);
+		connect();
+		awaitCounts(1, 1);
+		// Al cerrarse la primera conexión su bucle queda libre
+		first.close();
+		awaitCounts(0, 1);
+		connect();
+		awaitCounts(1, 1);
+		connect();
+		awaitCounts(2, 1);
+	}
+
+	/**
+	 * Comprueba que un mensaje llega a una sesión atendida por otro bucle.
+	 */
+	@Test
+	public void messagesShouldCrossWorkers() throws Exception {
+		start(2, Balance.ROUND_ROBIN);
+		Socket ana = connect();
+		Socket luis = connect();
+		int anaId = login(ana, "ana");
+		login(luis, "luis");
+		awaitCounts(1, 1);
+
+		send(ana, new ChatMessage(anaId, MessageType.MESSAGE, "hola"));
+		DataInputStream in = new DataInputStream(luis.getInputStream());
+		ChatMessage received;
+		do {
+			received = ChatMessageDecoder.read(in);
+		} while (!received.getMessage().endsWith(": hola"));
+		assertTrue(received.getMessage().startsWith("ana "));
+	}
+
+	/**
+	 * Comprueba que un fallo inesperado al atender a una sesión sólo cierra esa
+	 * sesión y el bucle sigue atendiendo al resto.
+	 */
+	@Test
+	public void unexpectedErrorShouldOnlyCloseItsSession() throws Exception {
+		ChatServerImpl server = start(1, Balance.ROUND_ROBIN);
+		server.getCommands().register("fallo", Arguments.NONE, new Command() {
+			@Override
+			public void execute(ClientSession session, ChatMessage message, String argument) {
+				throw new IllegalStateException("fallo");
+			}
+		});
+		Socket ana = connect();
+		Socket luis = connect();
+		int anaId = login(ana, "ana");
+		int luisId = login(luis, "luis");
+		awaitCounts(2);
+
+		send(ana, new ChatMessage(anaId, MessageType.MESSAGE, "fallo"));
+		awaitCounts(1);
+		// La conexión de ana se cierra tras las tramas que ya tuviera pendientes
+		ana.setSoTimeout(5000);
+		while (ana.getInputStream().read() != -1) {
+		}
+
+		// El bucle sigue aceptando y repartiendo mensajes
+		Socket carla = connect();
+		login(carla, "carla");
+		awaitCounts(2);
+		send(luis, new ChatMessage(luisId, MessageType.MESSAGE, "hola"));
+		DataInputStream in = new DataInputStream(carla.getInputStream());
+		ChatMessage received;
+		do {
+			received = ChatMessageDecoder.read(in);
+		} while (!received.getMessage().endsWith(": hola"));
+		assertTrue(received.getMessage().startsWith("luis "));
+	}
+
+	private static int login(Socket socket, String nickname) throws IOException {
+		send(socket, new ChatMessage(0, MessageType.MESSAGE, nickname));
+		return ChatMessageDecoder.read(new DataInputStream(socket.getInputStream())).getId();
+	}
+
+	private static void send(Socket socket, ChatMessage message) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		ChatMessageEncoder.write(message, out);
+		out.flush();
+	}
+}
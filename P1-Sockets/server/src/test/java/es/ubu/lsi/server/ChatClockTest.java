@@ -0,0 +1,61 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * Tests de {@link ChatClock}.
+ */
+public class ChatClockTest {
+
+	/**
+	 * Comprueba que se aplican el patrón y la zona horaria y que los bytes
+	 * corresponden al texto.
+	 */
+	@Test
+	public void shouldFormatWithPatternAndZone() {
+		ChatClock clock = new ChatClock("yyyy-MM-dd HH", "UTC", 1000);
+		SimpleDateFormat expected = new SimpleDateFormat("yyyy-MM-dd HH");
+		expected.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		assertEquals(expected.format(new Date()), clock.now());
+		assertArrayEquals(clock.now().getBytes(StandardCharsets.UTF_8), clock.nowUtf8());
+	}
+
+	/**
+	 * Comprueba que el temporizador refresca el valor publicado.
+	 */
+	@Test
+	public void timerShouldRefreshValue() throws InterruptedException {
+		ChatClock clock = new ChatClock("HH:mm:ss.SSS", "UTC", 5);
+		String first = clock.now();
+		clock.start();
+		try {
+			long deadline = System.currentTimeMillis() + 2000;
+			while (clock.now().equals(first) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			assertTrue(!clock.now().equals(first));
+		} finally {
+			clock.stop();
+		}
+	}
+
+	/**
+	 * Comprueba que la variante de alta resolución sigue al reloj del sistema.
+	 */
+	@Test
+	public void microsShouldTrackWallClock() {
+		long micros = ChatClock.currentTimeMicros();
+		assertTrue(Math.abs(micros / 1000 - System.currentTimeMillis()) < 1000);
+		assertTrue(ChatClock.currentTimeMicros() >= micros);
+	}
+}
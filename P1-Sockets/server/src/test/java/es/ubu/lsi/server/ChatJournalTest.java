@@ -0,0 +1,157 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import es.ubu.lsi.server.ChatJournal.FsyncPolicy;
+
+/**
+ * Tests del diario de mensajes ({@link ChatJournal} y {@link JournalReader}).
+ */
+public class ChatJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static ChatJournal open(Path dir, int segmentBytes, long retainBytes) throws IOException {
+		ChatJournal journal = new ChatJournal(dir, segmentBytes, FsyncPolicy.BATCH, 1000, retainBytes, 0);
+		journal.start();
+		return journal;
+	}
+
+	/**
+	 * Comprueba que los mensajes se leen en orden y con su número de secuencia,
+	 * desde el principio o desde una secuencia intermedia.
+	 */
+	@Test
+	public void appendedMessagesShouldReplayInOrder() throws IOException {
+		Path dir = folder.getRoot().toPath();
+		ChatJournal journal = open(dir, 64 * 1024, 0);
+		for (int i = 1; i <= 100; i++) {
+			journal.append(i % 2 == 0 ? "sala" : null, "ana 12:00: mensaje " + i);
+		}
+		journal.close();
+		assertEquals(100, journal.getLastSequence());
+		assertTrue(journal.getSyncs() >= 1);
+
+		JournalReader reader = new JournalReader(dir, 1);
+		for (int i = 1; i <= 100; i++) {
+			JournalRecord record = reader.next();
+			assertEquals(i, record.getSequence());
+			assertEquals(i % 2 == 0 ? "sala" : "", record.getRoom());
+			assertEquals("ana 12:00: mensaje " + i, record.getText());
+		}
+		assertNull(reader.next());
+		assertEquals(50, new JournalReader(dir, 50).next().getSequence());
+	}
+
+	/**
+	 * Comprueba que el diario cambia de segmento al llenarse y elimina los más
+	 * antiguos al superar el tamaño máximo.
+	 */
+	@Test
+	public void segmentsShouldRollAndBeRetainedBySize() throws IOException {
+		Path dir = folder.getRoot().toPath();
+		ChatJournal journal = open(dir, 4096, 3 * 4096);
+		for (int i = 1; i <= 500; i++) {
+			journal.append("general", "luis 12:00: un mensaje de relleno para llenar segmentos " + i);
+		}
+		journal.close();
+		List<Path> segments = ChatJournal.listSegments(dir);
+		assertEquals(3, segments.size());
+
+		// La lectura empieza en el segmento retenido más antiguo y no tiene huecos
+		JournalReader reader = new JournalReader(dir, 1);
+		JournalRecord record = reader.next();
+		assertEquals(ChatJournal.firstSequence(segments.get(0)), record.getSequence());
+		long last = record.getSequence();
+		while ((record = reader.next()) != null) {
+			assertEquals(++last, record.getSequence());
+		}
+		assertEquals(500, last);
+	}
+
+	/**
+	 * Comprueba que si no se puede eliminar un segmento antiguo el diario sigue
+	 * escribiendo y lo elimina en un cambio de segmento posterior.
+	 */
+	@Test
+	public void failedRetentionShouldNotStopJournal() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		open(dir, 4096, 0).close();
+		// Un directorio no vacío con nombre de segmento anterior no se puede eliminar
+		Path blocker = dir.resolve(String.format("%020d%s", 0, ChatJournal.SEGMENT_SUFFIX));
+		Files.createDirectories(blocker.resolve("ocupado"));
+		ChatJournal journal = open(dir, 4096, 3 * 4096);
+		for (int i = 1; i <= 300; i++) {
+			journal.append("general", "luis 12:00: un mensaje de relleno para llenar segmentos " + i);
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (journal.getLastSequence() < 300 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(300, journal.getLastSequence());
+		assertTrue(Files.exists(blocker));
+
+		Files.delete(blocker.resolve("ocupado"));
+		for (int i = 301; i <= 500; i++) {
+			journal.append("general", "luis 12:00: un mensaje de relleno para llenar segmentos " + i);
+		}
+		journal.close();
+		assertEquals(500, journal.getLastSequence());
+		assertTrue(!Files.exists(blocker));
+		assertEquals(3, ChatJournal.listSegments(dir).size());
+	}
+
+	/**
+	 * Comprueba que al reabrir el diario se descarta un registro a medio escribir
+	 * y se continúa con la secuencia siguiente.
+	 */
+	@Test
+	public void reopenShouldSkipTornRecordAndContinueSequence() throws IOException {
+		Path dir = folder.getRoot().toPath();
+		ChatJournal journal = open(dir, 64 * 1024, 0);
+		for (int i = 1; i <= 10; i++) {
+			journal.append(null, "mensaje " + i);
+		}
+		journal.close();
+
+		// Simular un registro a medio escribir tras el último
+		Path segment = ChatJournal.listSegments(dir).get(0);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			for (long seq = 1; ChatJournal.readRecord(buffer, seq) != null; seq++) {
+				continue;
+			}
+			// La última lectura ha consumido la cabecera vacía
+			int end = buffer.position() - ChatJournal.HEADER_BYTES;
+			buffer.putInt(end, 40).putInt(end + 4, 0xCAFE).putLong(end + 8, 11);
+			buffer.force();
+		}
+
+		journal = open(dir, 64 * 1024, 0);
+		assertEquals(10, journal.getLastSequence());
+		for (int i = 11; i <= 15; i++) {
+			journal.append(null, "mensaje " + i);
+		}
+		journal.close();
+		JournalReader reader = new JournalReader(dir, 1);
+		for (int i = 1; i <= 15; i++) {
+			assertEquals("mensaje " + i, reader.next().getText());
+		}
+		assertNull(reader.next());
+	}
+}
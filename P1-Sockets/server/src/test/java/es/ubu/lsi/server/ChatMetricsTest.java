@@ -0,0 +1,81 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.server.ChatMetrics.DisconnectReason;
+
+/**
+ * Tests de las métricas del servidor ({@link ChatMetrics}).
+ */
+public class ChatMetricsTest {
+
+	/**
+	 * Comprueba que se cuentan los mensajes recibidos, los descartados por
+	 * bloqueo, las difusiones y los motivos de desconexión.
+	 */
+	@Test
+	public void protocolEventsShouldBeCounted() {
+		ChatServerImpl server = new ChatServerImpl(new ServerConfig().setFanoutThreads(0));
+		ChatMetrics metrics = server.getMetrics();
+		RecordingSession ana = new RecordingSession(server, "ana");
+		RecordingSession luis = new RecordingSession(server, "luis");
+		assertEquals(2, metrics.getConnectedSessions());
+		assertEquals(2, metrics.getFanoutCount()); // Avisos de conexión
+
+		ana.say("ban luis");
+		luis.handle(new ChatMessage(luis.getClientId(), MessageType.MESSAGE, "hola"));
+		assertEquals(1, metrics.getBannedMessages());
+		luis.handle(new ChatMessage(luis.getClientId(), MessageType.ACK, "1"));
+		assertEquals(3, metrics.getMessagesIn()); // Dos peticiones de conexión y un mensaje
+		assertEquals(3, metrics.getFanoutCount());
+
+		luis.handle(new ChatMessage(luis.getClientId(), MessageType.LOGOUT, ""));
+		new RecordingSession(server, "ana"); // Nickname en uso
+		assertEquals(1, metrics.getDisconnects(DisconnectReason.LOGOUT));
+		assertEquals(1, metrics.getDisconnects(DisconnectReason.REJECTED));
+		assertEquals(1, metrics.getConnectedSessions());
+	}
+
+	/**
+	 * Comprueba que el MBean se registra y sus atributos, incluidos los mapas, se
+	 * leen por JMX.
+	 */
+	@Test
+	public void mbeanShouldExposeAttributes() throws JMException {
+		ChatServerImpl server = new ChatServerImpl(new ServerConfig().setFanoutThreads(0));
+		ChatMetrics metrics = server.getMetrics();
+		new RecordingSession(server, "ana");
+		metrics.register(65000);
+		try {
+			MBeanServer platform = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("es.ubu.lsi.server:type=ChatServer,port=65000");
+			assertEquals(1, platform.getAttribute(name, "ConnectedSessions"));
+			TabularData depths = (TabularData) platform.getAttribute(name, "QueueDepths");
+			assertEquals(1, depths.size());
+			TabularData disconnects = (TabularData) platform.getAttribute(name, "Disconnects");
+			assertEquals(DisconnectReason.values().length, disconnects.size());
+			boolean found = false;
+			for (Object row : disconnects.values()) {
+				found |= "logout".equals(((CompositeData) row).get("key"));
+			}
+			assertTrue(found);
+		} finally {
+			metrics.unregister();
+		}
+		assertTrue(!ManagementFactory.getPlatformMBeanServer()
+				.isRegistered(new ObjectName("es.ubu.lsi.server:type=ChatServer,port=65000")));
+	}
+}
@@ -0,0 +1,259 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+
+/**
+ * Tests de las salas de chat ({@link ChatRooms} y {@link ChatRoom}).
+ */
+public class ChatRoomsTest {
+
+	private static ChatServerImpl server(int fanoutThreads) {
+		return new ChatServerImpl(new ServerConfig().setFanoutThreads(fanoutThreads));
+	}
+
+	/**
+	 * Comprueba que un mensaje sólo llega a los miembros de la sala del remitente.
+	 */
+	@Test
+	public void messagesShouldReachOnlyRoomMembers() {
+		ChatServerImpl server = server(0);
+		RecordingSession ana = new RecordingSession(server, "ana");
+		RecordingSession luis = new RecordingSession(server, "luis");
+		RecordingSession eva = new RecordingSession(server, "eva");
+
+		ana.say("join sala");
+		luis.say("join sala");
+		ana.say("hola sala");
+		eva.say("hola general");
+
+		assertTrue(luis.received.contains("[sala] ana " + server.getTime() + ": hola sala"));
+		assertTrue(ana.receivedEnding(": hola sala"));
+		assertTrue(!eva.receivedEnding(": hola sala"));
+		assertTrue(!ana.receivedEnding(": hola general") && !luis.receivedEnding(": hola general"));
+		assertTrue(eva.receivedEnding("eva " + server.getTime() + ": hola general"));
+		assertEquals(2, server.getRooms().get("sala").getMembers().size());
+	}
+
+	/**
+	 * Comprueba que leave devuelve a la sala por defecto y elimina la sala vacía.
+	 */
+	@Test
+	public void leaveShouldReturnToDefaultAndDropEmptyRoom() {
+		ChatServerImpl server = server(0);
+		RecordingSession ana = new RecordingSession(server, "ana");
+		ana.say("join sala");
+		ana.say("leave otra"); // No está en esa sala: se ignora
+		assertEquals("sala", ana.getRoom().getName());
+
+		ana.say("leave sala");
+		assertSame(server.getRooms().getDefault(), ana.getRoom());
+		assertNull(server.getRooms().get("sala"));
+
+		server.remove(ana.getClientId());
+		assertTrue(server.getRooms().getDefault().getMembers().isEmpty());
+	}
+
+	/**
+	 * Comprueba que con carriles los mensajes de una sala se entregan todos y en
+	 * orden.
+	 */
+	@Test
+	public void lanesShouldDeliverInOrder() throws InterruptedException {
+		ChatServerImpl server = server(2);
+		RecordingSession ana = new RecordingSession(server, "ana");
+		RecordingSession luis = new RecordingSession(server, "luis");
+		for (int i = 0; i < 200; i++) {
+			ana.say("mensaje " + i);
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!luis.receivedEnding("mensaje 199") && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		int expected = 0;
+		for (String text : luis.received) {
+			if (text.contains("mensaje ")) {
+				assertTrue(text, text.endsWith("mensaje " + expected++));
+			}
+		}
+		assertEquals(200, expected);
+	}
+
+	/**
+	 * Comprueba que una sesión nueva recibe la bienvenida y después los últimos
+	 * mensajes de la sala, y que al cambiar de sala recibe los de la nueva.
+	 */
+	@Test
+	public void newSessionsShouldReceiveRecentHistory() {
+		ChatServerImpl server = new ChatServerImpl(new ServerConfig().setFanoutThreads(0).setHistorySize(3));
+		RecordingSession ana = new RecordingSession(server, "ana");
+		for (int i = 0; i < 5; i++) {
+			ana.say("mensaje " + i);
+		}
+		ana.say("join sala");
+		ana.say("en la sala");
+
+		RecordingSession luis = new RecordingSession(server, "luis");
+		// Bienvenida, los tres últimos mensajes de la sala y después el tráfico en vivo
+		assertTrue(luis.received.get(0).startsWith("Bienvenido"));
+		for (int i = 0; i < 3; i++) {
+			assertTrue(luis.received.get(i + 1).endsWith("mensaje " + (i + 2)));
+		}
+		assertTrue(!luis.receivedEnding(": en la sala"));
+		assertTrue(luis.receivedEnding(": Se ha conectado al chat."));
+
+		luis.say("join sala");
+		assertTrue(luis.receivedEnding(": en la sala"));
+	}
+
+	/**
+	 * Comprueba que con carriles quien se une mientras se difunde recibe el
+	 * historial y después el tráfico en vivo sin huecos ni repeticiones.
+	 */
+	@Test
+	public void joiningDuringFanoutShouldNotLoseOrRepeatMessages() throws InterruptedException {
+		final ChatServerImpl server = server(2);
+		final RecordingSession ana = new RecordingSession(server, "ana");
+		final int count = 2000;
+		Thread publisher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < count; i++) {
+					ana.say("mensaje " + i);
+				}
+			}
+		});
+		publisher.start();
+		List<RecordingSession> joiners = new ArrayList<RecordingSession>();
+		for (int i = 0; i < 20; i++) {
+			joiners.add(new RecordingSession(server, "user" + i));
+			Thread.sleep(1);
+		}
+		publisher.join();
+		for (RecordingSession joiner : joiners) {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (!joiner.receivedEnding("mensaje " + (count - 1)) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			assertTrue(joiner.received.get(0).startsWith("Bienvenido"));
+			int expected = -1;
+			for (String text : joiner.received) {
+				int at = text.lastIndexOf("mensaje ");
+				if (at < 0) {
+					continue;
+				}
+				int index = Integer.parseInt(text.substring(at + "mensaje ".length()));
+				if (expected >= 0) {
+					assertEquals(joiner.getNickname(), expected, index);
+				}
+				expected = index + 1;
+			}
+			assertEquals(count, expected);
+		}
+	}
+
+	/**
+	 * Comprueba que tras detener los carriles al apagar, publicar en una sala o
+	 * entrar en ella no falla ni deja la sala bloqueada.
+	 */
+	@Test
+	public void stoppedLanesShouldNotRejectRoomWork() {
+		ChatServerImpl server = server(2);
+		RecordingSession ana = new RecordingSession(server, "ana");
+		server.getRooms().shutdown();
+
+		// La trama se descarta sin propagar el rechazo del carril
+		ana.say("hola");
+		ana.say("adiós");
+		// La entrada se admite en el propio hilo
+		ana.say("join sala");
+		assertEquals(1, server.getRooms().get("sala").getMembers().size());
+	}
+
+	/**
+	 * Comprueba que el historial guarda sólo las últimas tramas, en orden y sin
+	 * copiarlas.
+	 */
+	@Test
+	public void historyRingShouldKeepLastFrames() throws IOException {
+		HistoryRing ring = new HistoryRing(3);
+		SharedFrame[] frames = new SharedFrame[5];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = SharedFrame.of(new ChatMessage(0, MessageType.MESSAGE, "mensaje " + i));
+			ring.add(frames[i]);
+		}
+		List<SharedFrame> snapshot = ring.snapshot();
+		assertEquals(3, snapshot.size());
+		for (int i = 0; i < 3; i++) {
+			assertSame(frames[i + 2], snapshot.get(i));
+		}
+	}
+
+	/**
+	 * Comprueba que con varios escritores que dan la vuelta al anillo a la vez
+	 * cada posición conserva la trama más reciente: el historial acaba con las
+	 * últimas tramas, completas y en el orden en que cada escritor las añadió.
+	 */
+	@Test
+	public void historyRingShouldKeepNewestFramesWithConcurrentWriters() throws Exception {
+		final int writers = 4;
+		final int perWriter = 200;
+		for (int round = 0; round < 100; round++) {
+			final HistoryRing ring = new HistoryRing(3);
+			final SharedFrame[][] frames = new SharedFrame[writers][perWriter];
+			Map<SharedFrame, Integer> order = new IdentityHashMap<SharedFrame, Integer>();
+			for (int w = 0; w < writers; w++) {
+				for (int i = 0; i < perWriter; i++) {
+					frames[w][i] = SharedFrame.of(new ChatMessage(w, MessageType.MESSAGE, w + "-" + i));
+					order.put(frames[w][i], w * perWriter + i);
+				}
+			}
+			final CountDownLatch start = new CountDownLatch(1);
+			Thread[] threads = new Thread[writers];
+			for (int w = 0; w < writers; w++) {
+				final SharedFrame[] own = frames[w];
+				threads[w] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						for (SharedFrame frame : own) {
+							ring.add(frame);
+						}
+					}
+				});
+				threads[w].start();
+			}
+			start.countDown();
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			List<SharedFrame> snapshot = ring.snapshot();
+			assertEquals(3, snapshot.size());
+			int[] last = new int[writers];
+			for (SharedFrame frame : snapshot) {
+				int position = order.get(frame);
+				int writer = position / perWriter;
+				assertTrue(position % perWriter + 1 > last[writer]);
+				last[writer] = position % perWriter + 1;
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.Test;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.ChatMessageDecoder;
+import es.ubu.lsi.common.ChatMessageEncoder;
+import es.ubu.lsi.server.ChatMetrics.DisconnectReason;
+
+/**
+ * Tests del apagado ordenado del servidor ({@link ChatServerImpl#shutdown()}).
+ */
+public class ChatServerShutdownTest {
+
+	private static int login(Socket socket, String nickname) throws IOException {
+		send(socket, new ChatMessage(0, MessageType.MESSAGE, nickname));
+		return ChatMessageDecoder.read(new DataInputStream(socket.getInputStream())).getId();
+	}
+
+	private static void send(Socket socket, ChatMessage message) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		ChatMessageEncoder.write(message, out);
+		out.flush();
+	}
+
+	/**
+	 * Lee hasta que el servidor cierra la conexión y devuelve el último mensaje.
+	 */
+	private static String readUntilClosed(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		String last = null;
+		try {
+			while (true) {
+				last = ChatMessageDecoder.read(in).getMessage();
+			}
+		} catch (EOFException e) { // Conexión cerrada por el servidor
+			return last;
+		}
+	}
+
+	/**
+	 * Comprueba en cada modo que el SHUTDOWN del administrador llega como último
+	 * mensaje a los clientes, que se cierran sus conexiones y que el servidor
+	 * devuelve el control sin finalizar la máquina virtual.
+	 */
+	@Test
+	public void adminShutdownShouldDrainAndReturn() throws Exception {
+		for (ServerMode mode : new ServerMode[] { ServerMode.THREADS, ServerMode.NIO }) {
+			RunningServer running = RunningServer
+					.start(new ServerConfig().setMode(mode).setFanoutThreads(0).setReactorThreads(2));
+			ChatServerImpl server = running.server;
+			Socket ana = running.connect();
+			Socket admin = running.connect();
+			login(ana, "ana");
+			int adminId = login(admin, "admin");
+
+			send(admin, new ChatMessage(adminId, MessageType.SHUTDOWN, ""));
+			assertTrue(mode.name(), readUntilClosed(ana).endsWith(": Cerrando el servidor."));
+			running.main.join(10000);
+			assertFalse(mode.name(), running.main.isAlive());
+			assertTrue(server.isTerminated());
+			assertEquals(2, server.getMetrics().getDisconnects(DisconnectReason.SHUTDOWN));
+			ana.close();
+			admin.close();
+		}
+	}
+
+	/**
+	 * Comprueba que el apagado desde fuera (como el del hook de la máquina
+	 * virtual) firma el aviso como el servidor y que las llamadas repetidas no
+	 * hacen nada.
+	 */
+	@Test
+	public void externalShutdownShouldBeIdempotent() throws Exception {
+		RunningServer running = RunningServer.start(new ServerConfig().setFanoutThreads(0));
+		ChatServerImpl server = running.server;
+		Socket ana = running.connect();
+		login(ana, "ana");
+		while (server.getSessions().size() < 1) {
+			Thread.sleep(5);
+		}
+
+		server.shutdown();
+		server.shutdown();
+		assertTrue(readUntilClosed(ana).startsWith("servidor "));
+		running.main.join(10000);
+		assertFalse(running.main.isAlive());
+		assertEquals(1, server.getMetrics().getDisconnects(DisconnectReason.SHUTDOWN));
+		ana.close();
+	}
+
+	/**
+	 * Comprueba en cada modo que si el puerto está ocupado el arranque lanza la
+	 * excepción en lugar de finalizar la máquina virtual, con el servidor ya
+	 * apagado y sus recursos liberados.
+	 */
+	@Test
+	public void startupFailureShouldReleaseAndThrow() throws Exception {
+		for (ServerMode mode : new ServerMode[] { ServerMode.THREADS, ServerMode.NIO }) {
+			try (ServerSocket busy = new ServerSocket(0)) {
+				ChatServerImpl server = new ChatServerImpl(
+						new ServerConfig().setPort(busy.getLocalPort()).setMode(mode).setReactorThreads(2));
+				try {
+					server.startup();
+					fail(mode.name());
+				} catch (IllegalStateException e) { // Puerto ocupado
+					assertTrue(mode.name(), e.getCause() instanceof IOException);
+				}
+				assertTrue(mode.name(), server.isTerminated());
+				// El apagado posterior, como el del hook, no hace nada
+				server.shutdown();
+			}
+		}
+	}
+}
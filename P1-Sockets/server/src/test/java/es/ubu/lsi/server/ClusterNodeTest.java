@@ -0,0 +1,211 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests del clúster de servidores ({@link ClusterNode}) con varios nodos sobre
+ * la interfaz de loopback.
+ */
+public class ClusterNodeTest {
+
+	private final List<ChatServerImpl> nodes = new ArrayList<ChatServerImpl>();
+
+	/**
+	 * Arranca un nodo que se conecta a los nodos indicados.
+	 */
+	private ChatServerImpl node(String name, ChatServerImpl... peers) throws IOException {
+		List<String> addresses = new ArrayList<String>();
+		for (ChatServerImpl peer : peers) {
+			addresses.add("127.0.0.1:" + peer.getCluster().getLocalPort());
+		}
+		ChatServerImpl server = new ChatServerImpl(new ServerConfig().setFanoutThreads(0).setClusterPort(0)
+				.setClusterName(name).setClusterPeers(addresses).setClusterRetryMillis(50));
+		server.getCluster().start();
+		nodes.add(server);
+		return server;
+	}
+
+	private static void await(Callable<Boolean> condition) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.call() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue("Condición no alcanzada a tiempo", condition.call());
+	}
+
+	private static void awaitPeers(final ChatServerImpl server, final String... peers) throws Exception {
+		await(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return server.getCluster().getPeers().containsAll(Arrays.asList(peers))
+						&& server.getCluster().getPeers().size() == peers.length;
+			}
+		});
+	}
+
+	private static void awaitRemoteUsers(final ChatServerImpl server, final int count) throws Exception {
+		await(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return server.getCluster().getRemoteUsers().size() == count;
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		for (ChatServerImpl server : nodes) {
+			server.getCluster().shutdown();
+		}
+	}
+
+	/**
+	 * Comprueba que un mensaje se difunde una sola vez en cada nodo.
+	 */
+	@Test
+	public void messagesShouldReachEveryNodeOnce() throws Exception {
+		ChatServerImpl a = node("a");
+		ChatServerImpl b = node("b", a);
+		ChatServerImpl c = node("c", a, b);
+		awaitPeers(a, "b", "c");
+		awaitPeers(b, "a", "c");
+		awaitPeers(c, "a", "b");
+
+		RecordingSession ana = new RecordingSession(a, "ana");
+		final RecordingSession luis = new RecordingSession(b, "luis");
+		final RecordingSession eva = new RecordingSession(c, "eva");
+		awaitRemoteUsers(a, 2);
+		ana.say("hola cluster");
+
+		await(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return luis.receivedEnding(": hola cluster") && eva.receivedEnding(": hola cluster");
+			}
+		});
+		int copies = 0;
+		for (String text : luis.received) {
+			if (text.startsWith("ana ") && text.endsWith(": hola cluster")) {
+				copies++;
+			}
+		}
+		assertEquals(1, copies);
+		assertTrue(ana.receivedEnding(": hola cluster"));
+	}
+
+	/**
+	 * Comprueba que los usuarios remotos cuentan al comprobar los nicknames y que
+	 * los bloqueos se aplican en todos los nodos.
+	 */
+	@Test
+	public void remoteUsersShouldCountForNicknamesAndBans() throws Exception {
+		ChatServerImpl a = node("a");
+		final ChatServerImpl b = node("b", a);
+		awaitPeers(a, "b");
+
+		final RecordingSession ana = new RecordingSession(a, "ana");
+		awaitRemoteUsers(b, 1);
+		assertTrue(b.isNicknameInUse("ana"));
+		assertEquals("a", b.getCluster().getNodeOf("ana"));
+		RecordingSession impostor = new RecordingSession(b, "ana");
+		assertFalse(impostor.isAlive());
+
+		new RecordingSession(b, "luis").say("ban ana");
+		await(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return ana.isBanned();
+			}
+		});
+		assertTrue(b.getSessions().isBanned("ana"));
+	}
+
+	/**
+	 * Comprueba que el aviso de apagado de un nodo sólo llega a sus clientes: los
+	 * del resto del clúster siguen conectados y sin recibirlo.
+	 */
+	@Test
+	public void shutdownNoticeShouldStayOnItsNode() throws Exception {
+		ChatServerImpl a = node("a");
+		ChatServerImpl b = node("b", a);
+		awaitPeers(a, "b");
+		awaitPeers(b, "a");
+
+		final RecordingSession ana = new RecordingSession(a, "ana");
+		RecordingSession luis = new RecordingSession(b, "luis");
+		awaitRemoteUsers(b, 1);
+		a.shutdown();
+		awaitPeers(b);
+		awaitRemoteUsers(b, 0);
+
+		assertTrue(ana.receivedEnding("Cerrando el servidor."));
+		assertFalse(luis.receivedEnding("Cerrando el servidor."));
+		assertTrue(luis.isAlive());
+		assertEquals(1, b.getSessions().size());
+	}
+
+	/**
+	 * Comprueba que un mensaje mal formado de otro nodo cierra su enlace y
+	 * retira sus usuarios en lugar de dejarlo abierto para siempre.
+	 */
+	@Test
+	public void malformedMessageShouldCloseItsLink() throws Exception {
+		ChatServerImpl a = node("a");
+		Socket peer = new Socket("127.0.0.1", a.getCluster().getLocalPort());
+		try {
+			OutputStream out = peer.getOutputStream();
+			out.write(ClusterLink.encode(ClusterLink.HELLO, "x"));
+			out.write(ClusterLink.encode(ClusterLink.USER_JOIN, "bob"));
+			out.flush();
+			awaitPeers(a, "x");
+			awaitRemoteUsers(a, 1);
+
+			// Faltan el identificador y el texto del mensaje
+			out.write(ClusterLink.encode(ClusterLink.MESSAGE, "", "MESSAGE"));
+			out.flush();
+			awaitPeers(a);
+			awaitRemoteUsers(a, 0);
+		} finally {
+			peer.close();
+		}
+	}
+
+	/**
+	 * Comprueba que los nodos pueden abandonar el clúster y unirse después sin
+	 * reiniciar el resto.
+	 */
+	@Test
+	public void peersShouldLeaveAndJoinWithoutRestart() throws Exception {
+		ChatServerImpl a = node("a");
+		ChatServerImpl b = node("b", a);
+		awaitPeers(a, "b");
+		new RecordingSession(b, "luis");
+		new RecordingSession(a, "ana");
+		a.getSessions().setBanned("pepe", true);
+		awaitRemoteUsers(a, 1);
+
+		b.getCluster().shutdown();
+		awaitPeers(a);
+		awaitRemoteUsers(a, 0);
+
+		// El nuevo nodo recibe el estado de a al unirse
+		ChatServerImpl c = node("c", a);
+		awaitPeers(a, "c");
+		awaitRemoteUsers(c, 1);
+		assertEquals("a", c.getCluster().getNodeOf("ana"));
+		assertTrue(c.getSessions().isBanned("pepe"));
+	}
+}
@@ -0,0 +1,91 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import es.ubu.lsi.server.OutboundQueue.OverflowPolicy;
+import es.ubu.lsi.server.WriteStats.FlushCause;
+
+/**
+ * Tests de {@link CoalescingWriter}.
+ */
+public class CoalescingWriterTest {
+
+	/**
+	 * Stream que cuenta las llamadas a write.
+	 */
+	private static class CountingStream extends ByteArrayOutputStream {
+		int writes;
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			writes++;
+			super.write(b, off, len);
+		}
+	}
+
+	private final CountingStream out = new CountingStream();
+	private final WriteStats stats = new WriteStats();
+	private final OutboundQueue queue = new OutboundQueue(16, OverflowPolicy.DROP_OLDEST, 0);
+
+	private static SharedFrame frame(int value, int length) {
+		byte[] bytes = new byte[length];
+		java.util.Arrays.fill(bytes, (byte) value);
+		return new SharedFrame(bytes);
+	}
+
+	/**
+	 * Comprueba que una trama aislada se escribe de inmediato.
+	 */
+	@Test
+	public void singleFrameShouldBeWrittenImmediately() throws IOException, InterruptedException {
+		new CoalescingWriter(out, 64, 1000, stats).write(frame(1, 10), queue);
+
+		assertEquals(1, out.writes);
+		assertEquals(1, stats.getFlushes(FlushCause.IDLE));
+		assertEquals(10, stats.getBytes());
+	}
+
+	/**
+	 * Comprueba que una ráfaga se agrupa respetando el umbral y el orden.
+	 */
+	@Test
+	public void burstShouldBeCoalescedUpToThreshold() throws IOException, InterruptedException {
+		for (int i = 2; i <= 5; i++) {
+			queue.offer(frame(i, 10), true);
+		}
+		new CoalescingWriter(out, 25, 0, stats).write(frame(1, 10), queue);
+
+		assertEquals(3, out.writes);
+		assertEquals(2, stats.getFlushes(FlushCause.SIZE));
+		assertEquals(1, stats.getFlushes(FlushCause.IDLE));
+		assertEquals(5, stats.getFrames());
+		assertEquals(50.0 / 3, stats.getBytesPerFlush(), 1e-9);
+		byte[] written = out.toByteArray();
+		for (int i = 0; i < 50; i++) {
+			assertEquals(i / 10 + 1, written[i]);
+		}
+	}
+
+	/**
+	 * Comprueba que durante una ráfaga se espera la ventana configurada y las
+	 * tramas mayores que el umbral se escriben directamente.
+	 */
+	@Test
+	public void burstShouldLingerAndPassThroughLargeFrames() throws IOException, InterruptedException {
+		queue.offer(frame(2, 100), true);
+		queue.offer(frame(3, 4), true);
+		new CoalescingWriter(out, 32, 1000, stats).write(frame(1, 4), queue);
+
+		assertEquals(3, out.writes);
+		assertEquals(2, stats.getFlushes(FlushCause.SIZE));
+		assertEquals(1, stats.getFlushes(FlushCause.LINGER));
+		assertEquals(108, out.size());
+		assertArrayEquals(new byte[] { 1, 1, 1, 1 }, java.util.Arrays.copyOf(out.toByteArray(), 4));
+	}
+}
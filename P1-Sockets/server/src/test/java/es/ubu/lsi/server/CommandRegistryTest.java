@@ -0,0 +1,91 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.server.CommandRegistry.Arguments;
+import es.ubu.lsi.server.CommandRegistry.Command;
+
+/**
+ * Tests del registro de comandos ({@link CommandRegistry}).
+ */
+public class CommandRegistryTest {
+
+	private static ChatMessage message(String text) {
+		return new ChatMessage(1, MessageType.MESSAGE, text);
+	}
+
+	private static Command recorder(final List<String> calls, final String name) {
+		return new Command() {
+			@Override
+			public void execute(ClientSession session, ChatMessage message, String argument) {
+				calls.add(name + ":" + argument);
+			}
+		};
+	}
+
+	/**
+	 * Comprueba que sólo se reconocen los comandos cuyos argumentos encajan y que
+	 * el resto de mensajes no se tratan como comandos.
+	 */
+	@Test
+	public void commandsShouldMatchNameAndArguments() {
+		List<String> calls = new ArrayList<String>();
+		CommandRegistry registry = new CommandRegistry();
+		registry.register("ban", Arguments.WORD, recorder(calls, "ban"));
+		registry.register("banner", Arguments.TEXT, recorder(calls, "banner"));
+		registry.register("stats", Arguments.NONE, recorder(calls, "stats"));
+
+		assertTrue(registry.dispatch(null, message("ban pepe")));
+		assertTrue(registry.dispatch(null, message("banner hola a todos")));
+		assertTrue(registry.dispatch(null, message("stats")));
+		assertEquals("[ban:pepe, banner:hola a todos, stats:null]", calls.toString());
+
+		assertFalse(registry.dispatch(null, message("ban pepe y luis")));
+		assertFalse(registry.dispatch(null, message("ban ")));
+		assertFalse(registry.dispatch(null, message("ban")));
+		assertFalse(registry.dispatch(null, message("bandera pepe")));
+		assertFalse(registry.dispatch(null, message("stats ahora")));
+		assertFalse(registry.dispatch(null, message("hola a todos")));
+		assertFalse(registry.dispatch(null, message("")));
+		assertEquals(3, calls.size());
+	}
+
+	/**
+	 * Comprueba que los comandos añadidos al servidor se ejecutan en lugar de
+	 * difundirse y que los predeterminados siguen funcionando.
+	 */
+	@Test
+	public void serverShouldDispatchRegisteredCommands() {
+		ChatServerImpl server = new ChatServerImpl(new ServerConfig().setFanoutThreads(0));
+		server.getCommands().register("rooms", Arguments.NONE, new Command() {
+			@Override
+			public void execute(ClientSession session, ChatMessage message, String argument) {
+				try {
+					session.send(new ChatMessage(0, MessageType.MESSAGE, "Sala actual: " + session.getRoom().getName()));
+				} catch (IOException e) {
+					throw new AssertionError(e);
+				}
+			}
+		});
+		RecordingSession ana = new RecordingSession(server, "ana");
+		RecordingSession luis = new RecordingSession(server, "luis");
+		ana.say("rooms");
+		assertTrue(ana.received.contains("Sala actual: " + ChatRooms.DEFAULT_ROOM));
+		assertFalse(luis.receivedEnding("rooms"));
+
+		ana.say("join sala");
+		assertEquals("sala", ana.getRoom().getName());
+		ana.say("join sala ya");
+		assertTrue(ana.receivedEnding(": join sala ya"));
+	}
+}
@@ -0,0 +1,154 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+import org.junit.Test;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.ChatMessageDecoder;
+import es.ubu.lsi.common.ChatMessageEncoder;
+
+/**
+ * Tests de la compresión negociada de las tramas.
+ */
+public class CompressionTest {
+
+	/**
+	 * Trama recibida tal cual, junto con su mensaje decodificado.
+	 */
+	private static final class RawFrame {
+		final boolean compressed;
+		final ChatMessage message;
+
+		RawFrame(boolean compressed, ChatMessage message) {
+			this.compressed = compressed;
+			this.message = message;
+		}
+	}
+
+	private static RawFrame readRaw(DataInputStream in) throws IOException {
+		byte[] body = new byte[in.readInt()];
+		in.readFully(body);
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(frame);
+		out.writeInt(body.length);
+		out.write(body);
+		ChatMessage message = ChatMessageDecoder.read(new DataInputStream(new ByteArrayInputStream(frame.toByteArray())));
+		return new RawFrame((body[0] & 0x80) != 0, message);
+	}
+
+	private static RawFrame await(DataInputStream in, String text) throws IOException {
+		RawFrame frame;
+		while (!(frame = readRaw(in)).message.getMessage().contains(text)) {
+			assertEquals(MessageType.MESSAGE, frame.message.getType());
+		}
+		return frame;
+	}
+
+	private static String negotiate(Socket socket) throws IOException {
+		ChatMessageEncoder.write(new ChatMessage(0, MessageType.COMPRESS, "deflate"), socket.getOutputStream());
+		ChatMessage reply = ChatMessageDecoder.read(new DataInputStream(socket.getInputStream()));
+		assertEquals(MessageType.COMPRESS, reply.getType());
+		return reply.getMessage();
+	}
+
+	private static int login(Socket socket, String nickname) throws IOException {
+		ChatMessageEncoder.write(new ChatMessage(0, MessageType.MESSAGE, nickname), socket.getOutputStream());
+		return readRaw(new DataInputStream(socket.getInputStream())).message.getId();
+	}
+
+	private static String longText(String word) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			text.append(word).append(' ');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Comprueba en cada modo que sólo reciben tramas comprimidas los clientes que
+	 * lo han negociado, que el servidor descomprime las tramas recibidas y que se
+	 * publica la razón de compresión de cada sesión.
+	 */
+	@Test
+	public void negotiatedSessionsShouldReceiveCompressedFrames() throws Exception {
+		for (ServerMode mode : new ServerMode[] { ServerMode.THREADS, ServerMode.NIO }) {
+			RunningServer running = RunningServer.start(new ServerConfig().setMode(mode).setFanoutThreads(0)
+					.setReactorThreads(1).setCompressThreshold(64));
+			ChatServerImpl server = running.server;
+			Socket ana = running.connect();
+			assertEquals(mode.name(), "deflate 64", negotiate(ana));
+			int anaId = login(ana, "ana");
+			Socket luis = running.connect();
+			int luisId = login(luis, "luis");
+			DataInputStream anaIn = new DataInputStream(ana.getInputStream());
+			DataInputStream luisIn = new DataInputStream(luis.getInputStream());
+			await(anaIn, "luis");
+
+			// Un mensaje largo llega comprimido sólo a quien lo ha negociado
+			String text = longText("hola");
+			ChatMessageEncoder.write(new ChatMessage(luisId, MessageType.MESSAGE, text), luis.getOutputStream());
+			RawFrame received = await(anaIn, text);
+			assertTrue(mode.name(), received.compressed);
+			assertFalse(mode.name(), await(luisIn, text).compressed);
+
+			// El servidor descomprime las tramas del cliente
+			String reply = longText("adios");
+			byte[] frame = ChatMessageEncoder
+					.compress(ChatMessageEncoder.encodeToArray(new ChatMessage(anaId, MessageType.MESSAGE, reply)));
+			ana.getOutputStream().write(frame);
+			assertTrue(mode.name(), await(luisIn, reply).message.getMessage().endsWith(reply));
+
+			assertTrue(mode.name(), server.getMetrics().getCompressionRatios().get("ana") > 1);
+			assertFalse(mode.name(), server.getMetrics().getCompressionRatios().containsKey("luis"));
+			running.stop();
+			ana.close();
+			luis.close();
+		}
+	}
+
+	/**
+	 * Comprueba que con la compresión desactivada se rechaza la petición y la
+	 * sesión se registra igualmente.
+	 */
+	@Test
+	public void disabledCompressionShouldBeRefused() throws Exception {
+		RunningServer running = RunningServer.start(new ServerConfig().setFanoutThreads(0).setCompressThreshold(-1));
+		ChatServerImpl server = running.server;
+		Socket ana = running.connect();
+		assertEquals("", negotiate(ana));
+		assertTrue(login(ana, "ana") != 0);
+		running.stop();
+		ana.close();
+	}
+
+	/**
+	 * Comprueba que una trama compartida se comprime una sola vez y las demás
+	 * sesiones reutilizan el resultado sin coste.
+	 */
+	@Test
+	public void sharedFramesShouldBeCompressedOnce() throws IOException {
+		SharedFrame frame = SharedFrame.of(new ChatMessage(1, MessageType.MESSAGE, longText("hola")));
+		CompressionStats first = new CompressionStats();
+		CompressionStats second = new CompressionStats();
+		SharedFrame compressed = frame.compressed(first);
+		assertTrue(compressed.length() < frame.length());
+		assertSame(compressed, frame.compressed(second));
+		assertEquals(1, first.getCompressedFrames());
+		assertEquals(0, first.getReusedFrames());
+		assertEquals(1, second.getReusedFrames());
+		assertEquals(0, second.getCpuMicros());
+		assertEquals(second.getRatio(), first.getRatio(), 0);
+	}
+}
@@ -0,0 +1,181 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.ChatMessageDecoder;
+import es.ubu.lsi.common.ChatMessageEncoder;
+import es.ubu.lsi.server.ChatMetrics.DisconnectReason;
+
+/**
+ * Tests de las conexiones multiplexadas ({@link MultiplexedConnection}).
+ */
+public class MultiplexedConnectionTest {
+
+	/**
+	 * Extremo cliente de una conexión multiplexada, que guarda las tramas de los
+	 * canales que aún no se han pedido.
+	 */
+	private static final class MuxClient {
+		final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+		final Map<Integer, ArrayDeque<ChatMessage>> pending = new HashMap<Integer, ArrayDeque<ChatMessage>>();
+
+		MuxClient(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new DataInputStream(socket.getInputStream());
+			this.out = new DataOutputStream(socket.getOutputStream());
+		}
+
+		void send(int channel, ChatMessage message) throws IOException {
+			out.writeInt(channel);
+			ChatMessageEncoder.write(message, out);
+			out.flush();
+		}
+
+		ChatMessage read(int channel) throws IOException {
+			ArrayDeque<ChatMessage> queue = pending.get(channel);
+			if (queue != null && !queue.isEmpty()) {
+				return queue.poll();
+			}
+			while (true) {
+				int from = in.readInt();
+				ChatMessage message = ChatMessageDecoder.read(in);
+				if (from == channel) {
+					return message;
+				}
+				if (!pending.containsKey(from)) {
+					pending.put(from, new ArrayDeque<ChatMessage>());
+				}
+				pending.get(from).add(message);
+			}
+		}
+
+		/**
+		 * Lee las tramas de un canal, como el historial reciente, hasta la que
+		 * contiene el texto indicado.
+		 */
+		ChatMessage await(int channel, String text) throws IOException {
+			ChatMessage message;
+			while (!(message = read(channel)).getMessage().contains(text)) {
+				assertEquals(MessageType.MESSAGE, message.getType());
+			}
+			return message;
+		}
+	}
+
+	private static ChatMessage await(DataInputStream in, String text) throws IOException {
+		ChatMessage message;
+		while (!(message = ChatMessageDecoder.read(in)).getMessage().contains(text)) {
+			assertEquals(MessageType.MESSAGE, message.getType());
+		}
+		return message;
+	}
+
+	private static MuxClient openMux(RunningServer running) throws Exception {
+		Socket socket = running.connect();
+		OutputStream out = socket.getOutputStream();
+		ChatMessageEncoder.write(new ChatMessage(0, MessageType.MUX, ""), out);
+		out.flush();
+		MuxClient client = new MuxClient(socket);
+		assertEquals(MessageType.MUX, ChatMessageDecoder.read(client.in).getType());
+		return client;
+	}
+
+	/**
+	 * Comprueba que cada canal se registra como una sesión con su propio
+	 * identificador, que las difusiones llegan a los canales y a los clientes
+	 * normales, que LOGOUT cierra sólo su canal con un aviso MUX y que un
+	 * nickname repetido se rechaza sin cerrar la conexión.
+	 */
+	@Test
+	public void channelsShouldBehaveAsIndependentSessions() throws Exception {
+		RunningServer running = RunningServer.start(new ServerConfig().setFanoutThreads(0));
+		ChatServerImpl server = running.server;
+		MuxClient mux = openMux(running);
+		mux.send(1, new ChatMessage(0, MessageType.MESSAGE, "ana"));
+		int anaId = mux.read(1).getId();
+		assertTrue(mux.read(1).getMessage().startsWith("ana"));
+		mux.send(2, new ChatMessage(0, MessageType.MESSAGE, "luis"));
+		int luisId = mux.read(2).getId();
+		assertTrue(anaId != luisId);
+		assertTrue(mux.await(1, "conectado").getMessage().startsWith("luis"));
+		assertTrue(mux.await(2, "luis").getMessage().endsWith("Se ha conectado al chat."));
+
+		// Un cliente normal comparte sala con los canales
+		Socket eva = running.connect();
+		ChatMessageEncoder.write(new ChatMessage(0, MessageType.MESSAGE, "eva"), eva.getOutputStream());
+		DataInputStream evaIn = new DataInputStream(eva.getInputStream());
+		int evaId = ChatMessageDecoder.read(evaIn).getId();
+		assertTrue(await(evaIn, "eva").getMessage().endsWith("Se ha conectado al chat."));
+		assertTrue(mux.read(1).getMessage().startsWith("eva"));
+		assertTrue(mux.read(2).getMessage().startsWith("eva"));
+		mux.send(1, new ChatMessage(anaId, MessageType.MESSAGE, "hola"));
+		assertTrue(ChatMessageDecoder.read(evaIn).getMessage().endsWith("hola"));
+		assertTrue(mux.read(1).getMessage().endsWith("hola"));
+		assertTrue(mux.read(2).getMessage().endsWith("hola"));
+		ChatMessageEncoder.write(new ChatMessage(evaId, MessageType.MESSAGE, "adios"), eva.getOutputStream());
+		assertTrue(mux.read(2).getMessage().endsWith("adios"));
+		assertEquals(3, server.getSessions().size());
+
+		// Nickname repetido: se cierra sólo su canal
+		mux.send(3, new ChatMessage(0, MessageType.MESSAGE, "luis"));
+		assertEquals(MessageType.MUX, mux.read(3).getType());
+		assertEquals(1, server.getMetrics().getDisconnects(DisconnectReason.REJECTED));
+
+		// LOGOUT cierra el canal y la conexión sigue atendiendo al otro
+		mux.send(2, new ChatMessage(luisId, MessageType.LOGOUT, ""));
+		ChatMessage last;
+		while ((last = mux.read(2)).getType() != MessageType.MUX) {
+			assertEquals(MessageType.MESSAGE, last.getType());
+		}
+		mux.send(1, new ChatMessage(anaId, MessageType.MESSAGE, "sigo"));
+		mux.await(1, "sigo");
+		assertEquals(2, server.getSessions().size());
+
+		running.stop();
+		eva.close();
+		mux.socket.close();
+	}
+
+	/**
+	 * Comprueba que al perderse la conexión se eliminan todas sus sesiones y que
+	 * el resto de clientes recibe el aviso.
+	 */
+	@Test
+	public void lostConnectionsShouldRemoveAllTheirSessions() throws Exception {
+		RunningServer running = RunningServer.start(new ServerConfig().setFanoutThreads(0));
+		ChatServerImpl server = running.server;
+		MuxClient mux = openMux(running);
+		for (int channel = 1; channel <= 3; channel++) {
+			mux.send(channel, new ChatMessage(0, MessageType.MESSAGE, "bot" + channel));
+			mux.read(channel);
+		}
+		while (server.getSessions().size() < 3) {
+			Thread.sleep(5);
+		}
+		mux.socket.close();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getSessions().size() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(server.getSessions().size() == 0);
+		assertEquals(3, server.getMetrics().getDisconnects(DisconnectReason.CONNECTION_LOST));
+
+		running.stop();
+	}
+}
@@ -0,0 +1,176 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.ChatMessageDecoder;
+import es.ubu.lsi.server.OutboundQueue.OverflowPolicy;
+
+/**
+ * Tests de las políticas de desbordamiento de {@link OutboundQueue}.
+ */
+public class OutboundQueueTest {
+
+	private final SharedFrame first = new SharedFrame(new byte[] { 1 });
+	private final SharedFrame second = new SharedFrame(new byte[] { 2 });
+	private final SharedFrame third = new SharedFrame(new byte[] { 3 });
+
+	private static ChatMessage decode(SharedFrame frame) throws IOException {
+		return ChatMessageDecoder.read(new DataInputStream(new ByteArrayInputStream(frame.bytes())));
+	}
+
+	/**
+	 * Comprueba que DROP_OLDEST descarta la trama más antigua, la contabiliza y
+	 * avisa al cliente antes de la siguiente trama.
+	 */
+	@Test
+	public void dropOldestShouldKeepNewestFrames() throws IOException {
+		OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DROP_OLDEST, 0);
+
+		assertTrue(queue.offer(first, true));
+		assertTrue(queue.offer(second, true));
+		assertTrue(queue.offer(third, true));
+
+		// Las dos tramas más el aviso de la descartada
+		assertEquals(3, queue.depth());
+		assertEquals(1, queue.getDropped());
+		ChatMessage notice = decode(queue.poll());
+		assertEquals(MessageType.DROPPED, notice.getType());
+		assertEquals("1", notice.getMessage());
+		assertSame(second, queue.poll());
+		assertSame(third, queue.poll());
+		assertTrue(queue.isEmpty());
+	}
+
+	/**
+	 * Comprueba que DROP_OLDEST no descarta la bienvenida ni las tramas de
+	 * control, sino el mensaje más antiguo, y que desconecta al cliente si no
+	 * queda ningún mensaje que descartar.
+	 */
+	@Test
+	public void dropOldestShouldKeepWelcomeAndControlFrames() throws IOException {
+		OutboundQueue queue = new OutboundQueue(3, OverflowPolicy.DROP_OLDEST, 0);
+		SharedFrame welcome = SharedFrame.pinned(new ChatMessage(1, MessageType.MESSAGE, "Bienvenido"));
+		SharedFrame token = SharedFrame.of(new ChatMessage(1, MessageType.RESUME, "credencial"));
+
+		assertTrue(queue.offer(welcome, true));
+		assertTrue(queue.offer(token, true));
+		assertTrue(queue.offer(first, true));
+		assertTrue(queue.offer(second, true));
+
+		assertEquals(1, queue.getDropped());
+		assertSame(welcome, queue.poll());
+		assertSame(token, queue.poll());
+		assertEquals(MessageType.DROPPED, decode(queue.poll()).getType());
+		assertSame(second, queue.poll());
+
+		OutboundQueue full = new OutboundQueue(1, OverflowPolicy.DROP_OLDEST, 0);
+		assertTrue(full.offer(welcome, true));
+		assertFalse(full.offer(first, true));
+		assertSame(welcome, full.poll());
+	}
+
+	/**
+	 * Comprueba que el aviso acumula las tramas descartadas desde el anterior y
+	 * ocupa una posición del flujo de la sesión, de modo que se guarda para
+	 * reanudarla y el cliente cuenta las mismas tramas que el servidor.
+	 */
+	@Test
+	public void dropNoticesShouldBeNumberedInTheStream() throws IOException {
+		OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.DROP_OLDEST, 0);
+		HistoryRing ring = new HistoryRing(8);
+		queue.trackSent(ring);
+
+		queue.offer(first, true);
+		queue.offer(second, true);
+		queue.offer(third, true);
+
+		assertEquals("2", decode(queue.poll()).getMessage());
+		assertSame(third, queue.poll());
+		assertNull(queue.poll());
+		assertEquals(2, queue.getSequence());
+		assertEquals(2, ring.snapshot().size());
+		assertEquals(MessageType.DROPPED, ring.snapshot().get(0).type());
+	}
+
+	/**
+	 * Comprueba que una trama cuenta como pendiente desde que se encola hasta que
+	 * el escritor la da por escrita, también después de extraerla.
+	 */
+	@Test
+	public void framesShouldCountUntilWritten() {
+		OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DROP_OLDEST, 0);
+		assertFalse(queue.hasUnwritten());
+
+		queue.offer(first, true);
+		assertTrue(queue.hasUnwritten());
+		assertSame(first, queue.poll());
+		assertTrue(queue.isEmpty());
+		assertTrue(queue.hasUnwritten());
+		queue.written(1);
+		assertFalse(queue.hasUnwritten());
+	}
+
+	/**
+	 * Comprueba que DISCONNECT rechaza la trama sin modificar la cola.
+	 */
+	@Test
+	public void disconnectShouldRejectWhenFull() {
+		OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.DISCONNECT, 0);
+
+		assertTrue(queue.offer(first, true));
+		assertFalse(queue.offer(second, true));
+		assertEquals(1, queue.depth());
+		assertSame(first, queue.peek());
+	}
+
+	/**
+	 * Comprueba que BLOCK espera a que el escritor haga sitio.
+	 */
+	@Test
+	public void blockShouldWaitForWriter() throws InterruptedException {
+		final OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.BLOCK, 5000);
+		queue.offer(first, true);
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+					queue.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		writer.start();
+
+		assertTrue(queue.offer(second, true));
+		writer.join();
+		assertSame(second, queue.poll());
+	}
+
+	/**
+	 * Comprueba que BLOCK rechaza la trama al agotar el tiempo o si el hilo no
+	 * puede esperar.
+	 */
+	@Test
+	public void blockShouldGiveUpAfterTimeout() {
+		OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.BLOCK, 20);
+		queue.offer(first, true);
+
+		assertFalse(queue.offer(second, true));
+		assertFalse(queue.offer(second, false));
+		assertEquals(1, queue.depth());
+	}
+}
@@ -0,0 +1,58 @@
+package es.ubu.lsi.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.ChatMessageDecoder;
+
+/**
+ * Sesión sin transporte para los tests que guarda el texto de los mensajes
+ * recibidos.
+ */
+class RecordingSession extends ClientSession {
+
+	final List<String> received = new CopyOnWriteArrayList<String>();
+
+	RecordingSession(ChatServerImpl server, String nickname) {
+		super(server);
+		login(new ChatMessage(0, MessageType.MESSAGE, nickname));
+	}
+
+	@Override
+	protected void wakeWriter() {
+		SharedFrame frame;
+		while ((frame = queue.poll()) != null) {
+			try {
+				received.add(ChatMessageDecoder
+						.read(new DataInputStream(new ByteArrayInputStream(frame.bytes(), 0, frame.length())))
+						.getMessage());
+			} catch (IOException e) {
+				throw new AssertionError(e);
+			}
+			queue.written(1);
+		}
+	}
+
+	@Override
+	public void closeClient() {
+		setAlive(false);
+	}
+
+	void say(String text) {
+		processMsg(new ChatMessage(getClientId(), MessageType.MESSAGE, text));
+	}
+
+	boolean receivedEnding(String suffix) {
+		for (String text : received) {
+			if (text.endsWith(suffix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
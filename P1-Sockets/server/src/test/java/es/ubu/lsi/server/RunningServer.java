@@ -0,0 +1,56 @@
+package es.ubu.lsi.server;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Servidor arrancado en su propio hilo para los tests que se conectan por la
+ * interfaz de loopback. Escucha en el puerto que elige el sistema, de modo que
+ * no hay que buscar antes uno libre.
+ */
+class RunningServer {
+
+	final ChatServerImpl server;
+
+	final Thread main;
+
+	private RunningServer(ChatServerImpl server, Thread main) {
+		this.server = server;
+		this.main = main;
+	}
+
+	/**
+	 * Arranca un servidor con la configuración indicada, sobre el puerto 0, y
+	 * espera a que escuche.
+	 */
+	static RunningServer start(ServerConfig config) throws InterruptedException {
+		final ChatServerImpl server = new ChatServerImpl(config.setPort(0));
+		Thread main = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.startup();
+			}
+		}, "chat-server-test");
+		main.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getLocalPort() <= 0) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("El servidor no escucha");
+			}
+			Thread.sleep(5);
+		}
+		return new RunningServer(server, main);
+	}
+
+	Socket connect() throws IOException {
+		return new Socket("127.0.0.1", server.getLocalPort());
+	}
+
+	/**
+	 * Apaga el servidor y espera a que devuelva el control.
+	 */
+	void stop() throws InterruptedException {
+		server.shutdown();
+		main.join(10000);
+	}
+}
@@ -0,0 +1,150 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests de {@link SessionRegistry}.
+ */
+public class SessionRegistryTest {
+
+	private static final ChatServerImpl SERVER = new ChatServerImpl();
+	private final SessionRegistry registry = new SessionRegistry();
+
+	/**
+	 * Sesión sin transporte para los tests.
+	 */
+	private static class StubSession extends ClientSession {
+		StubSession(int id, String nickname) {
+			super(SERVER);
+			setClientId(id);
+			setNickname(nickname);
+		}
+
+		@Override
+		protected void wakeWriter() {
+		}
+
+		@Override
+		public void closeClient() {
+			setAlive(false);
+		}
+	}
+
+	/**
+	 * Comprueba que las sesiones se encuentran por identificador y nickname hasta
+	 * que se eliminan.
+	 */
+	@Test
+	public void shouldIndexByIdAndNickname() {
+		ClientSession ana = new StubSession(1, "ana");
+		assertTrue(registry.register(ana));
+
+		assertSame(ana, registry.get(1));
+		assertSame(ana, registry.getByNickname("ana"));
+		assertEquals(1, registry.size());
+
+		assertSame(ana, registry.remove(1));
+		assertNull(registry.get(1));
+		assertNull(registry.getByNickname("ana"));
+		assertNull(registry.remove(1));
+		assertEquals(0, registry.size());
+	}
+
+	/**
+	 * Comprueba que no se registran dos sesiones con el mismo nickname.
+	 */
+	@Test
+	public void shouldRejectDuplicateNickname() {
+		assertTrue(registry.register(new StubSession(1, "ana")));
+		assertFalse(registry.register(new StubSession(2, "ana")));
+		assertNull(registry.get(2));
+	}
+
+	/**
+	 * Comprueba que el bloqueo se aplica a la sesión conectada y se recuerda para
+	 * los usuarios que se conectan después.
+	 */
+	@Test
+	public void banShouldApplyToConnectedAndFutureSessions() {
+		ClientSession ana = new StubSession(1, "ana");
+		registry.register(ana);
+		registry.setBanned("ana", true);
+		registry.setBanned("luis", true);
+		assertTrue(ana.isBanned());
+
+		ClientSession luis = new StubSession(2, "luis");
+		registry.register(luis);
+		assertTrue(luis.isBanned());
+
+		registry.setBanned("luis", false);
+		assertFalse(luis.isBanned());
+		assertFalse(registry.isBanned("luis"));
+	}
+
+	/**
+	 * Comprueba que la tabla crece y que el recorrido devuelve cada sesión una vez
+	 * tras muchas altas y bajas.
+	 */
+	@Test
+	public void shouldGrowAndIterateAfterRemovals() {
+		for (int id = 1; id <= 1000; id++) {
+			registry.register(new StubSession(id, "user" + id));
+		}
+		for (int id = 1; id <= 1000; id += 2) {
+			registry.remove(id);
+		}
+		Set<Integer> seen = new HashSet<Integer>();
+		for (ClientSession session : registry) {
+			assertTrue(seen.add(session.getClientId()));
+			assertEquals(0, session.getClientId() % 2);
+		}
+		assertEquals(500, seen.size());
+		assertEquals(500, registry.size());
+		assertSame(registry.get(1000), registry.getByNickname("user1000"));
+	}
+
+	/**
+	 * Comprueba que next() devuelve la sesión que ha visto hasNext() aunque se
+	 * elimine entre ambas llamadas, y que el recorrido no falla mientras otro
+	 * hilo elimina sesiones.
+	 */
+	@Test
+	public void iterationShouldSurviveConcurrentRemovals() throws InterruptedException {
+		registry.register(new StubSession(1, "ana"));
+		Iterator<ClientSession> iterator = registry.iterator();
+		assertTrue(iterator.hasNext());
+		registry.remove(1);
+		assertEquals(1, iterator.next().getClientId());
+		assertFalse(iterator.hasNext());
+
+		for (int id = 1; id <= 2000; id++) {
+			registry.register(new StubSession(id, "user" + id));
+		}
+		Thread remover = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int id = 2000; id >= 1; id--) {
+					registry.remove(id);
+				}
+			}
+		});
+		remover.start();
+		while (remover.isAlive()) {
+			for (ClientSession session : registry) {
+				assertTrue(session.getClientId() >= 1);
+			}
+		}
+		remover.join();
+		assertFalse(registry.iterator().hasNext());
+	}
+}
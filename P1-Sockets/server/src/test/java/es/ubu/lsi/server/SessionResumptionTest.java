@@ -0,0 +1,257 @@
+package es.ubu.lsi.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.junit.Test;
+
+import es.ubu.lsi.common.ChatMessage;
+import es.ubu.lsi.common.ChatMessage.MessageType;
+import es.ubu.lsi.common.ChatMessageDecoder;
+import es.ubu.lsi.common.ChatMessageEncoder;
+import es.ubu.lsi.server.ChatMetrics.DisconnectReason;
+
+/**
+ * Tests de la reanudación de sesiones ({@link SessionResumption}).
+ */
+public class SessionResumptionTest {
+
+	private static void send(Socket socket, ChatMessage message) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		ChatMessageEncoder.write(message, out);
+		out.flush();
+	}
+
+	private static ChatMessage read(Socket socket) throws IOException {
+		return ChatMessageDecoder.read(new DataInputStream(socket.getInputStream()));
+	}
+
+	private static void awaitSessions(ChatServerImpl server, int count) throws InterruptedException {
+		while (server.getSessions().size() < count) {
+			Thread.sleep(5);
+		}
+	}
+
+	/**
+	 * Comprueba en cada modo que un cliente que pierde la conexión reanuda su
+	 * sesión desde otra con el mismo identificador, que recibe las tramas que no
+	 * llegó a recibir y las que se le difundieron mientras estaba suspendida, y
+	 * que sigue recibiendo por la nueva conexión.
+	 */
+	@Test
+	public void lostSessionsShouldResumeWithoutLosingFrames() throws Exception {
+		for (ServerMode mode : new ServerMode[] { ServerMode.THREADS, ServerMode.NIO }) {
+			RunningServer running = RunningServer.start(new ServerConfig().setMode(mode).setFanoutThreads(0)
+					.setReactorThreads(2).setResumeTimeoutMillis(10000));
+			ChatServerImpl server = running.server;
+			Socket ana = running.connect();
+			send(ana, new ChatMessage(0, MessageType.RESUME, "ana"));
+			int anaId = read(ana).getId();
+			ChatMessage token = read(ana);
+			assertEquals(MessageType.RESUME, token.getType());
+			assertFalse(token.getMessage().isEmpty());
+			// Tramas 1 y 2 de la sesión: la conexión de ana y la de luis
+			assertTrue(read(ana).getMessage().endsWith("Se ha conectado al chat."));
+			Socket luis = running.connect();
+			send(luis, new ChatMessage(0, MessageType.MESSAGE, "luis"));
+			int luisId = read(luis).getId();
+			assertTrue(read(ana).getMessage().startsWith("luis"));
+
+			// Perder la conexión y difundir mientras la sesión está suspendida
+			ana.close();
+			ClientSession parked = server.getSessions().get(anaId);
+			while (!parked.isParked()) {
+				Thread.sleep(5);
+			}
+			// La trama puede quedar en la cola o, si la conexión perdida aún la
+			// escribía, entre las enviadas: en ambos casos aumenta el retraso
+			long lag = parked.getLag();
+			send(luis, new ChatMessage(luisId, MessageType.MESSAGE, "hola"));
+			while (parked.getLag() == lag) {
+				Thread.sleep(5);
+			}
+
+			// Reanudar diciendo que no se recibió la última trama
+			Socket resumed = running.connect();
+			send(resumed, new ChatMessage(anaId, MessageType.RESUME, token.getMessage() + " 2"));
+			ChatMessage reply = read(resumed);
+			assertEquals(MessageType.RESUME, reply.getType());
+			assertEquals(token.getMessage() + " 2", reply.getMessage());
+			assertEquals(anaId, reply.getId());
+			assertTrue(read(resumed).getMessage().startsWith("luis"));
+			assertTrue(read(resumed).getMessage().endsWith("hola"));
+			send(luis, new ChatMessage(luisId, MessageType.MESSAGE, "otra"));
+			assertTrue(read(resumed).getMessage().endsWith("otra"));
+			ClientSession current = server.getSessions().get(anaId);
+			assertNotNull(current);
+			assertFalse(current == parked);
+			assertEquals(2, server.getSessions().size());
+			assertEquals(0, server.getMetrics().getDisconnects(DisconnectReason.CONNECTION_LOST));
+
+			running.stop();
+			resumed.close();
+			luis.close();
+		}
+	}
+
+	/**
+	 * Comprueba que las confirmaciones acumuladas del cliente miden su retraso y
+	 * liberan las tramas enviadas que ya no habrá que reenviar, y que se ignoran
+	 * las que no avanzan o superan las tramas enviadas.
+	 */
+	@Test
+	public void acknowledgementsShouldMeasureLagAndReleaseSentFrames() throws Exception {
+		RunningServer running = RunningServer
+				.start(new ServerConfig().setFanoutThreads(0).setResumeTimeoutMillis(10000));
+		ChatServerImpl server = running.server;
+		Socket ana = running.connect();
+		send(ana, new ChatMessage(0, MessageType.RESUME, "ana"));
+		int anaId = read(ana).getId();
+		read(ana);
+		read(ana);
+		Socket luis = running.connect();
+		send(luis, new ChatMessage(0, MessageType.MESSAGE, "luis"));
+		int luisId = read(luis).getId();
+		read(ana);
+		for (int i = 0; i < 3; i++) {
+			send(luis, new ChatMessage(luisId, MessageType.MESSAGE, "mensaje " + i));
+			assertTrue(read(ana).getMessage().endsWith("mensaje " + i));
+		}
+		// Bienvenida, dos conexiones y tres mensajes
+		ClientSession session = server.getSessions().get(anaId);
+		assertEquals(6, session.queue.getSequence());
+		assertFalse(session.isAcknowledging());
+		assertFalse(server.getMetrics().getClientLag().containsKey("ana"));
+
+		send(ana, new ChatMessage(anaId, MessageType.ACK, "4"));
+		while (session.queue.getSent().since(0).size() > 2 || session.getLag() > 2) {
+			Thread.sleep(5);
+		}
+		assertTrue(session.isAcknowledging());
+		assertEquals(2, session.getLag());
+		assertEquals(2, session.queue.getSent().since(0).size());
+
+		send(ana, new ChatMessage(anaId, MessageType.ACK, "99"));
+		send(ana, new ChatMessage(anaId, MessageType.ACK, "3"));
+		send(ana, new ChatMessage(anaId, MessageType.ACK, "6"));
+		while (!session.queue.getSent().since(0).isEmpty() || session.getLag() > 0) {
+			Thread.sleep(5);
+		}
+		assertEquals(Long.valueOf(0), server.getMetrics().getClientLag().get("ana"));
+		assertTrue(session.queue.getSent().since(0).isEmpty());
+
+		running.stop();
+		ana.close();
+		luis.close();
+	}
+
+	/**
+	 * Comprueba que se cierra la conexión que presenta una credencial incorrecta
+	 * y que la sesión suspendida sigue a la espera.
+	 */
+	@Test
+	public void wrongTokensShouldBeRejected() throws Exception {
+		RunningServer running = RunningServer
+				.start(new ServerConfig().setFanoutThreads(0).setResumeTimeoutMillis(10000));
+		ChatServerImpl server = running.server;
+		Socket ana = running.connect();
+		send(ana, new ChatMessage(0, MessageType.RESUME, "ana"));
+		int anaId = read(ana).getId();
+		read(ana);
+		awaitSessions(server, 1);
+		ana.close();
+		while (!server.getSessions().get(anaId).isParked()) {
+			Thread.sleep(5);
+		}
+
+		Socket intruder = running.connect();
+		send(intruder, new ChatMessage(anaId, MessageType.RESUME, "0123 1"));
+		try {
+			while (true) {
+				read(intruder);
+			}
+		} catch (IOException e) { // Conexión cerrada por el servidor
+		}
+		assertTrue(server.getSessions().get(anaId).isParked());
+		assertEquals(1, server.getMetrics().getDisconnects(DisconnectReason.REJECTED));
+
+		running.stop();
+		intruder.close();
+	}
+
+	/**
+	 * Sesión sin transporte cuyo escritor no extrae nunca las tramas de la cola.
+	 */
+	private static ClientSession idle(ChatServerImpl server) {
+		return new ClientSession(server) {
+			@Override
+			protected void wakeWriter() {
+			}
+
+			@Override
+			public void closeClient() {
+				setAlive(false);
+			}
+		};
+	}
+
+	/**
+	 * Registra una sesión que puede reanudarse y falla una reanudación antes de
+	 * que el servidor detecte la pérdida de su conexión: la nueva conexión ya
+	 * está cerrada, así que no se le puede enviar nada.
+	 */
+	private static ClientSession failHandOver(ChatServerImpl server) {
+		ClientSession ana = idle(server);
+		ana.login(new ChatMessage(0, MessageType.RESUME, "ana"));
+		int pending = ana.getQueueDepth();
+		ClientSession broken = idle(server);
+		broken.setAlive(false);
+		broken.login(new ChatMessage(ana.getClientId(), MessageType.RESUME, ana.getResumeToken() + " 0"));
+		assertTrue(ana.isParked());
+		assertEquals(pending, ana.getQueueDepth());
+		assertTrue(server.getSessions().get(ana.getClientId()) == ana);
+		return ana;
+	}
+
+	/**
+	 * Comprueba que si falla la entrega a la nueva conexión la sesión sigue
+	 * suspendida con su cola intacta y se elimina si nadie la reanuda a tiempo.
+	 */
+	@Test
+	public void failedHandOverShouldKeepSessionUntilItExpires() throws Exception {
+		ChatServerImpl server = new ChatServerImpl(new ServerConfig().setFanoutThreads(0).setResumeTimeoutMillis(100));
+		ClientSession ana = failHandOver(server);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getSessions().get(ana.getClientId()) != null) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		assertFalse(ana.isParked());
+		assertEquals(1, server.getMetrics().getDisconnects(DisconnectReason.CONNECTION_LOST));
+	}
+
+	/**
+	 * Comprueba que tras una entrega fallida el cliente puede reanudar la sesión
+	 * desde otra conexión y recibe las tramas que quedaban en la cola.
+	 */
+	@Test
+	public void failedHandOverShouldAllowAnotherResume() {
+		ChatServerImpl server = new ChatServerImpl(
+				new ServerConfig().setFanoutThreads(0).setResumeTimeoutMillis(10000));
+		ClientSession ana = failHandOver(server);
+		int pending = ana.getQueueDepth();
+		ClientSession resumed = idle(server);
+		resumed.login(new ChatMessage(ana.getClientId(), MessageType.RESUME, ana.getResumeToken() + " 0"));
+		assertTrue(server.getSessions().get(ana.getClientId()) == resumed);
+		assertEquals(0, ana.getQueueDepth());
+		// Respuesta de reanudación, tramas enviadas (ninguna) y las de la cola
+		assertEquals(pending + 1, resumed.getQueueDepth());
+	}
+}